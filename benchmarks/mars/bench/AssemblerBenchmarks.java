@@ -0,0 +1,58 @@
+package mars.bench;
+import mars.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading, tokenizing and assembling one file, in files per second.  The program
+ * parameter is "language:source": an example program shipped in the MARS directory
+ * under its language, or "generated" for a 20000-line program built from the example
+ * format of every instruction in the language that assembles on its own.
+ **/
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AssemblerBenchmarks {
+
+   @Param({
+      "MIPS Assembly:generated",
+      "MIPS Plus Plus:generated", "MIPS Plus Plus:mipsPlusPlus.asm",
+      "Mario Kart:generated", "Mario Kart:marioKart.asm",
+      "Test Assembly:generated",
+      "McDonald's:generated", "McDonald's:mcDonalds.asm",
+      "Dragon Ball Assembly:generated", "Dragon Ball Assembly:mips1.asm", "Dragon Ball Assembly:testfile.asm",
+      "Example Custom Language:generated",
+      "PokemonAssembly:generated", "PokemonAssembly:Example1.asm", "PokemonAssembly:Example2.asm",
+      "PokemonAssembly:Example3.asm", "PokemonAssembly:teststatus.asm" })
+   public String program;
+
+   private String file;
+
+   @Setup
+   public void setUp() throws Exception {
+      MarsBenchmarks.initialize();
+      file = MarsBenchmarks.useProgram(program);
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      MarsBenchmarks.cleanUp();
+   }
+
+   @Benchmark
+   public MIPSprogram tokenize() throws Exception {
+      MIPSprogram code = new MIPSprogram();
+      code.readSource(file);
+      code.tokenize();
+      return code;
+   }
+
+   @Benchmark
+   public MIPSprogram assemble() throws Exception {
+      return MarsBenchmarks.assemble(file);
+   }
+}
@@ -0,0 +1,178 @@
+package mars.bench;
+import mars.*;
+import mars.mips.hardware.*;
+import mars.mips.instructions.*;
+import mars.simulator.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Instruction sets and programs shared by the JMH benchmarks of the assembler,
+ * the simulator and memory.  Each benchmark runs in a JVM of its own, which calls
+ * initialize() before measuring and, if it wrote programs, cleanUp() afterwards.
+ **/
+
+final class MarsBenchmarks {
+
+   static final String MIPS = "MIPS Assembly";
+   static final String GENERATED = "generated";
+   // Lines in each generated program.
+   private static final int GENERATED_LINES = 20000;
+   static final int LOOP_ITERATIONS = 200000;
+
+   private static boolean initialized;
+   // Holds the programs written by this JVM, until cleanUp() deletes it.
+   private static File temporaryDirectory;
+
+   private MarsBenchmarks() {
+   }
+
+   // Set up MARS as the command line does, once per JVM.
+   static synchronized void initialize() {
+      if (!initialized) {
+         System.setProperty("java.awt.headless", "true");
+         Globals.initialize(false);
+         initialized = true;
+      }
+   }
+
+   // Delete the programs written so far and their directory.  File.deleteOnExit()
+   // cannot do this, since it does not delete a directory that is not empty.
+   static synchronized void cleanUp() throws IOException {
+      if (temporaryDirectory == null) {
+         return;
+      }
+      File[] files = temporaryDirectory.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            delete(file);
+         }
+      }
+      delete(temporaryDirectory);
+      temporaryDirectory = null;
+   }
+
+   // Make the named instruction set the only one enabled, as the Language Switcher does.
+   static void useLanguage(String name) {
+      CustomAssembly chosen = null;
+      for (CustomAssembly language : LanguageLoader.assemblyList) {
+         language.enabled = false;
+         if (chosen == null && language.getName().equals(name)) {
+            chosen = language;
+         }
+      }
+      if (chosen == null) {
+         throw new IllegalArgumentException("no instruction set named " + name);
+      }
+      chosen.enabled = true;
+      Globals.instructionSet.populate();
+   }
+
+   // The file for a program parameter, "language:source", with that language in use.
+   // The source is either an example program in the MARS directory or GENERATED, for
+   // a program generated from the instruction set.
+   static String useProgram(String program) throws Exception {
+      int colon = program.lastIndexOf(':');
+      if (colon < 0) {
+         throw new IllegalArgumentException("program must be language:source, not " + program);
+      }
+      useLanguage(program.substring(0, colon));
+      String source = program.substring(colon + 1);
+      return source.equals(GENERATED) ? generateProgram().getPath() : source;
+   }
+
+   // Write a program of GENERATED_LINES lines that cycles through the example format
+   // of every instruction in the current instruction set that assembles on its own.
+   // The labels "label" and "target" used by the examples are defined at the top.
+   private static File generateProgram() throws Exception {
+      String header = "label:\ntarget:\n";
+      ArrayList<String> lines = new ArrayList<String>();
+      HashSet<String> seen = new HashSet<String>();
+      for (Object instruction : Globals.instructionSet.getInstructionList()) {
+         String example = ((Instruction) instruction).getExampleFormat();
+         if (seen.add(example) && assembles(header + example + "\n")) {
+            lines.add(example);
+         }
+      }
+      if (lines.isEmpty()) {
+         throw new IllegalStateException("no instruction example assembles");
+      }
+      StringBuilder program = new StringBuilder(header);
+      for (int i = 0; i < GENERATED_LINES; i++) {
+         program.append(lines.get(i % lines.size())).append('\n');
+      }
+      return write("generated", program.toString());
+   }
+
+   private static boolean assembles(String program) throws IOException {
+      try {
+         assemble(write("probe", program).getPath());
+         return true;
+      }
+         catch (ProcessingException e) {
+            return false;
+         }
+   }
+
+   static MIPSprogram assemble(String file) throws ProcessingException {
+      MIPSprogram code = new MIPSprogram();
+      ArrayList<String> files = new ArrayList<String>();
+      files.add(file);
+      ArrayList<?> programs = code.prepareFilesForAssembly(files, file, null);
+      code.assemble(programs, true, false);
+      return code;
+   }
+
+   private static synchronized File write(String name, String contents) throws IOException {
+      if (temporaryDirectory == null) {
+         temporaryDirectory = createTemporaryDirectory();
+      }
+      File file = new File(temporaryDirectory, name + ".asm");
+      Writer out = new FileWriter(file);
+      try {
+         out.write(contents);
+      }
+      finally {
+         out.close();
+      }
+      return file;
+   }
+
+   private static File createTemporaryDirectory() throws IOException {
+      File directory = File.createTempFile("mars-benchmarks", "");
+      if (!directory.delete() || !directory.mkdir()) {
+         throw new IOException("cannot create directory " + directory);
+      }
+      return directory;
+   }
+
+   private static void delete(File file) throws IOException {
+      if (!file.delete() && file.exists()) {
+         throw new IOException("cannot delete " + file);
+      }
+   }
+
+   // A tight loop of integer instructions, five per iteration.
+   static MIPSprogram assembleLoop() throws Exception {
+      useLanguage(MIPS);
+      return assemble(write("loop",
+         "main:  li $t0, " + LOOP_ITERATIONS + "\n" +
+         "loop:  addi $t1, $t1, 1\n" +
+         "       xor $t2, $t2, $t1\n" +
+         "       addu $t3, $t3, $t2\n" +
+         "       addi $t0, $t0, -1\n" +
+         "       bnez $t0, loop\n" +
+         "       li $v0, 10\n" +
+         "       syscall\n").getPath());
+   }
+
+   // Run the program from the start with fresh registers and memory, and return the
+   // number of instructions executed.
+   static long runProgram(MIPSprogram code) throws Exception {
+      code.resetMemory();
+      RegisterFile.resetRegisters();
+      RegisterFile.initializeProgramCounter(false);
+      code.simulate(-1);
+      return Simulator.getInstance().getInstructionCount();
+   }
+}
@@ -0,0 +1,93 @@
+package mars.bench;
+import mars.mips.hardware.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading or writing every word or byte of a range of the data segment, in
+ * accesses per second, with block tables and with the page table, and with and
+ * without an observer of the range.
+ **/
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemoryBenchmarks {
+
+   private static final int WORDS = 16384;
+   private static final int BYTES = WORDS * Memory.WORD_LENGTH_BYTES;
+
+   @Param({ "blocks", "pagetable" })
+   public String backend;
+
+   @Param({ "false", "true" })
+   public boolean observed;
+
+   private final Observer observer =
+      new Observer() {
+         public void update(Observable o, Object notice) {
+         }
+      };
+   private Memory memory;
+   private int base;
+
+   @Setup
+   public void setUp() throws Exception {
+      MarsBenchmarks.initialize();
+      memory = Memory.getInstance();
+      memory.setPageTableEnabled(backend.equals("pagetable"));
+      memory.clear();
+      base = Memory.dataBaseAddress;
+      for (int i = 0; i < WORDS; i++) {
+         memory.setWord(base + i * Memory.WORD_LENGTH_BYTES, i);
+      }
+      if (observed) {
+         memory.addObserver(observer, base, base + BYTES);
+      }
+   }
+
+   @TearDown
+   public void tearDown() {
+      memory.deleteObserver(observer);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(WORDS)
+   public int wordGet() throws Exception {
+      int sum = 0;
+      for (int i = 0; i < WORDS; i++) {
+         sum += memory.getWord(base + i * Memory.WORD_LENGTH_BYTES);
+      }
+      return sum;
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(WORDS)
+   public void wordSet() throws Exception {
+      for (int i = 0; i < WORDS; i++) {
+         memory.setWord(base + i * Memory.WORD_LENGTH_BYTES, i);
+      }
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BYTES)
+   public int byteGet() throws Exception {
+      int sum = 0;
+      for (int i = 0; i < BYTES; i++) {
+         sum += memory.getByte(base + i);
+      }
+      return sum;
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(BYTES)
+   public void byteSet() throws Exception {
+      for (int i = 0; i < BYTES; i++) {
+         memory.setByte(base + i, i);
+      }
+   }
+}
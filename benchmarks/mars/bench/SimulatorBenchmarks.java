@@ -0,0 +1,92 @@
+package mars.bench;
+import mars.*;
+import mars.mips.hardware.*;
+import mars.simulator.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Running a tight loop of integer instructions to completion, in runs per second.
+ * The number of instructions executed per second is reported with each result as
+ * the "instructions" secondary metric.
+ * <ul>
+ * <li>step: in the interpreter and in the turbo engine.</li>
+ * <li>backstep: in the interpreter, with the program's BackStepper recording or not.</li>
+ * </ul>
+ **/
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulatorBenchmarks {
+
+   @State(Scope.Benchmark)
+   public static class Step {
+      @Param({ "interpreter", "turbo" })
+      public String engine;
+
+      private MIPSprogram code;
+
+      @Setup
+      public void setUp() throws Exception {
+         MarsBenchmarks.initialize();
+         code = MarsBenchmarks.assembleLoop();
+         Simulator.getInstance().setTurboEnabled(engine.equals("turbo"));
+      }
+
+      @TearDown
+      public void tearDown() throws Exception {
+         MarsBenchmarks.cleanUp();
+      }
+   }
+
+   @State(Scope.Benchmark)
+   public static class BackStep {
+      @Param({ "off", "on" })
+      public String backstepping;
+
+      private MIPSprogram code;
+
+      @Setup
+      public void setUp() throws Exception {
+         MarsBenchmarks.initialize();
+         code = MarsBenchmarks.assembleLoop();
+         Simulator.getInstance().setTurboEnabled(false);
+         MachineContext.getDefault().setProgram(code);
+      }
+
+      @TearDown
+      public void tearDown() throws Exception {
+         MarsBenchmarks.cleanUp();
+      }
+   }
+
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   public static class Instructions {
+      public long instructions;
+
+      @Setup(Level.Iteration)
+      public void reset() {
+         instructions = 0;
+      }
+   }
+
+   @Benchmark
+   public void step(Step state, Instructions counter) throws Exception {
+      counter.instructions += MarsBenchmarks.runProgram(state.code);
+   }
+
+   @Benchmark
+   public void backstep(BackStep state, Instructions counter) throws Exception {
+      MIPSprogram code = state.code;
+      code.resetMemory();   // starts a new BackStepper
+      code.getBackStepper().setEnabled(state.backstepping.equals("on"));
+      RegisterFile.resetRegisters();
+      RegisterFile.initializeProgramCounter(false);
+      code.simulate(-1);
+      counter.instructions += Simulator.getInstance().getInstructionCount();
+   }
+}
@@ -0,0 +1,87 @@
+package mars.mips.instructions.syscalls;
+import mars.*;
+import mars.mips.hardware.*;
+import java.util.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The memory observers of the Print String syscall, which reads the string a chunk
+ * at a time, are told of the bytes of the string and its NULL but of nothing after it.
+ **/
+
+public class SyscallPrintStringTest {
+
+   private final List<MemoryAccessNotice> notices = new ArrayList<MemoryAccessNotice>();
+   private final Observer observer =
+      new Observer() {
+         public void update(Observable o, Object notice) {
+            notices.add((MemoryAccessNotice) notice);
+         }
+      };
+   private Memory memory;
+
+   @BeforeAll
+   public static void initialize() {
+      System.setProperty("java.awt.headless", "true");
+      Globals.initialize(false);
+   }
+
+   @BeforeEach
+   public void setUp() {
+      memory = Memory.getInstance();
+   }
+
+   @AfterEach
+   public void tearDown() {
+      memory.deleteObserver(observer);
+      memory.setPageTableEnabled(false);
+   }
+
+   @Test
+   public void shortStringNotifiesThroughNull() throws Exception {
+      for (boolean pageTable : new boolean[] { false, true }) {
+         // Unaligned, so that the notices are a partial word and then a byte.
+         assertNotices(pageTable, Memory.dataBaseAddress + 1, "hi!");
+      }
+   }
+
+   @Test
+   public void longStringNotifiesThroughNull() throws Exception {
+      StringBuilder string = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+         string.append((char) ('a' + i % 26));
+      }
+      for (boolean pageTable : new boolean[] { false, true }) {
+         assertNotices(pageTable, Memory.dataBaseAddress + 2, string.toString());
+      }
+   }
+
+   // Print the string at the address, followed by bytes that are not NULL, and check
+   // that the notices cover exactly the string and its NULL, in order, with none
+   // crossing a word boundary.
+   private void assertNotices(boolean pageTable, int address, String string) throws Exception {
+      memory.setPageTableEnabled(pageTable);
+      memory.clear();
+      for (int i = 0; i < string.length(); i++) {
+         memory.setByte(address + i, string.charAt(i));
+      }
+      for (int i = 1; i < 64; i++) {
+         memory.setByte(address + string.length() + i, 'x');
+      }
+      notices.clear();
+      memory.addObserver(observer, Memory.dataBaseAddress, Memory.dataBaseAddress + 4096);
+      RegisterFile.updateRegister(4, address);
+      new SyscallPrintString().simulate(null);
+      memory.deleteObserver(observer);
+
+      int expected = address;
+      for (MemoryAccessNotice notice : notices) {
+         assertEquals(AccessNotice.READ, notice.getAccessType());
+         assertEquals(expected, notice.getAddress());
+         assertTrue(notice.getLength() <= Memory.WORD_LENGTH_BYTES - (expected & 3));
+         expected += notice.getLength();
+      }
+      assertEquals(address + string.length() + 1, expected);
+   }
+}
@@ -0,0 +1,432 @@
+package mars;
+import mars.mips.hardware.*;
+import mars.simulator.*;
+import mars.util.SystemIO;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs many programs against many inputs in one JVM, for the command line "batch"
+ * option.  The runs are listed in a manifest, one per line, with fields separated by
+ * tabs:
+ * <pre>
+ *    program[:program...]  [stdin-file]  [expected-stdout-file]  [step-limit]
+ * </pre>
+ * Programs assembled together are separated by the platform's path separator (':' or
+ * ';').  A missing field or "-" means no input, no comparison, or the step limit given
+ * on the command line.  Relative paths are relative to the manifest's directory.
+ * Blank lines and lines starting with '#' are ignored.
+ *
+ * Runs execute on a pool with one worker per available processor.  Each worker has its
+ * own MachineContext, so runs on different workers do not share memory, registers,
+ * files or standard streams.  Runs of the same program are given to a worker together
+ * so that it assembles the program once and restores the assembled memory between
+ * inputs.  The standard output of every run is captured, compared with the expected
+ * output if there is one, and reported with the exit code and the number of
+ * instructions executed as one JSON object per line of the results file, in manifest
+ * order.
+ **/
+
+class BatchRunner {
+
+   /** Status of a run that ended normally, by exit syscall or by running off the end. */
+   static final String COMPLETED = "completed";
+   /** Status of a run stopped at its step limit. */
+   static final String STEP_LIMIT = "step-limit";
+   /** Status of a run ended by a runtime error. */
+   static final String RUNTIME_ERROR = "runtime-error";
+   /** Status of a run whose program did not assemble. */
+   static final String ASSEMBLE_ERROR = "assemble-error";
+   /** Status of a run that could not be carried out, such as for a missing input file. */
+   static final String ERROR = "error";
+
+   private static final String NONE = "-";
+
+   private final boolean pseudo;
+   private final boolean warningsAreErrors;
+   private final boolean startAtMain;
+   private final boolean pageTable;
+   private final int maxSteps;
+   private final int assembleErrorExitCode;
+   private final int simulateErrorExitCode;
+   private final int threads = Runtime.getRuntime().availableProcessors();
+   private final ThreadLocal<MachineContext> contexts = new ThreadLocal<MachineContext>() {
+         protected MachineContext initialValue() {
+            MachineContext context = new MachineContext();
+            context.getMemory().setPageTableEnabled(pageTable);
+            context.getSimulator().setTurboEnabled(true);
+            return context;
+         }
+      };
+   private int matched;
+   private int mismatched;
+
+   /**
+    * @param pseudo whether pseudo instructions are allowed
+    * @param warningsAreErrors whether assembler warnings are treated as errors
+    * @param startAtMain whether to start at the global label main, if defined
+    * @param pageTable whether memory is held in a page table
+    * @param maxSteps step limit of runs that do not give their own; 0 or less for none
+    * @param assembleErrorExitCode exit code reported for a run that does not assemble
+    * @param simulateErrorExitCode exit code reported for a run ended by a runtime error
+    */
+   BatchRunner(boolean pseudo, boolean warningsAreErrors, boolean startAtMain, boolean pageTable,
+               int maxSteps, int assembleErrorExitCode, int simulateErrorExitCode) {
+      this.pseudo = pseudo;
+      this.warningsAreErrors = warningsAreErrors;
+      this.startAtMain = startAtMain;
+      this.pageTable = pageTable;
+      this.maxSteps = maxSteps;
+      this.assembleErrorExitCode = assembleErrorExitCode;
+      this.simulateErrorExitCode = simulateErrorExitCode;
+   }
+
+   /**
+    * Carry out every run in the manifest and write their results.
+    *
+    * @param manifest the manifest file
+    * @param results the JSON-lines file to write
+    * @return number of runs carried out
+    * @throws IOException if the manifest cannot be read or the results written
+    */
+   int run(File manifest, File results) throws IOException {
+      List<Run> runs = readManifest(manifest);
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<?>> futures = new ArrayList<Future<?>>();
+         for (final List<Run> chunk : chunk(runs)) {
+            futures.add(pool.submit(
+               new Callable<Object>() {
+                  public Object call() throws Exception {
+                     return contexts.get().call(
+                        new Callable<Object>() {
+                           public Object call() {
+                              runChunk(chunk);
+                              return null;
+                           }
+                        });
+                  }
+               }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      }
+      catch (InterruptedException e) {
+         throw new InterruptedIOException("batch interrupted");
+      }
+      catch (ExecutionException e) {
+         throw new IOException("batch failed: " + e.getCause(), e.getCause());
+      }
+      finally {
+         pool.shutdown();
+      }
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(results), "UTF-8"));
+      try {
+         for (Run run : runs) {
+            out.write(run.toJson());
+            out.write('\n');
+            if (run.matched != null) {
+               if (run.matched.booleanValue()) {
+                  matched++;
+               }
+               else {
+                  mismatched++;
+               }
+            }
+         }
+      }
+      finally {
+         out.close();
+      }
+      return runs.size();
+   }
+
+   /**
+    * @return number of runs whose output matched the expected output
+    */
+   int getMatched() {
+      return matched;
+   }
+
+   /**
+    * @return number of runs whose output did not match the expected output
+    */
+   int getMismatched() {
+      return mismatched;
+   }
+
+   private List<Run> readManifest(File manifest) throws IOException {
+      File directory = manifest.getAbsoluteFile().getParentFile();
+      List<Run> runs = new ArrayList<Run>();
+      BufferedReader in = new BufferedReader(new FileReader(manifest));
+      try {
+         String line;
+         for (int lineNumber = 1; (line = in.readLine()) != null; lineNumber++) {
+            if (line.trim().length() == 0 || line.trim().startsWith("#")) {
+               continue;
+            }
+            String[] fields = line.split("\t");
+            Run run = new Run(lineNumber);
+            String[] programs = fields[0].trim().split(File.pathSeparator);
+            run.programs = new String[programs.length];
+            for (int i = 0; i < programs.length; i++) {
+               run.programs[i] = resolve(directory, programs[i]).getPath();
+            }
+            run.stdin = (fields.length > 1) ? resolve(directory, fields[1]) : null;
+            run.expected = (fields.length > 2) ? resolve(directory, fields[2]) : null;
+            run.maxSteps = maxSteps;
+            if (fields.length > 3 && !fields[3].trim().equals(NONE)) {
+               try {
+                  run.maxSteps = Integer.decode(fields[3].trim()).intValue();
+               }
+               catch (NumberFormatException e) {
+                  throw new IOException(manifest + " line " + lineNumber + ": invalid step limit " + fields[3].trim());
+               }
+            }
+            runs.add(run);
+         }
+      }
+      finally {
+         in.close();
+      }
+      return runs;
+   }
+
+   private static File resolve(File directory, String name) {
+      name = name.trim();
+      if (name.length() == 0 || name.equals(NONE)) {
+         return null;
+      }
+      File file = new File(name);
+      return (file.isAbsolute() ? file : new File(directory, name)).getAbsoluteFile();
+   }
+
+   // Groups runs of the same program, in the order the programs first appear, into
+   // chunks small enough that all workers have something to do.
+   private List<List<Run>> chunk(List<Run> runs) {
+      int chunkSize = Math.max(1, (runs.size() + threads * 4 - 1) / (threads * 4));
+      Map<String, List<Run>> byProgram = new LinkedHashMap<String, List<Run>>();
+      for (Run run : runs) {
+         String key = Arrays.asList(run.programs).toString();
+         List<Run> group = byProgram.get(key);
+         if (group == null) {
+            group = new ArrayList<Run>();
+            byProgram.put(key, group);
+         }
+         group.add(run);
+      }
+      List<List<Run>> chunks = new ArrayList<List<Run>>();
+      for (List<Run> group : byProgram.values()) {
+         for (int i = 0; i < group.size(); i += chunkSize) {
+            chunks.add(group.subList(i, Math.min(group.size(), i + chunkSize)));
+         }
+      }
+      return chunks;
+   }
+
+   // Runs a chunk on the calling thread, which is bound to its worker's context.  All
+   // runs in a chunk are of the same program.
+   private void runChunk(List<Run> chunk) {
+      MIPSprogram code = null;
+      String assembleErrors = null;
+      try {
+         code = assemble(chunk.get(0).programs);
+      }
+      catch (ProcessingException e) {
+         assembleErrors = e.errors().generateErrorAndWarningReport();
+      }
+      for (int i = 0; i < chunk.size(); i++) {
+         Run run = chunk.get(i);
+         if (assembleErrors != null) {
+            run.status = ASSEMBLE_ERROR;
+            run.exitCode = assembleErrorExitCode;
+            run.message = assembleErrors;
+            continue;
+         }
+         try {
+            if (i > 0 && !code.resetMemory()) {
+               code = assemble(run.programs);
+            }
+            simulate(code, run);
+         }
+         catch (ProcessingException e) {
+            run.status = ASSEMBLE_ERROR;
+            run.exitCode = assembleErrorExitCode;
+            run.message = e.errors().generateErrorAndWarningReport();
+         }
+         catch (IOException e) {
+            run.status = ERROR;
+            run.message = e.getMessage();
+         }
+         catch (RuntimeException e) {
+            run.status = ERROR;
+            run.message = e.toString();
+         }
+      }
+   }
+
+   private MIPSprogram assemble(String[] programs) throws ProcessingException {
+      MIPSprogram code = new MIPSprogram();
+      ArrayList<String> files = new ArrayList<String>(Arrays.asList(programs));
+      ArrayList<?> programsToAssemble = code.prepareFilesForAssembly(files, programs[0], null);
+      code.assemble(programsToAssemble, pseudo, warningsAreErrors);
+      return code;
+   }
+
+   private void simulate(MIPSprogram code, Run run) throws IOException {
+      MachineContext context = MachineContext.current();
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(stdout);
+      PrintStream err = new PrintStream(stderr);
+      InputStream in = (run.stdin == null)
+         ? new ByteArrayInputStream(new byte[0])
+         : new BufferedInputStream(new FileInputStream(run.stdin));
+      try {
+         context.getSystemIO().setStandardStreams(in, out, err);
+         SystemIO.resetFiles();
+         RegisterFile.resetRegisters();
+         Coprocessor0.resetRegisters();
+         Coprocessor1.resetRegisters();
+         RegisterFile.initializeProgramCounter(startAtMain);
+         context.setExitCode(0);
+         try {
+            boolean done = code.simulate(run.maxSteps);
+            run.instructionCount = context.getSimulator().getInstructionCount();
+            if (done) {
+               run.status = COMPLETED;
+               run.exitCode = context.getExitCode();
+            }
+            else if (run.maxSteps > 0 && run.instructionCount >= run.maxSteps) {
+               run.status = STEP_LIMIT;
+               run.exitCode = context.getExitCode();
+            }
+            else {
+               run.status = ERROR;
+               run.message = "simulation ended without completing";
+            }
+         }
+         catch (ProcessingException e) {
+            run.instructionCount = context.getSimulator().getInstructionCount();
+            run.status = RUNTIME_ERROR;
+            run.exitCode = simulateErrorExitCode;
+            run.message = e.errors().generateErrorAndWarningReport();
+         }
+      }
+      finally {
+         context.getSystemIO().setStandardStreams(null, null, null);
+         in.close();
+      }
+      out.flush();
+      err.flush();
+      run.stdout = stdout.toString();
+      run.stderr = stderr.toString();
+      if (run.expected != null) {
+         run.matched = Boolean.valueOf(Arrays.equals(stdout.toByteArray(), readFile(run.expected)));
+      }
+   }
+
+   private static byte[] readFile(File file) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         byte[] buffer = new byte[8192];
+         for (int count; (count = in.read(buffer)) > 0; ) {
+            bytes.write(buffer, 0, count);
+         }
+         return bytes.toByteArray();
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   // One line of the manifest and, once it has been carried out, its result.
+   private static class Run {
+      final int lineNumber;
+      String[] programs;
+      File stdin;
+      File expected;
+      int maxSteps;
+      String status;
+      int exitCode;
+      int instructionCount;
+      String stdout = "";
+      String stderr = "";
+      String message;
+      Boolean matched;
+
+      Run(int lineNumber) {
+         this.lineNumber = lineNumber;
+      }
+
+      String toJson() {
+         StringBuilder json = new StringBuilder("{\"line\":").append(lineNumber);
+         json.append(",\"programs\":[");
+         for (int i = 0; i < programs.length; i++) {
+            if (i > 0) {
+               json.append(',');
+            }
+            quote(json, programs[i]);
+         }
+         json.append("],\"stdin\":");
+         quote(json, (stdin == null) ? null : stdin.getPath());
+         json.append(",\"status\":");
+         quote(json, status);
+         json.append(",\"exitCode\":").append(exitCode);
+         json.append(",\"instructions\":").append(instructionCount);
+         if (matched != null) {
+            json.append(",\"matched\":").append(matched);
+         }
+         json.append(",\"stdout\":");
+         quote(json, stdout);
+         if (stderr.length() > 0) {
+            json.append(",\"stderr\":");
+            quote(json, stderr);
+         }
+         if (message != null) {
+            json.append(",\"message\":");
+            quote(json, message);
+         }
+         return json.append('}').toString();
+      }
+
+      private static void quote(StringBuilder json, String s) {
+         if (s == null) {
+            json.append("null");
+            return;
+         }
+         json.append('"');
+         for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+               case '"':
+                  json.append("\\\"");
+                  break;
+               case '\\':
+                  json.append("\\\\");
+                  break;
+               case '\n':
+                  json.append("\\n");
+                  break;
+               case '\r':
+                  json.append("\\r");
+                  break;
+               case '\t':
+                  json.append("\\t");
+                  break;
+               default:
+                  if (c < 0x20) {
+                     json.append(String.format("\\u%04x", (int) c));
+                  }
+                  else {
+                     json.append(c);
+                  }
+            }
+         }
+         json.append('"');
+      }
+   }
+}
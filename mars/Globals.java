@@ -50,13 +50,15 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
     /** The set of implemented MIPS instructions. **/
       public static InstructionSet instructionSet;
-   /** the program currently being worked with.  Used by GUI only, not command line. **/
+   /** the program currently being worked with.  Used by GUI only, not command line.
+       Belongs to the default MachineContext. **/
       public static MIPSprogram program;
-   /** Symbol table for file currently being assembled. **/
+   /** Symbol table for file currently being assembled into the default MachineContext. **/
       public static SymbolTable symbolTable;
-    /** Simulated MIPS memory component. **/
+    /** Simulated MIPS memory component of the default MachineContext. **/
       public static Memory memory;
-    /** Lock variable used at head of synchronized block to guard MIPS memory and registers **/
+    /** Lock variable used at head of synchronized block to guard MIPS memory and registers
+        of the default MachineContext **/
       public static Object memoryAndRegistersLock = new Object();
     /** Flag to determine whether or not to produce internal debugging information. **/
       public static boolean debug = false;
@@ -83,6 +85,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       public static final int maximumErrorMessages = getErrorLimit();
     /** Maximum number of back-step operations to buffer */
       public static final int maximumBacksteps = getBackstepLimit();
+    /** Maximum number of instructions the simulator executes per acquisition of memoryAndRegistersLock */
+      public static final int executionQuantum = getExecutionQuantum();
+    /** Number of bytes a MIPS program can write to each file it opens before they are written out; 0 writes at every syscall */
+      public static final int fileWriteBufferSize = getFileWriteBuffer();
+    /** Size in bytes from which a file a MIPS program opens for reading is memory-mapped; 0 never maps */
+      public static final int fileMapThreshold = getFileMapThreshold();
    	/** MARS copyright years */
       public static final String copyrightYears = getCopyrightYears();
    	/** MARS copyright holders */
@@ -145,6 +153,21 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        private static int getBackstepLimit() {
          return getIntegerProperty(configPropertiesFile, "BackstepLimit", 1000);
       } 
+   
+   	// Read execution quantum (instructions per lock acquisition) from properties file.
+       private static int getExecutionQuantum() {
+         return Math.max(1, getIntegerProperty(configPropertiesFile, "ExecutionQuantum", 1000));
+      }
+   
+   	// Read size of the write buffer of each file opened by a MIPS program from properties file.
+       private static int getFileWriteBuffer() {
+         return Math.max(0, getIntegerProperty(configPropertiesFile, "FileWriteBuffer", 65536));
+      }
+   
+   	// Read size from which files opened for reading are memory-mapped, from properties file.
+       private static int getFileMapThreshold() {
+         return Math.max(0, getIntegerProperty(configPropertiesFile, "FileMapThreshold", 1048576));
+      }
 		
    	// Read ASCII default display character for non-printing characters, from properties file.
        public static String getAsciiNonPrint() {
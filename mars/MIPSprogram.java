@@ -6,6 +6,9 @@
    import mars.mips.hardware.*;
 	
    import java.util.*;
+   import java.util.concurrent.Callable;
+   import java.util.concurrent.ForkJoinPool;
+   import java.util.concurrent.ForkJoinTask;
    import java.io.*;
    import java.awt.event.*;
    import javax.swing.*;
@@ -55,9 +58,10 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       private String filename;
       private ArrayList sourceList;
       private ArrayList tokenList;
-      private ArrayList parsedList;
+      private ArrayList<ProgramStatement> parsedList;
       private ArrayList machineList;
       private BackStepper backStepper;
+      private MemorySnapshot assembledMemory;
       private SymbolTable localSymbolTable;
       private MacroPool macroPool;
       private ArrayList<SourceLine> sourceLineList;
@@ -132,8 +136,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     * @see ProgramStatement
     **/
     
-       public ArrayList createParsedList() {
-         parsedList = new ArrayList();
+       public ArrayList<ProgramStatement> createParsedList() {
+         parsedList = new ArrayList<ProgramStatement>();
          return parsedList;
       }
    
@@ -144,7 +148,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     * @see ProgramStatement
     **/
     
-       public ArrayList getParsedList() {
+       public ArrayList<ProgramStatement> getParsedList() {
          return parsedList;
       }
    
@@ -268,11 +272,37 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             filenames.add(0, exceptionHandler);
             leadFilePosition = 1;
          }
+      // Files other than this one are read and tokenized in the common ForkJoinPool if
+      // there are several and more than one processor, in the caller's context.  Errors
+      // are reported in file order, so the one thrown is that of the first file in
+      // error, as before.
+         boolean parallel = filenames.size() > 1 && Runtime.getRuntime().availableProcessors() > 1;
+         final MachineContext context = MachineContext.current();
+         ArrayList<MIPSprogram> preparees = new ArrayList<MIPSprogram>();
+         ArrayList<ForkJoinTask<ProcessingException>> preparations = new ArrayList<ForkJoinTask<ProcessingException>>();
          for (int i=0; i<filenames.size(); i++) {
-            String filename = (String) filenames.get(i);  
-            MIPSprogram preparee = (filename.equals(leadFilename)) ? this : new MIPSprogram();
-            preparee.readSource(filename);
-            preparee.tokenize();
+            final String filename = (String) filenames.get(i);  
+            final MIPSprogram preparee = (filename.equals(leadFilename)) ? this : new MIPSprogram();
+            preparees.add(preparee);
+            preparations.add((!parallel || preparee == this) ? null : ForkJoinPool.commonPool().submit(
+               new Callable<ProcessingException>() {
+                  public ProcessingException call() throws Exception {
+                     return context.call(
+                        new Callable<ProcessingException>() {
+                           public ProcessingException call() {
+                              return readAndTokenize(preparee, filename);
+                           }
+                        });
+                  }
+               }));
+         }
+         for (int i=0; i<filenames.size(); i++) {
+            MIPSprogram preparee = preparees.get(i);
+            ProcessingException error = (preparations.get(i) == null)
+               ? readAndTokenize(preparee, (String) filenames.get(i)) : preparations.get(i).join();
+            if (error != null) {
+               throw error;
+            }
          	// I want "this" MIPSprogram to be the first in the list...except for exception handler
             if (preparee == this && MIPSprogramsToAssemble.size()>0) {
                MIPSprogramsToAssemble.add(leadFilePosition,preparee);
@@ -284,6 +314,19 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          return MIPSprogramsToAssemble;
       }
    
+   // Read and tokenize a program from the given file, returning the exception that
+   // stopped it, if any, for prepareFilesForAssembly() to throw in file order.
+       private static ProcessingException readAndTokenize(MIPSprogram preparee, String filename) {
+         try {
+            preparee.readSource(filename);
+            preparee.tokenize();
+            return null;
+         } 
+             catch (ProcessingException e) {
+               return e;
+            }
+      }
+   
    /**
     * Assembles the MIPS source program. All files comprising the program must have 
     * already been tokenized.  Assembler warnings are not considered errors.
@@ -314,12 +357,35 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public ErrorList assemble(ArrayList MIPSprogramsToAssemble, boolean extendedAssemblerEnabled,
               boolean warningsAreErrors) throws ProcessingException {
          this.backStepper = null;
+         this.assembledMemory = null;
          Assembler asm = new Assembler();
          this.machineList = asm.assemble(MIPSprogramsToAssemble, extendedAssemblerEnabled, warningsAreErrors);
+         this.assembledMemory = Memory.getInstance().takeSnapshot();
          this.backStepper = new BackStepper();
          return asm.getErrorList();
       }
    
+   /**
+    * Returns memory to its contents as they were immediately after the program was
+    * assembled, and starts a fresh BackStepper, with the same result as assembling the
+    * program again but without re-reading or re-translating its source files.  The
+    * contents are restored from a snapshot taken at assembly time that shares memory
+    * blocks with the running program until either writes to them.  Registers are not
+    * affected.
+    * @return true if memory was reset, false if the program has not been assembled or
+    * memory has since been cleared or reconfigured, in which case it must be assembled again.
+    **/
+    
+       public boolean resetMemory() {
+         if (assembledMemory == null || !Memory.getInstance().canRestore(assembledMemory)) {
+            return false;
+         }
+         Memory.getInstance().restoreSnapshot(assembledMemory);
+         Memory.getInstance().getDecodedInstructionCache().build(machineList);
+         this.backStepper = new BackStepper();
+         return true;
+      }
+   
    
    /**
     * Simulates execution of the MIPS program. Program must have already been assembled.
@@ -68,6 +68,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             h  -- display help.  Use by itself and with no filename</br>
           hex  -- display memory or register contents in hexadecimal (default)<br>
            ic  -- display count of MIPS basic instructions 'executed'");
+          jmx  -- make runtime metrics available to JMX clients, as MBean mars:type=SimulationMetrics.<br>
            mc  -- set memory configuration.  Option has 1 argument, e.g.<br>
                   <tt>mc &lt;config$gt;</tt>, where &lt;config$gt; is <tt>Default</tt><br>
                   for the MARS default 32-bit address space, <tt>CompactDataAtZero</tt> for<br>
@@ -77,9 +78,16 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
            nc  -- do not display copyright notice (for cleaner redirected/piped output).</br>
    		  np  -- No Pseudo-instructions allowed ("ne" will work also).<br>
    		   p  -- Project mode - assemble all files in the same directory as given file.<br>
+         prof  -- profile the run.  Option has 2 arguments, e.g. <tt>prof &lt;report&gt; &lt;stacks&gt;</tt>.<br>
+                  Writes instruction counts by function and source line to &lt;report&gt;<br>
+                  and the call stacks in folded form, for flame graph tools, to &lt;stacks&gt;.<br>
+           pt  -- hold data, stack, kernel data and MMIO memory in a single page table.<br>
    	  se<n>  -- terminate MARS with integer exit code <n> if a simulation (run) error occurs.<br>
            sm  -- Start execution at Main - Execution will start at program statement globally labeled main.<br>
           smc  -- Self Modifying Code - Program can write and branch to either text or data segment<br>
+        stats  -- print runtime metrics to standard err periodically.  Option has 1 argument, e.g.<br>
+                  <tt>stats &lt;seconds&gt;</tt>.  See SimulationMetrics.<br>
+        turbo  -- use the turbo engine even if ic is specified.  It is otherwise used automatically.<br>
            we  -- assembler Warnings will be considered Errors<br>
           <n>  -- where <n> is an integer maximum count of steps to simulate.<br>
                   If 0, negative or not specified, there is no maximum.<br>
@@ -108,6 +116,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       private boolean startAtMain; // Whether to start execution at statement labeled 'main' 
       private boolean countInstructions; // Whether to count and report number of instructions executed 
       private boolean selfModifyingCode; // Whether to allow self-modifying code (e.g. write to text segment)
+      private boolean turbo; // Whether to use the turbo engine even if something is observing the run
+      private boolean pageTable; // Whether memory is held in a page table rather than block tables
       private static final String rangeSeparator = "-";
       private static final int splashDuration = 2000; // time in MS to show splash screen
       private static final int memoryWordsPerLine = 4; // display 4 memory words, tab separated, per line
@@ -122,6 +132,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       private int instructionCount;
       private PrintStream out; // stream for display of command line output
       private ArrayList dumpTriples = null; // each element holds 3 arguments for dump option
+      private String[] batchFiles = null; // manifest and results file for batch option
+      private String[] profileFiles = null; // report and folded stacks file for prof option
+      private Profiler profiler = null;
+      private boolean registerMetricsMBean; // Whether to make metrics available through JMX
+      private int statsInterval = 0; // seconds between metrics lines for stats option, 0 for none
       private ArrayList programArgumentList; // optional program args for MIPS program (becomes argc, argv)
       private int assembleErrorExitCode;  // MARS command exit code to return if assemble error occurs
       private int simulateErrorExitCode;// MARS command exit code to return if simulation error occurs
@@ -145,9 +160,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             startAtMain = false;
             countInstructions = false;
 				selfModifyingCode = false;
+            turbo = false;
+            pageTable = false;
             instructionCount = 0;
             assembleErrorExitCode = 0;
             simulateErrorExitCode = 0;
+            registerMetricsMBean = false;
             registerDisplayList = new ArrayList();
             memoryDisplayList = new ArrayList();
             filenameList = new ArrayList();
@@ -157,11 +175,20 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             maxSteps = -1;
             out = System.out;  
             if (parseCommandArgs(args)) {
-               if (runCommand()) {
+               java.util.Timer statsReporter = startMetrics();
+               if (batchFiles != null) {
+                  runBatch();
+               }
+               else if (runCommand()) {
                   displayMiscellaneousPostMortem();
+                  writeProfile();
                   displayRegistersPostMortem();
                   displayMemoryPostMortem();
                }
+               if (statsReporter != null) {
+                  statsReporter.cancel();
+                  System.err.println(SimulationMetrics.getInstance().getStatusLine());
+               }
                dumpSegments();
             }
             System.exit(Globals.exitCode);
@@ -208,7 +235,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                continue;
             }
             try {
-               int highAddress = Globals.memory.getAddressOfFirstNull(segInfo[0].intValue(), segInfo[1].intValue())- Memory.WORD_LENGTH_BYTES;
+               int highAddress = Memory.getInstance().getAddressOfFirstNull(segInfo[0].intValue(), segInfo[1].intValue())- Memory.WORD_LENGTH_BYTES;
                if (highAddress < segInfo[0].intValue()) {
                   out.println("This segment has not been written to, there is nothing to dump.");
                   continue;
@@ -237,6 +264,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
       private void launchIDE() {
          // System.setProperty("apple.laf.useScreenMenuBar", "true"); // Puts MARS menu on Mac OS menu bar
+         registerMetricsMBean();
          new MarsSplashScreen(splashDuration).showSplash();
          SwingUtilities.invokeLater(
                new Runnable() {
@@ -311,6 +339,48 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                }
                continue;
             } 
+            if (args[i].toLowerCase().equals("batch")) {
+               if (args.length <= (i+2)) {
+                  out.println("Batch command line argument requires a manifest and a results file name.");
+                  argsOK = false;
+               } 
+               else {
+                  batchFiles = new String[] {args[++i], args[++i]};
+               }
+               continue;
+            } 
+            if (args[i].toLowerCase().equals("prof")) {
+               if (args.length <= (i+2)) {
+                  out.println("Prof command line argument requires a report and a stacks file name.");
+                  argsOK = false;
+               } 
+               else {
+                  profileFiles = new String[] {args[++i], args[++i]};
+               }
+               continue;
+            } 
+            if (args[i].toLowerCase().equals("stats")) {
+               int seconds = 0;
+               if (args.length > (i+1)) {
+                  try {
+                     seconds = Integer.decode(args[++i]).intValue();
+                  } 
+                      catch (NumberFormatException nfe) {
+                     }
+               }
+               if (seconds <= 0) {
+                  out.println("Stats command line argument requires a positive number of seconds.");
+                  argsOK = false;
+               } 
+               else {
+                  statsInterval = seconds;
+               }
+               continue;
+            } 
+            if (args[i].toLowerCase().equals("jmx")) {
+               registerMetricsMBean = true;
+               continue;
+            }
             if (args[i].toLowerCase().equals("mc")) {
                String configName = args[++i];
                MemoryConfiguration config = MemoryConfigurations.getConfigurationByName(configName);
@@ -399,6 +469,14 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                selfModifyingCode = true;
                continue;
             }
+            if (args[i].toLowerCase().equals("turbo")) {
+               turbo = true;
+               continue;
+            }
+            if (args[i].toLowerCase().equals("pt")) {
+               pageTable = true;
+               continue;
+            }
             if (args[i].toLowerCase().equals("ic")) { // added 19-Jul-2012 DPS
                countInstructions = true;
                continue;
@@ -467,6 +545,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          try {
             Globals.getSettings().setBooleanSettingNonPersistent(Settings.DELAYED_BRANCHING_ENABLED, delayedBranching);
             Globals.getSettings().setBooleanSettingNonPersistent(Settings.SELF_MODIFYING_CODE_ENABLED, selfModifyingCode);
+            Memory.getInstance().setPageTableEnabled(pageTable); // applied when assembly clears memory
             File mainFile = new File((String) filenameList.get(0)).getAbsoluteFile();// First file is "main" file
             ArrayList filesToAssemble;
             if (assembleProject) { 
@@ -511,6 +590,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                new ProgramArgumentList(programArgumentList).storeProgramArguments();
             	// establish observer if specified  
                establishObserver();
+               // Headless runs use the turbo engine unless something observes them.
+               Simulator.getInstance().setTurboEnabled(turbo || !countInstructions);
+               if (profileFiles != null) {
+                  profiler = new Profiler();
+                  Simulator.getInstance().setProfiler(profiler);
+               }
                if (Globals.debug) {
                   out.println("--------  SIMULATION BEGINS  -----------");
                }
@@ -533,6 +618,25 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       }
    
    
+   	//////////////////////////////////////////////////////////////////////
+   	// Carry out the runs listed in a batch manifest.  See BatchRunner.
+   	
+      private void runBatch() {
+         Globals.getSettings().setBooleanSettingNonPersistent(Settings.DELAYED_BRANCHING_ENABLED, delayedBranching);
+         Globals.getSettings().setBooleanSettingNonPersistent(Settings.SELF_MODIFYING_CODE_ENABLED, selfModifyingCode);
+         BatchRunner batch = new BatchRunner(pseudo, warningsAreErrors, startAtMain, pageTable,
+                                             maxSteps, assembleErrorExitCode, simulateErrorExitCode);
+         try {
+            int runs = batch.run(new File(batchFiles[0]), new File(batchFiles[1]));
+            out.println(runs+" runs, "+batch.getMatched()+" matched expected output, "
+                        +batch.getMismatched()+" did not.  Results are in "+batchFiles[1]);
+         } 
+            catch (IOException e) {
+               out.println("Error while running batch: "+e.getMessage());
+            }
+      }
+   
+   
    	//////////////////////////////////////////////////////////////////////
       // Check for memory address subrange.  Has to be two integers separated
       // by "-"; no embedded spaces.  e.g. 0x00400000-0x00400010
@@ -564,7 +668,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       private void establishObserver() { 
          if (countInstructions) {
             Observer instructionCounter = 
-               new Observer() {
+               new TransientNoticeObserver() {
                   private int lastAddress = 0;
                   public void update(Observable o, Object obj) { 
                      if (obj instanceof AccessNotice) {
@@ -583,7 +687,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                   }
                };
             try {
-               Globals.memory.addObserver(instructionCounter, Memory.textBaseAddress, Memory.textLimitAddress);
+               Memory.getInstance().addObserver(instructionCounter, Memory.textBaseAddress, Memory.textLimitAddress);
             } 
                catch (AddressErrorException aee) {
                   out.println("Internal error: MarsLaunch uses incorrect text segment address for instruction observer");
@@ -601,6 +705,56 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       }
    
    	     		   	
+   	//////////////////////////////////////////////////////////////////////
+   	// Registers the metrics MBean if the jmx option is specified, and starts
+   	// printing metrics if the stats option is.  Returns the timer printing them,
+   	// or null if there is none.
+      private java.util.Timer startMetrics() {
+         if (registerMetricsMBean) {
+            registerMetricsMBean();
+         }
+         if (statsInterval <= 0) {
+            return null;
+         }
+         return SimulationMetrics.getInstance().startReporter(System.err, statsInterval * 1000L);
+      }
+
+      private void registerMetricsMBean() {
+         try {
+            SimulationMetrics.registerMBean();
+         }
+             catch (javax.management.JMException e) {
+               System.err.println("Runtime metrics are not available through JMX: "+e);
+            }
+      }
+
+   	//////////////////////////////////////////////////////////////////////
+   	// Writes the profile report and folded stacks, if the prof option is specified.
+      private void writeProfile() {
+         if (profiler == null) {
+            return;
+         }
+         for (int i=0; i<profileFiles.length; i++) {
+            try {
+               PrintStream file = new PrintStream(new BufferedOutputStream(new FileOutputStream(profileFiles[i])));
+               if (i == 0) {
+                  profiler.writeReport(file);
+               } 
+               else {
+                  profiler.writeFoldedStacks(file);
+               }
+               file.close();
+               if (file.checkError()) {
+                  out.println("Error while attempting to save profile, file " + profileFiles[i] + "!  Disk IO failed!");
+               }
+            } 
+               catch (FileNotFoundException e) {
+                  out.println("Error while attempting to save profile, file " + profileFiles[i] + " was not found!");
+               }
+         }
+      }
+   
+   	     		   	
    	//////////////////////////////////////////////////////////////////////
    	// Displays requested register or registers   			
    				
@@ -722,11 +876,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                try {
                   // Allow display of binary text segment (machine code) DPS 14-July-2008
                   if (Memory.inTextSegment(addr) || Memory.inKernelTextSegment(addr)) {
-                     Integer iValue = Globals.memory.getRawWordOrNull(addr);
+                     Integer iValue = Memory.getInstance().getRawWordOrNull(addr);
                      value = (iValue==null) ? 0 : iValue.intValue();
                   } 
                   else {
-                     value = Globals.memory.getWord(addr);
+                     value = Memory.getInstance().getWord(addr);
                   }
                   out.print( formatIntForDisplay(value)+"\t");
                }
@@ -787,11 +941,18 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             }
          }
          out.println("Usage:  Mars  [options] filename [additional filenames]");
+         out.println("        Mars  [options] batch <manifest> <results>");
          out.println("  Valid options (not case sensitive, separate by spaces) are:");
          out.println("      a  -- assemble only, do not simulate");
          out.println("  ae<n>  -- terminate MARS with integer exit code <n> if an assemble error occurs.");
          out.println("  ascii  -- display memory or register contents interpreted as ASCII codes.");
          out.println("      b  -- brief - do not display register/memory address along with contents");
+         out.println("  batch <manifest> <results> -- carry out every run listed in <manifest>, using");
+         out.println("            all processors, and write one line of JSON per run to <results>.");
+         out.println("            Each manifest line has tab-separated fields: program file(s)");
+         out.println("            separated by '"+File.pathSeparator+"', then optionally a file for standard input,");
+         out.println("            a file of expected standard output and a step limit ('-' for none).");
+         out.println("            Options np, we, sm, db, smc, pt, ae, se and <n> apply to every run.");
          out.println("      d  -- display MARS debugging statements");
          out.println("     db  -- MIPS delayed branching is enabled");
          out.println("    dec  -- display memory or register contents in decimal.");
@@ -804,6 +965,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          out.println("      h  -- display this help.  Use by itself with no filename.");
          out.println("    hex  -- display memory or register contents in hexadecimal (default)");
          out.println("     ic  -- display count of MIPS basic instructions 'executed'");
+         out.println("    jmx  -- make runtime metrics (instructions executed and per second, syscalls,");
+         out.println("            memory pages, observer notices, back-step log size) available to");
+         out.println("            JMX clients such as JConsole, as MBean "+SimulationMetrics.OBJECT_NAME+".");
          out.println("     mc <config>  -- set memory configuration.  Argument <config> is");
          out.println("            case-sensitive and possible values are: Default for the default");
          out.println("            32-bit address space, CompactDataAtZero for a 32KB memory with");
@@ -814,9 +978,18 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          out.println("     nc  -- do not display copyright notice (for cleaner redirected/piped output).");
          out.println("     np  -- use of pseudo instructions and formats not permitted");
          out.println("      p  -- Project mode - assemble all files in the same directory as given file.");
+         out.println("   prof <report> <stacks> -- profile the run.  Instruction counts by function");
+         out.println("            and by source line go to <report>, hottest first, and the call stacks");
+         out.println("            in folded form, as read by flame graph tools, go to <stacks>.");
+         out.println("     pt  -- hold data, stack, kernel data and MMIO memory in a single page table");
+         out.println("            instead of per-segment block tables.  Behavior is the same.");
          out.println("  se<n>  -- terminate MARS with integer exit code <n> if a simulation (run) error occurs.");
          out.println("     sm  -- start execution at statement with global label main, if defined");
          out.println("    smc  -- Self Modifying Code - Program can write and branch to either text or data segment");
+         out.println("  stats <seconds> -- print a line of runtime metrics to standard err every <seconds>");
+         out.println("            seconds while running, and once more at the end.");
+         out.println("  turbo  -- use the turbo engine even if ic is specified.  It is otherwise used");
+         out.println("            automatically, because nothing else observes a command-line run.");
          out.println("    <n>  -- where <n> is an integer maximum count of steps to simulate.");
          out.println("            If 0, negative or not specified, there is no maximum.");
          out.println(" $<reg>  -- where <reg> is number or name (e.g. 5, t3, f10) of register whose ");
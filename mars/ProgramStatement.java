@@ -320,7 +320,27 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          }
          this.basicAssemblyStatement = basic;
       } //buildBasicStatementFromBasicInstruction()
-    
+
+
+    /////////////////////////////////////////////////////////////////////////////
+    /**
+     * Make a copy of this statement for another MIPSprogram.  The copy has the basic
+     * assembly statement built by buildBasicStatementFromBasicInstruction(), if it has
+     * been built, but not the machine statement.  Used by the assembler to reuse the
+     * second pass of a source file that has not changed.
+     * @param sourceMIPSprogram The MIPSprogram object that contains the copy
+     * @return The copy.
+     **/
+       public ProgramStatement copyForProgram(MIPSprogram sourceMIPSprogram) {
+         ProgramStatement copy = new ProgramStatement(sourceMIPSprogram, source, originalTokenList,
+                                    strippedTokenList, instruction, textAddress, sourceLine);
+         copy.basicAssemblyStatement = basicAssemblyStatement;
+         copy.basicStatementList = basicStatementList;
+         copy.operands = operands.clone();
+         copy.numOperands = numOperands;
+         return copy;
+      }
+
     
    
     /////////////////////////////////////////////////////////////////////////////
@@ -1,6 +1,7 @@
    package mars;
    import mars.*;
    import mars.util.*;
+   import mars.simulator.MachineContext;
    import mars.venus.editors.jeditsyntax.*;
    import java.io.*;
    import java.util.*;
@@ -305,7 +306,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
      * @return true if backstepping is permitted, false otherwise.
      */
        public boolean getBackSteppingEnabled() {
-         return (Globals.program!=null && Globals.program.getBackStepper()!=null && Globals.program.getBackStepper().enabled());
+         MIPSprogram program = MachineContext.current().getProgram();
+         return (program!=null && program.getBackStepper()!=null && program.getBackStepper().enabled());
       }
    
    
@@ -3,6 +3,11 @@
    import java.util.ArrayList;
    import java.util.Collections;
    import java.util.Comparator;
+   import java.util.HashMap;
+   import java.util.LinkedHashMap;
+   import java.util.concurrent.Callable;
+   import java.util.concurrent.ForkJoinPool;
+   import java.util.concurrent.ForkJoinTask;
 
    import mars.ErrorList;
    import mars.ErrorMessage;
@@ -15,6 +20,8 @@
    import mars.mips.instructions.BasicInstruction;
    import mars.mips.instructions.ExtendedInstruction;
    import mars.mips.instructions.Instruction;
+   import mars.mips.instructions.TranslationTemplate;
+   import mars.simulator.MachineContext;
    import mars.util.Binary;
    import mars.util.SystemIO;
 
@@ -56,7 +63,7 @@
  **/
 
    public class Assembler {
-      private ArrayList machineList;
+      private ArrayList<ProgramStatement> machineList;
       private ErrorList errors;
       private boolean inDataSegment; // status maintained by parser
       private boolean inMacroSegment; // status maintained by parser, true if in
@@ -71,6 +78,15 @@
       private UserKernelAddressSpace dataAddress;
       private DataSegmentForwardReferences currentFileDataSegmentForwardReferences,
       	accumulatedDataSegmentForwardReferences;
+      // Unit being recorded for the file in its first pass, or null if it is not cacheable.
+      private AssemblyCache.Unit recording;
+      private HashMap<String, Token> recordedLabels;
+      private ArrayList<int[]> recordedRuns;
+      private ArrayList<int[]> recordedAlignments;
+      // Memory the data segment is written to: that of the current MachineContext, or
+      // scratch memory when parsing a file alone, see parseAlone().
+      private Memory memory;
+      private boolean parsingAlone;
    
    /**
     * Parse and generate machine code for the given MIPS program. It must have
@@ -184,17 +200,25 @@
       	
          if (tokenizedProgramFiles == null || tokenizedProgramFiles.size() == 0)
             return null;
-         textAddress = new UserKernelAddressSpace(Memory.textBaseAddress,
-            Memory.kernelTextBaseAddress);
-         dataAddress = new UserKernelAddressSpace(Memory.dataBaseAddress,
-            Memory.kernelDataBaseAddress);
-         externAddress = Memory.externBaseAddress;
-         currentFileDataSegmentForwardReferences = new DataSegmentForwardReferences();
-         accumulatedDataSegmentForwardReferences = new DataSegmentForwardReferences();
-         Globals.symbolTable.clear();
-         Globals.memory.clear();
-         this.machineList = new ArrayList();
-         this.errors = new ErrorList(); 
+         this.memory = Memory.getInstance();
+         this.parsingAlone = false;
+         this.beginAssembly();
+         MachineContext.current().getSymbolTable().clear();
+         this.memory.clear();
+         ArrayList<AssemblyCache.Unit> units = new ArrayList<AssemblyCache.Unit>();
+         ArrayList<AssemblyCache.Relocation> relocations = new ArrayList<AssemblyCache.Relocation>();
+      // A file assembled before with the same content and settings is replayed from
+      // the cache instead of being parsed, if its data can be placed where it now goes.
+      // Other files are parsed first, each on its own if there are several, and their
+      // units replayed in the same way.
+         AssemblyCache.Key[] keys = new AssemblyCache.Key[tokenizedProgramFiles.size()];
+         AssemblyCache.Unit[] prepared = new AssemblyCache.Unit[keys.length];
+         for (int fileIndex = 0; fileIndex < keys.length; fileIndex++) {
+            keys[fileIndex] = new AssemblyCache.Key((MIPSprogram) tokenizedProgramFiles.get(fileIndex),
+               extendedAssemblerEnabled);
+            prepared[fileIndex] = AssemblyCache.getInstance().get(keys[fileIndex]);
+         }
+         this.parseInParallel(tokenizedProgramFiles, keys, prepared, extendedAssemblerEnabled);
          if (Globals.debug)
             System.out.println("Assembler first pass begins:");
       // PROCESS THE FIRST ASSEMBLY PASS FOR ALL SOURCE FILES BEFORE PROCEEDING
@@ -205,51 +229,17 @@
             if (errors.errorLimitExceeded())
                break;
             this.fileCurrentlyBeingAssembled = (MIPSprogram) tokenizedProgramFiles.get(fileIndex); 
-         // List of labels declared ".globl". new list for each file assembled
-            this.globalDeclarationList = new TokenList();
-         // Parser begins by default in text segment until directed otherwise.
-            this.inDataSegment = false;
-         // Macro segment will be started by .macro directive
-            this.inMacroSegment = false;
-         // Default is to align data from directives on appropriate boundary (word, half, byte)
-         // This can be turned off for remainder of current data segment with ".align 0"
-            this.autoAlign = true;
-         // Default data directive is .word for 4 byte data items
-            this.dataDirective = Directives.WORD;
-         // Clear out (initialize) symbol table related structures.
-            fileCurrentlyBeingAssembled.getLocalSymbolTable().clear();
-            currentFileDataSegmentForwardReferences.clear();
-         // sourceList is an ArrayList of String objects, one per source line.
-         // tokenList is an ArrayList of TokenList objects, one per source line;
-         // each ArrayList in tokenList consists of Token objects.
-            ArrayList<SourceLine> sourceLineList = fileCurrentlyBeingAssembled.getSourceLineList();
-            ArrayList tokenList = fileCurrentlyBeingAssembled.getTokenList();
-            ArrayList parsedList = fileCurrentlyBeingAssembled.createParsedList();
-         // each file keeps its own macro definitions
-            MacroPool macroPool = fileCurrentlyBeingAssembled.createMacroPool();
-         // FIRST PASS OF ASSEMBLER VERIFIES SYNTAX, GENERATES SYMBOL TABLE,
-         // INITIALIZES DATA SEGMENT
-            ArrayList<ProgramStatement> statements;
-            for (int i = 0; i < tokenList.size(); i++) {
-               if (errors.errorLimitExceeded())
-                  break; 
-               for (int z=0; z<((TokenList)tokenList.get(i)).size(); z++) { 
-                  Token t = ((TokenList) tokenList.get(i)).get(z);
-               	// record this token's original source program and line #. Differs from final, if .include used
-                  t.setOriginal(sourceLineList.get(i).getMIPSprogram(),sourceLineList.get(i).getLineNumber());
-               }           	
-               statements = this.parseLine((TokenList) tokenList.get(i),
-                  sourceLineList.get(i).getSource(), 
-                  sourceLineList.get(i).getLineNumber(), 
-                  extendedAssemblerEnabled);
-               if (statements != null) {
-                  parsedList.addAll(statements);
-               }
-            }
-            if (inMacroSegment) {
-               errors.add(new ErrorMessage(fileCurrentlyBeingAssembled,
-                  fileCurrentlyBeingAssembled.getLocalMacroPool().getCurrent().getFromLine(),
-                  0, "Macro started but not ended (no .end_macro directive)"));
+            this.beginFile();
+            AssemblyCache.Unit cached = prepared[fileIndex];
+            AssemblyCache.Relocation relocation = (cached == null) ? null
+               : this.replayUnit(cached, fileCurrentlyBeingAssembled.getParsedList());
+            if (relocation != null) {
+               units.add(cached);
+               relocations.add(relocation);
+            } 
+            else {
+               units.add(this.parseFile(keys[fileIndex], extendedAssemblerEnabled));
+               relocations.add(null);
             }
          // move ".globl" symbols from local symtab to global
             this.transferGlobals();
@@ -269,7 +259,7 @@
       // Have processed all source files. Attempt to resolve any remaining forward label
       // references from global symbol table. Those that remain unresolved are undefined
       // and require error message.
-         accumulatedDataSegmentForwardReferences.resolve(Globals.symbolTable);
+         accumulatedDataSegmentForwardReferences.resolve(MachineContext.current().getSymbolTable());
          accumulatedDataSegmentForwardReferences.generateErrorMessages(errors);
       
       // Throw collection of errors accumulated through the first pass.
@@ -278,16 +268,35 @@
          }
          if (Globals.debug)
             System.out.println("Assembler second pass begins");
+         ArrayList<AssemblyCache.Unit> finished = new ArrayList<AssemblyCache.Unit>();
       // SECOND PASS OF ASSEMBLER GENERATES BASIC ASSEMBLER THEN MACHINE CODE.
       // Generates basic assembler statements...
          for (int fileIndex = 0; fileIndex < tokenizedProgramFiles.size(); fileIndex++) {
             if (errors.errorLimitExceeded())
                break;
             this.fileCurrentlyBeingAssembled = (MIPSprogram) tokenizedProgramFiles.get(fileIndex);
-            ArrayList parsedList = fileCurrentlyBeingAssembled.getParsedList();
+            ArrayList<ProgramStatement> parsedList = fileCurrentlyBeingAssembled.getParsedList();
+            AssemblyCache.Unit unit = (fileIndex < units.size()) ? units.get(fileIndex) : null;
+            AssemblyCache.Relocation relocation = (unit == null) ? null : relocations.get(fileIndex);
+         // A file that is where it was, and whose labels from other files are too, gets
+         // the same basic statements as last time.
+            if (unit != null && unit.basicStatements != null && relocation != null
+               && relocation.isIdentity() && this.referencesUnchanged(unit)) {
+               for (int i = 0; i < unit.basicStatements.length; i++) {
+                  this.machineList.add(unit.basicStatements[i].copyForProgram(fileCurrentlyBeingAssembled));
+               }
+               finished.add(unit);
+               continue;
+            }
+         // A cacheable file keeps the expansion of each pseudo-instruction, and uses the
+         // one kept from last time if the pseudo-instruction's operands are unchanged.
+            AssemblyCache.Expansion[] expansions = (unit == null) ? null
+               : new AssemblyCache.Expansion[parsedList.size()];
+            int firstStatement = this.machineList.size();
+            int fileMessageCount = errors.getErrorMessages().size();
             ProgramStatement statement;
             for (int i = 0; i < parsedList.size(); i++) {
-               statement = (ProgramStatement) parsedList.get(i);
+               statement = parsedList.get(i);
                statement.buildBasicStatementFromBasicInstruction(errors);
                if (errors.errorsOccurred()) {
                   throw new ProcessingException(errors);
@@ -299,8 +308,8 @@
                // It is a pseudo-instruction:
                // 1. Fetch its basic instruction template list
                // 2. For each template in the list,
-               // 2a. substitute operands from source statement
-               // 2b. tokenize the statement generated by 2a.
+               // 2a. substitute operands from source statement, giving the
+               //     tokens of a basic statement
                // 2d. call parseLine() to generate basic instrction
                // 2e. add returned programStatement to the list
                // The templates, and the instructions generated by filling
@@ -320,42 +329,52 @@
                   ExtendedInstruction inst = (ExtendedInstruction) statement.getInstruction();
                   String basicAssembly = statement.getBasicAssemblyStatement();
                   int sourceLine = statement.getSourceLine();
+                  AssemblyCache.Expansion expansion = (unit == null || unit.expansions == null) ? null
+                     : unit.expansions[i];
+                  if (expansion != null && expansion.matches(basicAssembly, fileCurrentlyBeingAssembled)) {
+                     for (int k = 0; k < expansion.statements.length; k++) {
+                        ProgramStatement basic = expansion.statements[k];
+                        ProgramStatement ps = new ProgramStatement(this.fileCurrentlyBeingAssembled,
+                           basic.getSource(), basic.getOriginalTokenList(), basic.getStrippedTokenList(),
+                           basic.getInstruction(), statement.getAddress() + expansion.offsets[k], sourceLine);
+                        ps.buildBasicStatementFromBasicInstruction(errors);
+                        this.machineList.add(ps);
+                     }
+                     expansions[i] = expansion;
+                     continue;
+                  }
+                  int messageCount = errors.getErrorMessages().size();
+                  ArrayList<ProgramStatement> expanded = new ArrayList<ProgramStatement>();
+                  boolean usesLabel = false;
                   TokenList theTokenList = new Tokenizer().tokenizeLine(sourceLine,
                      basicAssembly, errors, false);
                
                // ////////////////////////////////////////////////////////////////////////////
                // If we are using compact memory config and there is a compact expansion, use it
-                  ArrayList templateList;
-                  if (compactTranslationCanBeApplied(statement)) {
-                     templateList = inst.getCompactBasicIntructionTemplateList();
-                  } 
-                  else {
-                     templateList = inst.getBasicIntructionTemplateList();
-                  }
+                  TranslationTemplate[] templateList = inst.getTranslationTemplates(
+                     compactTranslationCanBeApplied(statement));
                
                // subsequent ProgramStatement constructor needs the correct text segment address.
                   textAddress.set(statement.getAddress());
                // Will generate one basic instruction for each template in the list.
-                  for (int instrNumber = 0; instrNumber < templateList.size(); instrNumber++) {
-                     String instruction = ExtendedInstruction.makeTemplateSubstitutions(
-                        this.fileCurrentlyBeingAssembled,
-                        (String) templateList.get(instrNumber), theTokenList);
-                  // 23 Jan 2008 by DPS. Template substitution may result in no instruction.
-                  // If this is the case, skip remainder of loop iteration. This should only
-                  // happen if template substitution was for "nop" instruction but delayed branching
-                  // is disabled so the "nop" is not generated.
-                     if (instruction == null || instruction == "") {
+                  for (int instrNumber = 0; instrNumber < templateList.length; instrNumber++) {
+                     usesLabel |= templateList[instrNumber].usesLabel();
+                  // Substitute operands into the template, giving the tokens of the basic
+                  // statement.  23 Jan 2008 by DPS. Template substitution may result in no
+                  // instruction. If this is the case, skip remainder of loop iteration. This
+                  // should only happen if template substitution was for "nop" instruction but
+                  // delayed branching is disabled so the "nop" is not generated.
+                     TokenList newTokenList = templateList[instrNumber].makeTokenList(
+                        this.fileCurrentlyBeingAssembled, theTokenList, sourceLine, errors);
+                     if (newTokenList == null) {
                         continue;
                      }
                   
                   // All substitutions have been made so we have generated
                   // a valid basic instruction!
                      if (Globals.debug)
-                        System.out.println("PSEUDO generated: " + instruction);
-                  // For generated instruction: tokenize, build program
-                  // statement, add to list.
-                     TokenList newTokenList = new Tokenizer().tokenizeLine(sourceLine,
-                        instruction, errors,false);
+                        System.out.println("PSEUDO generated: " + newTokenList);
+                  // For generated instruction: build program statement, add to list.
                      ArrayList instrMatches = this.matchInstruction(newTokenList.get(0));
                      Instruction instr = OperandFormat.bestOperandMatch(newTokenList,
                         instrMatches);
@@ -367,10 +386,17 @@
                      textAddress.increment(Instruction.INSTRUCTION_LENGTH);
                      ps.buildBasicStatementFromBasicInstruction(errors);
                      this.machineList.add(ps);
+                     expanded.add(ps);
                   } // end of FOR loop, repeated for each template in list.
+                  if (expansions != null && errors.getErrorMessages().size() == messageCount) {
+                     expansions[i] = this.makeExpansion(statement, theTokenList, usesLabel, expanded);
+                  }
                } // end of ELSE part for extended instruction.
               	
             } // end of assembler second pass.
+            if (unit != null) {
+               finished.add(this.finishUnit(unit, relocation, expansions, firstStatement, fileMessageCount));
+            }
          }
          if (Globals.debug)
             System.out.println("Code generation begins");
@@ -381,12 +407,12 @@
          for (int i = 0; i < this.machineList.size(); i++) {
             if (errors.errorLimitExceeded())
                break;
-            statement = (ProgramStatement) this.machineList.get(i);
+            statement = this.machineList.get(i);
             statement.buildMachineStatementFromBasicStatement(errors);
             if (Globals.debug)
                System.out.println(statement);
             try {
-               Globals.memory.setStatement(statement.getAddress(), statement);
+               memory.setStatement(statement.getAddress(), statement);
             } 
                catch (AddressErrorException e) {
                   Token t = statement.getOriginalTokenList().get(0);
@@ -412,8 +438,464 @@
          if (errors.errorsOccurred() || errors.warningsOccurred() && warningsAreErrors) {
             throw new ProcessingException(errors);
          }
+         for (int i = 0; i < finished.size(); i++) {
+            AssemblyCache.getInstance().put(finished.get(i));
+         }
+      // Predecode the text segment so the simulator can skip Memory.getStatement() on fetch.
+         memory.getDecodedInstructionCache().build(this.machineList);
          return this.machineList;
       } // assemble()
+
+   // //////////////////////////////////////////////////////////////////////
+   // Start a new assembly: text and data at the start of their user segments, and no
+   // statements, messages or forward references yet.
+      private void beginAssembly() {
+         textAddress = new UserKernelAddressSpace(Memory.textBaseAddress,
+            Memory.kernelTextBaseAddress);
+         dataAddress = new UserKernelAddressSpace(Memory.dataBaseAddress,
+            Memory.kernelDataBaseAddress);
+         externAddress = Memory.externBaseAddress;
+         currentFileDataSegmentForwardReferences = new DataSegmentForwardReferences();
+         accumulatedDataSegmentForwardReferences = new DataSegmentForwardReferences();
+         this.machineList = new ArrayList<ProgramStatement>();
+         this.errors = new ErrorList(); 
+         this.recording = null;
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Prepare for the first pass of the current file.
+      private void beginFile() {
+      // List of labels declared ".globl". new list for each file assembled
+         this.globalDeclarationList = new TokenList();
+      // Parser begins by default in text segment until directed otherwise.
+         this.inDataSegment = false;
+      // Macro segment will be started by .macro directive
+         this.inMacroSegment = false;
+      // Default is to align data from directives on appropriate boundary (word, half, byte)
+      // This can be turned off for remainder of current data segment with ".align 0"
+         this.autoAlign = true;
+      // Default data directive is .word for 4 byte data items
+         this.dataDirective = Directives.WORD;
+      // Note which address spaces the file uses before choosing them.
+         textAddress.beginFile();
+         dataAddress.beginFile();
+      // Clear out (initialize) symbol table related structures.
+         fileCurrentlyBeingAssembled.getLocalSymbolTable().clear();
+         currentFileDataSegmentForwardReferences.clear();
+         fileCurrentlyBeingAssembled.createParsedList();
+      // each file keeps its own macro definitions
+         fileCurrentlyBeingAssembled.createMacroPool();
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Parse the current file: the first pass proper. Returns its unit for the
+   // AssemblyCache, or null if it cannot be cached.
+      private AssemblyCache.Unit parseFile(AssemblyCache.Key key, boolean extendedAssemblerEnabled) {
+      // sourceList is an ArrayList of String objects, one per source line.
+      // tokenList is an ArrayList of TokenList objects, one per source line;
+      // each ArrayList in tokenList consists of Token objects.
+         ArrayList<SourceLine> sourceLineList = fileCurrentlyBeingAssembled.getSourceLineList();
+         ArrayList<?> tokenList = fileCurrentlyBeingAssembled.getTokenList();
+         ArrayList<ProgramStatement> parsedList = fileCurrentlyBeingAssembled.getParsedList();
+         int messageCount = errors.getErrorMessages().size();
+         this.beginUnit(key);
+      // FIRST PASS OF ASSEMBLER VERIFIES SYNTAX, GENERATES SYMBOL TABLE,
+      // INITIALIZES DATA SEGMENT
+         ArrayList<ProgramStatement> statements;
+         for (int i = 0; i < tokenList.size(); i++) {
+            if (errors.errorLimitExceeded())
+               break; 
+            for (int z=0; z<((TokenList)tokenList.get(i)).size(); z++) { 
+               Token t = ((TokenList) tokenList.get(i)).get(z);
+            	// record this token's original source program and line #. Differs from final, if .include used
+               t.setOriginal(sourceLineList.get(i).getMIPSprogram(),sourceLineList.get(i).getLineNumber());
+            }           	
+            statements = this.parseLine((TokenList) tokenList.get(i),
+               sourceLineList.get(i).getSource(), 
+               sourceLineList.get(i).getLineNumber(), 
+               extendedAssemblerEnabled);
+            if (statements != null) {
+               parsedList.addAll(statements);
+            }
+         }
+         if (inMacroSegment) {
+            errors.add(new ErrorMessage(fileCurrentlyBeingAssembled,
+               fileCurrentlyBeingAssembled.getLocalMacroPool().getCurrent().getFromLine(),
+               0, "Macro started but not ended (no .end_macro directive)"));
+         }
+         return this.endUnit(parsedList, messageCount);
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Parse the files that have no unit yet, each on its own in a thread of the common
+   // ForkJoinPool, and fill in the units of those that can be cached. Only done for two
+   // or more files, on more than one processor. Each file is parsed as if it were the
+   // first of the program, and the first pass then replays its unit at the addresses
+   // it follows on from the files before it, as it does cached units, so the program
+   // assembles exactly as if parsed in order. A file without a unit, because it has
+   // errors or cannot be moved, is simply parsed again in order.
+      private void parseInParallel(ArrayList<?> files, AssemblyCache.Key[] keys, AssemblyCache.Unit[] units,
+       	final boolean extendedAssemblerEnabled) {
+         ArrayList<Integer> missing = new ArrayList<Integer>();
+         for (int i = 0; i < units.length; i++) {
+            if (units[i] == null) {
+               missing.add(Integer.valueOf(i));
+            }
+         }
+         if (missing.size() < 2 || Runtime.getRuntime().availableProcessors() < 2) {
+            return;
+         }
+      // Workers look labels up in the global symbol table, so they use the caller's
+      // context, whose table stays empty until they are done.
+         final MachineContext context = MachineContext.current();
+         ArrayList<ForkJoinTask<AssemblyCache.Unit>> parses = new ArrayList<ForkJoinTask<AssemblyCache.Unit>>();
+         for (int i = 0; i < missing.size(); i++) {
+            final MIPSprogram program = (MIPSprogram) files.get(missing.get(i).intValue());
+            final AssemblyCache.Key key = keys[missing.get(i).intValue()];
+            parses.add(ForkJoinPool.commonPool().submit(
+               new Callable<AssemblyCache.Unit>() {
+                  public AssemblyCache.Unit call() throws Exception {
+                     return context.call(
+                        new Callable<AssemblyCache.Unit>() {
+                           public AssemblyCache.Unit call() {
+                              return new Assembler().parseAlone(program, key, extendedAssemblerEnabled);
+                           }
+                        });
+                  }
+               }));
+         }
+      // Every parse must be over before the files are parsed again here, so join()
+      // rather than get(), which an interrupt would cut short.
+         for (int i = 0; i < parses.size(); i++) {
+            try {
+               units[missing.get(i).intValue()] = parses.get(i).join();
+            } 
+               catch (RuntimeException e) {
+                  // The file is parsed again in order, and fails there the same way.
+               }
+         }
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Carry out the first pass of one file as the first file of a program, writing its
+   // data to scratch memory and leaving the global symbol table alone, and return its
+   // unit or null. Called on a new Assembler by parseInParallel().
+      private AssemblyCache.Unit parseAlone(MIPSprogram program, AssemblyCache.Key key,
+       	boolean extendedAssemblerEnabled) {
+         this.memory = new Memory();
+         this.parsingAlone = true;
+         this.beginAssembly();
+         this.fileCurrentlyBeingAssembled = program;
+         this.beginFile();
+         return this.parseFile(key, extendedAssemblerEnabled);
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Next address in each segment, indexed as for AssemblyCache.Unit.
+      private int[] addressState() {
+         return new int[] {textAddress.address[textAddress.USER], textAddress.address[textAddress.KERNEL],
+            dataAddress.address[dataAddress.USER], dataAddress.address[dataAddress.KERNEL]};
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Start recording the first pass of the current file for the AssemblyCache.
+      private void beginUnit(AssemblyCache.Key key) {
+         this.recording = new AssemblyCache.Unit(key, this.addressState());
+         this.recordedLabels = new HashMap<String, Token>();
+         this.recordedRuns = new ArrayList<int[]>();
+         this.recordedAlignments = new ArrayList<int[]>();
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Finish recording the first pass of the current file. Returns the unit, or null
+   // if the file cannot be cached: it set an absolute address, produced a message,
+   // or has something the unit cannot place in a segment.
+      private AssemblyCache.Unit endUnit(ArrayList<ProgramStatement> parsedList, int messageCount) {
+         AssemblyCache.Unit unit = this.recording;
+         this.recording = null;
+         if (unit == null || this.inMacroSegment
+            || errors.getErrorMessages().size() != messageCount) {
+            return null;
+         }
+         unit.end = this.addressState();
+         unit.textSpaceAtStart = textAddress.startSpaceUsed ? textAddress.startSpace : AssemblyCache.Unit.ANY_SPACE;
+         unit.dataSpaceAtStart = dataAddress.startSpaceUsed ? dataAddress.startSpace : AssemblyCache.Unit.ANY_SPACE;
+         unit.textSpaceAtEnd = textAddress.spaceChosen ? textAddress.currentAddressSpace : AssemblyCache.Unit.ANY_SPACE;
+         unit.dataSpaceAtEnd = dataAddress.spaceChosen ? dataAddress.currentAddressSpace : AssemblyCache.Unit.ANY_SPACE;
+         unit.statements = new ProgramStatement[parsedList.size()];
+         unit.statementAddresses = new int[parsedList.size()];
+         unit.statementSegments = new int[parsedList.size()];
+         for (int i = 0; i < parsedList.size(); i++) {
+            unit.statements[i] = parsedList.get(i);
+            unit.statementAddresses[i] = unit.statements[i].getAddress();
+            unit.statementSegments[i] = unit.segmentOf(unit.statementAddresses[i], false);
+            if (unit.statementSegments[i] < 0) {
+               return null;
+            }
+         }
+         ArrayList<?> symbols = fileCurrentlyBeingAssembled.getLocalSymbolTable().getAllSymbols();
+         unit.symbolTokens = new Token[symbols.size()];
+         unit.symbolAddresses = new int[symbols.size()];
+         unit.symbolTypes = new boolean[symbols.size()];
+         unit.symbolSegments = new int[symbols.size()];
+         for (int i = 0; i < symbols.size(); i++) {
+            Symbol symbol = (Symbol) symbols.get(i);
+            unit.symbolTokens[i] = recordedLabels.get(symbol.getName());
+            unit.symbolAddresses[i] = symbol.getAddress();
+            unit.symbolTypes[i] = symbol.getType();
+            unit.symbolSegments[i] = unit.segmentOf(symbol.getAddress(), symbol.getType());
+            if (unit.symbolTokens[i] == null || unit.symbolSegments[i] < 0) {
+               return null;
+            }
+         }
+         unit.globalDeclarations = new Token[globalDeclarationList.size()];
+         for (int i = 0; i < globalDeclarationList.size(); i++) {
+            unit.globalDeclarations[i] = globalDeclarationList.get(i);
+         }
+         unit.alignmentSegments = new int[recordedAlignments.size()];
+         unit.alignmentAddresses = new int[recordedAlignments.size()];
+         unit.alignmentBoundaries = new int[recordedAlignments.size()];
+         for (int i = 0; i < recordedAlignments.size(); i++) {
+            int[] alignment = recordedAlignments.get(i);
+            unit.alignmentSegments[i] = alignment[0];
+            unit.alignmentAddresses[i] = alignment[1];
+            unit.alignmentBoundaries[i] = alignment[2];
+         }
+         unit.runSegments = new int[recordedRuns.size()];
+         unit.runAddresses = new int[recordedRuns.size()];
+         unit.runBytes = new byte[recordedRuns.size()][];
+         for (int i = 0; i < recordedRuns.size(); i++) {
+            int[] run = recordedRuns.get(i);
+            unit.runSegments[i] = run[0];
+            unit.runAddresses[i] = run[1];
+            unit.runBytes[i] = new byte[run[2]];
+            try {
+               memory.readBytes(run[1], unit.runBytes[i], 0, run[2]);
+            } 
+               catch (AddressErrorException e) {
+                  return null;
+               }
+         }
+         return unit;
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Carry out the first pass of the current file from its cached unit, moved to the
+   // current text and data addresses.  Returns where the unit's addresses moved to, or
+   // null, having changed nothing, if the unit cannot be moved there; the file must
+   // then be parsed.
+      private AssemblyCache.Relocation replayUnit(AssemblyCache.Unit unit, ArrayList<ProgramStatement> parsedList) {
+         if (unit.textSpaceAtStart != AssemblyCache.Unit.ANY_SPACE
+            && unit.textSpaceAtStart != textAddress.currentAddressSpace
+            || unit.dataSpaceAtStart != AssemblyCache.Unit.ANY_SPACE
+            && unit.dataSpaceAtStart != dataAddress.currentAddressSpace) {
+            return null;
+         }
+         AssemblyCache.Relocation relocation = new AssemblyCache.Relocation(unit, this.addressState());
+         for (int i = 0; i < unit.runBytes.length; i++) {
+            int first = relocation.address(unit.runSegments[i], unit.runAddresses[i]);
+            int last = first + unit.runBytes[i].length - 1;
+            if (!(Memory.inDataSegment(first) && Memory.inDataSegment(last))
+               && !(Memory.inKernelDataSegment(first) && Memory.inKernelDataSegment(last))) {
+               return null;
+            }
+         }
+         try {
+            for (int i = 0; i < unit.runBytes.length; i++) {
+               memory.storeBytes(relocation.address(unit.runSegments[i], unit.runAddresses[i]),
+                  unit.runBytes[i], 0, unit.runBytes[i].length);
+            }
+         // Labels used by data directives are looked up again unless they were local.
+            for (int i = 0; i < unit.events.size(); i++) {
+               AssemblyCache.DataEvent event = unit.events.get(i);
+               if (event.segment == AssemblyCache.Unit.EXTERN) {
+                  this.declareExtern(event.token, event.length);
+                  continue;
+               }
+               int address = relocation.address(event.segment, event.address);
+               if (event.valueSegment != AssemblyCache.Unit.NOT_LOCAL) {
+                  memory.set(address, relocation.address(event.valueSegment, event.value, event.alignments),
+                     event.length);
+                  continue;
+               }
+               int value = fileCurrentlyBeingAssembled.getLocalSymbolTable()
+                  .getAddressLocalOrGlobal(event.token.getValue());
+               if (value == SymbolTable.NOT_FOUND) {
+                  memory.set(address, 0, event.length);
+                  currentFileDataSegmentForwardReferences.add(address, event.length, event.token);
+               } 
+               else {
+                  memory.set(address, value, event.length);
+               }
+            }
+         } 
+            catch (AddressErrorException e) {
+               // Does not happen: the addresses were checked above.
+            }
+         for (int i = 0; i < unit.symbolTokens.length; i++) {
+            fileCurrentlyBeingAssembled.getLocalSymbolTable().addSymbol(unit.symbolTokens[i],
+               relocation.address(unit.symbolSegments[i], unit.symbolAddresses[i]), unit.symbolTypes[i], errors);
+         }
+         for (int i = 0; i < unit.statements.length; i++) {
+            ProgramStatement statement = unit.statements[i];
+            parsedList.add(new ProgramStatement(fileCurrentlyBeingAssembled, statement.getSource(),
+               statement.getOriginalTokenList(), statement.getStrippedTokenList(),
+               statement.getInstruction(), relocation.address(unit.statementSegments[i], unit.statementAddresses[i]),
+               statement.getSourceLine()));
+         }
+         for (int i = 0; i < unit.globalDeclarations.length; i++) {
+            globalDeclarationList.add(unit.globalDeclarations[i]);
+         }
+         textAddress.address[textAddress.USER] = relocation.address(AssemblyCache.Unit.USER_TEXT,
+            unit.end[AssemblyCache.Unit.USER_TEXT]);
+         textAddress.address[textAddress.KERNEL] = relocation.address(AssemblyCache.Unit.KERNEL_TEXT,
+            unit.end[AssemblyCache.Unit.KERNEL_TEXT]);
+         dataAddress.address[dataAddress.USER] = relocation.address(AssemblyCache.Unit.USER_DATA,
+            unit.end[AssemblyCache.Unit.USER_DATA]);
+         dataAddress.address[dataAddress.KERNEL] = relocation.address(AssemblyCache.Unit.KERNEL_DATA,
+            unit.end[AssemblyCache.Unit.KERNEL_DATA]);
+         if (unit.textSpaceAtEnd != AssemblyCache.Unit.ANY_SPACE) {
+            textAddress.setAddressSpace(unit.textSpaceAtEnd);
+         }
+         if (unit.dataSpaceAtEnd != AssemblyCache.Unit.ANY_SPACE) {
+            dataAddress.setAddressSpace(unit.dataSpaceAtEnd);
+         }
+         return relocation;
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Complete a unit, moved to where its file now is, with the second pass of the
+   // file, unless the pass produced a message. The basic statements are copied, since
+   // the third pass changes them, along with the address of each label from outside
+   // the file that they use.
+      private AssemblyCache.Unit finishUnit(AssemblyCache.Unit unit, AssemblyCache.Relocation relocation,
+       	AssemblyCache.Expansion[] expansions, int firstStatement, int messageCount) {
+         AssemblyCache.Unit finished = unit.moved(relocation, expansions);
+         if (errors.getErrorMessages().size() != messageCount) {
+            return finished;
+         }
+         finished.basicStatements = new ProgramStatement[this.machineList.size() - firstStatement];
+         for (int i = 0; i < finished.basicStatements.length; i++) {
+            finished.basicStatements[i] = this.machineList.get(firstStatement + i)
+               .copyForProgram(fileCurrentlyBeingAssembled);
+         }
+         LinkedHashMap<String, Integer> references = new LinkedHashMap<String, Integer>();
+         SymbolTable localSymbols = fileCurrentlyBeingAssembled.getLocalSymbolTable();
+         for (int i = 0; i < unit.statements.length; i++) {
+            TokenList tokens = unit.statements[i].getStrippedTokenList();
+            for (int j = 1; j < tokens.size(); j++) {
+               String name = tokens.get(j).getValue();
+               if (tokens.get(j).getType() == TokenTypes.IDENTIFIER && localSymbols.getSymbol(name) == null) {
+                  references.put(name, Integer.valueOf(localSymbols.getAddressLocalOrGlobal(name)));
+               }
+            }
+         }
+         finished.referenceNames = references.keySet().toArray(new String[references.size()]);
+         finished.referenceAddresses = new int[finished.referenceNames.length];
+         for (int i = 0; i < finished.referenceNames.length; i++) {
+            finished.referenceAddresses[i] = references.get(finished.referenceNames[i]).intValue();
+         }
+         return finished;
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // True if the labels from outside the current file that its unit's basic
+   // statements use are at the same addresses, and pseudo-instructions that turned
+   // an address back into a label would find the same label.
+      private boolean referencesUnchanged(AssemblyCache.Unit unit) {
+         SymbolTable localSymbols = fileCurrentlyBeingAssembled.getLocalSymbolTable();
+         for (int i = 0; i < unit.referenceNames.length; i++) {
+            if (localSymbols.getAddressLocalOrGlobal(unit.referenceNames[i]) != unit.referenceAddresses[i]) {
+               return false;
+            }
+         }
+         for (int i = 0; i < unit.expansions.length; i++) {
+            AssemblyCache.Expansion expansion = unit.expansions[i];
+            if (expansion != null && expansion.labelAddress != null
+               && !expansion.matches(expansion.basic, fileCurrentlyBeingAssembled)) {
+               return false;
+            }
+         }
+         return true;
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Make the cache entry for the basic statements a pseudo-instruction expanded to.
+   // A template using LAB turned the last operand back into a label name, which
+   // is kept so the expansion is not reused if another label now has that address.
+      private AssemblyCache.Expansion makeExpansion(ProgramStatement statement, TokenList basicTokens,
+       	boolean usesLabel, ArrayList<ProgramStatement> expanded) {
+         String labelAddress = null;
+         String labelName = null;
+         if (usesLabel && basicTokens.size() > 0) {
+            labelAddress = basicTokens.get(basicTokens.size() - 1).getValue();
+            Symbol symbol = fileCurrentlyBeingAssembled.getLocalSymbolTable()
+               .getSymbolGivenAddressLocalOrGlobal(labelAddress);
+            labelName = (symbol == null) ? null : symbol.getName();
+         }
+         ProgramStatement[] statements = expanded.toArray(new ProgramStatement[expanded.size()]);
+         int[] offsets = new int[statements.length];
+         for (int i = 0; i < statements.length; i++) {
+            offsets[i] = statements[i].getAddress() - statement.getAddress();
+         }
+         return new AssemblyCache.Expansion(statement.getBasicAssemblyStatement(), labelAddress,
+            labelName, statements, offsets);
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Note bytes written to the current data segment, for the unit being recorded.
+      private void noteData(int address, int length) {
+         if (this.recording == null || length == 0) {
+            return;
+         }
+         int segment = AssemblyCache.Unit.USER_DATA + dataAddress.currentAddressSpace;
+         if (!recordedRuns.isEmpty()) {
+            int[] run = recordedRuns.get(recordedRuns.size() - 1);
+            if (run[0] == segment && run[1] + run[2] == address && run[3] == recordedAlignments.size()) {
+               run[2] += length;
+               return;
+            }
+         }
+         recordedRuns.add(new int[] {segment, address, length, recordedAlignments.size()});
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Note a label used as an integer data operand, for the unit being recorded.
+   // A local label's address is kept so it can be moved with its segment, as it was
+   // when read: before the given number of alignments, since writing the data may
+   // have aligned it since.
+      private void noteLabelOperand(Token token, int address, int length, int value, int alignments) {
+         if (this.recording == null) {
+            return;
+         }
+         int valueSegment = AssemblyCache.Unit.NOT_LOCAL;
+         Symbol symbol = fileCurrentlyBeingAssembled.getLocalSymbolTable().getSymbol(token.getValue());
+         if (symbol != null) {
+            this.recording.end = this.addressState();
+            valueSegment = this.recording.segmentOf(value, symbol.getType());
+            if (valueSegment < 0) {
+               this.recording = null;
+               return;
+            }
+         }
+         this.recording.events.add(new AssemblyCache.DataEvent(token,
+            AssemblyCache.Unit.USER_DATA + dataAddress.currentAddressSpace, address, length,
+            valueSegment, value, alignments));
+      }
+   
+   // //////////////////////////////////////////////////////////////////////
+   // Add an .extern label to the global symbol table, unless it is already there.
+   // When parsing a file alone, that is left to the replay of its unit.
+      private void declareExtern(Token label, int size) {
+         if (this.parsingAlone) {
+            return;
+         }
+         if (MachineContext.current().getSymbolTable().getAddress(label.getValue()) == SymbolTable.NOT_FOUND) {
+            MachineContext.current().getSymbolTable().addSymbol(label, this.externAddress,
+               Symbol.DATA_SYMBOL, errors);
+            this.externAddress += size;
+         }
+      }
    
    // //////////////////////////////////////////////////////////////////////
    // Will check for duplicate text addresses, which can happen inadvertantly when using
@@ -622,7 +1104,7 @@
    // alternate compact translation.
       private boolean compactTranslationCanBeApplied(ProgramStatement statement) {
          return (statement.getInstruction() instanceof ExtendedInstruction
-            && Globals.memory.usingCompactMemoryConfiguration() && ((ExtendedInstruction) statement
+            && memory.usingCompactMemoryConfiguration() && ((ExtendedInstruction) statement
             	.getInstruction()).hasCompactTranslation());
       }
    
@@ -673,6 +1155,9 @@
                fileCurrentlyBeingAssembled.getLocalSymbolTable().addSymbol(token,
                   (this.inDataSegment) ? dataAddress.get() : textAddress.get(),
                   this.inDataSegment, this.errors);
+               if (this.recording != null) {
+                  recordedLabels.put(token.getValue(), token);
+               }
                return true;
             } 
             else {
@@ -760,18 +1245,20 @@
          else if (direct == Directives.DATA || direct == Directives.KDATA) {
             this.inDataSegment = true;
             this.autoAlign = true;
-            this.dataAddress.setAddressSpace((direct == Directives.DATA) ? this.dataAddress.USER
+            this.dataAddress.chooseAddressSpace((direct == Directives.DATA) ? this.dataAddress.USER
                : this.dataAddress.KERNEL);
             if (tokens.size() > 1 && TokenTypes.isIntegerTokenType(tokens.get(1).getType())) {
                this.dataAddress.set(Binary.stringToInt(tokens.get(1).getValue())); // KENV 1/6/05
+               this.recording = null; // cached units are placed only at relative addresses
             }
          } 
          else if (direct == Directives.TEXT || direct == Directives.KTEXT) {
             this.inDataSegment = false;
-            this.textAddress.setAddressSpace((direct == Directives.TEXT) ? this.textAddress.USER
+            this.textAddress.chooseAddressSpace((direct == Directives.TEXT) ? this.textAddress.USER
                : this.textAddress.KERNEL);
             if (tokens.size() > 1 && TokenTypes.isIntegerTokenType(tokens.get(1).getType())) {
                this.textAddress.set(Binary.stringToInt(tokens.get(1).getValue())); // KENV 1/6/05
+               this.recording = null; // cached units are placed only at relative addresses
             }
          } 
          else if (direct == Directives.WORD || direct == Directives.HALF
@@ -848,12 +1335,12 @@
                return;
             }
             int size = Binary.stringToInt(tokens.get(2).getValue());
-         // If label already in global symtab, do nothing. If not, add it right now.
-            if (Globals.symbolTable.getAddress(tokens.get(1).getValue()) == SymbolTable.NOT_FOUND) {
-               Globals.symbolTable.addSymbol(tokens.get(1), this.externAddress,
-                  Symbol.DATA_SYMBOL, errors);
-               this.externAddress += size;
+            if (this.recording != null) {
+               this.recording.events.add(new AssemblyCache.DataEvent(tokens.get(1),
+                  AssemblyCache.Unit.EXTERN, 0, size, AssemblyCache.Unit.NOT_LOCAL, 0, 0));
             }
+         // If label already in global symtab, do nothing. If not, add it right now.
+            this.declareExtern(tokens.get(1), size);
          } 
          else if (direct == Directives.SET) {
             errors.add(new ErrorMessage(ErrorMessage.WARNING, token.getSourceMIPSprogram(), token
@@ -905,14 +1392,14 @@
                   		+ "\" declared global label but not defined."));
             } 
             else {
-               if (Globals.symbolTable.getAddress(label.getValue()) != SymbolTable.NOT_FOUND) {
+               if (MachineContext.current().getSymbolTable().getAddress(label.getValue()) != SymbolTable.NOT_FOUND) {
                   errors.add(new ErrorMessage(fileCurrentlyBeingAssembled, label.getSourceLine(),
                      label.getStartPos(), "\"" + label.getValue()
                      		+ "\" already defined as global in a different file."));
                } 
                else {
                   fileCurrentlyBeingAssembled.getLocalSymbolTable().removeSymbol(label);
-                  Globals.symbolTable.addSymbol(label, symtabEntry.getAddress(),
+                  MachineContext.current().getSymbolTable().addSymbol(label, symtabEntry.getAddress(),
                      symtabEntry.getType(), errors);
                }
             }
@@ -1034,7 +1521,7 @@
           * 
           * else { // not in data segment...which we assume to mean in text
           * segment. try { for (int i=0; i < repetitions; i++) {
-          * Globals.memory.set(this.textAddress.get(),
+          * Memory.getInstance().set(this.textAddress.get(),
           * Binary.stringToInt(valueToken.getValue()), lengthInBytes);
           * this.textAddress.increment(lengthInBytes); } } catch
           * (AddressErrorException e) { errors.add(new
@@ -1099,7 +1586,7 @@
             ********/
             else {
                try {
-                  Globals.memory.set(this.textAddress.get(), value, lengthInBytes);
+                  memory.set(this.textAddress.get(), value, lengthInBytes);
                } 
                   catch (AddressErrorException e) {
                      errors.add(new ErrorMessage(token.getSourceMIPSprogram(),
@@ -1115,14 +1602,17 @@
             if (this.inDataSegment) {
                int value = fileCurrentlyBeingAssembled.getLocalSymbolTable()
                   .getAddressLocalOrGlobal(token.getValue());
+               int alignments = (this.recording == null) ? 0 : recordedAlignments.size();
+               int dataAddress;
                if (value == SymbolTable.NOT_FOUND) {
                // Record value 0 for now, then set up backpatch entry
-                  int dataAddress = writeToDataSegment(0, lengthInBytes, token, errors);
+                  dataAddress = writeToDataSegment(0, lengthInBytes, token, errors);
                   currentFileDataSegmentForwardReferences.add(dataAddress, lengthInBytes, token);
                } 
                else { // label already defined, so write its address
-                  writeToDataSegment(value, lengthInBytes, token, errors);
+                  dataAddress = writeToDataSegment(value, lengthInBytes, token, errors);
                }
+               this.noteLabelOperand(token, dataAddress, lengthInBytes, value, alignments);
             } // Data segment check done previously, so this "else" will not be.
             // See 11/20/06 note above.
             else {
@@ -1202,6 +1692,9 @@
             else {
                String quote = token.getValue();
                char theChar;
+               // Collect the bytes of the string, then store them all at once.
+               byte[] bytes = new byte[quote.length()];
+               int length = 0;
                for (int j = 1; j < quote.length() - 1; j++) {
                   theChar = quote.charAt(j);
                   if (theChar == '\\') {
@@ -1241,28 +1734,30 @@
                      // codes...
                      }
                   }
-                  try {
-                     Globals.memory.set(this.dataAddress.get(), (int) theChar,
-                        DataTypes.CHAR_SIZE);
-                  } 
-                     catch (AddressErrorException e) {
-                        errors.add(new ErrorMessage(token.getSourceMIPSprogram(), token
-                           .getSourceLine(), token.getStartPos(), "\""
-                           + this.dataAddress.get() + "\" is not a valid data segment address"));
-                     }
-                  this.dataAddress.increment(DataTypes.CHAR_SIZE);
+                  bytes[length++] = (byte) theChar;
                }
                if (direct == Directives.ASCIIZ) {
-                  try {
-                     Globals.memory.set(this.dataAddress.get(), 0, DataTypes.CHAR_SIZE);
-                  } 
-                     catch (AddressErrorException e) {
-                        errors.add(new ErrorMessage(token.getSourceMIPSprogram(), token
-                           .getSourceLine(), token.getStartPos(), "\""
-                           + this.dataAddress.get() + "\" is not a valid data segment address"));
-                     }
-                  this.dataAddress.increment(DataTypes.CHAR_SIZE);
+                  bytes[length++] = 0;
                }
+               int address = this.dataAddress.get();
+               try {
+                  memory.storeBytes(address, bytes, 0, length);
+                  this.noteData(address, length);
+               } 
+                  catch (AddressErrorException e) {
+                     // Store what can be stored, reporting each byte that cannot.
+                     for (int j = 0; j < length; j++) {
+                        try {
+                           memory.set(address + j, bytes[j], DataTypes.CHAR_SIZE);
+                        } 
+                           catch (AddressErrorException ae) {
+                              errors.add(new ErrorMessage(token.getSourceMIPSprogram(), token
+                                 .getSourceLine(), token.getStartPos(), "\""
+                                 + (address + j) + "\" is not a valid data segment address"));
+                           }
+                     }
+                  }
+               this.dataAddress.increment(length * DataTypes.CHAR_SIZE);
             }
          }
       } // storeStrings()
@@ -1290,7 +1785,8 @@
             this.dataAddress.set(this.alignToBoundary(this.dataAddress.get(), lengthInBytes));
          }
          try {
-            Globals.memory.set(this.dataAddress.get(), value, lengthInBytes);
+            memory.set(this.dataAddress.get(), value, lengthInBytes);
+            this.noteData(this.dataAddress.get(), lengthInBytes);
          } 
             catch (AddressErrorException e) {
                errors.add(new ErrorMessage(token.getSourceMIPSprogram(), token.getSourceLine(), token
@@ -1314,7 +1810,8 @@
             this.dataAddress.set(this.alignToBoundary(this.dataAddress.get(), lengthInBytes));
          }
          try {
-            Globals.memory.setDouble(this.dataAddress.get(), value);
+            memory.setDouble(this.dataAddress.get(), value);
+            this.noteData(this.dataAddress.get(), lengthInBytes);
          } 
             catch (AddressErrorException e) {
                errors.add(new ErrorMessage(token.getSourceMIPSprogram(), token.getSourceLine(), token
@@ -1329,18 +1826,24 @@
    // If address is multiple of byte boundary, returns address. Otherwise, returns address
    // which is next higher multiple of the byte boundary. Used for aligning data segment.
    // For instance if args are 6 and 4, returns 8 (next multiple of 4 higher than 6).
-   // NOTE: it will fix any symbol table entries for this address too. See else part.
+   // NOTE: it will fix any symbol table entries for this address too.
       private int alignToBoundary(int address, int byteBoundary) {
-         int remainder = address % byteBoundary;
-         if (remainder == 0) {
-            return address;
-         } 
-         else {
-            int alignedAddress = address + byteBoundary - remainder;
+         if (this.recording != null && byteBoundary > 1) {
+            recordedAlignments.add(new int[] {AssemblyCache.Unit.USER_DATA + dataAddress.currentAddressSpace,
+               address, byteBoundary});
+         }
+         int alignedAddress = alignedAddress(address, byteBoundary);
+         if (alignedAddress != address) {
             fileCurrentlyBeingAssembled.getLocalSymbolTable().fixSymbolTableAddress(address,
                alignedAddress);
-            return alignedAddress;
          }
+         return alignedAddress;
+      }
+   
+   // Address that alignToBoundary() aligns an address to.
+      static int alignedAddress(int address, int byteBoundary) {
+         int remainder = address % byteBoundary;
+         return (remainder == 0) ? address : address + byteBoundary - remainder;
       }
    
    // ///////////////////////////////////////////////////////////////////////////////////
@@ -1379,6 +1882,10 @@
          int[] address;
          int currentAddressSpace;
          private final int USER = 0, KERNEL = 1;
+      // Since the current file began: the address space in use when it did, whether an
+      // address in that space has been used, and whether a directive has chosen a space.
+         int startSpace;
+         boolean startSpaceUsed, spaceChosen;
       
       // Initially use user address space, not kernel.
          private UserKernelAddressSpace(int userBase, int kernelBase) {
@@ -1389,17 +1896,31 @@
          }
       
          private int get() {
+            startSpaceUsed |= !spaceChosen;
             return address[currentAddressSpace];
          }
       
          private void set(int value) {
+            startSpaceUsed |= !spaceChosen;
             address[currentAddressSpace] = value;
          }
       
          private void increment(int increment) {
+            startSpaceUsed |= !spaceChosen;
             address[currentAddressSpace] += increment;
          }
       
+         private void beginFile() {
+            startSpace = currentAddressSpace;
+            startSpaceUsed = false;
+            spaceChosen = false;
+         }
+      
+         private void chooseAddressSpace(int addressSpace) {
+            setAddressSpace(addressSpace);
+            spaceChosen = true;
+         }
+      
          private void setAddressSpace(int addressSpace) {
             if (addressSpace == USER || addressSpace == KERNEL) {
                currentAddressSpace = addressSpace;
@@ -1474,7 +1995,7 @@
                if (labelAddress != SymbolTable.NOT_FOUND) {
                // patch address has to be valid b/c we already stored there...
                   try {
-                     Globals.memory.set(entry.patchAddress, labelAddress, entry.length);
+                     memory.set(entry.patchAddress, labelAddress, entry.length);
                   } 
                      catch (AddressErrorException aee) {
                      }
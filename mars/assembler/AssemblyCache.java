@@ -0,0 +1,461 @@
+package mars.assembler;
+import java.util.*;
+import mars.Globals;
+import mars.MIPSprogram;
+import mars.ProgramStatement;
+import mars.Settings;
+import mars.mips.hardware.MemoryConfigurations;
+
+/**
+ * What the assembler did with recently assembled source files, so that when a
+ * program of several files is assembled again only the files that have changed are
+ * parsed again.  For each file it keeps a Unit: the result of the first pass, which
+ * is the parsed statements, local symbol table, .globl declarations, data segment
+ * contents and label operands of data directives, and the result of the second pass:
+ * the basic statements of the file and those each pseudo-instruction expanded to.
+ *
+ * A unit is found by the name of its file and used only if the file's lines,
+ * including those of files it includes, and the settings that affect assembly are
+ * unchanged; see Key.  The addresses at which the file's text and data start depend
+ * on the files assembled before it, so a unit records the addresses it was assembled
+ * at and the Assembler relocates it when they have moved, aligning its data again
+ * wherever the file aligned it; see Relocation.  Labels defined in other files are
+ * looked up again every time.  If the file has not moved and those labels have not
+ * either, the basic statements of its second pass are used again; otherwise the
+ * second pass is run, expanding a pseudo-instruction again only if its operands have
+ * changed.
+ *
+ * Units are not changed once they are in the cache, so assemblers running in
+ * different threads may share them.  The cache holds the most recently used
+ * CAPACITY files.
+ **/
+
+class AssemblyCache {
+
+   /** Number of files kept. */
+   static final int CAPACITY = 64;
+
+   private static final AssemblyCache instance = new AssemblyCache();
+
+   private final LinkedHashMap<String, Unit> entries =
+      new LinkedHashMap<String, Unit>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Unit> eldest) {
+            return size() > CAPACITY;
+         }
+      };
+
+   private AssemblyCache() {
+   }
+
+   static AssemblyCache getInstance() {
+      return instance;
+   }
+
+   /**
+    * Returns the unit for a file, or null if there is none for its current
+    * content and settings.
+    */
+   synchronized Unit get(Key key) {
+      Unit unit = entries.get(key.filename);
+      return (unit == null || !unit.key.equals(key)) ? null : unit;
+   }
+
+   /**
+    * Keep a unit, replacing any other for the same file.
+    */
+   synchronized void put(Unit unit) {
+      entries.put(unit.key.filename, unit);
+   }
+
+   /**
+    * Identifies a file's content and the settings it was assembled with.
+    */
+   static final class Key {
+      private final String filename;
+      private final String[] sources;
+      private final String[] origins;
+      private final int[] lineNumbers;
+      private final boolean extendedAssemblerEnabled;
+      private final boolean delayedBranchingEnabled;
+      private final String memoryConfiguration;
+      private final int instructionSetVersion;
+      private final int hash;
+
+      /**
+       * Key for a tokenized program as it would be assembled now.
+       */
+      Key(MIPSprogram program, boolean extendedAssemblerEnabled) {
+         ArrayList<SourceLine> lines = program.getSourceLineList();
+         filename = program.getFilename();
+         sources = new String[lines.size()];
+         origins = new String[lines.size()];
+         lineNumbers = new int[lines.size()];
+         int h = String.valueOf(filename).hashCode();
+         for (int i = 0; i < sources.length; i++) {
+            SourceLine line = lines.get(i);
+            sources[i] = line.getSource();
+            origins[i] = line.getFilename();
+            lineNumbers[i] = line.getLineNumber();
+            h = 31 * h + String.valueOf(sources[i]).hashCode();
+         }
+         this.extendedAssemblerEnabled = extendedAssemblerEnabled;
+         delayedBranchingEnabled = Globals.getSettings().getBooleanSetting(Settings.DELAYED_BRANCHING_ENABLED);
+         memoryConfiguration = MemoryConfigurations.getCurrentConfiguration().getConfigurationIdentifier();
+         instructionSetVersion = Globals.instructionSet.getVersion();
+         hash = h;
+      }
+
+      public int hashCode() {
+         return hash;
+      }
+
+      public boolean equals(Object obj) {
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         Key other = (Key) obj;
+         return hash == other.hash
+            && extendedAssemblerEnabled == other.extendedAssemblerEnabled
+            && delayedBranchingEnabled == other.delayedBranchingEnabled
+            && instructionSetVersion == other.instructionSetVersion
+            && Objects.equals(filename, other.filename)
+            && Objects.equals(memoryConfiguration, other.memoryConfiguration)
+            && Arrays.equals(lineNumbers, other.lineNumbers)
+            && Arrays.equals(sources, other.sources)
+            && Arrays.equals(origins, other.origins);
+      }
+   }
+
+   /**
+    * The assembly of one file.  Addresses are those the file was assembled at.
+    * Segments are numbered USER_TEXT, KERNEL_TEXT, USER_DATA and KERNEL_DATA.
+    */
+   static final class Unit {
+      static final int USER_TEXT = 0, KERNEL_TEXT = 1, USER_DATA = 2, KERNEL_DATA = 3;
+      // DataEvent.valueSegment of a label that was not defined in the file when it was
+      // used, and DataEvent.segment of an .extern declaration.
+      static final int NOT_LOCAL = -1, EXTERN = -2;
+      // Address space before the first pass if the file chose one before using it, and
+      // after the first pass if it never chose one and so left it as it was.
+      static final int ANY_SPACE = -1;
+
+      final Key key;
+      // Next address in each segment, and the text and data address spaces (user or
+      // kernel) in use, before and after the first pass.
+      final int[] start;
+      int textSpaceAtStart, dataSpaceAtStart;
+      int[] end;
+      int textSpaceAtEnd, dataSpaceAtEnd;
+      // Each point at which data was aligned: its segment, the address before it was
+      // aligned, and the boundary, in the order they occurred.
+      int[] alignmentSegments;
+      int[] alignmentAddresses;
+      int[] alignmentBoundaries;
+      // Statements of the first pass, and the address and segment of each.
+      ProgramStatement[] statements;
+      int[] statementAddresses;
+      int[] statementSegments;
+      // Local symbols before .globl symbols were moved to the global symbol table.
+      Token[] symbolTokens;
+      int[] symbolAddresses;
+      boolean[] symbolTypes;
+      int[] symbolSegments;
+      Token[] globalDeclarations;
+      // Bytes written to the data segments, as runs of consecutive addresses.
+      int[] runAddresses;
+      int[] runSegments;
+      byte[][] runBytes;
+      final ArrayList<DataEvent> events = new ArrayList<DataEvent>();
+      // Expansion of the statement at each index of statements, if a pseudo-instruction.
+      Expansion[] expansions;
+      // Basic statements of the second pass, if it produced no messages, and the
+      // address of each label from outside the file that they use.
+      ProgramStatement[] basicStatements;
+      String[] referenceNames;
+      int[] referenceAddresses;
+
+      Unit(Key key, int[] start) {
+         this.key = key;
+         this.start = start.clone();
+      }
+
+      /**
+       * Returns a unit with the same first pass as this one, moved as the given
+       * relocation of it says, with the given expansions and no basic statements.
+       *
+       * @param relocation where this unit's addresses go, or null if it has not moved
+       * @param expansions the expansions made at the new addresses
+       */
+      Unit moved(Relocation relocation, Expansion[] expansions) {
+         if (relocation == null) {
+            relocation = new Relocation(this, start);
+         }
+         Unit unit = new Unit(key, relocation.start);
+         unit.textSpaceAtStart = textSpaceAtStart;
+         unit.dataSpaceAtStart = dataSpaceAtStart;
+         unit.end = new int[end.length];
+         for (int segment = 0; segment < end.length; segment++) {
+            unit.end[segment] = relocation.address(segment, end[segment]);
+         }
+         unit.textSpaceAtEnd = textSpaceAtEnd;
+         unit.dataSpaceAtEnd = dataSpaceAtEnd;
+         unit.alignmentSegments = alignmentSegments;
+         unit.alignmentAddresses = relocation.alignmentAddresses;
+         unit.alignmentBoundaries = alignmentBoundaries;
+         unit.statements = statements;
+         unit.statementAddresses = relocation.addresses(statementSegments, statementAddresses);
+         unit.statementSegments = statementSegments;
+         unit.symbolTokens = symbolTokens;
+         unit.symbolAddresses = relocation.addresses(symbolSegments, symbolAddresses);
+         unit.symbolTypes = symbolTypes;
+         unit.symbolSegments = symbolSegments;
+         unit.globalDeclarations = globalDeclarations;
+         unit.runAddresses = relocation.addresses(runSegments, runAddresses);
+         unit.runSegments = runSegments;
+         unit.runBytes = runBytes;
+         for (int i = 0; i < events.size(); i++) {
+            DataEvent event = events.get(i);
+            if (event.segment == EXTERN) {
+               unit.events.add(event);
+            } 
+            else {
+               unit.events.add(new DataEvent(event.token, event.segment,
+                  relocation.address(event.segment, event.address), event.length, event.valueSegment,
+                  (event.valueSegment == NOT_LOCAL) ? event.value
+                  : relocation.address(event.valueSegment, event.value, event.alignments),
+                  event.alignments));
+            }
+         }
+         unit.expansions = expansions;
+         return unit;
+      }
+
+      /**
+       * Returns the segment holding an address assembled in this unit, or -1 if it is
+       * in none or cannot be told apart.
+       *
+       * @param address a text or data address
+       * @param data true if it is a data address
+       */
+      int segmentOf(int address, boolean data) {
+         int user = data ? USER_DATA : USER_TEXT;
+         boolean inUser = contains(user, address);
+         boolean inKernel = contains(user + 1, address);
+         return (inUser == inKernel) ? -1 : (inUser ? user : user + 1);
+      }
+
+      // Labels may be defined at the end of a segment, so the end address counts.
+      private boolean contains(int segment, int address) {
+         return (address - start[segment] ^ Integer.MIN_VALUE) <= (end[segment] - start[segment] ^ Integer.MIN_VALUE);
+      }
+   }
+
+   /**
+    * Where the addresses of a unit go when its file starts at other addresses.  Text
+    * moves the same distance throughout a segment.  Data moves the same distance up to
+    * the next point at which the file aligned it, and from there by the distance that
+    * aligning it at its new address gives, which is where the first pass would have put
+    * it.  So data is divided into parts, each beginning at an aligned address and moving
+    * a distance of its own.
+    */
+   static final class Relocation {
+      final int[] start;
+      // Addresses the unit's data was at before each point at which it was aligned.
+      final int[] alignmentAddresses;
+      private final int[] delta;
+      // For the user and kernel data segments, the address at which each part begins,
+      // the distance it moves and the number of the alignment point that began it, in
+      // order of address.
+      private final int[][] partStarts = new int[2][];
+      private final int[][] partDeltas = new int[2][];
+      private final int[][] partAlignments = new int[2][];
+   
+      /**
+       * @param unit the unit to be moved
+       * @param start next address in each segment when the file begins
+       */
+      Relocation(Unit unit, int[] start) {
+         this.start = start.clone();
+         delta = new int[start.length];
+         for (int segment = 0; segment < start.length; segment++) {
+            delta[segment] = start[segment] - unit.start[segment];
+         }
+         int[] parts = new int[2];
+         for (int i = 0; i < unit.alignmentSegments.length; i++) {
+            parts[unit.alignmentSegments[i] - Unit.USER_DATA]++;
+         }
+         for (int space = 0; space < 2; space++) {
+            partStarts[space] = new int[parts[space]];
+            partDeltas[space] = new int[parts[space]];
+            partAlignments[space] = new int[parts[space]];
+            parts[space] = 0;
+         }
+         alignmentAddresses = new int[unit.alignmentAddresses.length];
+         int[] current = delta.clone();
+         for (int i = 0; i < alignmentAddresses.length; i++) {
+            int segment = unit.alignmentSegments[i];
+            int space = segment - Unit.USER_DATA;
+            int before = unit.alignmentAddresses[i];
+            int boundary = unit.alignmentBoundaries[i];
+            alignmentAddresses[i] = before + current[segment];
+            int aligned = Assembler.alignedAddress(before, boundary);
+            current[segment] = Assembler.alignedAddress(alignmentAddresses[i], boundary) - aligned;
+            partStarts[space][parts[space]] = aligned;
+            partDeltas[space][parts[space]] = current[segment];
+            partAlignments[space][parts[space]] = i;
+            parts[space]++;
+         }
+      }
+   
+      /**
+       * Returns true if nothing moves.
+       */
+      boolean isIdentity() {
+         for (int segment = 0; segment < delta.length; segment++) {
+            if (delta[segment] != 0) {
+               return false;
+            }
+         }
+         return true;
+      }
+   
+      /**
+       * Returns the address to which an address in the given segment moves.
+       */
+      int address(int segment, int address) {
+         return address(segment, address, Integer.MAX_VALUE);
+      }
+   
+      /**
+       * Returns the address to which an address in the given segment moved by the time
+       * the given number of alignment points had been passed.  The address of a label
+       * read just before the data at it is aligned is the address before alignment.
+       */
+      int address(int segment, int address, int alignments) {
+         if (segment < Unit.USER_DATA) {
+            return address + delta[segment];
+         }
+      // Find the last of the parts begun by then that begins at or below the address;
+      // they are in order of address, compared as unsigned.
+         int[] starts = partStarts[segment - Unit.USER_DATA];
+         int[] begun = partAlignments[segment - Unit.USER_DATA];
+         int low = 0;
+         int high = begun.length;
+         while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (begun[middle] < alignments) {
+               low = middle + 1;
+            } 
+            else {
+               high = middle;
+            }
+         }
+         int key = address ^ Integer.MIN_VALUE;
+         high = low;
+         low = 0;
+         while (low < high) {
+            int middle = (low + high) >>> 1;
+            if ((starts[middle] ^ Integer.MIN_VALUE) <= key) {
+               low = middle + 1;
+            } 
+            else {
+               high = middle;
+            }
+         }
+         return address + ((low == 0) ? delta[segment] : partDeltas[segment - Unit.USER_DATA][low - 1]);
+      }
+   
+      /**
+       * Returns the addresses to which addresses in the given segments move.
+       */
+      int[] addresses(int[] segments, int[] addresses) {
+         int[] moved = new int[addresses.length];
+         for (int i = 0; i < moved.length; i++) {
+            moved[i] = address(segments[i], addresses[i]);
+         }
+         return moved;
+      }
+   }
+
+   /**
+    * A label used as the operand of an integer data directive, or an .extern
+    * declaration, in the order they occurred.  Either may depend on labels in other
+    * files, so they are carried out again each time the unit is used.
+    */
+   static final class DataEvent {
+      final Token token;
+      final int segment;
+      final int address;
+      final int length;
+      final int valueSegment;
+      final int value;
+      final int alignments;
+
+      /**
+       * @param token the label
+       * @param segment segment of address, or EXTERN for .extern
+       * @param address address of the data
+       * @param length length of the data, or size declared by .extern
+       * @param valueSegment segment of value, or NOT_LOCAL if the label was not
+       *        defined in the file when it was used
+       * @param value address of the label if it was defined in the file
+       * @param alignments number of points at which the file's data had been aligned
+       */
+      DataEvent(Token token, int segment, int address, int length, int valueSegment, int value,
+                int alignments) {
+         this.token = token;
+         this.segment = segment;
+         this.address = address;
+         this.length = length;
+         this.valueSegment = valueSegment;
+         this.value = value;
+         this.alignments = alignments;
+      }
+   }
+
+   /**
+    * The basic statements a pseudo-instruction expanded to.  They depend only on the
+    * pseudo-instruction's basic assembly statement, in which labels have been replaced
+    * by their addresses, except that a template may turn an address back into the
+    * name of the label at that address.
+    */
+   static final class Expansion {
+      final String basic;
+      final String labelAddress;
+      final String labelName;
+      final ProgramStatement[] statements;
+      final int[] offsets;
+
+      /**
+       * @param basic basic assembly statement of the pseudo-instruction
+       * @param labelAddress operand that was turned back into a label, or null
+       * @param labelName name of that label, or null if there is none at the address
+       * @param statements the basic statements
+       * @param offsets address of each basic statement relative to that of the
+       *        pseudo-instruction
+       */
+      Expansion(String basic, String labelAddress, String labelName,
+                ProgramStatement[] statements, int[] offsets) {
+         this.basic = basic;
+         this.labelAddress = labelAddress;
+         this.labelName = labelName;
+         this.statements = statements;
+         this.offsets = offsets;
+      }
+
+      /**
+       * Returns true if a pseudo-instruction of the given program with the given
+       * basic assembly statement expands to these statements.
+       */
+      boolean matches(String basicAssembly, MIPSprogram program) {
+         if (!basic.equals(basicAssembly)) {
+            return false;
+         }
+         if (labelAddress == null) {
+            return true;
+         }
+         Symbol symbol = program.getLocalSymbolTable().getSymbolGivenAddressLocalOrGlobal(labelAddress);
+         return Objects.equals(labelName, (symbol == null) ? null : symbol.getName());
+      }
+   }
+}
@@ -1,6 +1,7 @@
    package mars.assembler;
 
    import java.util.ArrayList;
+   import java.util.HashMap;
 
 /*
 Copyright (c) 2003-2012,  Pete Sanderson and Kenneth Vollmar
@@ -43,6 +44,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     public final class Directives {
    
       private static ArrayList directiveList = new ArrayList();
+      // The directives by case-folded name, for matchDirective().
+      private static HashMap<String, Directives> directiveIndex = new HashMap<String, Directives>();
       public static final Directives DATA   = new Directives(".data", "Subsequent items stored in Data segment at next available address");
       public static final Directives TEXT   = new Directives(".text", "Subsequent items (instructions) stored in Text segment at next available address");
       public static final Directives WORD   = new Directives(".word", "Store the listed value(s) as 32 bit words on word boundary");
@@ -76,12 +79,14 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          this.descriptor  = "generic";
          this.description = "";
          directiveList.add(this);
+         directiveIndex.put(foldCase(this.descriptor), this);
       }
    
        private Directives(String name, String description) {
          this.descriptor  = name;
          this.description = description;
          directiveList.add(this);
+         directiveIndex.put(foldCase(this.descriptor), this);
       }
    
    /**
@@ -92,14 +97,17 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     **/
     
        public static Directives matchDirective(String str) {
-         Directives match;
-         for (int i=0; i<directiveList.size(); i++) {
-            match = (Directives) directiveList.get(i);
-            if (str.equalsIgnoreCase(match.descriptor)) {
-               return match;
-            }
+         return directiveIndex.get(foldCase(str));
+      }
+   
+    // Maps each character as String.equalsIgnoreCase() compares it, so that two
+    // strings are equal ignoring case exactly when their folded forms are equal.
+       private static String foldCase(String str) {
+         char[] folded = new char[str.length()];
+         for (int i=0; i<folded.length; i++) {
+            folded[i] = Character.toLowerCase(Character.toUpperCase(str.charAt(i)));
          }
-         return null;
+         return new String(folded);
       }
    
    
@@ -1,5 +1,6 @@
    package mars.assembler;
    import mars.*;
+   import mars.simulator.MachineContext;
    import java.util.*;
 
 /*
@@ -32,6 +33,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 
   /**
     *  Creats a table of Symbol objects.
+    *  Symbols are kept in the order they were added, and indexed both by name and
+    *  by address so that lookups do not search the table.  The address index holds
+    *  the symbols in parallel arrays sorted by address, treated as unsigned, with
+    *  symbols at the same address in the order they were added.  Both indexes are
+    *  updated along with the table, so a Symbol's address must only be changed
+    *  through fixSymbolTableAddress().
 	*   @author Jason Bumgarner, Jason Shrewsbury
 	*   @version June 2003
 	**/
@@ -40,6 +47,15 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       private static String startLabel = "main";
       private String filename;
       private ArrayList table;
+      private HashMap<String, Symbol> symbolsByName;
+   	// The address index.  Keys are addresses with the sign bit flipped, so that
+   	// comparing them as signed ints orders the addresses as unsigned.  Each symbol's
+   	// sequence number records when it was added, to order symbols at one address.
+      private int[] indexKeys;
+      private int[] indexSequence;
+      private Symbol[] indexSymbols;
+      private int indexSize;
+      private int nextSequence;
    	// Note -1 is legal 32 bit address (0xFFFFFFFF) but it is the high address in 
    	// kernel address space so highly unlikely that any symbol will have this as 
    	// its associated address!
@@ -52,7 +68,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 */
        public SymbolTable(String filename) {
          this.filename = filename;
-         this.table = new ArrayList();
+         clear();
       }    
    	/**
    	  *  Adds a Symbol object into the array of Symbols.
@@ -70,6 +86,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          else {
             Symbol s= new Symbol(label, address, b);
             table.add(s);
+            symbolsByName.put(label, s);
+            addToIndex(s, nextSequence++);
             if (Globals.debug) System.out.println("The symbol " + label + " with address " + address + " has been added to the "+this.filename+" symbol table.");
          }
       }
@@ -84,12 +102,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
        public void removeSymbol(Token token) {
          String label = token.getValue();
-         for (int i=0; i < table.size(); i++) {
-            if (((Symbol)(table.get(i))).getName().equals(label)){
-               table.remove(i);
-               if (Globals.debug) System.out.println("The symbol " + label + " has been removed from the "+this.filename+" symbol table.");
-               break;
-            }
+         Symbol symbol = symbolsByName.remove(label);
+         if (symbol != null) {
+            table.remove(symbol);
+            removeFromIndex(findInIndex(symbol));
+            if (Globals.debug) System.out.println("The symbol " + label + " has been removed from the "+this.filename+" symbol table.");
          }
          return; 
       }
@@ -101,12 +118,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  *   @return The memory address of the label given, or NOT_FOUND if not found in symbol table.
    	  **/
        public int getAddress(String s){
-         for(int i=0; i < table.size(); i++){
-            if (((Symbol)(table.get(i))).getName().equals(s)){
-               return((Symbol) table.get(i)).getAddress();
-            }
-         }
-         return NOT_FOUND;
+         Symbol symbol = symbolsByName.get(s);
+         return (symbol == null) ? NOT_FOUND : symbol.getAddress();
       }
       
    	/**
@@ -118,7 +131,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/		
        public int getAddressLocalOrGlobal(String s) {
          int address = this.getAddress(s);
-         return (address==NOT_FOUND) ? Globals.symbolTable.getAddress(s) : address ;
+         return (address==NOT_FOUND) ? MachineContext.current().getSymbolTable().getAddress(s) : address ;
       }
    	
    	
@@ -129,12 +142,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        **/
        
        public Symbol getSymbol(String s){
-         for(int i=0; i < table.size(); i++){
-            if (((Symbol)(table.get(i))).getName().equals(s)){
-               return (Symbol) table.get(i);
-            }
-         }
-         return null;
+         return symbolsByName.get(s);
       }
    
       /**
@@ -151,14 +159,44 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
              catch (NumberFormatException e) {
                return null;
             }
-         for(int i=0; i < table.size(); i++){
-            if (((Symbol)(table.get(i))).getAddress() == address){
-               return (Symbol) table.get(i);
-            }
-         }
-         return null;
+         return getSymbolGivenAddress(address);
       }      
    
+      /**
+       * Produce Symbol object from symbol table that has the given address.  If more
+       * than one does, the one added first is produced.
+       * @param address the address
+       * @return Symbol object having requested address, null if address not found in symbol table.
+       **/
+       
+       public Symbol getSymbolGivenAddress(int address){
+         int key = address ^ Integer.MIN_VALUE;
+         int position = indexPosition(key, Integer.MIN_VALUE);
+         return (position < indexSize && indexKeys[position] == key) ? indexSymbols[position] : null;
+      }
+   
+      /**
+       * Produce the Symbol object with the highest address at or below the given one,
+       * comparing addresses as unsigned: the label of the code or data that the
+       * address is in, if it is preceded by one.  If more than one symbol has that
+       * address, the one added first is produced.
+       * @param address the address
+       * @return Symbol object at or preceding the address, null if there is none.
+       **/
+       
+       public Symbol getSymbolAtOrBefore(int address){
+         int key = address ^ Integer.MIN_VALUE;
+         int position = indexPosition(key, Integer.MAX_VALUE) - 1;
+         if (position < 0) {
+            return null;
+         }
+         // Back up to the first symbol added at that address.
+         while (position > 0 && indexKeys[position - 1] == indexKeys[position]) {
+            position--;
+         }
+         return indexSymbols[position];
+      }
+   
       /**
        * Produce Symbol object from either local or global symbol table that has the 
    	 * given address.
@@ -167,7 +205,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        **/
        public Symbol getSymbolGivenAddressLocalOrGlobal(String s){
          Symbol sym = this.getSymbolGivenAddress(s);
-         return (sym==null) ? Globals.symbolTable.getSymbolGivenAddress(s) : sym ;
+         return (sym==null) ? MachineContext.current().getSymbolTable().getSymbolGivenAddress(s) : sym ;
       }
    			  
    
@@ -231,6 +269,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 
        public void clear(){
          table= new ArrayList();
+         symbolsByName = new HashMap<String, Symbol>();
+         indexKeys = new int[16];
+         indexSequence = new int[16];
+         indexSymbols = new Symbol[16];
+         indexSize = 0;
+         nextSequence = 0;
       }
    	
    /**
@@ -243,10 +287,31 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     */
    
        public void fixSymbolTableAddress(int originalAddress, int replacementAddress) {
-         Symbol label = getSymbolGivenAddress(Integer.toString(originalAddress));
-         while (label != null) {
-            label.setAddress(replacementAddress);
-            label = getSymbolGivenAddress(Integer.toString(originalAddress));
+         if (originalAddress == replacementAddress) {
+            return;
+         }
+         int key = originalAddress ^ Integer.MIN_VALUE;
+         int first = indexPosition(key, Integer.MIN_VALUE);
+         int end = first;
+         while (end < indexSize && indexKeys[end] == key) {
+            end++;
+         }
+         int count = end - first;
+         if (count == 0) {
+            return;
+         }
+         Symbol[] moved = new Symbol[count];
+         int[] sequence = new int[count];
+         System.arraycopy(indexSymbols, first, moved, 0, count);
+         System.arraycopy(indexSequence, first, sequence, 0, count);
+         System.arraycopy(indexKeys, end, indexKeys, first, indexSize - end);
+         System.arraycopy(indexSequence, end, indexSequence, first, indexSize - end);
+         System.arraycopy(indexSymbols, end, indexSymbols, first, indexSize - end);
+         indexSize -= count;
+         Arrays.fill(indexSymbols, indexSize, indexSize + count, null);
+         for (int i = 0; i < count; i++) {
+            moved[i].setAddress(replacementAddress);
+            addToIndex(moved[i], sequence[i]);
          }
          return;
       }
@@ -259,4 +324,58 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public static String getStartLabel() {
          return startLabel;
       }
+   
+   	// Position in the address index of the first symbol ordered at or after the
+   	// given key and sequence number.
+       private int indexPosition(int key, int sequence) {
+         int low = 0;
+         int high = indexSize;
+         while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (indexKeys[middle] < key || (indexKeys[middle] == key && indexSequence[middle] < sequence)) {
+               low = middle + 1;
+            } 
+            else {
+               high = middle;
+            }
+         }
+         return low;
+      }
+   
+   	// Symbols are mostly added in increasing address order within a segment, so
+   	// most insertions are at or near the end and move little.
+       private void addToIndex(Symbol symbol, int sequence) {
+         int key = symbol.getAddress() ^ Integer.MIN_VALUE;
+         int position = indexPosition(key, sequence);
+         if (indexSize == indexKeys.length) {
+            indexKeys = Arrays.copyOf(indexKeys, indexSize * 2);
+            indexSequence = Arrays.copyOf(indexSequence, indexSize * 2);
+            indexSymbols = Arrays.copyOf(indexSymbols, indexSize * 2);
+         }
+         System.arraycopy(indexKeys, position, indexKeys, position + 1, indexSize - position);
+         System.arraycopy(indexSequence, position, indexSequence, position + 1, indexSize - position);
+         System.arraycopy(indexSymbols, position, indexSymbols, position + 1, indexSize - position);
+         indexKeys[position] = key;
+         indexSequence[position] = sequence;
+         indexSymbols[position] = symbol;
+         indexSize++;
+      }
+   
+       private int findInIndex(Symbol symbol) {
+         int key = symbol.getAddress() ^ Integer.MIN_VALUE;
+         for (int position = indexPosition(key, Integer.MIN_VALUE); position < indexSize; position++) {
+            if (indexSymbols[position] == symbol) {
+               return position;
+            }
+         }
+         return -1; // not reached: every symbol in the table is in the index
+      }
+   
+       private void removeFromIndex(int position) {
+         System.arraycopy(indexKeys, position + 1, indexKeys, position, indexSize - position - 1);
+         System.arraycopy(indexSequence, position + 1, indexSequence, position, indexSize - position - 1);
+         System.arraycopy(indexSymbols, position + 1, indexSymbols, position, indexSize - position - 1);
+         indexSize--;
+         indexSymbols[indexSize] = null;
+      }
    }
\ No newline at end of file
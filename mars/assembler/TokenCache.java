@@ -0,0 +1,108 @@
+package mars.assembler;
+import java.util.*;
+
+/**
+ * Tokens of recently tokenized source files, so that a file that has not changed
+ * since it was last assembled, typically a shared .include file, need not be
+ * tokenized again.  Entries are keyed by the content of the file, not its name: the
+ * key is the list of its lines, whose hash code is computed from their text and
+ * which is compared line by line on a hit.  A file that has been edited therefore
+ * simply misses.
+ *
+ * What is kept for each line is the type, text and position of each of its tokens
+ * as Tokenizer.tokenizeLine() found them before any .eqv substitution.  Tokens
+ * themselves are not kept, since they belong to the program being assembled, carry
+ * its line numbers, and are modified by the assembler; the Tokenizer makes new ones
+ * from what is kept here.  Token types depend on the instruction set, so each entry
+ * records the InstructionSet version it was made with and is not used with another.
+ *
+ * The cache is shared by all Tokenizers and holds the most recently used CAPACITY
+ * files.
+ **/
+
+class TokenCache {
+
+   /** Number of files kept. */
+   static final int CAPACITY = 32;
+
+   private static final TokenCache instance = new TokenCache();
+
+   private final LinkedHashMap<List<?>, FileTokens> entries =
+      new LinkedHashMap<List<?>, FileTokens>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<List<?>, FileTokens> eldest) {
+            return size() > CAPACITY;
+         }
+      };
+
+   private TokenCache() {
+   }
+
+   static TokenCache getInstance() {
+      return instance;
+   }
+
+   /**
+    * Returns the tokens of a file with the given lines, or null if they are not
+    * cached for this version of the instruction set.
+    */
+   synchronized FileTokens get(List<?> lines, int instructionSetVersion) {
+      FileTokens tokens = entries.get(lines);
+      return (tokens == null || tokens.instructionSetVersion != instructionSetVersion) ? null : tokens;
+   }
+
+   /**
+    * Keep the tokens of a file with the given lines.
+    */
+   synchronized void put(List<?> lines, FileTokens tokens) {
+      entries.put(new ArrayList<Object>(lines), tokens);
+   }
+
+   /**
+    * The tokens of each line of one file.
+    */
+   static final class FileTokens {
+      private final int instructionSetVersion;
+      private final TokenTypes[][] types;
+      private final String[][] values;
+      private final int[][] starts;
+
+      FileTokens(int lineCount, int instructionSetVersion) {
+         this.instructionSetVersion = instructionSetVersion;
+         types = new TokenTypes[lineCount][];
+         values = new String[lineCount][];
+         starts = new int[lineCount][];
+      }
+
+      /**
+       * Record the tokens of a line, numbered from 0.
+       */
+      void record(int line, TokenList tokens) {
+         int count = tokens.size();
+         types[line] = new TokenTypes[count];
+         values[line] = new String[count];
+         starts[line] = new int[count];
+         for (int i = 0; i < count; i++) {
+            Token token = tokens.get(i);
+            types[line][i] = token.getType();
+            values[line][i] = token.getValue();
+            starts[line][i] = token.getStartPos();
+         }
+      }
+
+      int tokenCount(int line) {
+         return types[line].length;
+      }
+
+      TokenTypes type(int line, int token) {
+         return types[line][token];
+      }
+
+      String value(int line, int token) {
+         return values[line][token];
+      }
+
+      int start(int line, int token) {
+         return starts[line][token];
+      }
+   }
+}
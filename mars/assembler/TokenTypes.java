@@ -132,27 +132,31 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          if (Macro.tokenIsMacroParameter(value, false))
         	 return TokenTypes.MACRO_PARAMETER;
 			           
-       // See if it is a register
-         Register reg = RegisterFile.getUserRegister(value);
-         if (reg != null) 
-            if (reg.getName().equals(value)) 
-               return TokenTypes.REGISTER_NAME;
-            else
-               return TokenTypes.REGISTER_NUMBER;
-      
-       // See if it is a floating point register
-       
-         reg = Coprocessor1.getRegister(value);
-         if (reg != null)
-            return TokenTypes.FP_REGISTER_NAME;
+       // See if it is a register.  Register names and numbers all start with $.
+         if (value.charAt(0) == '$') {
+            Register reg = RegisterFile.getUserRegister(value);
+            if (reg != null) 
+               if (reg.getName().equals(value)) 
+                  return TokenTypes.REGISTER_NAME;
+               else
+                  return TokenTypes.REGISTER_NUMBER;
+         
+          // See if it is a floating point register
+          
+            reg = Coprocessor1.getRegister(value);
+            if (reg != null)
+               return TokenTypes.FP_REGISTER_NAME;
+         }
        
        // See if it is an immediate (constant) integer value
        // Classify based on # bits needed to represent in binary
        // This is needed because most immediate operands limited to 16 bits
        // others limited to 5 bits unsigned (shift amounts) others 32 bits.
-         try {
-
-            int i = Binary.stringToInt(value);   // KENV 1/6/05
+       // Most tokens are not numbers, so this is done without exceptions.
+         long decoded = Binary.decodeInteger(value, 0);   // KENV 1/6/05
+         if (decoded != Binary.NOT_AN_INTEGER) {
+         
+            int i = (int) decoded;
 				
 		/***************************************************************************
 		 *  MODIFICATION AND COMMENT, DPS 3-July-2008
@@ -205,24 +209,14 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             }			  
             return TokenTypes.INTEGER_32;  // default when no other type is applicable
          }
-             catch(NumberFormatException e)
-            {
-            // NO ACTION -- exception suppressed
-            }
       
        // See if it is a real (fixed or floating point) number.  Note that parseDouble()
        // accepts integer values but if it were an integer literal we wouldn't get this far.
-         try {
-            Double.parseDouble(value);
+         if (isRealNumber(value))
             return TokenTypes.REAL_NUMBER;
-         }
-             catch (NumberFormatException e)
-            {
-            // NO ACTION -- exception suppressed
-            }
       	 
        // See if it is an instruction operator
-         if (Globals.instructionSet.matchOperator(value) != null)
+         if (Globals.instructionSet.isOperator(value))
             return TokenTypes.OPERATOR;
            
        // See if it is a directive
@@ -245,6 +239,58 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          return TokenTypes.ERROR;
       }
    
+       // Tells whether Double.parseDouble() would accept the value, by checking it against
+       // the syntax parseDouble() accepts rather than catching its exception.  Only the
+       // rare hexadecimal floating point form is left to parseDouble() itself.
+       private static boolean isRealNumber(String value) {
+         String s = value.trim();
+         int length = s.length();
+         int i = 0;
+         if (i < length && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+            i++;
+         if (i == length)
+            return false;
+         if (s.charAt(i) == 'N')
+            return s.startsWith("NaN", i) && length - i == 3;
+         if (s.charAt(i) == 'I')
+            return s.startsWith("Infinity", i) && length - i == 8;
+         if (s.startsWith("0x", i) || s.startsWith("0X", i)) {
+            try {
+               Double.parseDouble(s);
+               return true;
+            }
+                catch (NumberFormatException e) {
+                  return false;
+               }
+         }
+         int digits = 0;
+         boolean point = false;
+         for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9')
+               digits++;
+            else if (c == '.' && !point)
+               point = true;
+            else
+               break;
+         }
+         if (digits == 0)
+            return false;
+         if (i < length && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+               i++;
+            int exponentStart = i;
+            while (i < length && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+               i++;
+            if (i == exponentStart)
+               return false;
+         }
+         if (i == length - 1 && "fFdD".indexOf(s.charAt(i)) >= 0)
+            i++;
+         return i == length;
+      }
+   
 	   /**
 		 *
 		 *  Lets you know if given tokentype is for integers (INTGER_5, INTEGER_16, INTEGER_32).
@@ -86,25 +86,13 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public ArrayList tokenize(MIPSprogram p) throws ProcessingException {
          sourceMIPSprogram = p;
          equivalents = new HashMap<String,String>(); // DPS 11-July-2012
-         ArrayList tokenList = new ArrayList();
-         //ArrayList source = p.getSourceList();
-         ArrayList<SourceLine> source = processIncludes(p, new HashMap<String,String>()); // DPS 9-Jan-2013
+         ArrayList<TokenList> tokenList = new ArrayList<TokenList>();
+         ArrayList<?> lines = p.getSourceList();
+         ArrayList<SourceLine> source = new ArrayList<SourceLine>(lines.size());
+         // Errors are reported against the expanded source, so it is in place while it grows.
+         p.setSourceLineList(source);
+         tokenizeIncluding(p, lines, new HashMap<String,String>(), source, tokenList); // DPS 9-Jan-2013
          p.setSourceLineList(source);
-         TokenList currentLineTokens;
-         String sourceLine;
-         for (int i=0; i<source.size(); i++) {
-            sourceLine = source.get(i).getSource(); 
-            currentLineTokens = this.tokenizeLine(i+1, sourceLine);
-            tokenList.add(currentLineTokens); 
-            // DPS 03-Jan-2013. Related to 11-July-2012. If source code substitution was made
-         	// based on .eqv directive during tokenizing, the processed line, a String, is 
-         	// not the same object as the original line.  Thus I can use != instead of !equals()
-         	// This IF statement will replace original source with source modified by .eqv substitution.
-         	// Not needed by assembler, but looks better in the Text Segment Display.
-            if (sourceLine.length() > 0 && sourceLine != currentLineTokens.getProcessedLine()) {
-               source.set(i,new SourceLine(currentLineTokens.getProcessedLine(),source.get(i).getMIPSprogram(), source.get(i).getLineNumber())); 
-            } 
-         }
          if (errors.errorsOccurred()) {
             throw new ProcessingException(errors);
          }
@@ -113,19 +101,38 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    
    
      
-   // pre-pre-processing pass through source code to process any ".include" directives.
-   // When one is encountered, the contents of the included file are inserted at that 
-   // point.  If no .include statements, the return value is a new array list but
-   // with the same lines of source code.  Uses recursion to correctly process included
-   // files that themselves have .include.  Plus it will detect and report recursive
-   // includes both direct and indirect.
+   // Tokenizes the lines of a program in order, adding each to source and its tokens to
+   // tokenList.  A line containing an ".include" directive is replaced by the lines of the
+   // included file, which are tokenized in the same way, so the contents of included files
+   // are tokenized where they are inserted and in a single pass.  Uses recursion to correctly
+   // process included files that themselves have .include.  Plus it will detect and report
+   // recursive includes both direct and indirect.
    // DPS 11-Jan-2013
-       private ArrayList<SourceLine> processIncludes(MIPSprogram program, Map<String,String> inclFiles) throws ProcessingException {
-         ArrayList source = program.getSourceList();
-         ArrayList<SourceLine> result = new ArrayList<SourceLine>(source.size());
-         for (int i=0; i<source.size(); i++) {
-            String line = (String) source.get(i);
-            TokenList tl = tokenizeLine(program, i+1, line, false);
+   //
+   // Lines are numbered by their position in the expanded source, and are tokenized with
+   // .eqv substitution as they are reached, as if the expanded source had been tokenized
+   // a line at a time.  The tokens each line has before substitution, which depend only on
+   // its text, are kept in the TokenCache with the file they came from.
+       private void tokenizeIncluding(MIPSprogram program, List<?> lines, Map<String,String> inclFiles,
+       ArrayList<SourceLine> source, ArrayList<TokenList> tokenList) throws ProcessingException {
+         int version = Globals.instructionSet.getVersion();
+         TokenCache.FileTokens cached = TokenCache.getInstance().get(lines, version);
+         TokenCache.FileTokens recorded = (cached == null) ? new TokenCache.FileTokens(lines.size(), version) : null;
+         for (int i=0; i<lines.size(); i++) {
+            String line = (String) lines.get(i);
+            int lineNum = source.size() + 1;
+            source.add(new SourceLine(line, program, i+1));
+            TokenList tl;
+            if (cached != null) {
+               tl = new TokenList();
+               for (int ii=0; ii<cached.tokenCount(i); ii++) {
+                  addToken(cached.type(i, ii), cached.value(i, ii), sourceMIPSprogram, lineNum, line, cached.start(i, ii), tl);
+               }
+            } 
+            else {
+               tl = tokenizeLine(sourceMIPSprogram, lineNum, line, false);
+               recorded.record(i, tl);
+            }
             boolean hasInclude = false;
             for (int ii=0; ii<tl.size(); ii++) {
                if (tl.get(ii).getValue().equalsIgnoreCase(Directives.INCLUDE.getName()) 
@@ -140,7 +147,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                   if (inclFiles.containsKey(filename)) {
                      // This is a recursive include.  Generate error message and return immediately.
                      Token t = tl.get(ii+1);
-                     errors.add(new ErrorMessage(program, t.getSourceLine(),t.getStartPos(), 
+                     errors.add(new ErrorMessage(sourceMIPSprogram, t.getSourceLine(),t.getStartPos(), 
                         "Recursive include of file "+filename));
                      throw new ProcessingException(errors);
                   }
@@ -151,21 +158,35 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                   }
                       catch (ProcessingException p) {
                         Token t = tl.get(ii+1);
-                        errors.add(new ErrorMessage(program, t.getSourceLine(),t.getStartPos(), 
+                        errors.add(new ErrorMessage(sourceMIPSprogram, t.getSourceLine(),t.getStartPos(), 
                            "Error reading include file "+filename));	
                         throw new ProcessingException(errors);
                      }
-                  ArrayList<SourceLine> allLines = processIncludes(incl, inclFiles);
-                  result.addAll(allLines);
+                  // The included lines take the place of this one.
+                  source.remove(source.size()-1);
+                  tokenizeIncluding(incl, incl.getSourceList(), inclFiles, source, tokenList);
                   hasInclude = true;
                   break;                  	
                } 
             }
-            if (!hasInclude){
-               result.add(new SourceLine(line, program, i+1));//line);
+            if (!hasInclude) {
+               if (line.length() > 0) {
+                  tl = processEqv(sourceMIPSprogram, lineNum, line, tl); // DPS 11-July-2012
+               }
+               tokenList.add(tl); 
+               // DPS 03-Jan-2013. Related to 11-July-2012. If source code substitution was made
+               // based on .eqv directive during tokenizing, the processed line, a String, is 
+               // not the same object as the original line.  Thus I can use != instead of !equals()
+               // This IF statement will replace original source with source modified by .eqv substitution.
+               // Not needed by assembler, but looks better in the Text Segment Display.
+               if (line.length() > 0 && line != tl.getProcessedLine()) {
+                  source.set(lineNum-1, new SourceLine(tl.getProcessedLine(), program, i+1)); 
+               }
             }
          }
-         return result;
+         if (recorded != null) {
+            TokenCache.getInstance().put(lines, recorded);
+         }
       }
    	
    /**
@@ -534,13 +555,18 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          String value = new String(token, 0, tokenPos);
          if (value.length() > 0 && value.charAt(0)=='\'') value = preprocessCharacterLiteral(value);
          TokenTypes type = TokenTypes.matchTokenType(value);
+         addToken(type, value, program, line, theLine, tokenStartPos, tokenList);
+      }
+   
+   // Records a classified token, and an error if it is not a valid language element.
+       private void addToken(TokenTypes type, String value, MIPSprogram program, int line, String theLine,
+       int tokenStartPos, TokenList tokenList) {
          if (type == TokenTypes.ERROR) {
             errors.add(new ErrorMessage(program, line, tokenStartPos, 
                        theLine+"\nInvalid language element: "+value));
          }
          Token toke = new Token(type, value, program, line, tokenStartPos);
          tokenList.add(toke);
-         return;
       }
    	
    	
@@ -42,6 +42,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     public abstract class AbstractDumpFormat implements DumpFormat {
    
       private String name, commandDescriptor, description,  extension;
+      // Words read at once by getRawWords() until more are needed.
+      private static final int RAW_WORDS_CHUNK_LENGTH = 4096;
    	
    	/**
    	 *  Typical constructor.  Note you cannot creates objects from this
@@ -115,4 +117,44 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public abstract void dumpMemoryRange(File file, int firstAddress, int lastAddress)
 		    throws AddressErrorException, IOException;
    
+   /**
+   *  Read the memory words to dump, as Memory.getRawWordOrNull() gives them, in
+   *  bulk transfers.  Stops at the first word for which it gives null.
+   *
+   *  @param firstAddress first (lowest) memory address to dump.  In bytes but
+   *  must be on word boundary.
+   *  @param lastAddress last (highest) memory address to dump.  In bytes but
+   *  must be on word boundary.
+   *  @return the words, the first one from firstAddress.
+   *  @throws AddressErrorException if firstAddress is invalid or not on a word boundary.
+   */
+       protected static int[] getRawWords(int firstAddress, int lastAddress) throws AddressErrorException {
+         long count = (lastAddress < firstAddress) ? 0 
+            : ((long) lastAddress - firstAddress) / Memory.WORD_LENGTH_BYTES + 1;
+         // Read a chunk at a time, so a range far larger than what was written
+         // does not need an array for all of it.
+         int[] words = new int[(int) Math.min(count, RAW_WORDS_CHUNK_LENGTH)];
+         int read = 0;
+         while (read < count) {
+            if (read == words.length) {
+               int[] larger = new int[(int) Math.min(count, 2L * words.length)];
+               System.arraycopy(words, 0, larger, 0, read);
+               words = larger;
+            }
+            int wanted = words.length - read;
+            int chunkRead = Memory.getInstance().readRawWords(firstAddress + read * Memory.WORD_LENGTH_BYTES, 
+               words, read, wanted);
+            read += chunkRead;
+            if (chunkRead < wanted) {
+               break;
+            }
+         }
+         if (read < words.length) {
+            int[] fewer = new int[read];
+            System.arraycopy(words, 0, fewer, 0, read);
+            words = fewer;
+         }
+         return words;
+      }
+   
    }
\ No newline at end of file
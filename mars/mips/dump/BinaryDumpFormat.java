@@ -67,11 +67,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
         throws AddressErrorException, IOException {
          PrintStream out = new PrintStream(new FileOutputStream(file));
          try {
-            for (int address = firstAddress; address <= lastAddress; address += Memory.WORD_LENGTH_BYTES) {
-               Integer temp = Globals.memory.getRawWordOrNull(address);
-               if (temp == null) 
-                  break;
-               int word = temp.intValue();
+            int[] words = getRawWords(firstAddress, lastAddress);
+            for (int w = 0; w < words.length; w++) {
+               int word = words[w];
                for (int i = 0; i < 4; i++) 
                   out.write((word >>> (i << 3)) & 0xFF);
             }
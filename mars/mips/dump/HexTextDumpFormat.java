@@ -69,11 +69,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          PrintStream out = new PrintStream(new FileOutputStream(file));
          String string = null;
          try {
-            for (int address = firstAddress; address <= lastAddress; address += Memory.WORD_LENGTH_BYTES) {
-               Integer temp = Globals.memory.getRawWordOrNull(address);
-               if (temp == null) 
-                  break;
-               string = Integer.toHexString(temp.intValue());
+            int[] words = getRawWords(firstAddress, lastAddress);
+            for (int w = 0; w < words.length; w++) {
+               string = Integer.toHexString(words[w]);
                while (string.length() < 8) {
                   string = '0' + string;
                }
@@ -36,10 +36,10 @@
             PrintStream out = new PrintStream(new FileOutputStream(file));
             String string = null;
             try {
-               for (int address = firstAddress; address <= lastAddress; address += Memory.WORD_LENGTH_BYTES) {
-                  Integer temp = Globals.memory.getRawWordOrNull(address);
-                  if (temp == null) 
-                     break;
+               int[] words = getRawWords(firstAddress, lastAddress);
+               for (int w = 0; w < words.length; w++) {
+                  int address = firstAddress + w * Memory.WORD_LENGTH_BYTES;
+                  Integer temp = Integer.valueOf(words[w]);
                   string = Integer.toHexString(temp.intValue());
                   while (string.length() < 8) {
                      string = '0' + string;
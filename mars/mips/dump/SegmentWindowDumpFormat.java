@@ -90,14 +90,14 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             int offset = 0;
             String string="";
             try {
-               for (int address = firstAddress; address <= lastAddress; address += Memory.WORD_LENGTH_BYTES) {
+               int[] words = getRawWords(firstAddress, lastAddress);
+               for (int w = 0; w < words.length; w++) {
+                  int address = firstAddress + w * Memory.WORD_LENGTH_BYTES;
                   if (offset % 8 == 0) {
                      string = ((hexAddresses) ? Binary.intToHexString(address) : Binary.unsignedIntToIntString(address))  + "    ";
                   }
                   offset++;
-                  Integer temp = Globals.memory.getRawWordOrNull(address);
-                  if (temp == null) 
-                     break;
+                  Integer temp = Integer.valueOf(words[w]);
                   string += ((hexValues) 
                              ? Binary.intToHexString(temp.intValue()) 
                      		  : ("           "+temp).substring(temp.toString().length()) 
@@ -124,14 +124,13 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          out.println();
          String string = null;
          try {
-            for (int address = firstAddress; address <= lastAddress; address += Memory.WORD_LENGTH_BYTES) {
+            int[] words = getRawWords(firstAddress, lastAddress);
+            for (int w = 0; w < words.length; w++) {
+               int address = firstAddress + w * Memory.WORD_LENGTH_BYTES;
                string = ((hexAddresses) ? Binary.intToHexString(address) : Binary.unsignedIntToIntString(address))  + "  ";
-               Integer temp = Globals.memory.getRawWordOrNull(address);
-               if (temp == null) 
-                  break;
-               string += Binary.intToHexString(temp.intValue()) + "  ";
+               string += Binary.intToHexString(words[w]) + "  ";
                try {
-                  ProgramStatement ps = Globals.memory.getStatement(address);
+                  ProgramStatement ps = Memory.getInstance().getStatement(address);
                   string += (ps.getPrintableBasicAssemblyStatement()+"                      ").substring(0,22);
                   string += (((ps.getSource()=="") ? "" : new Integer(ps.getSourceLine()).toString())+"     ").substring(0,5);
                   string += ps.getSource();
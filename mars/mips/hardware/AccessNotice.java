@@ -54,6 +54,15 @@ public abstract class AccessNotice {
 		accessType = type;
 		thread = Thread.currentThread();
 	}
+	/** Refill a notice that is being reused for another access.  Used only within this
+	 * package, for observers that do not keep notices.
+	 * @param type Access type, either AccessNotice.READ or AccessNotice.WRITE
+	 */
+	void reset(int type) {
+		accessType = type;
+		thread = Thread.currentThread();
+	}
+	
 	/** Get the access type: READ or WRITE.  
 	 * @return Access type, either AccessNotice.READ or AccessNotice.WRITE
 	 */
@@ -1,5 +1,6 @@
    package mars.mips.hardware;
    import mars.Globals;
+   import mars.simulator.MachineContext;
    import java.util.*;
 
 /*
@@ -32,6 +33,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 
 /**
   *  Represents Coprocessor 0.  We will use only its interrupt/exception registers.
+  *  The static methods work on the registers of the MachineContext bound to the
+  *  calling thread; an instance holds the registers of one context.
   *   @author 	Pete Sanderson
   *   @version August 2005
   **/
@@ -49,19 +52,35 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 		// bit 1 (exception level) not set, bit 0 (interrupt enable) set.
 		public static final int DEFAULT_STATUS_VALUE = 0x0000FF11;
 		
-      private static Register [] registers = 
+      private final Register [] registers = 
           { new Register("$8 (vaddr)", 8, 0),  
             new Register("$12 (status)", 12, DEFAULT_STATUS_VALUE),
          	new Register("$13 (cause)", 13, 0),  
          	new Register("$14 (epc)", 14, 0)
            };
         												  
+   	/**
+   	  *  Creates the Coprocessor 0 registers of a new machine.  Used by MachineContext;
+   	  *  everything else should use the static methods.
+   	  **/
+   	  
+       public Coprocessor0(){
+      }
+   
+   	/**
+   	  *  Returns the registers of the MachineContext bound to the calling thread.
+   	  **/
+   	  
+       private static Register[] registers(){
+         return MachineContext.current().getCoprocessor0().registers;
+      }
    	 
    	/**
    	  *  Method for displaying the register values for debugging.
    	  **/	 
    		 
        public static void showRegisters(){
+         Register[] registers = registers();
          for (int i=0; i< registers.length; i++){
             System.out.println("Name: " + registers[i].getName());
             System.out.println("Number: " + registers[i].getNumber());
@@ -78,6 +97,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static int updateRegister(String n, int val){
+         Register[] registers = registers();
 		   int oldValue = 0;
          for (int i=0; i< registers.length; i++){
             if(("$"+registers[i].getNumber()).equals(n) || registers[i].getName().equals(n)) {
@@ -96,11 +116,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 		  *   @return old value in register prior to update
    	  **/
        public static int updateRegister(int num, int val){
+         Register[] registers = registers();
          int old = 0;
          for (int i=0; i< registers.length; i++){
             if(registers[i].getNumber()== num) {
                old = (Globals.getSettings().getBackSteppingEnabled())
-                        ? Globals.program.getBackStepper().addCoprocessor0Restore(num,registers[i].setValue(val))
+                        ? MachineContext.current().getProgram().getBackStepper().addCoprocessor0Restore(num,registers[i].setValue(val))
                   		: registers[i].setValue(val);
                break;
             }
@@ -116,6 +137,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static int getValue(int num){
+         Register[] registers = registers();
          for (int i=0; i< registers.length; i++){
             if(registers[i].getNumber()== num) {
                return registers[i].getValue();
@@ -131,6 +153,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    		  **/	
       		
        public static int getNumber(String n){
+         Register[] registers = registers();
          for (int i=0; i< registers.length; i++){
             if(("$"+registers[i].getNumber()).equals(n) || registers[i].getName().equals(n)) {
                return registers[i].getNumber();
@@ -145,7 +168,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static Register[] getRegisters(){
-         return registers;
+         return registers();
       }
 
       
@@ -158,6 +181,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static int getRegisterPosition(Register r){
+         Register[] registers = registers();
          for (int i=0; i< registers.length; i++){
             if(registers[i]==r) {
                return i;
@@ -173,6 +197,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static Register getRegister(String rname) {
+         Register[] registers = registers();
          for (int i=0; i< registers.length; i++){
             if(("$"+registers[i].getNumber()).equals(rname) || registers[i].getName().equals(rname)) {
                return registers[i];
@@ -187,16 +212,48 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static void resetRegisters(){
+         Register[] registers = registers();
          for(int i=0; i< registers.length; i++){
             registers[i].resetValue();
          }
       }
+   
+   	/**
+   	  *  Returns a copy of the values of all registers, for a later call to
+   	  *  restoreValues().
+   	  *   @return array of register values
+   	  **/
+   	  
+       public static int[] copyValues(){
+         Register[] registers = registers();
+         int[] saved = new int[registers.length];
+         for (int i = 0; i < registers.length; i++) {
+            saved[i] = registers[i].getValueNoNotify();
+         }
+         return saved;
+      }
+   
+   	/**
+   	  *  Sets all registers to values obtained from copyValues().  Observers of each
+   	  *  register that changes are notified of the WRITE, but no back-step is recorded.
+   	  *   @param saved array of register values returned by copyValues()
+   	  **/
+   	  
+       public static void restoreValues(int[] saved){
+         Register[] registers = registers();
+         for (int i = 0; i < registers.length; i++) {
+            if (registers[i].getValueNoNotify() != saved[i]) {
+               registers[i].setValue(saved[i]);
+            }
+         }
+      }
       
       /**
    	 *  Each individual register is a separate object and Observable.  This handy method
    	 *  will add the given Observer to each one.  
    	 */
        public static void addRegistersObserver(Observer observer) {
+         Register[] registers = registers();
          for (int i=0; i<registers.length; i++) {
             registers[i].addObserver(observer);
          }
@@ -207,6 +264,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  will delete the given Observer from each one.  
    	 */
        public static void deleteRegistersObserver(Observer observer) {
+         Register[] registers = registers();
          for (int i=0; i<registers.length; i++) {
             registers[i].deleteObserver(observer);
          }
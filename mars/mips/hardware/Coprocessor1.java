@@ -1,6 +1,7 @@
    package mars.mips.hardware;
    import mars.util.*;
    import mars.Globals;
+   import mars.simulator.MachineContext;
    import java.util.*;
 
 /*
@@ -32,7 +33,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 
 /**
-  *  Represents Coprocessor 1, the Floating Point Unit (FPU)
+  *  Represents Coprocessor 1, the Floating Point Unit (FPU).  The static methods work
+  *  on the registers of the MachineContext bound to the calling thread; an instance
+  *  holds the registers of one context.
   *   @author 	Pete Sanderson
   *   @version July 2005
   **/
@@ -48,33 +51,65 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 // storing into registers, and reassembled upon retrieval.
 
     public  class Coprocessor1 {
-      private static Register [] registers = 
-          { new Register("$f0", 0, 0),  new Register("$f1", 1, 0),
-         	new Register("$f2", 2, 0),  new Register("$f3", 3, 0),
-         	new Register("$f4", 4, 0),  new Register("$f5", 5, 0),
-         	new Register("$f6", 6, 0),  new Register("$f7", 7, 0),
-         	new Register("$f8", 8, 0),  new Register("$f9", 9, 0),
-         	new Register("$f10", 10, 0),new Register("$f11", 11, 0), 
-         	new Register("$f12", 12, 0),new Register("$f13", 13, 0),
-         	new Register("$f14", 14, 0),new Register("$f15", 15, 0),
-         	new Register("$f16", 16, 0),new Register("$f17", 17, 0),
-         	new Register("$f18", 18, 0),new Register("$f19", 19, 0),
-         	new Register("$f20", 20, 0),new Register("$f21", 21, 0),
-         	new Register("$f22", 22, 0),new Register("$f23", 23, 0),
-         	new Register("$f24", 24, 0),new Register("$f25", 25, 0),
-         	new Register("$f26", 26, 0),new Register("$f27", 27, 0),
-         	new Register("$f28", 28, 0),new Register("$f29", 29, 0),
-         	new Register("$f30", 30, 0),new Register("$f31", 31, 0)
+      private static final int CONDITION = 32;
+   	
+      // Values of $f0-$f31 indexed by register number, followed by the condition
+      // flags.  The Register objects below are views onto this array for the GUI,
+      // tools and observers; updateRegister() and getValue() index it directly.
+      private final int [] values = new int[CONDITION + 1];
+   	
+      private final Register [] registers = 
+          { view("$f0", 0, 0),  view("$f1", 1, 0),
+         	view("$f2", 2, 0),  view("$f3", 3, 0),
+         	view("$f4", 4, 0),  view("$f5", 5, 0),
+         	view("$f6", 6, 0),  view("$f7", 7, 0),
+         	view("$f8", 8, 0),  view("$f9", 9, 0),
+         	view("$f10", 10, 0),view("$f11", 11, 0), 
+         	view("$f12", 12, 0),view("$f13", 13, 0),
+         	view("$f14", 14, 0),view("$f15", 15, 0),
+         	view("$f16", 16, 0),view("$f17", 17, 0),
+         	view("$f18", 18, 0),view("$f19", 19, 0),
+         	view("$f20", 20, 0),view("$f21", 21, 0),
+         	view("$f22", 22, 0),view("$f23", 23, 0),
+         	view("$f24", 24, 0),view("$f25", 25, 0),
+         	view("$f26", 26, 0),view("$f27", 27, 0),
+         	view("$f28", 28, 0),view("$f29", 29, 0),
+         	view("$f30", 30, 0),view("$f31", 31, 0)
            };
    	// The 8 condition flags will be stored in bits 0-7 for flags 0-7.
-      private static Register condition = new Register("cf",32, 0);	 
+      private final Register condition = view("cf", CONDITION, 0);	 
       private static int numConditionFlags = 8;
    	
+   	/**
+   	  *  Creates the FPU registers of a new machine.  Used by MachineContext; everything
+   	  *  else should use the static methods.
+   	  **/
+   	  
+       public Coprocessor1(){
+      }
+   
+   	/**
+   	  *  Builds the Register object for one register as a view onto values[num].
+   	  **/
+   	  
+       private Register view(String name, int num, int val){
+         return new Register(name, num, val, values, num);
+      }
+   
+   	/**
+   	  *  Returns the FPU registers of the MachineContext bound to the calling thread.
+   	  **/
+   	  
+       private static Coprocessor1 fpu(){
+         return MachineContext.current().getCoprocessor1();
+      }
+   
    	/**
    	  *  Method for displaying the register values for debugging.
    	  **/	 
    		 
        public static void showRegisters(){
+         Register[] registers = fpu().registers;
          for (int i=0; i< registers.length; i++){
           
             System.out.println("Name: " + registers[i].getName());
@@ -102,6 +137,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	  
        public static void setRegisterToFloat(int reg, float val){
+         Register[] registers = fpu().registers;
          if(reg >= 0 && reg < registers.length) {
             registers[reg].setValue(Float.floatToRawIntBits(val));
          }
@@ -127,6 +163,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	  
        public static void setRegisterToInt(int reg, int val){
+         Register[] registers = fpu().registers;
          if(reg >= 0 && reg < registers.length) {
             registers[reg].setValue(val);
          }
@@ -144,6 +181,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
        public static void setRegisterPairToDouble(int reg, double val) 
                                     throws InvalidRegisterAccessException {
+         Register[] registers = fpu().registers;
          if (reg % 2 != 0) {
             throw new InvalidRegisterAccessException();
          } 
@@ -179,6 +217,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
        public static void setRegisterPairToLong(int reg, long val) 
                                     throws InvalidRegisterAccessException {
+         Register[] registers = fpu().registers;
          if (reg % 2 != 0) {
             throw new InvalidRegisterAccessException();
          } 
@@ -210,6 +249,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static float getFloatFromRegister(int reg){
+         Register[] registers = fpu().registers;
          float result = 0F;
          if(reg >= 0 && reg < registers.length) {
             result = Float.intBitsToFloat(registers[reg].getValue());
@@ -236,6 +276,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static int getIntFromRegister(int reg){
+         Register[] registers = fpu().registers;
          int result = 0;
          if(reg >= 0 && reg < registers.length) {
             result = registers[reg].getValue();
@@ -264,6 +305,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
        public static double getDoubleFromRegisterPair(int reg) 
                                     throws InvalidRegisterAccessException {
+         Register[] registers = fpu().registers;
          double result = 0.0;
          if (reg % 2 != 0) {
             throw new InvalidRegisterAccessException();
@@ -296,6 +338,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
        public static long getLongFromRegisterPair(int reg) 
                                     throws InvalidRegisterAccessException {
+         Register[] registers = fpu().registers;
          double result = 0.0;
          if (reg % 2 != 0) {
             throw new InvalidRegisterAccessException();
@@ -326,16 +369,18 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	  
        public static int updateRegister(int num, int val){
-         int old = 0;
-         for (int i=0; i< registers.length; i++){
-            if(registers[i].getNumber()== num) {
-               old = (Globals.getSettings().getBackSteppingEnabled())
-                        ? Globals.program.getBackStepper().addCoprocessor1Restore(num,registers[i].setValue(val))
-                  		: registers[i].setValue(val);
-               break;
-            }
+         Coprocessor1 fpu = fpu();
+         int[] values = fpu.values;
+         Register[] registers = fpu.registers;
+         if(num < 0 || num >= registers.length){
+            return 0;
          }
-         return old;
+         int old = values[num];
+         values[num] = val;
+         registers[num].notifyAnyObservers(AccessNotice.WRITE);
+         return (Globals.getSettings().getBackSteppingEnabled())
+               ? MachineContext.current().getProgram().getBackStepper().addCoprocessor1Restore(num,old)
+               : old;
       }
       
       /**
@@ -347,7 +392,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static int getValue(int num){
-         return registers[num].getValue();
+         Coprocessor1 fpu = fpu();
+         int[] values = fpu.values;
+         Register[] registers = fpu.registers;
+         registers[num].notifyAnyObservers(AccessNotice.READ);
+         return values[num];
       }
       		
       	/**
@@ -357,6 +406,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    		  **/	
       		
        public static int getRegisterNumber(String n){
+         Register[] registers = fpu().registers;
          int j=-1;
          for (int i=0; i< registers.length; i++){
             if(registers[i].getName().equals(n)) {
@@ -373,7 +423,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static Register[] getRegisters(){
-         return registers;
+         return fpu().registers;
       }
       
    	/**
@@ -383,18 +433,15 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static Register getRegister(String rName) {
-         Register reg = null;
+         Register[] registers = fpu().registers;
          if (rName.charAt(0) == '$' && rName.length() > 1 && rName.charAt(1) == 'f') {
-            try {
-                   // check for register number 0-31.
-               reg = registers[Binary.stringToInt(rName.substring(2))];    // KENV 1/6/05
+            // check for register number 0-31.
+            long number = Binary.decodeInteger(rName, 2);    // KENV 1/6/05
+            if (number >= 0 && number < registers.length) {
+               return registers[(int) number];
             }
-                catch (Exception e) {
-                   // handles both NumberFormat and ArrayIndexOutOfBounds
-                  reg = null; 
-               }
          }
-         return reg;
+         return null;
       }
    
    	
@@ -403,10 +450,42 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static void resetRegisters(){
+         Register[] registers = fpu().registers;
          for(int i=0; i < registers.length; i++)
             registers[i].resetValue();
          clearConditionFlags();
       }
+   
+   	/**
+   	  *  Returns a copy of the values of all FPU registers and the condition flags,
+   	  *  for a later call to restoreValues().
+   	  *   @return array of register values
+   	  **/
+   	  
+       public static int[] copyValues(){
+         int[] values = fpu().values;
+         return values.clone();
+      }
+   
+   	/**
+   	  *  Sets all FPU registers and the condition flags to values obtained from
+   	  *  copyValues().  Observers of each register that changes are notified of the
+   	  *  WRITE, but no back-step is recorded.
+   	  *   @param saved array of register values returned by copyValues()
+   	  **/
+   	  
+       public static void restoreValues(int[] saved){
+         Coprocessor1 fpu = fpu();
+         int[] values = fpu.values;
+         Register[] registers = fpu.registers;
+         Register condition = fpu.condition;
+         for (int i = 0; i < values.length; i++) {
+            if (values[i] != saved[i]) {
+               values[i] = saved[i];
+               ((i == CONDITION) ? condition : registers[i]).notifyAnyObservers(AccessNotice.WRITE);
+            }
+         }
+      }
       
    
       /**
@@ -414,6 +493,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  will add the given Observer to each one.  
    	 */
        public static void addRegistersObserver(Observer observer) {
+         Register[] registers = fpu().registers;
          for (int i=0; i<registers.length; i++) {
             registers[i].addObserver(observer);
          }
@@ -425,6 +505,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  will delete the given Observer from each one.  
    	 */
        public static void deleteRegistersObserver(Observer observer) {
+         Register[] registers = fpu().registers;
          for (int i=0; i<registers.length; i++) {
             registers[i].deleteObserver(observer);
          }
@@ -437,16 +518,17 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  @return previous flag setting (0 or 1)
    	 */
        public static int setConditionFlag(int flag) {
+         Register condition = fpu().condition;
          int old = 0;
          if (flag >= 0 && flag < numConditionFlags) {
             old = getConditionFlag(flag);
             condition.setValue(Binary.setBit(condition.getValue(),flag));
             if (Globals.getSettings().getBackSteppingEnabled())
                if (old==0) {
-                  Globals.program.getBackStepper().addConditionFlagClear(flag);
+                  MachineContext.current().getProgram().getBackStepper().addConditionFlagClear(flag);
                } 
                else {
-                  Globals.program.getBackStepper().addConditionFlagSet(flag);
+                  MachineContext.current().getProgram().getBackStepper().addConditionFlagSet(flag);
                }
          }
          return old;
@@ -459,16 +541,17 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  @return previous flag setting (0 or 1)
    	 */
        public static int clearConditionFlag(int flag) {
+         Register condition = fpu().condition;
          int old = 0;
          if (flag >= 0 && flag < numConditionFlags) {
             old = getConditionFlag(flag);
             condition.setValue(Binary.clearBit(condition.getValue(),flag));
             if (Globals.getSettings().getBackSteppingEnabled())
                if (old==0) {
-                  Globals.program.getBackStepper().addConditionFlagClear(flag);
+                  MachineContext.current().getProgram().getBackStepper().addConditionFlagClear(flag);
                } 
                else {
-                  Globals.program.getBackStepper().addConditionFlagSet(flag);
+                  MachineContext.current().getProgram().getBackStepper().addConditionFlagSet(flag);
                }
          }
          return old;
@@ -482,6 +565,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  @return 0 if condition is false, 1 if condition is true
    	 */
        public static int getConditionFlag(int flag) {
+         Register condition = fpu().condition;
          if (flag < 0 || flag >= numConditionFlags) 
             flag = 0;
          return Binary.bitValue(condition.getValue(), flag);
@@ -494,6 +578,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  @return array of int condition flags
    	 */
        public static int getConditionFlags() {
+         Register condition = fpu().condition;
          return condition.getValue();
       }	
    	
@@ -503,6 +588,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *
    	 */
        public static void clearConditionFlags() {
+         Register condition = fpu().condition;
          condition.setValue(0);  // sets all 32 bits to 0.
       }		
    	
@@ -511,6 +597,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *
    	 */
        public static void setConditionFlags() {
+         Register condition = fpu().condition;
          condition.setValue(-1);  // sets all 32 bits to 1.
       }	
    	
@@ -89,7 +89,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	/** Current setting for endian (default LITTLE_ENDIAN) **/
       private static boolean byteOrder = LITTLE_ENDIAN;
    	
-      public static int heapAddress;
+   	/** Next address to be allocated from the heap.  Each Memory has its own. **/
+      public int heapAddress;
    
     // Memory will maintain a collection of observables.  Each one is associated
     // with a specific memory address or address range, and each will have at least
@@ -102,8 +103,27 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     // key for insertion into the tree would be based on Comparable using both low 
     // and high end of address range, but retrieval from the tree has to be based
     // on target address being ANYWHERE IN THE RANGE (not an exact key match).
+    //
+    // Instead the collection is indexed by page: observedPages has one bit per 4K page
+    // of the address space, set if any observable's range touches that page, so an
+    // access to an unwatched page costs one bit test.  Otherwise the accessed address
+    // is matched against observableIndex, an array copy of the observables that still
+    // have an observer, in registration order.  Both are rebuilt whenever an observer
+    // is added or removed.
       
       Collection observables = getNewMemoryObserversCollection();
+      private volatile MemoryObservable[] observableIndex = new MemoryObservable[0];
+      private volatile long[] observedPages = new long[OBSERVED_PAGES_LENGTH];
+      private static final int OBSERVED_PAGES_LENGTH = (1 << (32 - MemoryPageTable.PAGE_SHIFT)) / 64;
+      // Set when an observer is registered and cleared when the last one is removed, so
+      // that notifyAnyObservers() can return at once when nobody is watching memory
+      // (e.g. headless runs).
+      private volatile boolean observersPresent = false;
+      // Notice refilled for each access and passed to observers that do not keep
+      // notices (TransientNoticeObserver).  Only the simulator thread reuses it, while
+      // it runs an execution quantum; other threads get a new notice as before.
+      private final MemoryAccessNotice transientNotice = new MemoryAccessNotice(AccessNotice.READ, 0, 0, 0);
+      private boolean transientNoticeInUse = false;
    
     // The data segment is allocated in blocks of 1024 ints (4096 bytes).  Each block is
     // referenced by a "block table" entry, and the table has 1024 entries.  The capacity
@@ -174,6 +194,30 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       private static final int TEXT_BLOCK_TABLE_LENGTH = 1024; // Each entry of table points to a block.
       private ProgramStatement[][] textBlockTable;
       private ProgramStatement[][] kernelTextBlockTable;
+   
+    // Snapshots (see takeSnapshot) share blocks with the tables above until either side
+    // changes them.  Every int block has one extra word at the end holding the generation
+    // in which it was allocated or last copied, and text blocks keep theirs in parallel
+    // arrays.  Taking or restoring a snapshot starts a new generation, so a block from an
+    // earlier one may be referenced by a snapshot and is copied before its first write.
+   
+      private int generation = 0;
+      private int clearCount = 0; // identifies the tables a snapshot was taken from
+      private int[] textBlockGenerations;
+      private int[] kernelTextBlockGenerations;
+   
+    // Optionally, the data segment, stack, kernel data segment and MMIO area are all held
+    // instead in a single page table over the whole address space, which finds the word
+    // for an address without the chain of segment range checks and block arithmetic
+    // used for the tables above.  The table is null when the block tables are in use.
+    // Text segments are stored in their block tables either way.
+   
+      private MemoryPageTable pageTable;
+      private boolean pageTableEnabled = false;
+   
+    // Predecoded copy of the user text segment used by the simulator fetch step.  It is
+    // rebuilt after each assemble and its slots are cleared by setStatement().
+      private DecodedInstructionCache decodedInstructionCache = new DecodedInstructionCache();
     
     // Set "top" address boundary to go with each "base" address.  This determines permissable
     // address range for user program.  Currently limit is 4MB, or 1024 * 1024 * 4 bytes based
@@ -191,27 +235,26 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       														  BLOCK_LENGTH_WORDS * BLOCK_TABLE_LENGTH * WORD_LENGTH_BYTES;
       public static int memoryMapLimitAddress   = memoryMapBaseAddress + 
                                  					  BLOCK_LENGTH_WORDS * MMIO_TABLE_LENGTH * WORD_LENGTH_BYTES;  
-    // This will be a Singleton class, only one instance is ever created.  Since I know the 
-    // Memory object is always needed, I'll go ahead and create it at the time of class loading.
-    // (greedy rather than lazy instantiation).  The constructor is private and getInstance()
-    // always returns this instance.
-    
-      private static Memory uniqueMemoryInstance = new Memory(); 
-   	
+    // There is one Memory per MachineContext.  The one for the default context is
+    // created when that context is, and is the one in Globals.memory.
     
-    /*
-     * Private constructor for Memory.  Separate data structures for text and data segments. 
+    /**
+     * Constructor for Memory.  Separate data structures for text and data segments.
+     * Each MachineContext creates its own, and the Assembler creates scratch ones to
+     * parse files in on other threads; everything else should use getInstance().
      **/
-       private Memory() {
+       public Memory() {
          initialize();
       }
    
      /**
-      * Returns the unique Memory instance, which becomes in essence global.
+      * Returns the Memory of the MachineContext bound to the calling thread.  Unless
+   	* other contexts are in use, this is the Memory of the default context, which
+   	* becomes in essence global.
    	*/
    	
        public static Memory getInstance() {
-         return uniqueMemoryInstance;
+         return MachineContext.current().getMemory();
       }
    	
    	/**
@@ -221,6 +264,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public void clear() {
          setConfiguration();
          initialize(); 		
+         System.gc(); // call garbage collector on any Table memory just deallocated. 	  
       }
    
      /**
@@ -285,14 +329,18 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    
    
        private void initialize() {
+         clearCount++;
          heapAddress = heapBaseAddress;
          textBlockTable  = new ProgramStatement[TEXT_BLOCK_TABLE_LENGTH][];
          dataBlockTable  = new int[BLOCK_TABLE_LENGTH][]; // array of null int[] references
          kernelTextBlockTable  = new ProgramStatement[TEXT_BLOCK_TABLE_LENGTH][];
          kernelDataBlockTable  = new int[BLOCK_TABLE_LENGTH][];      
+         textBlockGenerations = new int[TEXT_BLOCK_TABLE_LENGTH];
+         kernelTextBlockGenerations = new int[TEXT_BLOCK_TABLE_LENGTH];
          stackBlockTable = new int[BLOCK_TABLE_LENGTH][];
          memoryMapBlockTable = new int[MMIO_TABLE_LENGTH][];
-         System.gc(); // call garbage collector on any Table memory just deallocated. 	  
+         pageTable = (pageTableEnabled) ? new MemoryPageTable(byteOrder) : null;
+         decodedInstructionCache.clear();
       }  
      
    	/**
@@ -316,6 +364,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             throw new IllegalArgumentException("request ("+numBytes+") exceeds available heap storage");
          }
          heapAddress = newHeapAddress;
+         if (Globals.getSettings().getBackSteppingEnabled()) {
+            MachineContext.current().getProgram().getBackStepper().addHeapRestore(result);
+         }
          return result;
       }
    
@@ -327,6 +378,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	*/
        public void setByteOrder(boolean order) {
          byteOrder = order;
+         if (pageTable != null) {
+            pageTable.setByteOrder(order);
+         }
       }
    	
      /**
@@ -337,6 +391,84 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public boolean getByteOrder() {
          return byteOrder;
       }
+   
+     /**
+      * Choose how the data segment, stack, kernel data segment and memory-mapped I/O
+      * area are stored: in a single page table over the whole address space, or in
+      * a separate block table for each (the default).  Both behave identically.
+      * The choice takes effect the next time memory is cleared, which happens at
+      * the start of every assembly; current contents are not carried over.
+   	*
+   	* @param enabled true to use the page table, false for the block tables
+   	*/
+       public void setPageTableEnabled(boolean enabled) {
+         pageTableEnabled = enabled;
+      }
+   	
+     /**
+      * Determine whether memory is being held in a page table.
+   	*
+   	* @return true if the page table is in use, false if the block tables are
+   	* @see #setPageTableEnabled(boolean)
+   	*/
+       public boolean isPageTableEnabled() {
+         return pageTable != null;
+      }
+
+     /**
+      * Count the 4K-byte pages allocated so far in each segment.  Pages are allocated
+      * when first written.  Reads the tables without locking, so that it can be sampled
+      * from another thread while a program runs; see SimulationMetrics.
+   	*
+   	* @return page counts keyed by segment: text, data, stack, kernel text, kernel data
+   	* and mmio, in that order
+   	*/
+       public Map<String, Integer> getAllocatedPageCounts() {
+         int data = 0, stack = 0, kernelData = 0, mmio = 0;
+         MemoryPageTable table = pageTable;
+         if (table != null) {
+            int[] numbers = table.allocatedPageNumbers();
+            for (int i = 0; i < numbers.length; i++) {
+               int address = numbers[i] << MemoryPageTable.PAGE_SHIFT;
+               if (inDataSegment(address)) {
+                  data++;
+               }
+               else if (address > stackLimitAddress && address <= stackBaseAddress) {
+                  stack++;
+               }
+               else if (inKernelDataSegment(address)) {
+                  kernelData++;
+               }
+               else {
+                  mmio++;
+               }
+            }
+         }
+         else {
+            data = countAllocated(dataBlockTable);
+            stack = countAllocated(stackBlockTable);
+            kernelData = countAllocated(kernelDataBlockTable);
+            mmio = countAllocated(memoryMapBlockTable);
+         }
+         LinkedHashMap<String, Integer> counts = new LinkedHashMap<String, Integer>();
+         counts.put("text", countAllocated(textBlockTable));
+         counts.put("data", data);
+         counts.put("stack", stack);
+         counts.put("kernel text", countAllocated(kernelTextBlockTable));
+         counts.put("kernel data", kernelData);
+         counts.put("mmio", mmio);
+         return counts;
+      }
+
+       private static int countAllocated(Object[] blockTable) {
+         int count = 0;
+         for (int i = 0; i < blockTable.length; i++) {
+            if (blockTable[i] != null) {
+               count++;
+            }
+         }
+         return count;
+      }
    	
    	
    /*  *******************************  THE SETTER METHODS  ******************************/
@@ -356,10 +488,22 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     
    // Allocates blocks if necessary.
        public int set(int address, int value, int length) throws AddressErrorException {
+         return set(address, value, length, true);
+      }
+   
+   	// Does the real work, but includes option to NOT notify observers.
+       private int set(int address, int value, int length, boolean notify) throws AddressErrorException {
          int oldValue = 0;
+         if (notify) {
+            noteMemoryMappedAccess(address);
+         }
          if (Globals.debug) System.out.println("memory["+address+"] set to "+value+"("+length+" bytes)");
          int relativeByteAddress;
-         if (inDataSegment(address)) {
+         if (pageTable != null && pageTable.segment(address) != MemoryPageTable.OTHER) {
+           // data segment, stack, kernel data or memory mapped I/O, held in the page table.
+            oldValue = storeBytesInPages(address, length, value);
+         } 
+         else if (inDataSegment(address)) {
            // in data segment.  Will write one byte at a time, w/o regard to boundaries.
             relativeByteAddress = address - dataSegmentBaseAddress; // relative to data segment start, in bytes
             oldValue = storeBytesInTable(dataBlockTable, relativeByteAddress, length, value);
@@ -408,7 +552,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             throw new AddressErrorException("address out of range ",
                Exceptions.ADDRESS_EXCEPTION_STORE, address);
          }
-         notifyAnyObservers(AccessNotice.WRITE, address, length, value);
+         if (notify) notifyAnyObservers(AccessNotice.WRITE, address, length, value);
          return oldValue;
       }
    	
@@ -429,7 +573,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             throw new AddressErrorException("store address not aligned on word boundary ",
                Exceptions.ADDRESS_EXCEPTION_STORE, address);
          }
-         if (inDataSegment(address)) {
+         noteMemoryMappedAccess(address);
+         if (pageTable != null && pageTable.segment(address) != MemoryPageTable.OTHER) {
+           // data segment, stack, kernel data or memory mapped I/O, held in the page table.
+            oldValue = storeWordInPages(address, value);
+         } 
+         else if (inDataSegment(address)) {
            // in data segment
             relative = (address - dataSegmentBaseAddress) >> 2; // convert byte address to words
             oldValue = storeWordInTable(dataBlockTable, relative, value);
@@ -479,7 +628,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          }
          notifyAnyObservers(AccessNotice.WRITE, address, WORD_LENGTH_BYTES, value);
          if (Globals.getSettings().getBackSteppingEnabled()) {
-            Globals.program.getBackStepper().addMemoryRestoreRawWord(address,oldValue);
+            MachineContext.current().getProgram().getBackStepper().addMemoryRestoreRawWord(address,oldValue);
          }
          return oldValue;
       }
@@ -501,7 +650,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                Exceptions.ADDRESS_EXCEPTION_STORE,address);
          }
          return (Globals.getSettings().getBackSteppingEnabled())
-            ? Globals.program.getBackStepper().addMemoryRestoreWord(address,set(address, value, WORD_LENGTH_BYTES))
+            ? MachineContext.current().getProgram().getBackStepper().addMemoryRestoreWord(address,set(address, value, WORD_LENGTH_BYTES))
             : set(address, value, WORD_LENGTH_BYTES);
       }
    
@@ -522,7 +671,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                Exceptions.ADDRESS_EXCEPTION_STORE, address);
          }
          return (Globals.getSettings().getBackSteppingEnabled())
-            ? Globals.program.getBackStepper().addMemoryRestoreHalf(address,set(address,value,2))
+            ? MachineContext.current().getProgram().getBackStepper().addMemoryRestoreHalf(address,set(address,value,2))
             : set(address, value, 2);
       }
    
@@ -537,7 +686,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
      
        public int setByte(int address, int value) throws AddressErrorException {
          return (Globals.getSettings().getBackSteppingEnabled())
-            ? Globals.program.getBackStepper().addMemoryRestoreByte(address,set(address,value,1))
+            ? MachineContext.current().getProgram().getBackStepper().addMemoryRestoreByte(address,set(address,value,1))
             : set(address, value, 1);
       }
    
@@ -578,10 +727,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          }
          if (Globals.debug) System.out.println("memory["+address+"] set to "+statement.getBinaryStatement());
          if (inTextSegment(address)) {
-            storeProgramStatement(address, statement, textBaseAddress, textBlockTable);
+            storeProgramStatement(address, statement, textBaseAddress, textBlockTable, textBlockGenerations);
+            decodedInstructionCache.invalidate(address);
          } 
          else {
-            storeProgramStatement(address, statement, kernelTextBaseAddress, kernelTextBlockTable);
+            storeProgramStatement(address, statement, kernelTextBaseAddress, kernelTextBlockTable, kernelTextBlockGenerations);
          }
       }
    	
@@ -607,7 +757,14 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        private int get(int address, int length, boolean notify) throws AddressErrorException {
          int value = 0;
          int relativeByteAddress;
-         if (inDataSegment(address)) {
+         if (notify) {
+            noteMemoryMappedAccess(address);
+         }
+         if (pageTable != null && pageTable.segment(address) != MemoryPageTable.OTHER) {
+           // data segment, stack, kernel data or memory mapped I/O, held in the page table.
+            value = fetchBytesFromPages(address, length);
+         } 
+         else if (inDataSegment(address)) {
            // in data segment.  Will read one byte at a time, w/o regard to boundaries.
             relativeByteAddress = address - dataSegmentBaseAddress; // relative to data segment start, in bytes
             value = fetchBytesFromTable(dataBlockTable, relativeByteAddress, length);
@@ -680,7 +837,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             throw new AddressErrorException("address for fetch not aligned on word boundary",
                Exceptions.ADDRESS_EXCEPTION_LOAD, address);
          }
-         if (inDataSegment(address)) {
+         noteMemoryMappedAccess(address);
+         if (pageTable != null && pageTable.segment(address) != MemoryPageTable.OTHER) {
+           // data segment, stack, kernel data or memory mapped I/O, held in the page table.
+            value = fetchWordFromPages(address);
+         } 
+         else if (inDataSegment(address)) {
            // in data segment
             relative = (address - dataSegmentBaseAddress) >> 2; // convert byte address to words
             value = fetchWordFromTable(dataBlockTable, relative);
@@ -757,7 +919,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             throw new AddressErrorException("address for fetch not aligned on word boundary",
                   Exceptions.ADDRESS_EXCEPTION_LOAD, address);
          }
-         if (inDataSegment(address)) {
+         if (pageTable != null && pageTable.segment(address) == MemoryPageTable.DATA) {
+              // data segment, stack or kernel data, held in the page table.  MMIO is
+              // not readable here, so it is left to the range checks below.
+            value = fetchWordOrNullFromPages(address);
+         } 
+         else if (inDataSegment(address)) {
               // in data segment
             relative = (address - dataSegmentBaseAddress) >> 2; // convert byte address to words
             value = fetchWordOrNullFromTable(dataBlockTable, relative);
@@ -951,6 +1118,357 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       }
    		
    		
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Returns the predecoded instruction cache for the user text segment.  The simulator
+    * fetches from it before falling back to getStatement().
+    * @return the DecodedInstructionCache for this memory
+    * @see DecodedInstructionCache
+    **/
+   
+       public DecodedInstructionCache getDecodedInstructionCache() {
+         return decodedInstructionCache;
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Captures the current contents of memory, including the heap address, for a
+    * later restoreSnapshot().  Memory is not copied: the snapshot shares the 4K
+    * blocks in use and a block is copied only when it is next written, so the cost
+    * is proportional to the number of blocks rather than their contents.
+    * @return a MemorySnapshot of the current contents
+    **/
+   
+       public synchronized MemorySnapshot takeSnapshot() {
+         MemorySnapshot snapshot = new MemorySnapshot();
+         snapshot.textBlockTable = textBlockTable.clone();
+         snapshot.kernelTextBlockTable = kernelTextBlockTable.clone();
+         snapshot.dataBlockTable = dataBlockTable.clone();
+         snapshot.kernelDataBlockTable = kernelDataBlockTable.clone();
+         snapshot.stackBlockTable = stackBlockTable.clone();
+         snapshot.memoryMapBlockTable = memoryMapBlockTable.clone();
+         if (pageTable != null) {
+            pageTable.snapshot(snapshot);
+         }
+         snapshot.heapAddress = heapAddress;
+         snapshot.clearCount = clearCount;
+         generation++;
+         return snapshot;
+      }
+   
+   /**
+    * Determine whether a snapshot can be restored, that is, whether it was taken
+    * since memory was last cleared.
+    * @param snapshot a MemorySnapshot returned by takeSnapshot()
+    * @return true if restoreSnapshot() may be given this snapshot
+    **/
+   
+       public synchronized boolean canRestore(MemorySnapshot snapshot) {
+         return snapshot.clearCount == clearCount;
+      }
+   
+   /**
+    * Returns memory, including the heap address, to the contents captured by
+    * takeSnapshot().  The snapshot is unchanged and may be restored again.  Observers
+    * are not notified and no back-steps are recorded.  Cached decodings of any text
+    * segment statement that differs are discarded.
+    * @param snapshot a MemorySnapshot for which canRestore() is true
+    **/
+   
+       public synchronized void restoreSnapshot(MemorySnapshot snapshot) {
+         invalidateChangedStatements(snapshot.textBlockTable);
+         textBlockTable = snapshot.textBlockTable.clone();
+         kernelTextBlockTable = snapshot.kernelTextBlockTable.clone();
+         dataBlockTable = snapshot.dataBlockTable.clone();
+         kernelDataBlockTable = snapshot.kernelDataBlockTable.clone();
+         stackBlockTable = snapshot.stackBlockTable.clone();
+         memoryMapBlockTable = snapshot.memoryMapBlockTable.clone();
+         if (pageTable != null && snapshot.pageNumbers != null) {
+            pageTable.restore(snapshot);
+         }
+         heapAddress = snapshot.heapAddress;
+         generation++;
+      }
+   
+   // Clears the decoded instruction cache slot of each user text segment address whose
+   // statement differs between the current text segment and the given one.  Blocks that
+   // are still shared hold the same statements and need not be compared.
+       private void invalidateChangedStatements(ProgramStatement[][] restored) {
+         for (int block = 0; block < TEXT_BLOCK_TABLE_LENGTH; block++) {
+            ProgramStatement[] current = textBlockTable[block];
+            ProgramStatement[] replacement = restored[block];
+            if (current != replacement) {
+               for (int offset = 0; offset < TEXT_BLOCK_LENGTH_WORDS; offset++) {
+                  ProgramStatement before = (current == null) ? null : current[offset];
+                  ProgramStatement after = (replacement == null) ? null : replacement[offset];
+                  if (before != after) {
+                     decodedInstructionCache.invalidate(textBaseAddress + 
+                        (block * TEXT_BLOCK_LENGTH_WORDS + offset) * WORD_LENGTH_BYTES);
+                  }
+               }
+            }
+         }
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Notify observers of an instruction fetch that was satisfied without calling 
+    * getStatement(), e.g. from the DecodedInstructionCache.  Observers receive the 
+    * same notice getStatement() would have sent them.
+    * @param address address of the fetched instruction
+    * @param statement the fetched statement
+    **/
+   
+       public void notifyStatementFetch(int address, ProgramStatement statement) {
+         notifyAnyObservers(AccessNotice.READ, address, Instruction.INSTRUCTION_LENGTH, statement.getBinaryStatement());
+      }
+   
+   /*****************************  THE BULK TRANSFER METHODS  ****************************/
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Copy a range of memory into an array of bytes.  The bytes are those getByte() 
+    * would return for each address in turn, but they are copied a block at a time 
+    * and observers are notified of them a word at a time, as by getWord().  The whole 
+    * range is checked before anything is copied.
+    *
+    * @param address Address of the first byte to read.
+    * @param buffer Array to receive the bytes.
+    * @param offset Index in buffer of the first byte.
+    * @param length Number of bytes to read.
+    * @throws AddressErrorException If any address in the range cannot be read.
+    **/
+       public void readBytes(int address, byte[] buffer, int offset, int length) throws AddressErrorException {
+         readRawBytes(address, buffer, offset, length);
+         notifyRangeObservers(AccessNotice.READ, address, buffer, offset, length);
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Copy a range of memory into an array of bytes, as readBytes() does, but without 
+    * notifying observers.  For a caller that may not use all of the bytes it reads, 
+    * such as a scan for a NULL terminator; it then reports the bytes it did use with 
+    * notifyBytesRead().
+    *
+    * @param address Address of the first byte to read.
+    * @param buffer Array to receive the bytes.
+    * @param offset Index in buffer of the first byte.
+    * @param length Number of bytes to read.
+    * @throws AddressErrorException If any address in the range cannot be read.
+    **/
+       public void readRawBytes(int address, byte[] buffer, int offset, int length) throws AddressErrorException {
+         checkArrayRange(buffer.length, offset, length);
+         if (length == 0) {
+            return;
+         }
+         if (Simulator.inExecutionQuantum()) {
+            transferBytes(address, buffer, offset, length, FETCH, null);
+         } 
+         else {
+            synchronized (this) {
+               transferBytes(address, buffer, offset, length, FETCH, null);
+            }
+         }
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Notify observers of bytes copied by readRawBytes(), with the notices readBytes() 
+    * would have sent for them.
+    *
+    * @param address Address of the first byte read.
+    * @param buffer Array holding the bytes.
+    * @param offset Index in buffer of the first byte.
+    * @param length Number of bytes read.
+    **/
+       public void notifyBytesRead(int address, byte[] buffer, int offset, int length) {
+         checkArrayRange(buffer.length, offset, length);
+         if (length > 0) {
+            notifyRangeObservers(AccessNotice.READ, address, buffer, offset, length);
+         }
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Copy an array of bytes into a range of memory.  Has the same effect as calling 
+    * setByte() for each address in turn, but copies a block at a time, notifies 
+    * observers a word at a time and records a single backstep for the range.  The 
+    * whole range is checked before anything is written.
+    *
+    * @param address Address of the first byte to write.
+    * @param buffer Array holding the bytes.
+    * @param offset Index in buffer of the first byte.
+    * @param length Number of bytes to write.
+    * @throws AddressErrorException If any address in the range cannot be written.
+    **/
+       public void writeBytes(int address, byte[] buffer, int offset, int length) throws AddressErrorException {
+         writeBytes(address, buffer, offset, length, Globals.getSettings().getBackSteppingEnabled());
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Copy an array of bytes into a range of memory without recording a backstep, as 
+    * set() does.  For setting up memory before a program runs; otherwise the same 
+    * as writeBytes().
+    *
+    * @param address Address of the first byte to write.
+    * @param buffer Array holding the bytes.
+    * @param offset Index in buffer of the first byte.
+    * @param length Number of bytes to write.
+    * @throws AddressErrorException If any address in the range cannot be written.
+    **/
+       public void storeBytes(int address, byte[] buffer, int offset, int length) throws AddressErrorException {
+         writeBytes(address, buffer, offset, length, false);
+      }
+   
+   	// Does the real work of writeBytes() and storeBytes().
+       private void writeBytes(int address, byte[] buffer, int offset, int length, boolean backStep) throws AddressErrorException {
+         checkArrayRange(buffer.length, offset, length);
+         if (length == 0) {
+            return;
+         }
+         byte[] previous = backStep ? new byte[length] : null;
+         if (Simulator.inExecutionQuantum()) {
+            transferBytes(address, buffer, offset, length, STORE, previous);
+         } 
+         else {
+            synchronized (this) {
+               transferBytes(address, buffer, offset, length, STORE, previous);
+            }
+         }
+         notifyRangeObservers(AccessNotice.WRITE, address, buffer, offset, length);
+         if (previous != null) {
+            MachineContext.current().getProgram().getBackStepper().addMemoryRestoreBytes(address, previous);
+         }
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Copy consecutive words of memory into an array.  Each word is the one getWord() 
+    * would return for its address, and observers get a notice for each word, as 
+    * from getWord().  Where memory holds its words in the 
+    * same order and byte order as the array, whole runs are copied with 
+    * System.arraycopy().  The whole range is checked before anything is copied.
+    *
+    * @param address Address of the first word to read.  Must be word-aligned.
+    * @param buffer Array to receive the words.
+    * @param offset Index in buffer of the first word.
+    * @param count Number of words to read.
+    * @throws AddressErrorException If address is not on word boundary or any address 
+    * in the range cannot be read.
+    **/
+       public void readWords(int address, int[] buffer, int offset, int count) throws AddressErrorException {
+         if (address % WORD_LENGTH_BYTES != 0) {
+            throw new AddressErrorException("fetch address not aligned on word boundary ",
+               Exceptions.ADDRESS_EXCEPTION_LOAD, address);
+         }
+         checkArrayRange(buffer.length, offset, count);
+         if (count == 0) {
+            return;
+         }
+         if (Simulator.inExecutionQuantum()) {
+            transferWords(address, buffer, offset, count, FETCH, null);
+         } 
+         else {
+            synchronized (this) {
+               transferWords(address, buffer, offset, count, FETCH, null);
+            }
+         }
+         notifyRangeObservers(AccessNotice.READ, address, buffer, offset, count);
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Copy an array of words into consecutive words of memory.  Has the same effect as 
+    * calling setWord() for each address in turn, but copies a block at a time and 
+    * records a single backstep for the range.  Observers get a notice for each word.  
+    * The whole range is checked before anything is written.
+    *
+    * @param address Address of the first word to write.  Must be word-aligned.
+    * @param buffer Array holding the words.
+    * @param offset Index in buffer of the first word.
+    * @param count Number of words to write.
+    * @throws AddressErrorException If address is not on word boundary or any address 
+    * in the range cannot be written.
+    **/
+       public void writeWords(int address, int[] buffer, int offset, int count) throws AddressErrorException {
+         if (address % WORD_LENGTH_BYTES != 0) {
+            throw new AddressErrorException("store address not aligned on word boundary ",
+               Exceptions.ADDRESS_EXCEPTION_STORE, address);
+         }
+         checkArrayRange(buffer.length, offset, count);
+         if (count == 0) {
+            return;
+         }
+         int[] previous = Globals.getSettings().getBackSteppingEnabled() ? new int[count] : null;
+         if (Simulator.inExecutionQuantum()) {
+            transferWords(address, buffer, offset, count, STORE, previous);
+         } 
+         else {
+            synchronized (this) {
+               transferWords(address, buffer, offset, count, STORE, previous);
+            }
+         }
+         notifyRangeObservers(AccessNotice.WRITE, address, buffer, offset, count);
+         if (previous != null) {
+            MachineContext.current().getProgram().getBackStepper().addMemoryRestoreWords(address, previous);
+         }
+      }
+   
+   ////////////////////////////////////////////////////////////////////////////////
+   /**
+    * Copy consecutive raw words of memory into an array, for the dump feature.  Each 
+    * word is the one getRawWordOrNull() would return for its address, and copying 
+    * stops at the first word for which it would return null.  As with that method, 
+    * observers are not notified.  Runs of words in the same block or page are copied 
+    * with System.arraycopy().
+    *
+    * @param address Address of the first word to read.  Must be word-aligned.
+    * @param buffer Array to receive the words.
+    * @param offset Index in buffer of the first word.
+    * @param count Most words to read.
+    * @return Number of words read, less than count if a null word was reached.
+    * @throws AddressErrorException If address is not on word boundary or an address 
+    * in the range is outside the segments getRawWordOrNull() reads.
+    **/
+       public synchronized int readRawWords(int address, int[] buffer, int offset, int count) throws AddressErrorException {
+         if (address % WORD_LENGTH_BYTES != 0) {
+            throw new AddressErrorException("address for fetch not aligned on word boundary",
+                  Exceptions.ADDRESS_EXCEPTION_LOAD, address);
+         }
+         checkArrayRange(buffer.length, offset, count);
+         int done = 0;
+         while (done < count) {
+            int current = address + done * WORD_LENGTH_BYTES;
+            int i = offset + done;
+            // Memory mapped I/O and text are left to getRawWordOrNull().
+            WordRun run = (current >= memoryMapBaseAddress && current < memoryMapLimitAddress) 
+               ? null : findRun(current, count - done, false);
+            if (run == null) {
+               Integer value = getRawWordOrNull(current);
+               if (value == null) {
+                  break;
+               }
+               buffer[i] = value.intValue();
+               done++;
+            } 
+            else if (run.words == null) {
+               break;
+            } 
+            else if (run.step == 1) {
+               System.arraycopy(run.words, run.index, buffer, i, run.count);
+               done += run.count;
+            } 
+            else {
+               for (int n = 0, index = run.index; n < run.count; n++, index += run.step) {
+                  buffer[i + n] = run.words[index];
+               }
+               done += run.count;
+            }
+         }
+         return done;
+      }
+   
    /*********************************  THE UTILITIES  *************************************/ 
    
    /**
@@ -1119,6 +1637,16 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                Exceptions.ADDRESS_EXCEPTION_LOAD, startAddr);
          }
          observables.add(new MemoryObservable(obs, startAddr, endAddr));
+         indexObservers();
+      }
+   
+      /**
+   	 *  Determine whether any observer may be registered.  Unlike countObservers(),
+   	 *  this does not synchronize, so it is cheap enough to ask once per instruction.
+   	 *  @return false if no observer has been added since the last deleteObservers().
+   	 */
+       public boolean hasObservers() {
+         return observersPresent;
       }
    
       /**
@@ -1137,6 +1665,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          while (it.hasNext()) {
             ((MemoryObservable)it.next()).deleteObserver(obs);
          }	
+         indexObservers();
       }
    	
    	/**
@@ -1145,6 +1674,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public void deleteObservers() {
          // just drop the collection
          observables = getNewMemoryObserversCollection();
+         indexObservers();
       }
    	
    	/**
@@ -1171,16 +1701,54 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        private Collection getNewMemoryObserversCollection() {
          return new Vector();  // Vectors are thread-safe
       }
+   
+      // Rebuild observableIndex and observedPages from the observables collection.
+       private synchronized void indexObservers() {
+         Object[] all;
+         synchronized (observables) {
+            all = observables.toArray();
+         }
+         ArrayList<MemoryObservable> live = new ArrayList<MemoryObservable>();
+         long[] pages = new long[OBSERVED_PAGES_LENGTH];
+         for (int i = 0; i < all.length; i++) {
+            MemoryObservable mo = (MemoryObservable) all[i];
+            if (mo.countObservers() > 0) {
+               live.add(mo);
+               markObservedPages(pages, mo.lowAddress >>> MemoryPageTable.PAGE_SHIFT,
+                  (mo.highAddress - 1 + WORD_LENGTH_BYTES) >>> MemoryPageTable.PAGE_SHIFT);
+            }
+         }
+         observableIndex = live.toArray(new MemoryObservable[live.size()]);
+         observedPages = pages;
+         observersPresent = live.size() > 0;
+      }
+   
+      // Set the bits for pages first through last, inclusive.
+       private static void markObservedPages(long[] pages, int first, int last) {
+         int page = first;
+         while (page <= last) {
+            if ((page & 63) == 0 && page + 63 <= last) {
+               pages[page >>> 6] = -1L;
+               page += 64;
+            } 
+            else {
+               pages[page >>> 6] |= 1L << (page & 63);
+               page++;
+            }
+         }
+      }
    		
        /////////////////////////////////////////////////////////////////////////
        // Private class whose objects will represent an observable-observer pair 
    	 // for a given memory address or range.
        private class MemoryObservable extends Observable implements Comparable {
          private int lowAddress, highAddress; 
+         private boolean keepsNotices;
       	
           public MemoryObservable(Observer obs, int startAddr, int endAddr) {
             lowAddress = startAddr;
             highAddress = endAddr;
+            keepsNotices = !(obs instanceof TransientNoticeObserver);
             this.addObserver(obs);
          }
       	
@@ -1189,6 +1757,14 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          }
       	
           public void notifyObserver(MemoryAccessNotice notice) {
+            SimulationMetrics metrics = SimulationMetrics.getInstance();
+            if (metrics.countObserverNotification()) {
+               long start = System.nanoTime();
+               this.setChanged();
+               this.notifyObservers(notice);
+               metrics.timeObserverNotification(System.nanoTime() - start);
+               return;
+            }
             this.setChanged();
             this.notifyObservers(notice);
          }
@@ -1214,6 +1790,17 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    /*********************************  THE HELPERS  *************************************/
      
    
+   ////////////////////////////////////////////////////////////////////////////////
+   //
+   // Lets back-stepping record the instruction now executing if it reads or writes
+   // memory-mapped I/O, whose devices are not consulted again when replaying.
+       private static void noteMemoryMappedAccess(int address) {
+         if (address >= memoryMapBaseAddress && address < memoryMapLimitAddress 
+               && Globals.getSettings().getBackSteppingEnabled()) {
+            MachineContext.current().getProgram().getBackStepper().memoryMappedAccess();
+         }
+      }
+   
    ////////////////////////////////////////////////////////////////////////////////
    //
    // Method to notify any observers of memory operation that has just occurred.
@@ -1221,18 +1808,81 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    // The "|| Globals.getGui()==null" is a hack added 19 July 2012 DPS.  IF MIPS simulation
    // is from command mode, Globals.program is null but still want ability to observe.
        private void notifyAnyObservers(int type, int address, int length, int value) {
-         if ((Globals.program != null || Globals.getGui()==null) && this.observables.size() > 0) {
-            Iterator it = this.observables.iterator();
-            MemoryObservable mo;
-            while (it.hasNext()) {
-               mo = (MemoryObservable)it.next();
+         if (!observersPresent) {
+            return;
+         }
+         int page = address >>> MemoryPageTable.PAGE_SHIFT;
+         if ((observedPages[page >>> 6] & (1L << (page & 63))) == 0) {
+            return;
+         }
+         if (MachineContext.current().getProgram() != null || Globals.getGui()==null) {
+            MemoryObservable[] index = observableIndex;
+            for (int i = 0; i < index.length; i++) {
+               MemoryObservable mo = index[i];
                if (mo.match(address)) {
-                  mo.notifyObserver(new MemoryAccessNotice(type, address, length, value));
+                  if (mo.keepsNotices || transientNoticeInUse || !Simulator.inExecutionQuantum()) {
+                     mo.notifyObserver(new MemoryAccessNotice(type, address, length, value));
+                  } 
+                  else {
+                     // An observer that reads memory itself may cause a nested notice;
+                     // that one gets a new object so this one is not refilled under it.
+                     transientNoticeInUse = true;
+                     try {
+                        mo.notifyObserver(transientNotice.reset(type, address, length, value));
+                     } 
+                     finally {
+                        transientNoticeInUse = false;
+                     }
+                  }
                }
             }
          } 		
       }
    
+   ////////////////////////////////////////////////////////////////////////////////
+   //
+   // Methods to notify observers of a bulk transfer.  Observers expect notices of at
+   // most a word, as get() and set() give, so the transfer is reported a word at a
+   // time (or the part of a word at either end of a byte range), each notice with
+   // the value get() would return for it.
+       private void notifyRangeObservers(int type, int address, byte[] buffer, int offset, int length) {
+         if (!rangeObserved(address, length)) {
+            return;
+         }
+         for (int done = 0; done < length; ) {
+            int piece = Math.min(WORD_LENGTH_BYTES - ((address + done) & (WORD_LENGTH_BYTES - 1)), length - done);
+            notifyAnyObservers(type, address + done, piece, valueOfBytes(buffer, offset + done, piece));
+            done += piece;
+         }
+      }
+   
+       private void notifyRangeObservers(int type, int address, int[] buffer, int offset, int count) {
+         if (!rangeObserved(address, count * WORD_LENGTH_BYTES)) {
+            return;
+         }
+         for (int i = 0; i < count; i++) {
+            notifyAnyObservers(type, address + i * WORD_LENGTH_BYTES, WORD_LENGTH_BYTES, buffer[offset + i]);
+         }
+      }
+   
+   // Whether any page of the range is observed, so that transfers nobody watches
+   // are not walked a word at a time.
+       private boolean rangeObserved(int address, int length) {
+         if (!observersPresent) {
+            return false;
+         }
+         long[] pages = observedPages;
+         int page = address >>> MemoryPageTable.PAGE_SHIFT;
+         int last = (address + length - 1) >>> MemoryPageTable.PAGE_SHIFT;
+         while ((pages[page >>> 6] & (1L << (page & 63))) == 0) {
+            if (page == last) {
+               return false;
+            }
+            page = (page + 1) & ((1 << (32 - MemoryPageTable.PAGE_SHIFT)) - 1);
+         }
+         return true;
+      }
+   
    ////////////////////////////////////////////////////////////////////////////////
    //
    // Helper method to store 1, 2 or 4 byte value in table that represents MIPS
@@ -1269,7 +1919,20 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    // client using STORE or FETCH in last arg.
    // Modified 29 Dec 2005 to return old value of replaced bytes, for STORE.
    //
-       private synchronized int storeOrFetchBytesInTable(int [][] blockTable, 
+       private int storeOrFetchBytesInTable(int [][] blockTable, 
+                                   int relativeByteAddress, int length, int value, boolean op) {
+         if (Simulator.inExecutionQuantum()) {
+            return storeOrFetchBytesInTableUnsynchronized(blockTable, relativeByteAddress, length, value, op);
+         }
+         synchronized (this) {
+            return storeOrFetchBytesInTableUnsynchronized(blockTable, relativeByteAddress, length, value, op);
+         }
+      }
+   
+   // Does the work for storeOrFetchBytesInTable() without acquiring the Memory monitor.
+   // Called directly only by the simulator thread while it holds memoryAndRegistersLock
+   // for an execution quantum, since every other writer must hold that lock too.
+       private int storeOrFetchBytesInTableUnsynchronized(int [][] blockTable, 
                                    int relativeByteAddress, int length, int value, boolean op) {
          int relativeWordAddress, block, offset, bytePositionInMemory, bytePositionInValue;
          int oldValue = 0; // for STORE, return old values of replaced bytes
@@ -1292,11 +1955,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             relativeWordAddress = relativeByteAddress >> 2;
             block = relativeWordAddress / BLOCK_LENGTH_WORDS;  // Block number
             offset = relativeWordAddress % BLOCK_LENGTH_WORDS; // Word within that block
-            if (blockTable[block] == null) {
-               if (op==STORE) 
-                  blockTable[block] = new int[BLOCK_LENGTH_WORDS];
-               else 
-                  return 0;
+            if (op == STORE) {
+               writableBlock(blockTable, block);
+            }
+            else if (blockTable[block] == null) {
+               return 0;
             }
             if (byteOrder == LITTLE_ENDIAN) bytePositionInMemory = 3 - bytePositionInMemory;
             if (op == STORE) {
@@ -1322,19 +1985,304 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    // and block size.  Assumes address is word aligned, no endian processing.
    // Modified 29 Dec 2005 to return overwritten value.
          
-       private synchronized int storeWordInTable(int[][] blockTable, int relative, int value) {
+       private int storeWordInTable(int[][] blockTable, int relative, int value) {
+         if (Simulator.inExecutionQuantum()) {
+            return storeWordInTableUnsynchronized(blockTable, relative, value);
+         }
+         synchronized (this) {
+            return storeWordInTableUnsynchronized(blockTable, relative, value);
+         }
+      }
+   
+   // Unsynchronized body of storeWordInTable(); see storeOrFetchBytesInTableUnsynchronized().
+       private int storeWordInTableUnsynchronized(int[][] blockTable, int relative, int value) {
          int  block, offset, oldValue;
          block = relative / BLOCK_LENGTH_WORDS;
          offset = relative % BLOCK_LENGTH_WORDS; 
-         if (blockTable[block] == null) {
-               // First time writing to this block, so allocate the space.
-            blockTable[block] = new int[BLOCK_LENGTH_WORDS];
-         }
-         oldValue = blockTable[block][offset];
-         blockTable[block][offset] = value;
+         int[] words = writableBlock(blockTable, block);
+         oldValue = words[offset];
+         words[offset] = value;
          return oldValue;
       }
+   
+   // Returns the block for writing.  Allocates it the first time it is written, and
+   // replaces it with a copy if it is left from an earlier generation and may therefore
+   // be shared with a snapshot.
+       private int[] writableBlock(int[][] blockTable, int block) {
+         int[] words = blockTable[block];
+         if (words == null) {
+            words = new int[BLOCK_LENGTH_WORDS + 1];
+         } 
+         else if (words[BLOCK_LENGTH_WORDS] != generation) {
+            words = words.clone();
+         } 
+         else {
+            return words;
+         }
+         words[BLOCK_LENGTH_WORDS] = generation;
+         blockTable[block] = words;
+         return words;
+      }
       
+   ////////////////////////////////////////////////////////////////////////////////
+   //
+   // Helpers for the bulk transfer methods.  A transfer is checked from end to end
+   // first, so that one that would fail changes nothing, then done under a single
+   // acquisition of the Memory monitor.  Runs of whole words in the same block or
+   // page are copied directly; bytes at either end that do not fill a word, and
+   // words in the text segment, go through get() and set() one at a time.
+   
+   // A run of words reachable in one array: words[index] holds the word at the
+   // address the run was found for, and the following words are at index + step,
+   // index + 2*step and so on.  Step is -1 in the stack, which is stored from its
+   // base downward.  Words is null for a block that has never been written.
+       private static class WordRun {
+         int[] words;
+         int index, count, step;
+      	
+          WordRun(int[] words, int index, int count, int step) {
+            this.words = words;
+            this.index = index;
+            this.count = count;
+            this.step = step;
+         }
+      }
+   
+       private static void checkArrayRange(int arrayLength, int offset, int length) {
+         if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new ArrayIndexOutOfBoundsException("offset "+offset+", length "+length+", array length "+arrayLength);
+         }
+      }
+   
+   // Find the run of at most the given number of words starting at a word-aligned
+   // address, or return null if the address is not in one of the data-like segments.
+   // If writable, the block or page is made ready to be written.
+       private WordRun findRun(int address, int words, boolean writable) {
+         if (pageTable != null && pageTable.segment(address) != MemoryPageTable.OTHER) {
+            return new WordRun(writable ? pageTable.writablePage(address) : pageTable.page(address),
+               MemoryPageTable.wordIndex(address), Math.min(words, pageTable.wordsInSegment(address)), 1);
+         }
+         if (inTextSegment(address)) {
+            return null;
+         }
+         if (inDataSegment(address)) {
+            return findForwardRun(dataBlockTable, (address - dataSegmentBaseAddress) >> 2, 
+               Math.min(words, (dataSegmentLimitAddress - address) >> 2), writable);
+         }
+         if (address > stackLimitAddress && address <= stackBaseAddress) {
+            int relative = (stackBaseAddress - address) >> 2;
+            int block = relative / BLOCK_LENGTH_WORDS;
+            int offset = relative % BLOCK_LENGTH_WORDS;
+            return new WordRun(writable ? writableBlock(stackBlockTable, block) : stackBlockTable[block],
+               offset, Math.min(words, offset + 1), -1);
+         }
+         if (address >= memoryMapBaseAddress && address < memoryMapLimitAddress) {
+            return findForwardRun(memoryMapBlockTable, (address - memoryMapBaseAddress) >> 2, 
+               Math.min(words, (memoryMapLimitAddress - address) >> 2), writable);
+         }
+         if (inKernelDataSegment(address)) {
+            return findForwardRun(kernelDataBlockTable, (address - kernelDataBaseAddress) >> 2, 
+               Math.min(words, (kernelDataSegmentLimitAddress - address) >> 2), writable);
+         }
+         return null;
+      }
+   
+       private WordRun findForwardRun(int[][] blockTable, int relative, int words, boolean writable) {
+         int block = relative / BLOCK_LENGTH_WORDS;
+         int offset = relative % BLOCK_LENGTH_WORDS;
+         return new WordRun(writable ? writableBlock(blockTable, block) : blockTable[block],
+            offset, Math.min(words, BLOCK_LENGTH_WORDS - offset), 1);
+      }
+   
+   // Throw the exception get() or set() would for the address, if there is one.  Only
+   // the segment is considered; alignment is up to the caller.
+       private void checkAccess(int address, boolean op) throws AddressErrorException {
+         if ((pageTable != null && pageTable.segment(address) != MemoryPageTable.OTHER)
+            || inDataSegment(address)
+            || (address > stackLimitAddress && address <= stackBaseAddress)
+            || (address >= memoryMapBaseAddress && address < memoryMapLimitAddress)
+            || inKernelDataSegment(address)) {
+            return;
+         }
+         int cause = (op == STORE) ? Exceptions.ADDRESS_EXCEPTION_STORE : Exceptions.ADDRESS_EXCEPTION_LOAD;
+         if (inTextSegment(address)) {
+            if (!Globals.getSettings().getBooleanSetting(Settings.SELF_MODIFYING_CODE_ENABLED)) {
+               throw new AddressErrorException((op == STORE) ? "Cannot write directly to text segment!"
+                  : "Cannot read directly from text segment!", cause, address);
+            }
+         } 
+         else if (inKernelTextSegment(address)) {
+            throw new AddressErrorException((op == STORE) 
+               ? "DEVELOPER: You must use setStatement() to write to kernel text segment!"
+               : "DEVELOPER: You must use getStatement() to read from kernel text segment!", cause, address);
+         } 
+         else {
+            throw new AddressErrorException("address out of range ", cause, address);
+         }
+      }
+   
+   // Check that every byte of the range can be accessed.
+       private void checkRange(int address, int length, boolean op) throws AddressErrorException {
+         int done = 0;
+         while (done < length) {
+            int current = address + done;
+            if ((current & 3) != 0 || length - done < WORD_LENGTH_BYTES) {
+               checkAccess(current, op);
+               done++;
+            } 
+            else {
+               WordRun run = findRun(current, (length - done) >> 2, false);
+               if (run == null) {
+                  checkAccess(current, op);
+                  done += WORD_LENGTH_BYTES;
+               } 
+               else {
+                  done += run.count * WORD_LENGTH_BYTES;
+               }
+            }
+         }
+      }
+   
+   // Copy bytes between memory and the buffer in the direction given by op.  When
+   // storing, the bytes replaced are put in previous unless it is null.
+       private void transferBytes(int address, byte[] buffer, int offset, int length, 
+                                 boolean op, byte[] previous) throws AddressErrorException {
+         checkRange(address, length, op);
+         int done = 0;
+         while (done < length) {
+            int current = address + done;
+            int i = offset + done;
+            if ((current & 3) != 0 || length - done < WORD_LENGTH_BYTES) {
+               // Byte that does not fill a word.
+               if (op == STORE) {
+                  int oldValue = set(current, buffer[i], 1, false);
+                  if (previous != null) previous[done] = (byte) oldValue;
+               } 
+               else {
+                  buffer[i] = (byte) get(current, 1, false);
+               }
+               done++;
+               continue;
+            }
+            WordRun run = findRun(current, (length - done) >> 2, op == STORE);
+            if (run == null) {
+               // Text segment word, handled as setWord() and getWord() would.
+               if (op == STORE) {
+                  int oldValue = set(current, packBytes(buffer, i, WORD_LENGTH_BYTES), WORD_LENGTH_BYTES, false);
+                  if (previous != null) unpackBytes(oldValue, previous, done);
+               } 
+               else {
+                  unpackBytes(get(current, WORD_LENGTH_BYTES, false), buffer, i);
+               }
+               done += WORD_LENGTH_BYTES;
+               continue;
+            }
+            int[] words = run.words;
+            int index = run.index;
+            for (int n = 0; n < run.count; n++) {
+               if (op == STORE) {
+                  if (previous != null) unpackBytes(wordValue(words[index]), previous, done);
+                  words[index] = wordValue(packBytes(buffer, i, WORD_LENGTH_BYTES));
+               } 
+               else {
+                  unpackBytes((words == null) ? 0 : wordValue(words[index]), buffer, i);
+               }
+               index += run.step;
+               i += WORD_LENGTH_BYTES;
+               done += WORD_LENGTH_BYTES;
+            }
+         }
+      }
+   
+   // Copy words between memory and the buffer in the direction given by op.  When
+   // storing, the words replaced are put in previous unless it is null.
+       private void transferWords(int address, int[] buffer, int offset, int count, 
+                                 boolean op, int[] previous) throws AddressErrorException {
+         checkRange(address, count * WORD_LENGTH_BYTES, op);
+         int done = 0;
+         while (done < count) {
+            int current = address + done * WORD_LENGTH_BYTES;
+            int i = offset + done;
+            WordRun run = findRun(current, count - done, op == STORE);
+            if (run == null) {
+               // Text segment word, handled as setWord() and getWord() would.
+               if (op == STORE) {
+                  int oldValue = set(current, buffer[i], WORD_LENGTH_BYTES, false);
+                  if (previous != null) previous[done] = oldValue;
+               } 
+               else {
+                  buffer[i] = get(current, WORD_LENGTH_BYTES, false);
+               }
+               done++;
+            } 
+            else if (run.step == 1 && byteOrder == LITTLE_ENDIAN) {
+               if (op == STORE) {
+                  if (previous != null) System.arraycopy(run.words, run.index, previous, done, run.count);
+                  System.arraycopy(buffer, i, run.words, run.index, run.count);
+               } 
+               else if (run.words == null) {
+                  Arrays.fill(buffer, i, i + run.count, 0);
+               } 
+               else {
+                  System.arraycopy(run.words, run.index, buffer, i, run.count);
+               }
+               done += run.count;
+            } 
+            else {
+               int[] words = run.words;
+               int index = run.index;
+               for (int n = 0; n < run.count; n++) {
+                  if (op == STORE) {
+                     if (previous != null) previous[done] = wordValue(words[index]);
+                     words[index] = wordValue(buffer[i]);
+                  } 
+                  else {
+                     buffer[i] = (words == null) ? 0 : wordValue(words[index]);
+                  }
+                  index += run.step;
+                  i++;
+                  done++;
+               }
+            }
+         }
+      }
+   
+   // Convert between a word as stored in a block or page and its value, whose
+   // low-order byte is the one at the lowest address.  The conversion is the same
+   // in both directions.
+       private int wordValue(int word) {
+         return (byteOrder == LITTLE_ENDIAN) ? word : reverseBytes(word);
+      }
+   
+   // The given number of bytes (max 4) of the buffer as a value, first byte low-order.
+       private static int packBytes(byte[] buffer, int offset, int length) {
+         int value = 0;
+         for (int i = 0; i < length; i++) {
+            value |= (buffer[offset + i] & 0xFF) << (i << 3);
+         }
+         return value;
+      }
+   
+   // The value get() returns for length bytes of memory holding the given bytes.
+       private int valueOfBytes(byte[] buffer, int offset, int length) {
+         if (byteOrder == LITTLE_ENDIAN) {
+            return packBytes(buffer, offset, length);
+         }
+         int value = 0;
+         for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+         }
+         return value;
+      }
+   
+   // Put the four bytes of a value in the buffer, low-order byte first.
+       private static void unpackBytes(int value, byte[] buffer, int offset) {
+         buffer[offset] = (byte) value;
+         buffer[offset + 1] = (byte) (value >>> 8);
+         buffer[offset + 2] = (byte) (value >>> 16);
+         buffer[offset + 3] = (byte) (value >>> 24);
+      }
+   
    ////////////////////////////////////////////////////////////////////////////////
    //
    // Helper method to fetch 4 byte value from table that represents MIPS memory.
@@ -1343,7 +2291,17 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    // and block size.  Assumes word alignment, no endian processing.
    //
    
-       private synchronized int fetchWordFromTable(int[][] blockTable, int relative) {
+       private int fetchWordFromTable(int[][] blockTable, int relative) {
+         if (Simulator.inExecutionQuantum()) {
+            return fetchWordFromTableUnsynchronized(blockTable, relative);
+         }
+         synchronized (this) {
+            return fetchWordFromTableUnsynchronized(blockTable, relative);
+         }
+      }
+   
+   // Unsynchronized body of fetchWordFromTable(); see storeOrFetchBytesInTableUnsynchronized().
+       private int fetchWordFromTableUnsynchronized(int[][] blockTable, int relative) {
          int value = 0;
          int block, offset;
          block = relative / BLOCK_LENGTH_WORDS;
@@ -1385,6 +2343,51 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          return new Integer(value);
       }
    	   
+   ////////////////////////////////////////////////////////////////////////////////
+   //
+   // Page table counterparts of the block table helpers above, used when the page
+   // table is enabled.  They take the absolute address, and lock the same way.
+   //
+       private int storeBytesInPages(int address, int length, int value) {
+         if (Simulator.inExecutionQuantum()) {
+            return pageTable.store(address, length, value);
+         }
+         synchronized (this) {
+            return pageTable.store(address, length, value);
+         }
+      }
+   
+       private int fetchBytesFromPages(int address, int length) {
+         if (Simulator.inExecutionQuantum()) {
+            return pageTable.fetch(address, length);
+         }
+         synchronized (this) {
+            return pageTable.fetch(address, length);
+         }
+      }
+   
+       private int storeWordInPages(int address, int value) {
+         if (Simulator.inExecutionQuantum()) {
+            return pageTable.storeWord(address, value);
+         }
+         synchronized (this) {
+            return pageTable.storeWord(address, value);
+         }
+      }
+   
+       private int fetchWordFromPages(int address) {
+         if (Simulator.inExecutionQuantum()) {
+            return pageTable.fetchWord(address);
+         }
+         synchronized (this) {
+            return pageTable.fetchWord(address);
+         }
+      }
+   
+       private synchronized Integer fetchWordOrNullFromPages(int address) {
+         return pageTable.fetchWordOrNull(address);
+      }
+   	   
    ////////////////////////////////////////////////////////////////////////////////////
    // Returns result of substituting specified byte of source value into specified byte 
    // of destination value. Byte positions are 0-1-2-3, listed from most to least 
@@ -1414,7 +2417,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    // Store a program statement at the given address.  Address has already been verified
    // as valid.  It may be either in user or kernel text segment, as specified by arguments.
        private void storeProgramStatement(int address, ProgramStatement statement, 
-                                          int baseAddress, ProgramStatement[][] blockTable) {
+                                          int baseAddress, ProgramStatement[][] blockTable, int[] generations) {
          int relative = (address - baseAddress) >> 2; // convert byte address to words
          int block = relative / BLOCK_LENGTH_WORDS;
          int offset = relative % BLOCK_LENGTH_WORDS; 
@@ -1422,6 +2425,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             if (blockTable[block] == null) {
                // No instructions are stored in this block, so allocate the block.
                blockTable[block] = new ProgramStatement[BLOCK_LENGTH_WORDS];
+               generations[block] = generation;
+            } 
+            else if (generations[block] != generation) {
+               // A snapshot may share this block, so change a copy of it.
+               blockTable[block] = blockTable[block].clone();
+               generations[block] = generation;
             }
             blockTable[block][offset] = statement;
          }
@@ -30,7 +30,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 
 /**
  * Object provided to Observers of runtime access to MIPS memory.
- * Observer can get the access type (R/W), address and length in bytes (4,2,1).
+ * Observer can get the access type (R/W), address and length in bytes (4,2,1,
+ * or the whole range for a bulk transfer such as Memory.readBytes()).
  * 
  * @author Pete Sanderson 
  * @version July 2005
@@ -59,11 +60,22 @@ public class MemoryAccessNotice extends AccessNotice {
 	  this.length = Memory.WORD_LENGTH_BYTES;
 	  this.value = value;
   }
+  /** Refill this notice for another access; see TransientNoticeObserver.
+   *  Returns this notice.
+	*/
+  MemoryAccessNotice reset(int type, int address, int length, int value) {
+     reset(type);
+	  this.address = address;
+	  this.length = length;
+	  this.value = value;
+	  return this;
+  }
   /** Fetch the memory address that was accessed. */
   public int getAddress() {
      return address;
   }
-  /** Fetch the length in bytes of the access operation (4,2,1). */
+  /** Fetch the length in bytes of the access operation (4,2,1, or the length of
+   *  the range for a bulk transfer, whose value holds only its first 4 bytes). */
   public int getLength() {
      return length;
   }
@@ -0,0 +1,330 @@
+package mars.mips.hardware;
+
+/**
+ * Alternative storage for the data-like parts of Memory: the data segment, stack,
+ * kernel data segment and memory-mapped I/O.  Instead of a block table per segment,
+ * it keeps one table of 4K-byte pages covering the whole 32-bit address space,
+ * indexed by the top 20 bits of the address, so that locating the word for an
+ * address takes one shift, one array load and one mask.  Because every address
+ * has exactly one place, the segment it belongs to matters only for deciding
+ * whether an access is allowed, which is recorded once per page in a tag.
+ *
+ * Pages are allocated when first written; a read from a page that was never
+ * written returns 0, as with the block tables.  Tags are computed when a page is
+ * first touched, from the segment boundaries in effect when the table was created,
+ * so Memory creates a new table whenever its configuration changes.
+ *
+ * Words are stored in the same layout the block tables use: for little-endian
+ * memory byte address A is held in bits 8*(A%4) of its word, for big-endian in
+ * bits 24-8*(A%4), and a multi-byte value is laid out starting with its low-order
+ * byte at the lowest address.  Aligned little-endian accesses are done on the word
+ * directly; anything else goes a byte at a time.
+ *
+ * Like the block tables, pages carry a generation number in one extra word at the
+ * end, so that a page a snapshot may refer to is copied before it is written.  The
+ * numbers of allocated pages are kept in a list so that a snapshot need not scan
+ * the whole table.
+ *
+ * The methods are not synchronized; Memory calls them with the same locking it
+ * uses for its block tables.
+ **/
+
+class MemoryPageTable {
+
+   /** Number of address bits used for the offset within a page. */
+   static final int PAGE_SHIFT = 12;
+   private static final int PAGE_COUNT = 1 << (32 - PAGE_SHIFT);
+   private static final int PAGE_LENGTH_WORDS = (1 << PAGE_SHIFT) / Memory.WORD_LENGTH_BYTES;
+   private static final int WORD_MASK = PAGE_LENGTH_WORDS - 1;
+
+   /** Tag of an address in the data segment, stack or kernel data segment. */
+   static final byte DATA = 1;
+   /** Tag of an address in the memory-mapped I/O area. */
+   static final byte MMIO = 2;
+   /** Tag of any other address: text, kernel text, or outside every segment.  Memory
+       handles such an access exactly as it does without a page table. */
+   static final byte OTHER = 3;
+   // Page tags that are never returned by segment().
+   private static final byte UNKNOWN = 0; // page not yet classified
+   private static final byte MIXED = 4;   // page crosses a segment boundary; classify each address
+
+   private final int[][] pages = new int[PAGE_COUNT][];
+   private final byte[] tags = new byte[PAGE_COUNT];
+   private boolean littleEndian;
+   private int[] allocatedPages = new int[16];
+   private int allocatedCount = 0;
+   private int generation = 0;
+
+   /**
+    * Create an empty page table for the current memory configuration.
+    *
+    * @param byteOrder Memory.LITTLE_ENDIAN or Memory.BIG_ENDIAN
+    */
+   MemoryPageTable(boolean byteOrder) {
+      setByteOrder(byteOrder);
+   }
+
+   /**
+    * Set the byte order used to place bytes within a word.
+    *
+    * @param byteOrder Memory.LITTLE_ENDIAN or Memory.BIG_ENDIAN
+    */
+   void setByteOrder(boolean byteOrder) {
+      littleEndian = (byteOrder == Memory.LITTLE_ENDIAN);
+   }
+
+   /**
+    * Determine which kind of segment the given address is in.
+    *
+    * @param address any MIPS address
+    * @return DATA, MMIO or OTHER
+    */
+   byte segment(int address) {
+      int page = address >>> PAGE_SHIFT;
+      byte tag = tags[page];
+      if (tag == UNKNOWN) {
+         tag = classifyPage(page);
+         tags[page] = tag;
+      }
+      return (tag == MIXED) ? classify(address) : tag;
+   }
+
+   /**
+    * Returns the page holding an address, or null if it has never been written.
+    * Used by Memory for bulk transfers; see wordIndex() and wordsInSegment().
+    */
+   int[] page(int address) {
+      return pages[address >>> PAGE_SHIFT];
+   }
+
+   /**
+    * Returns the page holding an address, ready to be written.
+    */
+   int[] writablePage(int address) {
+      return allocate(address);
+   }
+
+   /**
+    * Returns the index within its page of the word holding an address.
+    */
+   static int wordIndex(int address) {
+      return (address >>> 2) & WORD_MASK;
+   }
+
+   /**
+    * Returns how many words, starting with the one at a word-aligned address and
+    * going no further than the end of its page, can be taken to be in the same
+    * segment as it.  The address must have been passed to segment() first.
+    */
+   int wordsInSegment(int address) {
+      return (tags[address >>> PAGE_SHIFT] == MIXED) ? 1 : PAGE_LENGTH_WORDS - wordIndex(address);
+   }
+
+   /**
+    * Read the word at a word-aligned address, without byte order adjustment.
+    */
+   int fetchWord(int address) {
+      int[] page = pages[address >>> PAGE_SHIFT];
+      return (page == null) ? 0 : page[(address >>> 2) & WORD_MASK];
+   }
+
+   /**
+    * Read the word at a word-aligned address, or null if its page has never been
+    * written.
+    */
+   Integer fetchWordOrNull(int address) {
+      int[] page = pages[address >>> PAGE_SHIFT];
+      return (page == null) ? null : Integer.valueOf(page[(address >>> 2) & WORD_MASK]);
+   }
+
+   /**
+    * Write the word at a word-aligned address, without byte order adjustment.
+    *
+    * @return the word that was replaced
+    */
+   int storeWord(int address, int value) {
+      int[] page = allocate(address);
+      int index = (address >>> 2) & WORD_MASK;
+      int oldValue = page[index];
+      page[index] = value;
+      return oldValue;
+   }
+
+   /**
+    * Read 1, 2 or 4 bytes starting at any address, as Memory.get() does.
+    *
+    * @return the value, in the low-order bytes
+    */
+   int fetch(int address, int length) {
+      int lane = address & 3;
+      if (littleEndian && (lane == 0 || length == 1 || (length == 2 && lane == 2))) {
+         int[] page = pages[address >>> PAGE_SHIFT];
+         if (page == null) {
+            return 0;
+         }
+         int word = page[(address >>> 2) & WORD_MASK];
+         return (length == 4) ? word : (word >>> (lane << 3)) & ((1 << (length << 3)) - 1);
+      }
+      int value = 0;
+      for (int i = 0; i < length; i++) {
+         value |= fetchByte(address + i) << (i << 3);
+      }
+      return value;
+   }
+
+   /**
+    * Write the low-order 1, 2 or 4 bytes of a value starting at any address, as
+    * Memory.set() does.
+    *
+    * @return the bytes that were replaced, in the low-order bytes
+    */
+   int store(int address, int length, int value) {
+      int lane = address & 3;
+      if (littleEndian && (lane == 0 || length == 1 || (length == 2 && lane == 2))) {
+         int[] page = allocate(address);
+         int index = (address >>> 2) & WORD_MASK;
+         int oldValue = page[index];
+         if (length == 4) {
+            page[index] = value;
+            return oldValue;
+         }
+         int shift = lane << 3;
+         int mask = ((1 << (length << 3)) - 1) << shift;
+         page[index] = (oldValue & ~mask) | ((value << shift) & mask);
+         return (oldValue & mask) >>> shift;
+      }
+      int oldValue = 0;
+      for (int i = 0; i < length; i++) {
+         oldValue |= storeByte(address + i, value >>> (i << 3)) << (i << 3);
+      }
+      return oldValue;
+   }
+
+   private int fetchByte(int address) {
+      int[] page = pages[address >>> PAGE_SHIFT];
+      return (page == null) ? 0 : (page[(address >>> 2) & WORD_MASK] >>> byteShift(address)) & 0xFF;
+   }
+
+   // Returns the byte that was replaced.
+   private int storeByte(int address, int value) {
+      int[] page = allocate(address);
+      int index = (address >>> 2) & WORD_MASK;
+      int shift = byteShift(address);
+      int oldValue = page[index];
+      page[index] = (oldValue & ~(0xFF << shift)) | ((value & 0xFF) << shift);
+      return (oldValue >>> shift) & 0xFF;
+   }
+
+   private int byteShift(int address) {
+      return littleEndian ? (address & 3) << 3 : 24 - ((address & 3) << 3);
+   }
+
+   /**
+    * Returns the numbers of the pages allocated so far.  May be called from another
+    * thread while the table is in use, in which case the newest pages may be missed.
+    */
+   int[] allocatedPageNumbers() {
+      int[] numbers = allocatedPages;
+      int[] copy = new int[Math.min(allocatedCount, numbers.length)];
+      System.arraycopy(numbers, 0, copy, 0, copy.length);
+      return copy;
+   }
+
+   /**
+    * Record the allocated pages in the snapshot and start a new generation, so that
+    * they are copied before they are next written.
+    */
+   void snapshot(MemorySnapshot snapshot) {
+      snapshot.pageNumbers = new int[allocatedCount];
+      snapshot.pages = new int[allocatedCount][];
+      for (int i = 0; i < allocatedCount; i++) {
+         snapshot.pageNumbers[i] = allocatedPages[i];
+         snapshot.pages[i] = pages[allocatedPages[i]];
+      }
+      generation++;
+   }
+
+   /**
+    * Replace the allocated pages with those recorded in the snapshot.
+    */
+   void restore(MemorySnapshot snapshot) {
+      for (int i = 0; i < allocatedCount; i++) {
+         pages[allocatedPages[i]] = null;
+      }
+      allocatedCount = 0;
+      for (int i = 0; i < snapshot.pageNumbers.length; i++) {
+         pages[snapshot.pageNumbers[i]] = snapshot.pages[i];
+         addAllocatedPage(snapshot.pageNumbers[i]);
+      }
+      generation++;
+   }
+
+   // Returns the page for writing, allocating it or copying it from an earlier
+   // generation first if need be.
+   private int[] allocate(int address) {
+      int number = address >>> PAGE_SHIFT;
+      int[] page = pages[number];
+      if (page == null) {
+         page = new int[PAGE_LENGTH_WORDS + 1];
+         addAllocatedPage(number);
+      } else if (page[PAGE_LENGTH_WORDS] != generation) {
+         page = page.clone();
+      } else {
+         return page;
+      }
+      page[PAGE_LENGTH_WORDS] = generation;
+      pages[number] = page;
+      return page;
+   }
+
+   private void addAllocatedPage(int number) {
+      if (allocatedCount == allocatedPages.length) {
+         int[] larger = new int[allocatedCount * 2];
+         System.arraycopy(allocatedPages, 0, larger, 0, allocatedCount);
+         allocatedPages = larger;
+      }
+      allocatedPages[allocatedCount++] = number;
+   }
+
+   // A page gets the tag of its first address unless some segment starts or ends
+   // inside it.  Addresses are compared as signed ints, like Memory's range checks;
+   // no page crosses from 0x7fffffff to 0x80000000, so within a page signed and
+   // unsigned order agree.
+   private static byte classifyPage(int page) {
+      long first = page << PAGE_SHIFT;
+      long last = first + (1 << PAGE_SHIFT) - 1;
+      long[] boundaries = {
+         Memory.dataSegmentBaseAddress, Memory.dataSegmentLimitAddress,
+         Memory.stackLimitAddress + 1L, Memory.stackBaseAddress + 1L,
+         Memory.textBaseAddress, Memory.textLimitAddress,
+         Memory.memoryMapBaseAddress, Memory.memoryMapLimitAddress,
+         Memory.kernelDataBaseAddress, Memory.kernelDataSegmentLimitAddress,
+         Memory.kernelTextBaseAddress, Memory.kernelTextLimitAddress };
+      for (int i = 0; i < boundaries.length; i++) {
+         if (boundaries[i] > first && boundaries[i] <= last) {
+            return MIXED;
+         }
+      }
+      return classify((int) first);
+   }
+
+   // Follows the order of the range checks in Memory.set() and Memory.get().  An
+   // address that is both text and MMIO is left to Memory, since those two methods
+   // disagree about it.
+   private static byte classify(int address) {
+      if (Memory.inDataSegment(address)
+          || (address > Memory.stackLimitAddress && address <= Memory.stackBaseAddress)) {
+         return DATA;
+      }
+      if (Memory.inTextSegment(address)) {
+         return OTHER;
+      }
+      if (address >= Memory.memoryMapBaseAddress && address < Memory.memoryMapLimitAddress) {
+         return MMIO;
+      }
+      if (Memory.inKernelDataSegment(address)) {
+         return DATA;
+      }
+      return OTHER;
+   }
+}
@@ -0,0 +1,29 @@
+package mars.mips.hardware;
+
+import mars.ProgramStatement;
+
+/**
+ * The contents of Memory at one moment, as captured by Memory.takeSnapshot() and
+ * put back by Memory.restoreSnapshot().  A snapshot holds copies of the block
+ * tables (or the list of allocated pages, when the page table is in use) but shares
+ * the blocks themselves with Memory, which copies a block before writing to it if
+ * a snapshot may still refer to it.  Its contents are only meaningful to Memory.
+ **/
+
+public final class MemorySnapshot {
+
+   ProgramStatement[][] textBlockTable;
+   ProgramStatement[][] kernelTextBlockTable;
+   int[][] dataBlockTable;
+   int[][] kernelDataBlockTable;
+   int[][] stackBlockTable;
+   int[][] memoryMapBlockTable;
+   // Allocated page numbers and their pages, or null if there was no page table.
+   int[] pageNumbers;
+   int[][] pages;
+   int heapAddress;
+   int clearCount;
+
+   MemorySnapshot() {
+   }
+}
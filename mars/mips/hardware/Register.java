@@ -1,5 +1,7 @@
    package mars.mips.hardware;
    import mars.*;
+   import mars.simulator.Simulator;
+   import mars.simulator.SimulationMetrics;
    import java.util.*;
 
 /*
@@ -39,11 +41,19 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     public class Register extends Observable {
       private String name;
       private int number, resetValue;
-   	// volatile should be enough to allow safe multi-threaded access  
-   	// w/o the use of synchronized methods.  getValue and setValue
-   	// are the only methods here used by the register collection
-   	// (RegisterFile, Coprocessor0, Coprocessor1) methods. 
-      private volatile int value;
+   	// The value lives in values[index].  A register built with the public
+   	// constructor owns a one-element array; RegisterFile and Coprocessor1 build
+   	// their registers as views onto one shared int[] so that they can read and
+   	// update the values by direct indexing.  Cross-thread visibility comes from
+   	// the memoryAndRegistersLock of their MachineContext, or the monitor taken by
+   	// getValue/setValue.
+      private final int[] values;
+      private final int index;
+      // Mirrors countObservers() > 0 so that notifyAnyObservers() does not have to
+      // acquire the Observable monitor on every access when nobody is watching.
+      private volatile boolean observed = false;
+      // Number of Register objects that currently have observers.
+      private static volatile int observedRegisters = 0;
       
    	 /**
         *  Creates a new register with specified name, number, and value.
@@ -53,9 +63,25 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
         */
    	  
        public Register(String n, int num, int val){
+         this(n, num, val, new int[1], 0);
+      }
+   	
+   	 /**
+        *  Creates a new register whose value is kept in an element of an array
+        *  shared with other registers.  The element is set to the initial value.
+        *   @param n The name of the register.
+        *   @param num The number of the register.
+        *   @param val The inital (and reset) value of the register.
+        *   @param values Array holding the register's value.
+        *   @param index Position of the register's value within the array.
+        */
+   	  
+       Register(String n, int num, int val, int[] values, int index){
          name= n;
          number=num;
-         value= val;
+         this.values = values;
+         this.index = index;
+         values[index] = val;
          resetValue = val;
       }
       
@@ -74,9 +100,25 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  *   @return value The value of the Register.
    	  */
    	  
-       public synchronized int getValue(){
+       public int getValue(){
+         if (Simulator.inExecutionQuantum()) {
+            return getValueUnsynchronized();
+         }
+         synchronized (this) {
+            return getValueUnsynchronized();
+         }
+      }
+   
+      /**
+   	  *  Returns the value of the Register without acquiring its monitor.  Observers
+   	  *  are notified of the READ operation.  Only safe for the simulator thread while it
+   	  *  holds memoryAndRegistersLock for an execution quantum.
+   	  *   @return value The value of the Register.
+   	  */
+   	  
+       private int getValueUnsynchronized(){
          notifyAnyObservers(AccessNotice.READ);
-         return value;
+         return values[index];
       }
 
       
@@ -87,7 +129,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  */
    	  
        public synchronized int getValueNoNotify(){
-         return value;
+         return values[index];
       }
 		
    
@@ -115,9 +157,26 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  *   @return previous value of register
    	  */
    	  
-       public synchronized int setValue(int val){
-         int old = value;
-         value = val;
+       public int setValue(int val){
+         if (Simulator.inExecutionQuantum()) {
+            return setValueUnsynchronized(val);
+         }
+         synchronized (this) {
+            return setValueUnsynchronized(val);
+         }
+      }
+   
+   	/**
+   	  *  Sets the value of the register without acquiring its monitor.  Observers are
+   	  *  notified of the WRITE operation.  Only safe for the simulator thread while it
+   	  *  holds memoryAndRegistersLock for an execution quantum.
+   	  *   @param val Value to set the Register to.
+   	  *   @return previous value of register
+   	  */
+   	  
+       private int setValueUnsynchronized(int val){
+         int old = values[index];
+         values[index] = val;
          notifyAnyObservers(AccessNotice.WRITE);
          return old;
       }
@@ -128,7 +187,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  */
    	  
        public synchronized void resetValue(){
-         value = resetValue;
+         values[index] = resetValue;
       }
    	
    	/**
@@ -140,11 +199,73 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          resetValue = reset;
       }
    
+   	/**
+   	 *  Register an observer of this register.  Overridden to keep track of
+   	 *  whether any observers are present.
+   	 *  @param o the observer to add
+   	 */
+   	 
+       public synchronized void addObserver(Observer o) {
+         super.addObserver(o);
+         setObserved(this.countObservers() > 0);
+      }
+   
+   	/**
+   	 *  Remove an observer of this register.  Overridden to keep track of
+   	 *  whether any observers are present.
+   	 *  @param o the observer to remove
+   	 */
+   	 
+       public synchronized void deleteObserver(Observer o) {
+         super.deleteObserver(o);
+         setObserved(this.countObservers() > 0);
+      }
+   
+   	/**
+   	 *  Remove all observers of this register.
+   	 */
+   	 
+       public synchronized void deleteObservers() {
+         super.deleteObservers();
+         setObserved(false);
+      }
+   
+   	/**
+   	 *  Determine whether any register at all has an observer.  The simulator's
+   	 *  compiled code, which keeps register values in locals, runs only if not.
+   	 *  @return true if at least one Register object has an observer.
+   	 */
+   	 
+       public static boolean anyObserved() {
+         return observedRegisters > 0;
+      }
+   
+       private void setObserved(boolean nowObserved) {
+         if (nowObserved != observed) {
+            observed = nowObserved;
+            adjustObservedRegisters(nowObserved ? 1 : -1);
+         }
+      }
+   
+       private static synchronized void adjustObservedRegisters(int change) {
+         observedRegisters += change;
+      }
+   
    //
    // Method to notify any observers of register operation that has just occurred.
+   // Also used by RegisterFile and Coprocessor1 after they access the shared value
+   // array directly.  Does nothing unless this register has an observer.
    //
-       private void notifyAnyObservers(int type) {
-         if (this.countObservers() > 0){// && Globals.program != null) && Globals.program.inSteppedExecution()) {
+       void notifyAnyObservers(int type) {
+         if (observed){// && Globals.program != null) && Globals.program.inSteppedExecution()) {
+            SimulationMetrics metrics = SimulationMetrics.getInstance();
+            if (metrics.countObserverNotification()) {
+               long start = System.nanoTime();
+               this.setChanged();
+               this.notifyObservers(new RegisterAccessNotice(type, this.name));
+               metrics.timeObserverNotification(System.nanoTime() - start);
+               return;
+            }
             this.setChanged();
             this.notifyObservers(new RegisterAccessNotice(type, this.name));
          } 
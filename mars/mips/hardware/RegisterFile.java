@@ -1,8 +1,10 @@
    package mars.mips.hardware;
 
+   import java.util.HashMap;
    import java.util.Observer;
 
    import mars.Globals;
+   import mars.simulator.MachineContext;
    import mars.assembler.SymbolTable;
    import mars.mips.instructions.Instruction;
    import mars.util.Binary;
@@ -36,7 +38,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 
 /**
-  *  Represents the collection of MIPS registers.
+  *  Represents the collection of MIPS registers.  The static methods work on the
+  *  registers of the MachineContext bound to the calling thread; an instance holds
+  *  the registers of one context.
   *   @author Jason Bumgarner, Jason Shrewsbury
   *   @version June 2003
   **/
@@ -46,36 +50,86 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       public static final int GLOBAL_POINTER_REGISTER = 28;
       public static final int STACK_POINTER_REGISTER = 29;
    
-      private static Register [] regFile = 
-          { new Register("$zero", 0, 0), new Register("$at", 1, 0),
-         	new Register("$v0", 2, 0),new Register("$v1", 3, 0),
-         	new Register("$a0", 4, 0),new Register("$a1", 5, 0),
-         	new Register("$a2", 6, 0),new Register("$a3", 7, 0),
-         	new Register("$t0", 8, 0),new Register("$t1", 9, 0),
-         	new Register("$t2", 10, 0),new Register("$t3", 11, 0), 
-         	new Register("$t4", 12, 0),new Register("$t5", 13, 0),
-         	new Register("$t6", 14, 0),new Register("$t7", 15, 0),
-         	new Register("$s0", 16, 0),new Register("$s1", 17, 0),
-         	new Register("$s2", 18, 0),new Register("$s3", 19, 0),
-         	new Register("$s4", 20, 0),new Register("$s5", 21, 0),
-         	new Register("$s6", 22, 0),new Register("$s7", 23, 0),
-         	new Register("$t8", 24, 0),new Register("$t9", 25, 0),
-         	new Register("$k0", 26, 0),new Register("$k1", 27, 0),
-         	new Register("$gp", GLOBAL_POINTER_REGISTER, Memory.globalPointer),
-         	new Register("$sp", STACK_POINTER_REGISTER, Memory.stackPointer),
-         	new Register("$fp", 30, 0),new Register("$ra", 31, 0)
+      private static final int PROGRAM_COUNTER = 32;
+      private static final int HI = 33;
+      private static final int LO = 34;
+   
+      // Values of all the registers, indexed by register number: 0-31 are the
+      // general purpose registers, then pc, hi and lo.  The Register objects below
+      // are views onto this array for the GUI, tools and observers; the simulator
+      // reads and updates it directly.
+      private final int [] values = new int[LO + 1];
+   
+      private final Register [] regFile = 
+          { view("$zero", 0, 0), view("$at", 1, 0),
+         	view("$v0", 2, 0),view("$v1", 3, 0),
+         	view("$a0", 4, 0),view("$a1", 5, 0),
+         	view("$a2", 6, 0),view("$a3", 7, 0),
+         	view("$t0", 8, 0),view("$t1", 9, 0),
+         	view("$t2", 10, 0),view("$t3", 11, 0), 
+         	view("$t4", 12, 0),view("$t5", 13, 0),
+         	view("$t6", 14, 0),view("$t7", 15, 0),
+         	view("$s0", 16, 0),view("$s1", 17, 0),
+         	view("$s2", 18, 0),view("$s3", 19, 0),
+         	view("$s4", 20, 0),view("$s5", 21, 0),
+         	view("$s6", 22, 0),view("$s7", 23, 0),
+         	view("$t8", 24, 0),view("$t9", 25, 0),
+         	view("$k0", 26, 0),view("$k1", 27, 0),
+         	view("$gp", GLOBAL_POINTER_REGISTER, Memory.globalPointer),
+         	view("$sp", STACK_POINTER_REGISTER, Memory.stackPointer),
+         	view("$fp", 30, 0),view("$ra", 31, 0)
            };
          												  
-      private static Register programCounter= new Register("pc", 32, Memory.textBaseAddress); 
-      private static Register hi= new Register("hi", 33, 0);//this is an internal register with arbitrary number
-      private static Register lo= new Register("lo", 34, 0);// this is an internal register with arbitrary number
+      private final Register programCounter= view("pc", PROGRAM_COUNTER, Memory.textBaseAddress); 
+      private final Register hi= view("hi", HI, 0);//this is an internal register with arbitrary number
+      private final Register lo= view("lo", LO, 0);// this is an internal register with arbitrary number
+   	
+      // Register objects indexed by number, including pc, hi and lo.
+      private final Register [] byNumber = 
+          { regFile[0], regFile[1], regFile[2], regFile[3], regFile[4], regFile[5], regFile[6], regFile[7],
+            regFile[8], regFile[9], regFile[10], regFile[11], regFile[12], regFile[13], regFile[14], regFile[15],
+            regFile[16], regFile[17], regFile[18], regFile[19], regFile[20], regFile[21], regFile[22], regFile[23],
+            regFile[24], regFile[25], regFile[26], regFile[27], regFile[28], regFile[29], regFile[30], regFile[31],
+            programCounter, hi, lo };
+   
+      // The registers of regFile, by name, for getUserRegister().
+      private final HashMap<String, Register> byName = new HashMap<String, Register>();
    		 
    
+   	/**
+   	  *  Creates the registers of a new machine, with their reset values for the current
+   	  *  memory configuration.  Used by MachineContext; everything else should use the
+   	  *  static methods.
+   	  **/
+   	  
+       public RegisterFile(){
+         for (int i=0; i < regFile.length; i++) {
+            byName.put(regFile[i].getName(), regFile[i]);
+         }
+      }
+   
+   	/**
+   	  *  Builds the Register object for one register as a view onto values[num].
+   	  **/
+   	  
+       private Register view(String name, int num, int val){
+         return new Register(name, num, val, values, num);
+      }
+   
+   	/**
+   	  *  Returns the registers of the MachineContext bound to the calling thread.
+   	  **/
+   	  
+       private static RegisterFile file(){
+         return MachineContext.current().getRegisterFile();
+      }
+   
    	/**
    	  *  Method for displaying the register values for debugging.
    	  **/	 
    		 
        public static void showRegisters(){
+         Register[] regFile = file().regFile;
          for (int i=0; i< regFile.length; i++){
             System.out.println("Name: " + regFile[i].getName());
             System.out.println("Number: " + regFile[i].getNumber());
@@ -93,31 +147,17 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	  
        public static int updateRegister(int num, int val){
-         int old = 0;
-         if(num == 0){
+         if(num <= 0 || num == PROGRAM_COUNTER || num > LO){
             //System.out.println("You can not change the value of the zero register.");
+            return 0;
          }
-         else {
-            for (int i=0; i< regFile.length; i++){
-               if(regFile[i].getNumber()== num) {
-                  old = (Globals.getSettings().getBackSteppingEnabled())
-                        ? Globals.program.getBackStepper().addRegisterFileRestore(num,regFile[i].setValue(val))
-                     	: regFile[i].setValue(val);
-                  break;
-               }
-            }
-         }
-         if(num== 33){//updates the hi register
-            old = (Globals.getSettings().getBackSteppingEnabled())
-               	      ? Globals.program.getBackStepper().addRegisterFileRestore(num,hi.setValue(val))
-               			: hi.setValue(val);
-         }
-         else if(num== 34){// updates the low register
-            old = (Globals.getSettings().getBackSteppingEnabled())
-               	      ? Globals.program.getBackStepper().addRegisterFileRestore(num,lo.setValue(val))
-               			: lo.setValue(val);
-         }
-         return old;
+         RegisterFile file = file();
+         int old = file.values[num];
+         file.values[num] = val;
+         file.byNumber[num].notifyAnyObservers(AccessNotice.WRITE);
+         return (Globals.getSettings().getBackSteppingEnabled())
+               ? MachineContext.current().getProgram().getBackStepper().addRegisterFileRestore(num,old)
+               : old;
       }
    	
    	/**
@@ -131,6 +171,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             //System.out.println("You can not change the value of the zero register.");
          }
          else{
+            Register[] regFile = file().regFile;
             for (int i=0; i< regFile.length; i++){
                if(regFile[i].getName().equals(reg)) {
                   updateRegister(i,val);
@@ -146,15 +187,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static int getValue(int num){
-         if(num==33){
-            return hi.getValue();
-         }
-         else if(num==34){
-            return lo.getValue();
-         }
-         else  
-            return regFile[num].getValue();
-            
+         RegisterFile file = file();
+         file.byNumber[num].notifyAnyObservers(AccessNotice.READ);
+         return file.values[num];
       }
       		
       	/**
@@ -166,6 +201,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       		
        public static int getNumber(String n){
          int j=-1;
+         Register[] regFile = file().regFile;
          for (int i=0; i< regFile.length; i++){
             if(regFile[i].getName().equals(n)) {
                j= regFile[i].getNumber();
@@ -181,7 +217,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static Register[] getRegisters(){
-         return regFile;
+         return file().regFile;
       }
       
    	/**
@@ -191,26 +227,16 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static Register getUserRegister(String Rname) {
-         Register reg = null;
-         if (Rname.charAt(0) == '$') {
-            try {
-                   // check for register number 0-31.
-               reg = regFile[Binary.stringToInt(Rname.substring(1))];    // KENV 1/6/05
-            }
-                catch (Exception e) {
-                   // handles both NumberFormat and ArrayIndexOutOfBounds
-                   // check for register mnemonic $zero thru $ra
-                  reg = null; // just to be sure
-                   // just do linear search; there aren't that many registers
-                  for (int i=0; i < regFile.length; i++) {
-                     if (Rname.equals(regFile[i].getName())) {
-                        reg = regFile[i];
-                        break;
-                     }
-                  }
-               }
+         if (Rname.charAt(0) != '$') {
+            return null;
+         }
+         RegisterFile file = file();
+         // check for register number 0-31, then for register mnemonic $zero thru $ra
+         long number = Binary.decodeInteger(Rname, 1);    // KENV 1/6/05
+         if (number >= 0 && number < file.regFile.length) {
+            return file.regFile[(int) number];
          }
-         return reg;
+         return file.byName.get(Rname);
       }
    
    	/**
@@ -221,7 +247,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
      
        public static void initializeProgramCounter(int value){
-         programCounter.setValue(value);
+         RegisterFile file = file();
+         file.values[PROGRAM_COUNTER] = value;
+         file.programCounter.notifyAnyObservers(AccessNotice.WRITE);
       }
    	
    	/**
@@ -234,12 +262,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 **/
    	 
        public static void initializeProgramCounter(boolean startAtMain) {  
-         int mainAddr = Globals.symbolTable.getAddress(SymbolTable.getStartLabel());
+         int mainAddr = MachineContext.current().getSymbolTable().getAddress(SymbolTable.getStartLabel());
          if (startAtMain && mainAddr != SymbolTable.NOT_FOUND && (Memory.inTextSegment(mainAddr) || Memory.inKernelTextSegment(mainAddr))) {
             initializeProgramCounter(mainAddr);
          } 
          else {
-            initializeProgramCounter(programCounter.getResetValue());
+            initializeProgramCounter(file().programCounter.getResetValue());
          }
       }
    	
@@ -251,10 +279,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
      
        public static int setProgramCounter(int value){
-         int old = programCounter.getValue();
-         programCounter.setValue(value);
+         RegisterFile file = file();
+         int old = file.values[PROGRAM_COUNTER];
+         file.values[PROGRAM_COUNTER] = value;
+         file.programCounter.notifyAnyObservers(AccessNotice.WRITE);
          if (Globals.getSettings().getBackSteppingEnabled()) {
-            Globals.program.getBackStepper().addPCRestore(old);
+            MachineContext.current().getProgram().getBackStepper().addPCRestore(old);
          } 
          return old;
       }
@@ -265,7 +295,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	 
        public static int getProgramCounter(){
-         return programCounter.getValue();
+         RegisterFile file = file();
+         file.programCounter.notifyAnyObservers(AccessNotice.READ);
+         return file.values[PROGRAM_COUNTER];
       }
    
      /**
@@ -273,7 +305,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	*  @return program counter's Register object.
    	*/
        public static Register getProgramCounterRegister() {
-         return programCounter;
+         return file().programCounter;
       }
    	
      /**
@@ -282,7 +314,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	 
        public static int getInitialProgramCounter(){
-         return programCounter.getResetValue();
+         return file().programCounter.getResetValue();
       }
    	
    	/**
@@ -295,12 +327,40 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  **/
    	
        public static void resetRegisters(){
-         for(int i=0; i< regFile.length; i++){
-            regFile[i].resetValue();
+         RegisterFile file = file();
+         for(int i=0; i< file.regFile.length; i++){
+            file.regFile[i].resetValue();
          }
          initializeProgramCounter(Globals .getSettings().getStartAtMain());// replaces "programCounter.resetValue()", DPS 3/3/09
-         hi.resetValue();
-         lo.resetValue();
+         file.hi.resetValue();
+         file.lo.resetValue();
+      }
+   
+   	/**
+   	  *  Returns a copy of the values of all registers, including pc, hi and lo, for
+   	  *  a later call to restoreValues().
+   	  *   @return array of register values
+   	  **/
+   	  
+       public static int[] copyValues(){
+         return file().values.clone();
+      }
+   
+   	/**
+   	  *  Sets all registers, including pc, hi and lo, to values obtained from
+   	  *  copyValues().  Observers of each register that changes are notified of the
+   	  *  WRITE, but no back-step is recorded.
+   	  *   @param saved array of register values returned by copyValues()
+   	  **/
+   	  
+       public static void restoreValues(int[] saved){
+         RegisterFile file = file();
+         for (int i = 0; i < file.values.length; i++) {
+            if (file.values[i] != saved[i]) {
+               file.values[i] = saved[i];
+               file.byNumber[i].notifyAnyObservers(AccessNotice.WRITE);
+            }
+         }
       }
       
      /**
@@ -308,7 +368,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 **/
    
        public static void incrementPC(){
-         programCounter.setValue(programCounter.getValue() + Instruction.INSTRUCTION_LENGTH);
+         RegisterFile file = file();
+         file.values[PROGRAM_COUNTER] += Instruction.INSTRUCTION_LENGTH;
+         file.programCounter.notifyAnyObservers(AccessNotice.WRITE);
       }
    
       /**
@@ -317,11 +379,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  Counter.
    	 */
        public static void addRegistersObserver(Observer observer) {
-         for (int i=0; i<regFile.length; i++) {
-            regFile[i].addObserver(observer);
+         RegisterFile file = file();
+         for (int i=0; i<file.regFile.length; i++) {
+            file.regFile[i].addObserver(observer);
          }
-         hi.addObserver(observer);
-         lo.addObserver(observer);
+         file.hi.addObserver(observer);
+         file.lo.addObserver(observer);
       }
    	
       /**
@@ -330,10 +393,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 *  Counter.
    	 */
        public static void deleteRegistersObserver(Observer observer) {
-         for (int i=0; i<regFile.length; i++) {
-            regFile[i].deleteObserver(observer);
+         RegisterFile file = file();
+         for (int i=0; i<file.regFile.length; i++) {
+            file.regFile[i].deleteObserver(observer);
          }
-         hi.deleteObserver(observer);
-         lo.deleteObserver(observer);
+         file.hi.deleteObserver(observer);
+         file.lo.deleteObserver(observer);
       }
    }
@@ -0,0 +1,13 @@
+package mars.mips.hardware;
+import java.util.Observer;
+
+/**
+ * Marker for an Observer of memory that uses each AccessNotice only while its
+ * update() method is running and never keeps a reference to it.  Memory may then
+ * pass it the same notice object, refilled, for every access instead of allocating
+ * a new one each time, which keeps such an observer cheap to leave attached during
+ * long runs.  Observers that store or hand off notices must not implement this.
+ **/
+
+public interface TransientNoticeObserver extends Observer {
+}
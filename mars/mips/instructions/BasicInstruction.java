@@ -45,6 +45,7 @@ public class BasicInstruction extends Instruction {
 
 	private int opcodeMask;  // integer with 1's where constants required (0/1 become 1, f/s/t become 0)
 	private int opcodeMatch; // integer matching constants required (0/1 become 0/1, f/s/t become 0)
+	private boolean reproducible = true; // false for instructions of custom languages
 	/**
 	 * BasicInstruction constructor.
 	 * 
@@ -139,4 +140,20 @@ public class BasicInstruction extends Instruction {
 	public int getOpcodeMatch() {
 		return this.opcodeMatch;
 	}
+
+	/**
+	 * Tells whether simulating this instruction again from the same state does the
+	 * same thing.  Instructions of custom languages may print or draw random numbers,
+	 * so back-stepping records what they changed instead of simulating them again.
+	 *
+	 * @return true for instructions of the MIPS instruction set, false for those of
+	 * custom languages.
+	 **/
+	public boolean isReproducible() {
+		return this.reproducible;
+	}
+
+	void setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+	}
 }
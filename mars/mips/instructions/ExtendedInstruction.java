@@ -46,6 +46,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     public class ExtendedInstruction extends Instruction {
    
       private ArrayList translationStrings, compactTranslationStrings;
+      // Compiled forms of the above, made when first used with an instruction set.
+      private volatile TranslationTemplate[] translationTemplates, compactTranslationTemplates;
     /**
      * Constructor for ExtendedInstruction.
      * 
@@ -160,6 +162,37 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public ArrayList getCompactBasicIntructionTemplateList() {
          return compactTranslationStrings;
       }
+
+    /**
+     * Get the templates of getBasicIntructionTemplateList(), or of 
+     * getCompactBasicIntructionTemplateList() if compact is true, compiled for the
+     * current instruction set.  These make the tokens of the basic statements directly,
+     * instead of by makeTemplateSubstitutions() and tokenizing its result.
+     * @param compact true for the compact (16 bit) translation
+     * @return array with one TranslationTemplate per template.  Returns null if there is
+     * no such translation.
+     */
+    
+       public TranslationTemplate[] getTranslationTemplates(boolean compact) {
+         ArrayList<?> strings = compact ? compactTranslationStrings : translationStrings;
+         if (strings == null) {
+            return null;
+         }
+         TranslationTemplate[] templates = compact ? compactTranslationTemplates : translationTemplates;
+         if (templates == null || templates[0].getInstructionSetVersion() != Globals.instructionSet.getVersion()) {
+            templates = new TranslationTemplate[strings.size()];
+            for (int i=0; i<templates.length; i++) {
+               templates[i] = TranslationTemplate.compile((String) strings.get(i));
+            }
+            if (compact) {
+               compactTranslationTemplates = templates;
+            } 
+            else {
+               translationTemplates = templates;
+            }
+         }
+         return templates;
+      }
 		   
       /**
    	 * Given a basic instruction template and the list of tokens from an extended
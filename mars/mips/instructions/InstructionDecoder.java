@@ -0,0 +1,232 @@
+package mars.mips.instructions;
+import java.util.*;
+
+/**
+ * Finds the BasicInstruction that a 32-bit machine word encodes.  Built by
+ * InstructionSet.populate() from the opcode mask and match of every basic
+ * instruction of the enabled languages.
+ *
+ * The decoder is a tree of lookup tables held in int arrays.  Each node takes a
+ * field of the word, such as the 6 opcode bits, and uses it to index a table
+ * whose entries are either another node, which looks at a further field such as
+ * the funct or rt bits, or a leaf: a short list of candidates that are checked
+ * against the whole word, most specific mask first.  For the MIPS instruction set
+ * this is two or three table lookups and a compare or two per word.  Fields are
+ * chosen from the masks themselves, so encodings that do not follow the MIPS
+ * layout still decode correctly; the worst case is a longer leaf.
+ *
+ * When two candidates can match the same word, the one whose mask has more 1 bits
+ * wins, which is how findByBinaryCode() has always chosen.  Encodings of different
+ * languages that overlap this way are recorded as conflicts, see getConflicts().
+ **/
+
+final class InstructionDecoder {
+
+   // Leaves at most this long are not split further.
+   private static final int LEAF_SIZE = 2;
+   // Widest field a node decodes, so that a table has at most 256 entries.
+   private static final int MAX_FIELD_BITS = 8;
+
+   // Node n decodes (word >>> nodeShift[n]) & nodeFieldMask[n] and finds the entry
+   // at that offset from nodeBase[n] in table.  An entry >= 0 is a node number; an
+   // entry < 0 is ~leaf, and leaf l is candidates leafStart[l] to leafStart[l+1]-1.
+   private int[] nodeShift = new int[16];
+   private int[] nodeFieldMask = new int[16];
+   private int[] nodeBase = new int[16];
+   private int nodeCount = 0;
+   private int[] table = new int[256];
+   private int tableSize = 0;
+   private int[] leafStart = new int[16];
+   private int leafCount = 0;
+   private int[] candidateMasks = new int[64];
+   private int[] candidateMatches = new int[64];
+   private BasicInstruction[] candidates = new BasicInstruction[64];
+   private int candidateCount = 0;
+   private final int root;
+   private final ArrayList<String> conflicts = new ArrayList<String>();
+
+   /**
+    * Build a decoder for the basic instructions in a list.  If two instructions
+    * have the same mask and match, the later one is decoded.
+    *
+    * @param instructionList instructions of the enabled languages, in order; any
+    *        that are not BasicInstructions are ignored
+    * @param languages maps a BasicInstruction to the name of the language that
+    *        defined it, for reporting conflicts; instructions not in it are taken
+    *        to belong to no language and are not checked
+    */
+   InstructionDecoder(List<?> instructionList, Map<?, String> languages) {
+      LinkedHashMap<Long, BasicInstruction> byEncoding = new LinkedHashMap<Long, BasicInstruction>();
+      for (int i = 0; i < instructionList.size(); i++) {
+         Object instruction = instructionList.get(i);
+         if (instruction instanceof BasicInstruction) {
+            BasicInstruction basic = (BasicInstruction) instruction;
+            long encoding = ((long) basic.getOpcodeMask() << 32) | (basic.getOpcodeMatch() & 0xFFFFFFFFL);
+            byEncoding.remove(Long.valueOf(encoding));
+            byEncoding.put(Long.valueOf(encoding), basic);
+         }
+      }
+      ArrayList<BasicInstruction> ordered = new ArrayList<BasicInstruction>(byEncoding.values());
+      Collections.sort(ordered,
+         new Comparator<BasicInstruction>() {
+            public int compare(BasicInstruction a, BasicInstruction b) {
+               int maskA = a.getOpcodeMask();
+               int maskB = b.getOpcodeMask();
+               int d = Integer.bitCount(maskB) - Integer.bitCount(maskA);
+               return (d != 0) ? d : (maskA < maskB ? -1 : (maskA == maskB ? 0 : 1));
+            }
+         });
+      findConflicts(instructionList, languages);
+      root = build(ordered, 0);
+   }
+
+   /**
+    * Returns the instruction that a word encodes.
+    *
+    * @param word a machine word
+    * @return the matching instruction with the most specific mask, or null if none matches
+    */
+   BasicInstruction decode(int word) {
+      int entry = root;
+      while (entry >= 0) {
+         entry = table[nodeBase[entry] + ((word >>> nodeShift[entry]) & nodeFieldMask[entry])];
+      }
+      int leaf = ~entry;
+      int end = leafStart[leaf + 1];
+      for (int i = leafStart[leaf]; i < end; i++) {
+         if ((word & candidateMasks[i]) == candidateMatches[i]) {
+            return candidates[i];
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns a description of each pair of instructions from different languages
+    * that both match some machine word.  Only one of each pair can be decoded.
+    *
+    * @return list of Strings, empty if there are no conflicts
+    */
+   List<String> getConflicts() {
+      return Collections.unmodifiableList(conflicts);
+   }
+
+   private void findConflicts(List<?> instructionList, Map<?, String> languages) {
+      ArrayList<BasicInstruction> owned = new ArrayList<BasicInstruction>();
+      for (int i = 0; i < instructionList.size(); i++) {
+         Object instruction = instructionList.get(i);
+         if (instruction instanceof BasicInstruction && languages.get(instruction) != null) {
+            owned.add((BasicInstruction) instruction);
+         }
+      }
+      for (int i = 0; i < owned.size(); i++) {
+         BasicInstruction a = owned.get(i);
+         for (int j = i + 1; j < owned.size(); j++) {
+            BasicInstruction b = owned.get(j);
+            int common = a.getOpcodeMask() & b.getOpcodeMask();
+            if (((a.getOpcodeMatch() ^ b.getOpcodeMatch()) & common) == 0
+                && !languages.get(a).equals(languages.get(b))) {
+               conflicts.add("\"" + a.getName() + "\" (" + languages.get(a) + ") and \""
+                  + b.getName() + "\" (" + languages.get(b) + ") have overlapping encodings "
+                  + a.getOperationMask() + " and " + b.getOperationMask());
+            }
+         }
+      }
+   }
+
+   // Returns the table entry for the given candidates, in priority order, of which
+   // the bits in decoded are already known to match.
+   private int build(List<BasicInstruction> list, int decoded) {
+      if (list.size() <= LEAF_SIZE) {
+         return leaf(list);
+      }
+      // Split on bits that more than half of the candidates require.  Candidates
+      // that do not care about the field are put under every value of it.
+      int[] counts = new int[32];
+      int best = 0;
+      for (int i = 0; i < list.size(); i++) {
+         int mask = list.get(i).getOpcodeMask() & ~decoded;
+         for (int bit = 0; bit < 32; bit++) {
+            if ((mask & (1 << bit)) != 0) {
+               counts[bit]++;
+            }
+         }
+      }
+      for (int bit = 0; bit < 32; bit++) {
+         if (counts[bit] > counts[best]) {
+            best = bit;
+         }
+      }
+      if (counts[best] * 2 <= list.size()) {
+         return leaf(list);
+      }
+      int high = best;
+      while (high < 31 && counts[high + 1] * 2 > list.size() && high - best + 1 < MAX_FIELD_BITS) {
+         high++;
+      }
+      int low = best;
+      while (low > 0 && counts[low - 1] * 2 > list.size() && high - low + 1 < MAX_FIELD_BITS) {
+         low--;
+      }
+      int width = high - low + 1;
+      int fieldMask = (int) ((1L << width) - 1);
+      int field = fieldMask << low;
+
+      int node = nodeCount++;
+      nodeShift = grow(nodeShift, node);
+      nodeFieldMask = grow(nodeFieldMask, node);
+      nodeBase = grow(nodeBase, node);
+      nodeShift[node] = low;
+      nodeFieldMask[node] = fieldMask;
+      int base = tableSize;
+      tableSize += 1 << width;
+      while (table.length < tableSize) {
+         table = Arrays.copyOf(table, table.length * 2);
+      }
+      nodeBase[node] = base;
+      // Values of the field often select the same candidates, most often none.
+      HashMap<List<BasicInstruction>, Integer> built = new HashMap<List<BasicInstruction>, Integer>();
+      for (int value = 0; value <= fieldMask; value++) {
+         int bits = value << low;
+         ArrayList<BasicInstruction> selected = new ArrayList<BasicInstruction>();
+         for (int i = 0; i < list.size(); i++) {
+            BasicInstruction instruction = list.get(i);
+            int mask = instruction.getOpcodeMask() & field;
+            if ((bits & mask) == (instruction.getOpcodeMatch() & mask)) {
+               selected.add(instruction);
+            }
+         }
+         Integer entry = built.get(selected);
+         if (entry == null) {
+            entry = Integer.valueOf(build(selected, decoded | field));
+            built.put(selected, entry);
+         }
+         table[base + value] = entry.intValue();
+      }
+      return node;
+   }
+
+   private int leaf(List<BasicInstruction> list) {
+      int leaf = leafCount++;
+      leafStart = grow(leafStart, leaf + 1);
+      leafStart[leaf] = candidateCount;
+      for (int i = 0; i < list.size(); i++) {
+         BasicInstruction instruction = list.get(i);
+         if (candidateCount == candidates.length) {
+            candidates = Arrays.copyOf(candidates, candidateCount * 2);
+            candidateMasks = Arrays.copyOf(candidateMasks, candidateCount * 2);
+            candidateMatches = Arrays.copyOf(candidateMatches, candidateCount * 2);
+         }
+         candidates[candidateCount] = instruction;
+         candidateMasks[candidateCount] = instruction.getOpcodeMask();
+         candidateMatches[candidateCount] = instruction.getOpcodeMatch();
+         candidateCount++;
+      }
+      leafStart[leaf + 1] = candidateCount;
+      return ~leaf;
+   }
+
+   private static int[] grow(int[] array, int index) {
+      return (index < array.length) ? array : Arrays.copyOf(array, array.length * 2);
+   }
+}
@@ -46,7 +46,15 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     public class InstructionSet
    {
       private ArrayList instructionList;
-	  private ArrayList opcodeMatchMaps;
+      private InstructionDecoder decoder = new InstructionDecoder(new ArrayList<Object>(), new HashMap<Object, String>());
+      // Built by populate() for matchOperator() and prefixMatchOperator().  Mnemonics are
+      // case-folded.  The sorted arrays are parallel: a prefix selects a range of them,
+      // and the positions put that range back in instruction list order.
+      private HashMap<String, ArrayList<Instruction>> operatorIndex = new HashMap<String, ArrayList<Instruction>>();
+      private String[] sortedOperatorNames = new String[0];
+      private int[] sortedOperatorPositions = new int[0];
+      private Instruction[] indexedInstructions = new Instruction[0];
+      private int version = 0;
       private SyscallLoader syscallLoader;
     /**
      * Creates a new InstructionSet object.
@@ -64,6 +72,15 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          return instructionList;
       
       }
+    /**
+     * Returns a number that changes each time the set is populated, so that results
+     * that depend on the instructions in it, such as the classification of tokens,
+     * can be kept until it changes.
+     */
+       public int getVersion()
+      {
+         return version;
+      }
       /* // Used for debug output
       private boolean windowInit = false; 
       private JFrame frame;
@@ -89,6 +106,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 
       // String before = Integer.toString(instructionList.size());
       instructionList.clear();
+      version++;
       /* // Yet more debug
       JLabel debugLabel = new JLabel();
       debugLabel.setPreferredSize(new Dimension(175, 100));
@@ -113,36 +131,99 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             inst.createExampleTokenList();
          }
 
-		 HashMap maskMap = new HashMap();
-		 ArrayList matchMaps = new ArrayList();
-		 for (int i = 0; i < instructionList.size(); i++) {
-		 	Object rawInstr = instructionList.get(i);
-			if (rawInstr instanceof BasicInstruction) {
-				BasicInstruction basic = (BasicInstruction) rawInstr;
-				Integer mask = Integer.valueOf(basic.getOpcodeMask());
-				Integer match = Integer.valueOf(basic.getOpcodeMatch());
-				HashMap matchMap = (HashMap) maskMap.get(mask);
-				if (matchMap == null) {
-					matchMap = new HashMap();
-					maskMap.put(mask, matchMap);
-					matchMaps.add(new MatchMap(mask, matchMap));
-				}
-				matchMap.put(match, basic);
-			}
-		 }
-		 Collections.sort(matchMaps);
-		 this.opcodeMatchMaps = matchMaps;
+      // Decoder for machine words, used by findByBinaryCode().  Each basic instruction
+      // is attributed to its language, so that overlapping encodings can be reported.
+         HashMap<Object, String> languages = new HashMap<Object, String>();
+         for (int i = 0; i < LanguageLoader.assemblyList.size(); i++)
+         {
+            CustomAssembly language = LanguageLoader.assemblyList.get(i);
+            if (language.enabled)
+            {
+               for (int j = 0; j < language.instructionList.size(); j++)
+                  languages.put(language.instructionList.get(j), language.getName());
+            }
+         }
+         decoder = new InstructionDecoder(instructionList, languages);
+         // Reported on standard error, apart from the output of the programs run.
+         List<String> conflicts = decoder.getConflicts();
+         for (int i = 0; i < conflicts.size(); i++)
+            System.err.println("Warning: " + conflicts.get(i));
+      
+         buildOperatorIndex();
+      }
+   
+    // Index the mnemonics of the instruction list, which populate() has just rebuilt for
+    // the languages now enabled.
+       private void buildOperatorIndex()
+      {
+         int count = instructionList.size();
+         HashMap<String, ArrayList<Instruction>> index = new HashMap<String, ArrayList<Instruction>>();
+         Instruction[] instructions = new Instruction[count];
+         final String[] names = new String[count];
+         Integer[] order = new Integer[count];
+         for (int i = 0; i < count; i++)
+         {
+            instructions[i] = (Instruction) instructionList.get(i);
+            names[i] = foldOperator(instructions[i].getName());
+            order[i] = Integer.valueOf(i);
+            ArrayList<Instruction> matches = index.get(names[i]);
+            if (matches == null)
+            {
+               matches = new ArrayList<Instruction>();
+               index.put(names[i], matches);
+            }
+            matches.add(instructions[i]);
+         }
+         Arrays.sort(order, 
+               new Comparator<Integer>() {
+                   public int compare(Integer a, Integer b) {
+                     return names[a.intValue()].compareTo(names[b.intValue()]);
+                  }
+               });
+         String[] sortedNames = new String[count];
+         int[] sortedPositions = new int[count];
+         for (int i = 0; i < count; i++)
+         {
+            sortedPositions[i] = order[i].intValue();
+            sortedNames[i] = names[sortedPositions[i]];
+         }
+         operatorIndex = index;
+         sortedOperatorNames = sortedNames;
+         sortedOperatorPositions = sortedPositions;
+         indexedInstructions = instructions;
+      }
+   
+    // Maps each character as String.equalsIgnoreCase() compares it, so that two
+    // mnemonics are equal ignoring case exactly when their folded forms are equal.
+       private static String foldOperator(String name)
+      {
+         char[] folded = new char[name.length()];
+         for (int i = 0; i < folded.length; i++)
+            folded[i] = Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+         return new String(folded);
       }
 
-	public BasicInstruction findByBinaryCode(int binaryInstr) {
-		ArrayList matchMaps = this.opcodeMatchMaps;
-		for (int i = 0; i < matchMaps.size(); i++) {
-			MatchMap map = (MatchMap) matchMaps.get(i);
-			BasicInstruction ret = map.find(binaryInstr);
-			if (ret != null) return ret;
-		}
-		return null;
-	}
+    /**
+     *  Given a machine word, will return the basic instruction it encodes.  If more
+     *  than one matches, the one whose opcode mask has the most 1 bits is returned.
+     *  @param binaryInstr 32-bit machine word
+     *  @return the matching BasicInstruction, or null if none matches.
+     */
+       public BasicInstruction findByBinaryCode(int binaryInstr)
+      {
+         return decoder.decode(binaryInstr);
+      }
+   
+    /**
+     *  Returns a description of each pair of basic instructions from different
+     *  enabled languages whose encodings overlap, found when the set was last populated.
+     *  Only one of each pair can be found by findByBinaryCode().
+     *  @return list of Strings, empty if there are none.
+     */
+       public List<String> getEncodingConflicts()
+      {
+         return decoder.getConflicts();
+      }
    	
     /*  METHOD TO ADD PSEUDO-INSTRUCTIONS
     */
@@ -221,49 +302,68 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
     /**
      *  Given an operator mnemonic, will return the corresponding Instruction object(s)
-     *  from the instruction set.  Uses straight linear search technique.
+     *  from the instruction set.  Case-insensitive.  Uses the index built by populate().
      *  @param name operator mnemonic (e.g. addi, sw,...)
      *  @return list of corresponding Instruction object(s), or null if not found.
      */
        public ArrayList matchOperator(String name)
       {
-         ArrayList matchingInstructions = null;
-        // Linear search for now....
-         for (int i = 0; i < instructionList.size(); i++)
-         {
-            if (((Instruction) instructionList.get(i)).getName().equalsIgnoreCase(name))
-            {
-               if (matchingInstructions == null) 
-                  matchingInstructions = new ArrayList();
-               matchingInstructions.add(instructionList.get(i));
-            }
-         }
-         return matchingInstructions;
+         if (name == null)
+            return null;
+         ArrayList<Instruction> matches = operatorIndex.get(foldOperator(name));
+         return (matches == null) ? null : new ArrayList<Instruction>(matches);
+      }
+   
+   
+    /**
+     *  Tells whether a string is the operator mnemonic of some instruction in the set.
+     *  Case-insensitive.  Same as matchOperator(name) != null, without building the list.
+     *  @param name a string
+     *  @return true if some instruction has this mnemonic.
+     */
+       public boolean isOperator(String name)
+      {
+         return name != null && operatorIndex.containsKey(foldOperator(name));
       }
    
    
     /**
      *  Given a string, will return the Instruction object(s) from the instruction
      *  set whose operator mnemonic prefix matches it.  Case-insensitive.  For example
-     *  "s" will match "sw", "sh", "sb", etc.  Uses straight linear search technique.
+     *  "s" will match "sw", "sh", "sb", etc.  Binary searches the sorted mnemonics
+     *  built by populate() for the range that starts with the string.
      *  @param name a string
-     *  @return list of matching Instruction object(s), or null if none match.
+     *  @return list of matching Instruction object(s), in instruction set order, or null if none match.
      */
        public ArrayList prefixMatchOperator(String name)
       {
-         ArrayList matchingInstructions = null;
-        // Linear search for now....
-         if (name != null) {
-            for (int i = 0; i < instructionList.size(); i++)
-            {
-               if (((Instruction) instructionList.get(i)).getName().toLowerCase().startsWith(name.toLowerCase()))
-               {
-                  if (matchingInstructions == null) 
-                     matchingInstructions = new ArrayList();
-                  matchingInstructions.add(instructionList.get(i));
-               }
-            }
+         if (name == null)
+            return null;
+         String prefix = foldOperator(name);
+         String[] names = sortedOperatorNames;
+         int[] positions = sortedOperatorPositions;
+         Instruction[] instructions = indexedInstructions;
+         int low = 0;
+         int high = names.length;
+         while (low < high)
+         {
+            int middle = (low + high) >>> 1;
+            if (names[middle].compareTo(prefix) < 0)
+               low = middle + 1;
+            else
+               high = middle;
          }
+         int end = low;
+         while (end < names.length && names[end].startsWith(prefix))
+            end++;
+         if (end == low)
+            return null;
+         int[] matched = new int[end - low];
+         System.arraycopy(positions, low, matched, 0, matched.length);
+         Arrays.sort(matched);
+         ArrayList<Instruction> matchingInstructions = new ArrayList<Instruction>(matched.length);
+         for (int i = 0; i < matched.length; i++)
+            matchingInstructions.add(instructions[matched[i]]);
          return matchingInstructions;
       }
    	
@@ -277,8 +377,23 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                                                         throws ProcessingException {
          Syscall service = syscallLoader.findSyscall(number);
          if (service != null) {
-            service.simulate(statement);
-            return;
+            Simulator.endExecutionQuantum();
+            long start = System.nanoTime();
+            try {
+               if (Globals.getSettings().getBackSteppingEnabled()) {
+                  // Record what the service changes so that back-stepping can replay
+                  // past it without carrying it out again.
+                  MachineContext.current().getProgram().getBackStepper().syscallStarting();
+                  service.simulate(statement);
+                  MachineContext.current().getProgram().getBackStepper().syscallCompleted();
+                  return;
+               }
+               service.simulate(statement);
+               return;
+            } 
+            finally {
+               SimulationMetrics.getInstance().countSyscall(number, System.nanoTime() - start);
+            }
          }
          throw new ProcessingException(statement,
               "invalid or unimplemented syscall service: " +
@@ -350,40 +465,5 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                  ((Globals.getSettings().getDelayedBranchingEnabled()) ? 
             	  Instruction.INSTRUCTION_LENGTH : 0) );	 
       }
-
-	  private static class MatchMap implements Comparable {
-	  	private int mask;
-		private int maskLength; // number of 1 bits in mask
-		private HashMap matchMap;
-
-		public MatchMap(int mask, HashMap matchMap) {
-			this.mask = mask;
-			this.matchMap = matchMap;
-
-			int k = 0;
-			int n = mask;
-			while (n != 0) {
-				k++;
-				n &= n - 1;
-			}
-			this.maskLength = k;
-		}
-
-		public boolean equals(Object o) {
-			return o instanceof MatchMap && mask == ((MatchMap) o).mask;
-		}
-
-		public int compareTo(Object other) {
-			MatchMap o = (MatchMap) other;
-			int d = o.maskLength - this.maskLength;
-			if (d == 0) d = this.mask - o.mask;
-			return d;
-		}
-
-		public BasicInstruction find(int instr) {
-			int match = Integer.valueOf(instr & mask);
-			return (BasicInstruction) matchMap.get(match);
-		}
-	}
    }
 
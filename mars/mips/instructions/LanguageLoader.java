@@ -82,9 +82,15 @@ public class LanguageLoader{
         finalInstructionList.clear();
         for (CustomAssembly c : assemblyList){
             if (c.enabled){
+                int first = finalInstructionList.size();
                 c.addCustomInstructions(finalInstructionList);
                 if (c instanceof MipsAssembly){
                     pseudo = true;
+                } else{
+                    // Back-stepping cannot count on custom instructions doing the same thing twice.
+                    for (int i = first; i < finalInstructionList.size(); i++){
+                        finalInstructionList.get(i).setReproducible(false);
+                    }
                 }
             }
         }
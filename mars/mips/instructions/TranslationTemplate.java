@@ -0,0 +1,383 @@
+package mars.mips.instructions;
+import mars.*;
+import mars.util.*;
+import mars.assembler.*;
+import mars.mips.hardware.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * One template of an ExtendedInstruction, compiled so that the basic statement it
+ * stands for can be made without rewriting and tokenizing text.  The template is
+ * tokenized once, and each of its tokens is either a literal, whose value and type
+ * are kept, or a placeholder such as RG1, VL2U or LAB (see
+ * ExtendedInstruction.makeTemplateSubstitutions), which is decoded into the operand
+ * it refers to and what to compute from it.  makeTokenList() then fills in the
+ * placeholders from the operands of a statement and returns tokens with the values,
+ * types and positions that tokenizing the substituted template would give.
+ *
+ * Whatever this cannot reproduce exactly is left to the text substitution: a
+ * template with a placeholder inside a longer token, a substituted value that would
+ * not tokenize as one token, a placeholder that would be left in place because its
+ * operand is missing, and so on.  Literal token types depend on the instruction set,
+ * so a template is compiled for one InstructionSet version.
+ **/
+
+public final class TranslationTemplate {
+
+   // What a placeholder is replaced by.
+   private static final int OPERAND = 0;            // RGn, OPn
+   private static final int NEXT_REGISTER = 1;      // NRn
+   private static final int HIGH = 2;               // VHLn[Pm], LHL, LHPN
+   private static final int HIGH_ADJUSTED = 3;      // LHn[Pm], VHn[Pm], LHPA[Pm]
+   private static final int LOW = 4;                // LLn[Pm], VLn[Pm], LLP[Pm]
+   private static final int LOW_UNSIGNED = 5;       // LLnU, VLn[Pm]U, LLPU
+   private static final int BRANCH_OFFSET = 6;      // BROFFnm
+   private static final int SHIFT_COMPLEMENT = 7;   // S32
+   private static final int LABEL = 8;              // LAB
+
+   private static final Pattern REGISTER_PLACEHOLDER = Pattern.compile("(RG|OP|NR)([1-9])");
+   private static final Pattern HALF_PLACEHOLDER = Pattern.compile("(LH|LL|VHL|VH|VL)([1-9])(?:P([0-9]))?(U?)");
+   private static final Pattern SUM_PLACEHOLDER = Pattern.compile("(LHPA|LHPN|LLP)(?:P([0-9]))?(U?)");
+   private static final Pattern BRANCH_OFFSET_PLACEHOLDER = Pattern.compile("BROFF[0-9][0-9]");
+   // Text that makeTemplateSubstitutions() would replace wherever it appears.
+   private static final String[] MARKERS = {"RG", "OP", "NR", "LH", "LL", "VH", "VL", "BROFF", "S32", "LAB"};
+   // Characters that end or start a token.
+   private static final String DELIMITERS = " \t,#+-:()\"'";
+
+   private final String template;
+   private final int instructionSetVersion;
+   private final boolean usesLabel;
+   // Only made if delayed branching is enabled (DBNOP).
+   private final boolean delayedBranchNop;
+   // Null if the template is left to text substitution.  For placeholders, values
+   // holds the placeholder, kinds >= 0 and types is unused; for literals kinds is -1.
+   private final String[] values;
+   private final TokenTypes[] types;
+   private final int[] starts;
+   private final int[] kinds;
+   private final int[] operands;
+   private final int[] addends;
+   private final int[] constants;
+
+   private TranslationTemplate(String template, int instructionSetVersion, TokenList tokens,
+      int[] kinds, int[] operands, int[] addends, int[] constants) {
+      this.template = template;
+      this.instructionSetVersion = instructionSetVersion;
+      this.usesLabel = template.indexOf("LAB") >= 0;
+      this.delayedBranchNop = template.indexOf("DBNOP") >= 0;
+      this.kinds = kinds;
+      this.operands = operands;
+      this.addends = addends;
+      this.constants = constants;
+      if (tokens == null) {
+         values = null;
+         types = null;
+         starts = null;
+         return;
+      }
+      values = new String[tokens.size()];
+      types = new TokenTypes[tokens.size()];
+      starts = new int[tokens.size()];
+      for (int i = 0; i < tokens.size(); i++) {
+         values[i] = tokens.get(i).getValue();
+         types[i] = tokens.get(i).getType();
+         starts[i] = tokens.get(i).getStartPos();
+      }
+   }
+
+   /**
+    * Compile a template for the current instruction set.
+    *
+    * @param template one line of the translation of an extended instruction
+    * @return the compiled template
+    */
+   public static TranslationTemplate compile(String template) {
+      int version = Globals.instructionSet.getVersion();
+      if (template.indexOf("DBNOP") >= 0) {
+         // makeTemplateSubstitutions() makes "nop" of anything containing it.
+         TokenList nop = new Tokenizer().tokenizeLine(null, 0, "nop", false);
+         return new TranslationTemplate(template, version, nop, new int[] {-1}, new int[1], new int[1], new int[1]);
+      }
+      TokenList raw = new Tokenizer().tokenizeLine(null, 0, template, false);
+      // Placeholders are tokenized as identifiers, which changes how a following
+      // sign is read, so literals are taken from the template with each placeholder
+      // replaced by zeros.  Each placeholder must still be a token of its own.
+      StringBuilder zeroed = new StringBuilder(template);
+      int[] holes = new int[template.length() + 1];
+      Arrays.fill(holes, -1);
+      for (int i = 0; i < raw.size(); i++) {
+         Token token = raw.get(i);
+         if (decode(token.getValue(), new int[3]) >= 0) {
+            for (int j = 0; j < token.getValue().length(); j++) {
+               zeroed.setCharAt(token.getStartPos() - 1 + j, '0');
+               holes[token.getStartPos() + j] = i;
+            }
+         }
+         else if (containsMarker(token.getValue())) {
+            return new TranslationTemplate(template, version, null, null, null, null, null);
+         }
+      }
+      TokenList tokens = new Tokenizer().tokenizeLine(null, 0, zeroed.toString(), false);
+      int count = tokens.size();
+      int[] kinds = new int[count];
+      int[] operands = new int[count];
+      int[] addends = new int[count];
+      int[] constants = new int[count];
+      for (int i = 0; i < count; i++) {
+         Token token = tokens.get(i);
+         int start = token.getStartPos();
+         int end = start + token.getValue().length() - 1;
+         kinds[i] = -1;
+         if (holes[start] >= 0 || holes[end] >= 0) {
+            Token placeholder = raw.get(Math.max(holes[start], holes[end]));
+            if (placeholder.getStartPos() != start || placeholder.getValue().length() != token.getValue().length()) {
+               return new TranslationTemplate(template, version, null, null, null, null, null);
+            }
+            int[] decoded = new int[3];
+            kinds[i] = decode(placeholder.getValue(), decoded);
+            operands[i] = decoded[0];
+            addends[i] = decoded[1];
+            constants[i] = decoded[2];
+            tokens.set(i, placeholder);
+         }
+      }
+      return new TranslationTemplate(template, version, tokens, kinds, operands, addends, constants);
+   }
+
+   /**
+    * Returns the InstructionSet version this template was compiled for.
+    *
+    * @return the value of InstructionSet.getVersion() when compiled
+    */
+   public int getInstructionSetVersion() {
+      return instructionSetVersion;
+   }
+
+   /**
+    * Returns whether the template refers to a label by name (LAB).
+    *
+    * @return true if the label in the last operand is substituted by name
+    */
+   public boolean usesLabel() {
+      return usesLabel;
+   }
+
+   /**
+    * Make the tokens of the basic statement this template stands for.
+    *
+    * @param program program whose symbol tables give label names for LAB
+    * @param operands tokens of the extended statement in basic assembly form
+    * @param line source line number given to the tokens
+    * @param errors where tokenizing errors go, if the statement has to be tokenized
+    * @return the tokens, or null if the template makes no statement (DBNOP with
+    *         delayed branching disabled)
+    */
+   public TokenList makeTokenList(MIPSprogram program, TokenList operands, int line, ErrorList errors) {
+      if (delayedBranchNop && !Globals.getSettings().getBooleanSetting(Settings.DELAYED_BRANCHING_ENABLED)) {
+         return null;
+      }
+      TokenList result = (values == null) ? null : fill(program, operands, line);
+      if (result == null) {
+         String instruction = ExtendedInstruction.makeTemplateSubstitutions(program, template, operands);
+         if (instruction == null || instruction.length() == 0) {
+            return null;
+         }
+         result = new Tokenizer().tokenizeLine(line, instruction, errors, false);
+      }
+      return result;
+   }
+
+   // Returns the tokens, or null if they could differ from tokenizing the text.
+   private TokenList fill(MIPSprogram program, TokenList operands, int line) {
+      TokenList result = new TokenList();
+      TokenTypes previous = null;
+      int shift = 0;
+      for (int i = 0; i < values.length; i++) {
+         String value = values[i];
+         TokenTypes type = types[i];
+         if (kinds[i] >= 0) {
+            value = substitute(i, program, operands);
+            if (value == null || !isOneToken(value, previous)) {
+               return null;
+            }
+            // A sign right after a final e is read as part of a number's exponent.
+            char end = value.charAt(value.length() - 1);
+            if ((end == 'e' || end == 'E') && i + 1 < values.length
+               && starts[i + 1] == starts[i] + values[i].length()) {
+               return null;
+            }
+            type = TokenTypes.matchTokenType(value);
+            if (type == TokenTypes.ERROR) {
+               return null;
+            }
+         }
+         else if (previous == TokenTypes.IDENTIFIER && (value.charAt(0) == '+' || value.charAt(0) == '-')) {
+            return null;
+         }
+         result.add(new Token(type, value, null, line, starts[i] + shift));
+         shift += value.length() - values[i].length();
+         previous = type;
+      }
+      return result;
+   }
+
+   // Returns the value of placeholder i, or null if makeTemplateSubstitutions()
+   // would leave it in place.
+   private String substitute(int i, MIPSprogram program, TokenList tokens) {
+      int op = operands[i];
+      int last = tokens.size() - 1;
+      if (op > last || addends[i] > last) {
+         return null;
+      }
+      switch (kinds[i]) {
+         case OPERAND :
+            return tokens.get(op).getValue();
+         case NEXT_REGISTER :
+            Register register = RegisterFile.getUserRegister(tokens.get(op).getValue());
+            if (register != null) {
+               return (register.getNumber() >= 0) ? "$" + (register.getNumber() + 1) : null;
+            }
+            int number = Coprocessor1.getRegisterNumber(tokens.get(op).getValue());
+            return (number >= 0) ? "$f" + (number + 1) : null;
+         case HIGH :
+            return String.valueOf(sum(tokens, i) >> 16);
+         case HIGH_ADJUSTED :
+            // If bit 15 is 1, the low 16 bits will be a negative offset, so add 1.
+            int value = sum(tokens, i);
+            return String.valueOf((value >> 16) + Binary.bitValue(value, 15));
+         case LOW :
+            return String.valueOf(sum(tokens, i) << 16 >> 16);
+         case LOW_UNSIGNED :
+            return String.valueOf(sum(tokens, i) & 0xffff);
+         case BRANCH_OFFSET :
+            // BROFF is followed by the offset if delayed branching is disabled, then if enabled.
+            int digit = Globals.getSettings().getBooleanSetting(Settings.DELAYED_BRANCHING_ENABLED) ? 6 : 5;
+            return values[i].substring(digit, digit + 1);
+         case SHIFT_COMPLEMENT :
+            return Integer.toString(32 - intValue(tokens.get(last).getValue(), 0));
+         case LABEL :
+            Symbol symbol = program.getLocalSymbolTable().getSymbolGivenAddressLocalOrGlobal(tokens.get(last).getValue());
+            return (symbol == null) ? null : symbol.getName();
+         default :
+            return null;
+      }
+   }
+
+   // Operand value, plus the addend operand if any, plus the constant; 0 if either
+   // operand is not a number.
+   private int sum(TokenList tokens, int i) {
+      try {
+         int value = Binary.stringToInt(tokens.get(operands[i]).getValue()) + constants[i];
+         if (addends[i] > 0) {
+            value += Binary.stringToInt(tokens.get(addends[i]).getValue());
+         }
+         return value;
+      }
+         catch (NumberFormatException e) {
+            return 0;
+         }
+   }
+
+   private static int intValue(String value, int add) {
+      try {
+         return Binary.stringToInt(value) + add;
+      }
+         catch (NumberFormatException e) {
+            return 0;
+         }
+   }
+
+   // Whether the tokenizer would read a value as a single token following a token of
+   // the given type.  A sign starts a token only if a digit follows and the previous
+   // token is not an identifier.
+   private static boolean isOneToken(String value, TokenTypes previous) {
+      if (value.length() == 0) {
+         return false;
+      }
+      int from = 0;
+      char first = value.charAt(0);
+      if (first == '+' || first == '-') {
+         if (value.length() < 2 || !Character.isDigit(value.charAt(1)) || previous == TokenTypes.IDENTIFIER) {
+            return false;
+         }
+         from = 1;
+      }
+      for (int i = from; i < value.length(); i++) {
+         if (DELIMITERS.indexOf(value.charAt(i)) >= 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean containsMarker(String value) {
+      for (int i = 0; i < MARKERS.length; i++) {
+         if (value.indexOf(MARKERS[i]) >= 0) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // Decode a template token, setting its operand, addend operand and constant in
+   // decoded[0], [1] and [2].  Returns its kind, or -1 if it is not a placeholder.
+   // Only the forms that makeTemplateSubstitutions() replaces completely are.
+   private static int decode(String value, int[] decoded) {
+      Matcher m;
+      if ((m = REGISTER_PLACEHOLDER.matcher(value)).matches()) {
+         decoded[0] = m.group(2).charAt(0) - '0';
+         return m.group(1).equals("NR") ? NEXT_REGISTER : OPERAND;
+      }
+      if ((m = HALF_PLACEHOLDER.matcher(value)).matches()) {
+         String half = m.group(1);
+         boolean added = m.group(3) != null;
+         boolean unsigned = m.group(4).length() > 0;
+         if (unsigned && !(half.equals("VL") || half.equals("LL") && !added)) {
+            return -1;
+         }
+         decoded[0] = m.group(2).charAt(0) - '0';
+         decoded[2] = added ? m.group(3).charAt(0) - '0' : 0;
+         if (half.equals("VHL")) {
+            return HIGH;
+         }
+         if (half.equals("LH") || half.equals("VH")) {
+            return HIGH_ADJUSTED;
+         }
+         return unsigned ? LOW_UNSIGNED : LOW;
+      }
+      if (value.equals("LHL")) {
+         decoded[0] = 2;
+         return HIGH;
+      }
+      if ((m = SUM_PLACEHOLDER.matcher(value)).matches()) {
+         // "label+100000($s0)": label is token 2, immediate token 4.
+         String sum = m.group(1);
+         boolean added = m.group(2) != null;
+         boolean unsigned = m.group(3).length() > 0;
+         if (unsigned && (added || !sum.equals("LLP")) || added && sum.equals("LHPN")) {
+            return -1;
+         }
+         decoded[0] = 2;
+         decoded[1] = 4;
+         decoded[2] = added ? m.group(2).charAt(0) - '0' : 0;
+         if (sum.equals("LHPN")) {
+            return HIGH;
+         }
+         if (sum.equals("LHPA")) {
+            return HIGH_ADJUSTED;
+         }
+         return unsigned ? LOW_UNSIGNED : LOW;
+      }
+      if (BRANCH_OFFSET_PLACEHOLDER.matcher(value).matches()) {
+         return BRANCH_OFFSET;
+      }
+      if (value.equals("S32")) {
+         return SHIFT_COMPLEMENT;
+      }
+      if (value.equals("LAB")) {
+         return LABEL;
+      }
+      return -1;
+   }
+}
@@ -113,18 +113,18 @@ public class ExampleCustomLanguage extends CustomAssembly{
                      // Get the name of the label from the token list
                      String label = statement.getOriginalTokenList().get(2).getValue();
                      // Look up the label in the program symbol table to get its address
-                     int byteAddress = Globals.program.getLocalSymbolTable().getAddressLocalOrGlobal(label);
+                     int byteAddress = MachineContext.current().getProgram().getLocalSymbolTable().getAddressLocalOrGlobal(label);
                      RegisterFile.updateRegister(operands[0], byteAddress);
 
                      try
                         {
-                           ch = (char) Globals.memory.getByte(byteAddress);
+                           ch = (char) Memory.getInstance().getByte(byteAddress);
                                              // won't stop until NULL byte reached!
                            while (ch != 0)
                            {
                               SystemIO.printString(new Character(ch).toString());
                               byteAddress++;
-                              ch = (char) Globals.memory.getByte(byteAddress);
+                              ch = (char) Memory.getInstance().getByte(byteAddress);
                            }
                         } 
                            catch (AddressErrorException e)
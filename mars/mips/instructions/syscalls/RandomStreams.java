@@ -1,5 +1,6 @@
    package mars.mips.instructions.syscalls;
 	import java.util.HashMap;
+	import mars.simulator.MachineContext;
 
 /*
 Copyright (c) 2003-2008,  Pete Sanderson and Kenneth Vollmar
@@ -31,13 +32,16 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 
 
 /** 
- * This small class serves only to hold a static HashMap for storing
+ * This small class serves only to find the HashMap storing
  * random number generators for use by all the random number generator
- * syscalls.
+ * syscalls.  Each MachineContext has its own.
  */
  
     public class RandomStreams {
-      /** Collection of pseudorandom number streams available for use in Rand-type syscalls.
+      /** Collection of pseudorandom number streams available for use in Rand-type syscalls
+       * run by the calling thread's MachineContext.
        * The streams are by default not seeded. */
-		 static final HashMap randomStreams = new HashMap();
+		 static HashMap randomStreams() {
+		    return MachineContext.current().getRandomStreams();
+		 }
    }
\ No newline at end of file
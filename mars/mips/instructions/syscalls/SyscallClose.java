@@ -47,9 +47,10 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       }
       
    /**
-   * Performs syscall function to close file descriptor given in $a0.
+   * Performs syscall function to close file descriptor given in $a0.  $v0 is set to 0,
+   * or to -1 if bytes written to the file could not be written out.
    */
        public void simulate(ProgramStatement statement) throws ProcessingException {
-         SystemIO.closeFile(RegisterFile.getValue(4)); 
+         RegisterFile.updateRegister(2, SystemIO.closeFile(RegisterFile.getValue(4))); 
       }
    }
\ No newline at end of file
@@ -2,6 +2,7 @@
    import mars.util.*;
    import mars.*;
    import mars.mips.hardware.*;
+   import mars.simulator.MachineContext;
 
 /*
 Copyright (c) 2003-2006,  Pete Sanderson and Kenneth Vollmar
@@ -52,8 +53,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    * return value is ignored.
    */
        public void simulate(ProgramStatement statement) throws ProcessingException {
-         if (Globals.getGui()==null) {
-            Globals.exitCode = RegisterFile.getValue(4);
+         MachineContext context = MachineContext.current();
+         if (Globals.getGui()==null || !context.isDefault()) {
+            context.setExitCode(RegisterFile.getValue(4));
          }
          throw new ProcessingException(); // empty error list
       }
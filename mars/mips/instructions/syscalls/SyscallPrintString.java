@@ -37,6 +37,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
  
     public class SyscallPrintString extends AbstractSyscall {
+      // Memory is read in chunks of up to this many bytes, starting smaller so that
+      // a short string is not read far past its end.
+      private static final int MAXIMUM_CHUNK_LENGTH = 1024;
+      private static final int FIRST_CHUNK_LENGTH = 16;
+      private static final int PAGE_LENGTH = 4096;
+      
    /**
     * Build an instance of the Print String syscall.  Default service number
     * is 4 and name is "PrintString".
@@ -50,21 +56,65 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    */
        public void simulate(ProgramStatement statement) throws ProcessingException {
          int byteAddress = RegisterFile.getValue(4);
-         char ch = 0;
+         Memory memory = Memory.getInstance();
+         // Collect the whole string and print it at once, rather than a character
+         // at a time; each print may be a separate update of the GUI.
+         StringBuilder string = new StringBuilder();
+         byte[] chunk = new byte[MAXIMUM_CHUNK_LENGTH];
+         int chunkLength = FIRST_CHUNK_LENGTH;
          try
          {
-            ch = (char) Globals.memory.getByte(byteAddress);
                               // won't stop until NULL byte reached!
-            while (ch != 0)
+            while (true)
             {
-               SystemIO.printString(new Character(ch).toString());
-               byteAddress++;
-               ch = (char) Globals.memory.getByte(byteAddress);
+               // A chunk stops at a 4K boundary, since segments begin and end on one.
+               int length = Math.min(chunkLength, PAGE_LENGTH - (byteAddress & (PAGE_LENGTH - 1)));
+               // The chunk is read without notifying observers, who are then told
+               // only of the bytes up to and including the NULL.
+               boolean notified = false;
+               try
+               {
+                  memory.readRawBytes(byteAddress, chunk, 0, length);
+               } 
+                   catch (AddressErrorException e)
+                  {
+                     // Some of the chunk cannot be read: go a byte at a time, so the
+                     // string stops, or the error is reported, where it always was.
+                     length = 1;
+                     chunk[0] = (byte) memory.getByte(byteAddress);
+                     notified = true;
+                  }
+               for (int index = 0; index < length; index++)
+               {
+                  if (chunk[index] == 0)
+                  {
+                     if (!notified)
+                     {
+                        memory.notifyBytesRead(byteAddress, chunk, 0, index + 1);
+                     }
+                     print(string);
+                     return;
+                  }
+                  string.append((char) (chunk[index] & 0xFF));
+               }
+               if (!notified)
+               {
+                  memory.notifyBytesRead(byteAddress, chunk, 0, length);
+               }
+               byteAddress += length;
+               chunkLength = Math.min(chunkLength * 2, MAXIMUM_CHUNK_LENGTH);
             }
          } 
              catch (AddressErrorException e)
             {
+               print(string); // print what was read before the error
                throw new ProcessingException(statement, e);
             }
       }
+   
+       private void print(StringBuilder string) {
+         if (string.length() > 0) {
+            SystemIO.printString(string.toString());
+         }
+      }
    }
\ No newline at end of file
@@ -55,9 +55,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    */
        public void simulate(ProgramStatement statement) throws ProcessingException {
          int byteAddress = RegisterFile.getValue(5); // destination of characters read from file
-         byte b = 0;
-         int index = 0;
-         byte myBuffer[] = new byte[RegisterFile.getValue(6)]; // specified length
+         byte myBuffer[] = SystemIO.getFileBuffer(RegisterFile.getValue(6)); // at least the specified length
          // Call to SystemIO.xxxx.read(xxx,xxx,xxx)  returns actual length
          int retLength = SystemIO.readFromFile(
                                  RegisterFile.getValue(4), // fd
@@ -77,13 +75,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                                     Exceptions.SYSCALL_EXCEPTION);
          }
 			*/                
-         // copy bytes from returned buffer into MARS memory
+         // copy bytes from returned buffer into MARS memory, all at once
          try
          {
-            while (index < retLength)
+            if (retLength > 0)
             {
-               Globals.memory.setByte(byteAddress++,
-                                        myBuffer[index++]);
+               Memory.getInstance().writeBytes(byteAddress, myBuffer, 0, retLength);
             }
          } 
              catch (AddressErrorException e)
@@ -1,6 +1,7 @@
    package mars.simulator;
    import mars.*;
    import mars.venus.*;
+   import mars.util.*;
    import mars.mips.hardware.*;
    import mars.mips.instructions.*;
    import java.util.*;
@@ -35,13 +36,21 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 
 /**
  * Used to "step backward" through execution, undoing each instruction.
+ * <p>
+ * Recent steps are undone from a fixed-size ring of "undo" actions.  To step back
+ * further than the ring reaches, the BackStepper also takes checkpoints of memory
+ * and registers at intervals, and recreates an earlier state by restoring the
+ * nearest checkpoint before it and executing forward again.  Syscalls are not
+ * executed again: the registers and memory words each one changed are recorded as
+ * it completes, and replay applies those instead.  The same is done for instructions
+ * of custom languages, which may print or draw random numbers, and for instructions
+ * that read or write memory-mapped I/O, whose devices replay cannot consult.
  * @author Pete Sanderson
  * @version February 2006
  */
  
     public class BackStepper {
       // The types of "undo" actions.  Under 1.5, these would be enumerated type.
-   	// These fit better in the BackStep class below but inner classes cannot have static members.
       private static final int MEMORY_RESTORE_RAW_WORD = 0;
       private static final int MEMORY_RESTORE_WORD = 1;
       private static final int MEMORY_RESTORE_HALF = 2;
@@ -53,20 +62,51 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       private static final int COPROC1_CONDITION_CLEAR = 8;
       private static final int COPROC1_CONDITION_SET = 9;
       private static final int DO_NOTHING = 10;  // instruction does not write anything.
+      private static final int HEAP_RESTORE = 11;
+      private static final int MEMORY_RESTORE_BYTES = 12;
+      private static final int MEMORY_RESTORE_WORDS = 13;
    
       // Flag to mark BackStep object as prepresenting specific situation: user manipulates
    	// memory/register value via GUI after assembling program but before running it.
       private static final int NOT_PC_VALUE = -1;
    	
+      // Most checkpoints kept at once, other than those that must be kept (see
+      // Checkpoint.kept).  When there would be more, every other one is dropped and
+      // the interval between checkpoints is doubled, so memory use stays bounded
+      // however long the program runs while any earlier state can still be reached.
+      private static final int MAX_CHECKPOINTS = 64;
+   	
       private boolean engaged;
       private BackstepStack backSteps;
    	
-   	// One can argue using java.util.Stack, given its clumsy implementation.
-   	// A homegrown linked implementation will be more streamlined, but
-   	// I anticipate that backstepping will only be used during timed
-   	// (currently max 30 instructions/second) or stepped execution, where
-   	// performance is not an issue.  Its Vector implementation may result
-   	// in quicker garbage collection than a pure linked list implementation.
+      // Number of instructions completed so far; the "undo" actions of an instruction
+      // are stamped with the number completed before it started.
+      private long position;
+      private ArrayList<Checkpoint> checkpoints;   // in order of position
+      private int periodicCheckpoints; // number of checkpoints that may be dropped
+      private long checkpointInterval;
+      private boolean checkpointDue;   // state changed other than by an instruction
+      private boolean replaying;
+   	
+      // Changes made by syscalls and by instructions that cannot be executed again, in
+      // order of position.  Record i is for the instruction executed at
+      // effectPositions[i] and occupies effects from index effectOffsets[i]: the heap
+      // address, then the number of general registers changed followed by (number,
+      // value) pairs, then the same for FPU registers, then 1 and the target if it
+      // registered a delayed branch or 0 if not, then the number of memory words changed
+      // followed by (address, value) pairs.
+      private long[] effectPositions;
+      private int[] effectOffsets;
+      private int effectCount;
+      private int[] effects;
+      private int effectsLength;
+      // State captured when the current syscall started, or at the start of the current
+      // instruction if it is being recorded; null if neither.
+      private int[] registersBefore;
+      private int[] fpRegistersBefore;
+      private int[] writtenWords;
+      private int writtenWordCount;
+      private boolean recordingInstruction;
    
        /**
    	  * Create a fresh BackStepper.  It is enabled, which means all
@@ -76,6 +116,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public BackStepper() {
          engaged = true;
          backSteps = new BackstepStack(Globals.maximumBacksteps);
+         checkpoints = new ArrayList<Checkpoint>();
+         checkpointInterval = Globals.maximumBacksteps;
+         effectPositions = new long[16];
+         effectOffsets = new int[16];
+         effects = new int[64];
+         writtenWords = new int[16];
       }
    
        /**
@@ -87,10 +133,18 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       }
    
        /**
-   	  * Set enable status.
+   	  * Set enable status.  Steps recorded before recording was stopped cannot be
+   	  * undone once it is resumed.
    	  * @param state If true, will begin (or continue) recoding "undo" steps.  If false, will stop.
    	  */
        public void setEnabled(boolean state) {
+         if (state && !engaged) {
+            backSteps.clear(position);
+            checkpoints.clear();
+            periodicCheckpoints = 0;
+            effectCount = 0;
+            effectsLength = 0;
+         }
          engaged = state;
       }
    
@@ -99,7 +153,16 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 * @return true if there are no steps to be undone, false otherwise.
    	 */
        public boolean empty() {
-         return backSteps.empty();
+         return !backSteps.hasCompleteStep() && findCheckpoint(position - 1) < 0;
+      }
+
+      /**
+   	 * Returns the number of undo steps now held.  Read without locking, so that it
+   	 * can be sampled while a program runs; see SimulationMetrics.
+   	 * @return number of steps on the back-step stack.
+   	 */
+       public int getLogSize() {
+         return backSteps.size;
       }
    	
    	/**
@@ -110,12 +173,14 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 */
    	// Added 25 June 2007
        public boolean inDelaySlot() {
-         return !empty() && backSteps.peek().inDelaySlot;
+         return backSteps.hasCompleteStep() && backSteps.peekInDelaySlot();
       }
    	
       /**
    	 *  Carry out a "back step", which will undo the latest execution step.
    	 *  Does nothing if backstepping not enabled or if there are no steps to undo.
+   	 *  @throws ProcessingException if the earlier state could not be recreated from a
+   	 *  checkpoint; the machine is then left in the state of that checkpoint.
    	 */
    	 
    	 // Note that there may be more than one "step" in an instruction execution; for
@@ -123,67 +188,224 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 // all store their result in register pairs which results in two store operations.  
    	 // Both must be undone transparently, so we need to detect that multiple steps happen
    	 // together and carry out all of them here.  
-   	 // Use a do-while loop based on the backstep's program statement reference.
+   	 // Use a do-while loop based on the steps' position stamp.  If the ring no longer
+   	 // holds all the steps of the latest instruction, fall back to a checkpoint.
    	 
-       public void backStep() {
-         if (engaged && !backSteps.empty()) {
-            ProgramStatement statement = ((BackStep)backSteps.peek()).ps;
-            engaged = false; // GOTTA DO THIS SO METHOD CALL IN SWITCH WILL NOT RESULT IN NEW ACTION ON STACK!
-            do {
-               BackStep step = (BackStep) backSteps.pop();
-            /*
-            	System.out.println("backstep POP: action "+step.action+" pc "+mars.util.Binary.intToHexString(step.pc)+
-            	                   " source "+((step.ps==null)? "none":step.ps.getSource())+
-            							 " parm1 "+step.param1+" parm2 "+step.param2);
-            */
-               if (step.pc != NOT_PC_VALUE) {
-                  RegisterFile.setProgramCounter(step.pc);
+       public void backStep() throws ProcessingException {
+         if (!engaged) {
+            return;
+         }
+         if (!backSteps.hasCompleteStep()) {
+            if (position > 0) {
+               replayTo(position - 1);
+            }
+            return;
+         }
+         long stamp = backSteps.peekStamp();
+         engaged = false; // GOTTA DO THIS SO METHOD CALL IN SWITCH WILL NOT RESULT IN NEW ACTION ON STACK!
+         do {
+            int top = backSteps.pop();
+            int pc = backSteps.pcs[top];
+            int param1 = backSteps.params1[top];
+            int param2 = backSteps.params2[top];
+            if (pc != NOT_PC_VALUE) {
+               RegisterFile.setProgramCounter(pc);
+            }
+            try {
+               switch (backSteps.actions[top]) {
+                  case MEMORY_RESTORE_RAW_WORD : 
+                     Memory.getInstance().setRawWord(param1, param2);
+                     break;
+                  case MEMORY_RESTORE_WORD : 
+                     Memory.getInstance().setWord(param1, param2);
+                     break;
+                  case MEMORY_RESTORE_HALF :
+                     Memory.getInstance().setHalf(param1, param2);
+                     break;
+                  case MEMORY_RESTORE_BYTE :
+                     Memory.getInstance().setByte(param1, param2);
+                     break;
+                  case REGISTER_RESTORE :
+                     RegisterFile.updateRegister(param1, param2);
+                     break;
+                  case PC_RESTORE : 
+                     RegisterFile.setProgramCounter(param1);
+                     break;
+                  case COPROC0_REGISTER_RESTORE :
+                     Coprocessor0.updateRegister(param1, param2);
+                     break;
+                  case COPROC1_REGISTER_RESTORE :
+                     Coprocessor1.updateRegister(param1, param2);
+                     break;
+                  case COPROC1_CONDITION_CLEAR :
+                     Coprocessor1.clearConditionFlag(param1);
+                     break;
+                  case COPROC1_CONDITION_SET :
+                     Coprocessor1.setConditionFlag(param1);
+                     break;
+                  case HEAP_RESTORE :
+                     Memory.getInstance().heapAddress = param1;
+                     break;
+                  case MEMORY_RESTORE_BYTES :
+                     byte[] bytes = (byte[]) backSteps.payloads[top];
+                     Memory.getInstance().writeBytes(param1, bytes, 0, bytes.length);
+                     break;
+                  case MEMORY_RESTORE_WORDS :
+                     int[] words = (int[]) backSteps.payloads[top];
+                     Memory.getInstance().writeWords(param1, words, 0, words.length);
+                     break;
+                  case DO_NOTHING :
+                     break;
                }
-               try {
-                  switch (step.action) {
-                     case MEMORY_RESTORE_RAW_WORD : 
-                        Globals.memory.setRawWord(step.param1, step.param2);
-                        break;
-                     case MEMORY_RESTORE_WORD : 
-                        Globals.memory.setWord(step.param1, step.param2);
-                        break;
-                     case MEMORY_RESTORE_HALF :
-                        Globals.memory.setHalf(step.param1, step.param2);
-                        break;
-                     case MEMORY_RESTORE_BYTE :
-                        Globals.memory.setByte(step.param1, step.param2);
-                        break;
-                     case REGISTER_RESTORE :
-                        RegisterFile.updateRegister(step.param1, step.param2);
-                        break;
-                     case PC_RESTORE : 
-                        RegisterFile.setProgramCounter(step.param1);
-                        break;
-                     case COPROC0_REGISTER_RESTORE :
-                        Coprocessor0.updateRegister(step.param1, step.param2);
-                        break;
-                     case COPROC1_REGISTER_RESTORE :
-                        Coprocessor1.updateRegister(step.param1, step.param2);
-                        break;
-                     case COPROC1_CONDITION_CLEAR :
-                        Coprocessor1.clearConditionFlag(step.param1);
-                        break;
-                     case COPROC1_CONDITION_SET :
-                        Coprocessor1.setConditionFlag(step.param1);
-                        break;
-                     case DO_NOTHING :
-                        break;
-                  }
-               } 
-                   catch (Exception e) { 
-                  // if the original action did not cause an exception this will not either.
-                     System.out.println("Internal MARS error: address exception while back-stepping.");
-                     System.exit(0);
-                  }
-            } while (!backSteps.empty() && statement == ((BackStep)backSteps.peek()).ps);
-            engaged = true;  // RESET IT (was disabled at top of loop -- see comment)
+            } 
+                catch (Exception e) { 
+               // if the original action did not cause an exception this will not either.
+                  System.out.println("Internal MARS error: address exception while back-stepping.");
+                  System.exit(0);
+               }
+         } while (!backSteps.empty() && backSteps.peekStamp() == stamp);
+         engaged = true;  // RESET IT (was disabled at top of loop -- see comment)
+         if (stamp < 0) {
+            // Undid changes made before the first instruction, which the first
+            // checkpoint includes.
+            checkpoints.clear();
+            periodicCheckpoints = 0;
+         }
+         position = Math.max(stamp, 0);
+         discardFuture();
+      }
+   
+       /**
+   	  * Called when the simulator is about to start or resume execution.  Takes a
+   	  * checkpoint of the current state if there is none yet, or if registers or
+   	  * memory have been changed other than by executing instructions since the
+   	  * last one.
+   	  */
+       public void executionStarting() {
+         registersBefore = null;
+         recordingInstruction = false;
+         if (engaged && (checkpointDue || checkpoints.isEmpty()) && !branchPending()) {
+            synchronized (MachineContext.current().getMemoryAndRegistersLock()) {
+               takeCheckpoint(!checkpoints.isEmpty());
+            }
+         }
+      }
+   
+       /**
+   	  * Called when an instruction has raised an exception and execution continues
+   	  * at the exception handler.  The instruction is counted as completed, as
+   	  * addDoNothing() does.  Exceptions are not reproduced when replaying, so the
+   	  * state after it is recorded in a checkpoint instead.
+   	  * @param pc address of the instruction that raised the exception
+   	  */
+       public void addExceptionHandled(int pc) {
+         registersBefore = null;
+         recordingInstruction = false;
+         checkpointDue = true;
+         addDoNothing(pc);
+      }
+   
+       /**
+   	  * Called just before an instruction is simulated.  If executing it again might
+   	  * not do the same thing, as for the instructions of custom languages, the
+   	  * changes it makes are recorded when it completes so that replay can apply
+   	  * them instead.
+   	  * @param statement the statement about to be simulated
+   	  */
+       public void instructionStarting(ProgramStatement statement) {
+         Instruction instruction = statement.getInstruction();
+         if (instruction instanceof BasicInstruction && !((BasicInstruction) instruction).isReproducible()) {
+            startRecording();
+         }
+      }
+   
+       /**
+   	  * Called by Memory when the executing program reads or writes memory-mapped
+   	  * I/O.  The devices behind it are not consulted again when replaying, so the
+   	  * changes the instruction makes from here on are recorded when it completes,
+   	  * as for a syscall.  Accesses from outside the simulator are left alone: those
+   	  * call for a checkpoint like any other change made from outside.
+   	  */
+       public void memoryMappedAccess() {
+         if (engaged && !replaying && registersBefore == null && Simulator.inExecutionQuantum()) {
+            startRecording();
+         }
+      }
+   
+       /**
+   	  * Called just before a syscall service is carried out, to start recording the
+   	  * changes it makes.
+   	  */
+       public void syscallStarting() {
+         if (!recordingInstruction) {
+            registersBefore = RegisterFile.copyValues();
+            fpRegistersBefore = Coprocessor1.copyValues();
+            writtenWordCount = 0;
+         }
+      }
+   
+       /**
+   	  * Called when a syscall service has completed, to record the changes it made
+   	  * so that replay can apply them instead of carrying out the service again.
+   	  */
+       public void syscallCompleted() {
+         if (!recordingInstruction) {
+            recordEffects();
          }
       }
+   
+      // Starts recording the changes made by the instruction now executing, which
+      // addDoNothing() records once it completes.
+       private void startRecording() {
+         syscallStarting();
+         recordingInstruction = true;
+      }
+   
+      // Records the changes made since registersBefore was captured, stamped with the
+      // instruction now executing.  If they include a location replay cannot write, a
+      // checkpoint is taken after the instruction instead.
+       private void recordEffects() {
+         if (registersBefore == null) {
+            return;
+         }
+         int offset = effectsLength;
+         try {
+            appendEffect(Memory.getInstance().heapAddress);
+            int[] registers = RegisterFile.copyValues();
+            appendChangedValues(registersBefore, registers, registers.length);
+            int[] fpRegisters = Coprocessor1.copyValues();
+            appendChangedValues(fpRegistersBefore, fpRegisters, Coprocessor1.getRegisters().length);
+            if (DelayedBranch.isRegistered()) {
+               appendEffect(1);
+               appendEffect(DelayedBranch.getBranchTargetAddress());
+            } 
+            else {
+               appendEffect(0);
+            }
+            appendEffect(writtenWordCount);
+            for (int i = 0; i < writtenWordCount; i++) {
+               appendEffect(writtenWords[i]);
+               appendEffect(Memory.getInstance().getWordNoNotify(writtenWords[i]));
+            }
+         } 
+             catch (AddressErrorException e) {
+               // Not a location replay can write, such as the text segment.
+               effectsLength = offset;
+               registersBefore = null;
+               checkpointDue = true;
+               return;
+            }
+         if (effectCount == effectPositions.length) {
+            effectPositions = copyOf(effectPositions, effectCount * 2);
+            int[] offsets = new int[effectCount * 2];
+            System.arraycopy(effectOffsets, 0, offsets, 0, effectCount);
+            effectOffsets = offsets;
+         }
+         effectPositions[effectCount] = position;
+         effectOffsets[effectCount] = offset;
+         effectCount++;
+         registersBefore = null;
+      }
   
      
       /* Convenience method called below to get program counter value.  If it needs to be
@@ -203,7 +425,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addMemoryRestoreRawWord(int address, int value) {
-         backSteps.push(MEMORY_RESTORE_RAW_WORD, pc(), address, value);
+         push(MEMORY_RESTORE_RAW_WORD, pc(), address, value);
+         recordWrittenWord(address);
          return value;
       }   
    	
@@ -215,7 +438,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addMemoryRestoreWord(int address, int value) {
-         backSteps.push(MEMORY_RESTORE_WORD, pc(), address, value);
+         push(MEMORY_RESTORE_WORD, pc(), address, value);
+         recordWrittenWord(address);
          return value;
       }   
    
@@ -227,7 +451,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addMemoryRestoreHalf(int address, int value) {
-         backSteps.push(MEMORY_RESTORE_HALF, pc(), address, value);
+         push(MEMORY_RESTORE_HALF, pc(), address, value);
+         recordWrittenWord(address);
          return value;
       }
    
@@ -239,10 +464,37 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addMemoryRestoreByte(int address, int value) {
-         backSteps.push(MEMORY_RESTORE_BYTE, pc(), address, value);
+         push(MEMORY_RESTORE_BYTE, pc(), address, value);
+         recordWrittenWord(address);
          return value;
       }   
    
+       /**
+   	  * Add a new "back step" (the undo action) to the stack.  The action here
+   	  * is to restore a range of memory bytes written by Memory.writeBytes().
+   	  * @param address The address of the first byte of the range.
+   	  * @param values The "restore" values, one for each byte of the range.
+   	  * @return the argument values
+   	  */
+       public byte[] addMemoryRestoreBytes(int address, byte[] values) {
+         push(MEMORY_RESTORE_BYTES, pc(), address, 0, values);
+         recordWrittenWords(address, values.length);
+         return values;
+      }   
+   
+       /**
+   	  * Add a new "back step" (the undo action) to the stack.  The action here
+   	  * is to restore a range of memory words written by Memory.writeWords().
+   	  * @param address The address of the first word of the range.
+   	  * @param values The "restore" values, one for each word of the range.
+   	  * @return the argument values
+   	  */
+       public int[] addMemoryRestoreWords(int address, int[] values) {
+         push(MEMORY_RESTORE_WORDS, pc(), address, 0, values);
+         recordWrittenWords(address, values.length * Memory.WORD_LENGTH_BYTES);
+         return values;
+      }   
+   
        /**
    	  * Add a new "back step" (the undo action) to the stack.  The action here
    	  * is to restore a register file register value.
@@ -251,7 +503,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addRegisterFileRestore(int register, int value) {
-         backSteps.push(REGISTER_RESTORE, pc(), register, value);
+         push(REGISTER_RESTORE, pc(), register, value);
          return value;
       } 
    
@@ -266,7 +518,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          value -= Instruction.INSTRUCTION_LENGTH; 
          // Use "value" insead of "pc()" for second arg because RegisterFile.getProgramCounter() 
          // returns branch target address at this point.
-         backSteps.push(PC_RESTORE, value, value); 
+         push(PC_RESTORE, value, value, 0); 
          return value;
       }		
    
@@ -278,7 +530,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addCoprocessor0Restore(int register, int value) {
-         backSteps.push(COPROC0_REGISTER_RESTORE, pc(), register, value);
+         push(COPROC0_REGISTER_RESTORE, pc(), register, value);
          return value;
       }		
    
@@ -290,7 +542,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addCoprocessor1Restore(int register, int value) {
-         backSteps.push(COPROC1_REGISTER_RESTORE, pc(), register, value);
+         push(COPROC1_REGISTER_RESTORE, pc(), register, value);
          return value;
       }		
    
@@ -301,7 +553,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addConditionFlagSet(int flag) {
-         backSteps.push(COPROC1_CONDITION_SET, pc(), flag);
+         push(COPROC1_CONDITION_SET, pc(), flag, 0);
          return flag;
       }	
    
@@ -312,63 +564,349 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	  * @return the argument value
    	  */
        public int addConditionFlagClear(int flag) {
-         backSteps.push(COPROC1_CONDITION_CLEAR, pc(), flag);
+         push(COPROC1_CONDITION_CLEAR, pc(), flag, 0);
          return flag;
       }	
    		
+       /**
+   	  * Add a new "back step" (the undo action) to the stack.  The action here
+   	  * is to restore the next available heap address.
+   	  * @param address The "restore" value for the heapAddress of Memory.
+   	  * @return the argument value
+   	  */
+       public int addHeapRestore(int address) {
+         push(HEAP_RESTORE, pc(), address, 0);
+         return address;
+      }	
+   
        /**
    	  * Add a new "back step" (the undo action) to the stack.  The action here
    	  * is to do nothing!  This is just a place holder so when user is backstepping
-   	  * through the program no instructions will be skipped.  Cosmetic. If the top of the
-   	  * stack has the same PC counter, the do-nothing action will not be added.  
+   	  * through the program no instructions will be skipped.  Cosmetic. If the 
+   	  * instruction already has an action on the stack, the do-nothing action will 
+   	  * not be added.  Called once each instruction has completed, so this is also 
+   	  * where the instructions are counted, their recorded changes kept and checkpoints
+   	  * taken.
    	  * @return 0
    	  */
        public int addDoNothing(int pc) {
-         if (backSteps.empty() || backSteps.peek().pc != pc) { 
-            backSteps.push(DO_NOTHING, pc);
+         if (recordingInstruction) {
+            recordingInstruction = false;
+            recordEffects();
+         }
+         if (backSteps.empty() || backSteps.peekStamp() != position) { 
+            push(DO_NOTHING, pc, 0, 0);
+         }
+         position++;
+         if (!checkpoints.isEmpty() && !branchPending()) {
+            long interval = (replaying) ? backSteps.capacity : checkpointInterval;
+            if (checkpointDue) {
+               takeCheckpoint(true);
+            } 
+            else if (position - checkpoints.get(checkpoints.size() - 1).position >= interval) {
+               takeCheckpoint(false);
+            }
          }
          return 0;
       }
-   	
-   		   	 	
-   	// Represents a "back step" (undo action) on the stack.
-       private class BackStep {
-         private int action;  // what do do MEMORY_RESTORE_WORD, etc
-         private int pc;      // program counter value when original step occurred
-         private ProgramStatement ps;   // statement whose action is being "undone" here
-         private int param1;  // first parameter required by that action
-         private int param2;  // optional second parameter required by that action
-         private boolean inDelaySlot; // true if instruction executed in "delay slot" (delayed branching enabled)
-      
-         // it is critical that BackStep object get its values by calling this method
-      	// rather than assigning to individual members, because of the technique used
-      	// to set its ps member (and possibly pc).
-          private void assign(int act, int programCounter, int parm1, int parm2) {
-            action = act;
-            pc     = programCounter;
-            try {
-            // Client does not have direct access to program statement, and rather than making all
-            // of them go through the methods below to obtain it, we will do it here.  
-            // Want the program statement but do not want observers notified.
-               ps = Globals.memory.getStatementNoNotify(programCounter);
+   
+      // Records an undo action, stamped with the instruction it belongs to.  Changes
+      // made from outside the simulator, as through the GUI while execution is paused,
+      // are grouped with the last instruction completed and also call for a checkpoint.
+       private void push(int action, int pc, int param1, int param2) {
+         push(action, pc, param1, param2, null);
+      }
+   
+      // As above, for an action whose "restore" values are held in an array.
+       private void push(int action, int pc, int param1, int param2, Object payload) {
+         long stamp = position;
+         if (!replaying && !Simulator.inExecutionQuantum()) {
+            stamp = position - 1;
+            checkpointDue = true;
+         }
+         if (pc != NOT_PC_VALUE && !isStatementAddress(pc)) {
+            pc = NOT_PC_VALUE;
+         }
+         backSteps.push(action, pc, param1, param2, payload, stamp);
+      }
+   
+      // Whether there is a statement for the given address in the sense of
+      // Memory.getStatementNoNotify(), that is, whether it would not throw.  Text
+      // addresses are checked directly since pushes happen on every instruction.
+       private static boolean isStatementAddress(int address) {
+         if (Memory.wordAligned(address) 
+               && (Memory.inTextSegment(address) || Memory.inKernelTextSegment(address))) {
+            return true;
+         }
+         try {
+            Memory.getInstance().getStatementNoNotify(address);
+            return true;
+         } 
+             catch (Exception e) {
+            // The only situation causing this so far: user modifies memory or register
+            // contents through direct manipulation on the GUI, after assembling the program but
+            // before starting to run it (or after backstepping all the way to the start).
+            // The action will not be associated with any instruction, but will be carried out
+            // when popped.
+               return false;
+            }
+      }
+   
+      // Notes a memory word written by the syscall now running, if any.
+       private void recordWrittenWord(int address) {
+         if (registersBefore == null) {
+            return;
+         }
+         int word = address & ~(Memory.WORD_LENGTH_BYTES - 1);
+         if (writtenWordCount > 0 && writtenWords[writtenWordCount - 1] == word) {
+            return;
+         }
+         if (writtenWordCount == writtenWords.length) {
+            int[] larger = new int[writtenWordCount * 2];
+            System.arraycopy(writtenWords, 0, larger, 0, writtenWordCount);
+            writtenWords = larger;
+         }
+         writtenWords[writtenWordCount++] = word;
+      }
+   
+      // Notes the memory words of a range written by the syscall now running, if any.
+       private void recordWrittenWords(int address, int length) {
+         if (registersBefore == null) {
+            return;
+         }
+         int first = address & ~(Memory.WORD_LENGTH_BYTES - 1);
+         int last = (address + length - 1) & ~(Memory.WORD_LENGTH_BYTES - 1);
+         for (int word = first; ; word += Memory.WORD_LENGTH_BYTES) {
+            recordWrittenWord(word);
+            if (word == last) {
+               break;
+            }
+         }
+      }
+   
+       private void appendChangedValues(int[] before, int[] after, int length) {
+         int countIndex = effectsLength;
+         int count = 0;
+         appendEffect(0);
+         for (int i = 0; i < length; i++) {
+            if (before[i] != after[i]) {
+               appendEffect(i);
+               appendEffect(after[i]);
+               count++;
+            }
+         }
+         effects[countIndex] = count;
+      }
+   
+       private void appendEffect(int value) {
+         if (effectsLength == effects.length) {
+            int[] larger = new int[effectsLength * 2];
+            System.arraycopy(effects, 0, larger, 0, effectsLength);
+            effects = larger;
+         }
+         effects[effectsLength++] = value;
+      }
+   
+      // Applies the changes recorded for an instruction, recording their undo actions
+      // as the instruction itself did.
+       private void redoEffects(int record) throws AddressErrorException {
+         int i = effectOffsets[record];
+         int heapAddress = effects[i++];
+         Memory memory = Memory.getInstance();
+         if (heapAddress != memory.heapAddress) {
+            addHeapRestore(memory.heapAddress);
+            memory.heapAddress = heapAddress;
+         }
+         int programCounter = RegisterFile.getProgramCounterRegister().getNumber();
+         for (int count = effects[i++]; count > 0; count--, i += 2) {
+            if (effects[i] == programCounter) {
+               RegisterFile.setProgramCounter(effects[i + 1]);
             } 
-                catch (Exception e) {
-                // The only situation causing this so far: user modifies memory or register
-                // contents through direct manipulation on the GUI, after assembling the program but
-                // before starting to run it (or after backstepping all the way to the start).
-                // The action will not be associated with any instruction, but will be carried out
-                // when popped.
-                  ps = null;
-                  pc = NOT_PC_VALUE; // Backstep method above will see this as flag to not set PC
+            else {
+               RegisterFile.updateRegister(effects[i], effects[i + 1]);
+            }
+         }
+         for (int count = effects[i++]; count > 0; count--, i += 2) {
+            Coprocessor1.updateRegister(effects[i], effects[i + 1]);
+         }
+         if (effects[i++] != 0) {
+            DelayedBranch.register(effects[i++]);
+         }
+         for (int count = effects[i++]; count > 0; count--, i += 2) {
+            memory.setWord(effects[i], effects[i + 1]);
+         }
+      }
+   
+      // Checkpoints are only taken between instructions, never while a delayed branch
+      // is pending, since that state is not part of a checkpoint.
+       private static boolean branchPending() {
+         return DelayedBranch.isRegistered() || DelayedBranch.isTriggered();
+      }
+   
+       private void takeCheckpoint(boolean kept) {
+         Checkpoint checkpoint = new Checkpoint(position, kept);
+         int last = checkpoints.size() - 1;
+         if (last >= 0 && checkpoints.get(last).position == position) {
+            // Supersedes one taken before the state was changed from outside.
+            Checkpoint replaced = checkpoints.set(last, checkpoint);
+            if (replaced.kept) {
+               checkpoint.kept = true;
+            } 
+            else if (kept && last > 0) {
+               periodicCheckpoints--;
+            }
+         } 
+         else {
+            checkpoints.add(checkpoint);
+            if (!kept && checkpoints.size() > 1) {
+               periodicCheckpoints++;
+            }
+         }
+         checkpointDue = false;
+         if (periodicCheckpoints > MAX_CHECKPOINTS) {
+            thinCheckpoints();
+         }
+      }
+   
+      // Drops every other checkpoint that may be dropped, except the first and latest.
+       private void thinCheckpoints() {
+         boolean drop = false;
+         for (int i = 1; i < checkpoints.size() - 1; i++) {
+            Checkpoint checkpoint = checkpoints.get(i);
+            if (!checkpoint.kept) {
+               if (drop) {
+                  checkpoints.remove(i--);
+                  periodicCheckpoints--;
+               }
+               drop = !drop;
+            }
+         }
+         checkpointInterval *= 2;
+      }
+   
+      // Returns the index of the latest checkpoint at or before the given position,
+      // or -1 if there is none.
+       private int findCheckpoint(long target) {
+         for (int i = checkpoints.size() - 1; i >= 0; i--) {
+            if (checkpoints.get(i).position <= target) {
+               return i;
+            }
+         }
+         return -1;
+      }
+   
+      // Drops what was recorded about instructions after the current position, which
+      // will be recorded again if they are executed again.
+       private void discardFuture() {
+         for (int i = checkpoints.size() - 1; i >= 0 && checkpoints.get(i).position > position; i--) {
+            if (!checkpoints.remove(i).kept && i > 0) {
+               periodicCheckpoints--;
+            }
+         }
+         while (effectCount > 0 && effectPositions[effectCount - 1] >= position) {
+            effectCount--;
+            effectsLength = effectOffsets[effectCount];
+         }
+      }
+   
+      // Recreates the state after the given number of instructions by restoring the
+      // latest checkpoint at or before it and executing forward from there.  The undo
+      // actions of the instructions executed are recorded as usual, and checkpoints are
+      // taken as often as the ring fills so that stepping back again stays cheap.
+       private void replayTo(long target) throws ProcessingException {
+         int index = findCheckpoint(target);
+         if (index < 0) {
+            return;
+         }
+         Checkpoint checkpoint = checkpoints.get(index);
+         restoreCheckpoint(checkpoint);
+         int record = effectCount;
+         while (record > 0 && effectPositions[record - 1] >= position) {
+            record--;
+         }
+         for (int i = checkpoints.size() - 1; i > index; i--) {
+            if (!checkpoints.remove(i).kept) {
+               periodicCheckpoints--;
+            }
+         }
+         replaying = true;
+         int pc = RegisterFile.getProgramCounter();
+         try {
+            while (position < target) {
+               pc = RegisterFile.getProgramCounter();
+               ProgramStatement statement = Memory.getInstance().getStatementNoNotify(pc);
+               RegisterFile.incrementPC();
+               if (record < effectCount && effectPositions[record] == position) {
+                  redoEffects(record++);
+               } 
+               else {
+                  ((BasicInstruction) statement.getInstruction()).getSimulationCode().simulate(statement);
+               }
+               addDoNothing(pc);
+               if (DelayedBranch.isTriggered()) {
+                  RegisterFile.setProgramCounter(DelayedBranch.getBranchTargetAddress());
+                  DelayedBranch.clear();
                } 
-            param1 = parm1;
-            param2 = parm2;
-            inDelaySlot = Simulator.inDelaySlot(); // ADDED 25 June 2007
-         /*				
-            System.out.println("backstep PUSH: action "+action+" pc "+mars.util.Binary.intToHexString(pc)+
-         		                   " source "+((ps==null)? "none":ps.getSource())+
-         								 " parm1 "+param1+" parm2 "+param2);
-         */
+               else if (DelayedBranch.isRegistered()) {
+                  DelayedBranch.trigger();
+               }
+            }
+         } 
+             catch (Exception e) {
+            // Checkpoints are taken after every exception, so the instructions replayed
+            // here executed without one before and should do so again.  If one does not,
+            // the machine is left as the checkpoint had it rather than part way there.
+               restoreCheckpoint(checkpoint);
+               discardFuture();
+               ErrorList errors = new ErrorList();
+               errors.add(new ErrorMessage((MIPSprogram) null, 0, 0, 
+                  "cannot step back: replaying the instruction at " + Binary.intToHexString(pc) + " failed (" + e + ")"));
+               throw new ProcessingException(errors);
+            }
+         finally {
+            replaying = false;
+         }
+         discardFuture();
+      }
+   
+      // Puts back the state recorded in a checkpoint, with no undo actions for it.
+       private void restoreCheckpoint(Checkpoint checkpoint) {
+         Memory.getInstance().restoreSnapshot(checkpoint.memory);
+         RegisterFile.restoreValues(checkpoint.registers);
+         Coprocessor0.restoreValues(checkpoint.coprocessor0);
+         Coprocessor1.restoreValues(checkpoint.coprocessor1);
+         DelayedBranch.clear();
+         position = checkpoint.position;
+         backSteps.clear(position);
+         checkpointDue = false;
+         registersBefore = null;
+         recordingInstruction = false;
+      }
+   
+       private static long[] copyOf(long[] array, int length) {
+         long[] copy = new long[length];
+         System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+         return copy;
+      }
+   
+   	// The machine state after a given number of instructions.
+       private static class Checkpoint {
+         private final long position;
+         private final MemorySnapshot memory;
+         private final int[] registers;
+         private final int[] coprocessor0;
+         private final int[] coprocessor1;
+         // True if the state cannot be recreated by replaying from an earlier
+         // checkpoint, because it follows an exception or a change made from outside.
+         private boolean kept;
+      
+          private Checkpoint(long position, boolean kept) {
+            this.position = position;
+            this.kept = kept;
+            memory = Memory.getInstance().takeSnapshot();
+            registers = RegisterFile.copyValues();
+            coprocessor0 = Coprocessor0.copyValues();
+            coprocessor1 = Coprocessor1.copyValues();
          }
       }
    	
@@ -378,38 +916,59 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	// newly-pushed item overwrites the oldest item, with circular top!  All operations 
    	// are constant time.  It's synchronized too, to be safe (is used by both the 
    	// simulation thread and the GUI thread for the back-step button).
-   	// Upon construction, it is filled with newly-created empty BackStep objects which
-   	// will exist for the life of the stack.  Push does not create a BackStep object 
-   	// but instead overwrites the contents of the existing one.  Thus during MIPS
-   	// program (simulated) execution, BackStep objects are never created or junked
-   	// regardless of how many steps are executed.  This will speed things up a bit
-   	// and make life easier for the garbage collector.
+   	// The fields of the steps are held in parallel primitive arrays allocated once,
+   	// so pushing a step stores its fields and creates no objects.  The few actions
+   	// that restore a whole range of memory keep their old contents in payloads.  Steps of the same
+   	// instruction share a stamp.  Once the oldest steps of an instruction have been
+   	// overwritten the rest cannot be undone alone, so the stack tracks the lowest
+   	// stamp whose steps are all still present.
    	
        private class BackstepStack {
-         private int capacity;
+         private final int capacity;
          private int size;
          private int top;
-         private BackStep[] stack;
+         private final byte[] actions;
+         private final int[] pcs;
+         private final int[] params1;
+         private final int[] params2;
+         private final long[] stamps;
+         private final boolean[] inDelaySlot;
+         private final Object[] payloads;
+         private long firstCompleteStamp;
       
-          // Stack is created upon successful assembly or reset.  The one-time overhead of
-      	 // creating all the BackStep objects will not be noticed by the user, and enhances
-      	 // runtime performance by not having to create or recycle them during MIPS
-      	 // program execution.
+          // Stack is created upon successful assembly or reset.  Its arrays are
+      	 // allocated here once and reused for the life of the stack.
           private BackstepStack(int capacity) {
             this.capacity = capacity;
             this.size = 0;
             this.top = -1;
-            this.stack = new BackStep[capacity];
-            for (int i=0; i<capacity; i++) {
-               this.stack[i] = new BackStep();
-            }
+            this.actions = new byte[capacity];
+            this.pcs = new int[capacity];
+            this.params1 = new int[capacity];
+            this.params2 = new int[capacity];
+            this.stamps = new long[capacity];
+            this.inDelaySlot = new boolean[capacity];
+            this.payloads = new Object[capacity];
+            this.firstCompleteStamp = Long.MIN_VALUE;
          }
       	
           private synchronized boolean empty() {
             return size==0;
          }
+      
+      	// True if the steps on top belong to an instruction whose steps are all present.
+          private synchronized boolean hasCompleteStep() {
+            return size > 0 && stamps[top] >= firstCompleteStamp;
+         }
+      
+      	// Empties the stack; steps of instructions before the given stamp were lost.
+          private synchronized void clear(long stamp) {
+            size = 0;
+            top = -1;
+            firstCompleteStamp = stamp;
+         }
          
-          private synchronized void push(int act, int programCounter, int parm1, int parm2) {
+          private synchronized void push(int act, int programCounter, int parm1, int parm2, Object payload, long stamp) {
             if (size==0) {
                top=0;
                size++;
@@ -420,25 +979,22 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             } 
             else { // size == capacity.  The top moves up one, replacing oldest entry (goodbye!)
                top = (top + 1) % capacity;
+               firstCompleteStamp = Math.max(firstCompleteStamp, stamps[top] + 1);
             }
-         	// We'll re-use existing objects rather than create/discard each time.
-         	// Must use assign() method rather than series of assignment statements!
-            stack[top].assign(act, programCounter, parm1, parm2);
-         }
-      	
-          private synchronized void push(int act, int programCounter, int parm1) {
-            push(act, programCounter, parm1, 0);
-         }
-      	
-          private synchronized void push(int act, int programCounter) {
-            push(act, programCounter, 0, 0);
+            actions[top] = (byte) act;
+            pcs[top] = programCounter;
+            params1[top] = parm1;
+            params2[top] = parm2;
+            payloads[top] = payload;
+            stamps[top] = stamp;
+            inDelaySlot[top] = Simulator.inDelaySlot(); // ADDED 25 June 2007
          }
          
       	// NO PROTECTION.  This class is used only within this file so there is no excuse
-      	// for trying to pop from empty stack.
-          private synchronized BackStep pop() {
-            BackStep bs;
-            bs = stack[top];
+      	// for trying to pop from empty stack.  Returns the index of the popped step,
+      	// whose fields stay in place until the next push.
+          private synchronized int pop() {
+            int popped = top;
             if (size==1) {
                top = -1;
             } 
@@ -446,15 +1002,18 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                top = (top + capacity - 1) % capacity;
             }
             size--;
-            return bs;
+            return popped;
          }
       
       	// NO PROTECTION.  This class is used only within this file so there is no excuse
       	// for trying to peek from empty stack.         
-          private synchronized BackStep peek() {
-            return stack[top];
+          private synchronized long peekStamp() {
+            return stamps[top];
+         }
+      
+          private synchronized boolean peekInDelaySlot() {
+            return inDelaySlot[top];
          }
-      			
       }
    
-   }
\ No newline at end of file
+   }
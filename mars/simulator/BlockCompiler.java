@@ -0,0 +1,498 @@
+package mars.simulator;
+import mars.*;
+import mars.mips.hardware.*;
+import mars.mips.instructions.*;
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+
+/**
+ * Compiles a basic block of the user text segment into a hidden class extending
+ * CompiledBlock, for use by the simulator's turbo engine.  The block starts at a
+ * given address and extends over the predecoded instructions that follow, up to
+ * and including the first branch or jump, stopping early at any instruction that
+ * does not come from MipsAssembly (custom languages), at a syscall, or at
+ * MAX_BLOCK_LENGTH instructions.
+ *
+ * Integer ALU instructions are translated to JVM bytecode operating on locals
+ * that hold the MIPS registers.  Every other MipsAssembly instruction (loads,
+ * stores, branches, multiply/divide, floating point, traps) is delegated to its
+ * own SimulationCode after the locals have been written back to RegisterFile, so
+ * the compiled block behaves exactly like the interpreter.  The class file uses
+ * version 49, which needs no stack map frames.
+ **/
+
+class BlockCompiler {
+
+   /** Number of entries into a block before it is compiled. */
+   static final int COMPILE_THRESHOLD = 50;
+   /** Longest block that will be compiled, in instructions. */
+   static final int MAX_BLOCK_LENGTH = 64;
+
+   private static final String BLOCK_CLASS = "mars/simulator/CompiledBlock";
+   private static final String REGISTER_FILE_CLASS = "mars/mips/hardware/RegisterFile";
+   private static final String SIMULATION_CODE_CLASS = "mars/mips/instructions/SimulationCode";
+   private static final String GENERATED_CLASS = "mars/simulator/GeneratedBlock";
+
+   // The JVM opcodes used here.
+   private static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+      ILOAD = 0x15, ALOAD_0 = 0x2a, AALOAD = 0x32, ISTORE = 0x36, POP = 0x57, IADD = 0x60, ISUB = 0x64,
+      ISHL = 0x78, ISHR = 0x7a, IUSHR = 0x7c, IAND = 0x7e, IOR = 0x80, IXOR = 0x82, IFEQ = 0x99, IFNE = 0x9a,
+      IRETURN = 0xac, RETURN = 0xb1, GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6,
+      INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9;
+
+   private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+   private final ConstantPool pool = new ConstantPool();
+   private final ProgramStatement[] statements;
+   private final int startAddress;
+   // Compile-time state of the register locals: loaded means the local holds the
+   // register's current value, dirty means RegisterFile has not been updated yet.
+   private final boolean[] loaded = new boolean[32];
+   private final boolean[] dirty = new boolean[32];
+
+   private BlockCompiler(int startAddress, ProgramStatement[] statements) {
+      this.startAddress = startAddress;
+      this.statements = statements;
+   }
+
+   /**
+    * Compile the block starting at the given address.
+    *
+    * @param cache the predecoded instructions the block is taken from
+    * @param startAddress address of the first instruction of the block
+    * @return the compiled block, or null if there is nothing at that address
+    * the compiler can handle.
+    */
+   static CompiledBlock compile(DecodedInstructionCache cache, int startAddress) {
+      ArrayList<ProgramStatement> blockStatements = new ArrayList<ProgramStatement>();
+      ArrayList<SimulationCode> blockCodes = new ArrayList<SimulationCode>();
+      for (int address = startAddress; blockStatements.size() < MAX_BLOCK_LENGTH;
+               address += Instruction.INSTRUCTION_LENGTH) {
+         ProgramStatement statement = cache.getStatement(address);
+         SimulationCode code = cache.getSimulationCode(address);
+         if (statement == null || code == null || code.getClass().getEnclosingClass() != MipsAssembly.class
+                || statement.getInstruction().getName().equals("syscall")) {
+            break;
+         }
+         blockStatements.add(statement);
+         blockCodes.add(code);
+         if (endsBlock((BasicInstruction) statement.getInstruction())) {
+            break;
+         }
+      }
+      if (blockStatements.isEmpty()) {
+         return null;
+      }
+      ProgramStatement[] statements = blockStatements.toArray(new ProgramStatement[0]);
+      SimulationCode[] codes = blockCodes.toArray(new SimulationCode[0]);
+      try {
+         byte[] classBytes = new BlockCompiler(startAddress, statements).generateClass();
+         Class<?> blockClass = lookup.defineHiddenClass(classBytes, true).lookupClass();
+         CompiledBlock block = (CompiledBlock) blockClass.getDeclaredConstructor().newInstance();
+         block.bind(startAddress, statements, codes);
+         return block;
+      }
+          catch (Exception e) {
+            return null;   // leave this block to the interpreter
+         }
+          catch (LinkageError e) {
+            return null;
+         }
+   }
+
+   // Branches and jumps end a block; the program counter they leave is where
+   // execution continues.
+   private static boolean endsBlock(BasicInstruction instruction) {
+      String name = instruction.getName();
+      return instruction.getInstructionFormat() == BasicInstructionFormat.I_BRANCH_FORMAT
+          || instruction.getInstructionFormat() == BasicInstructionFormat.J_FORMAT
+          || name.equals("jr") || name.equals("jalr") || name.equals("eret");
+   }
+
+   ////////////////////////////////////////////////////////////////////////////
+   // Class file generation
+
+   private byte[] generateClass() throws IOException {
+      int thisClass = pool.classRef(GENERATED_CLASS);
+      int superClass = pool.classRef(BLOCK_CLASS);
+      byte[] constructor = generateConstructor();
+      byte[] run = generateRun();
+      int initName = pool.utf8("<init>");
+      int initType = pool.utf8("()V");
+      int runName = pool.utf8("run");
+      int runType = pool.utf8("()I");
+      int codeName = pool.utf8("Code");
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      pool.write(out);
+      out.writeShort(0x0031);   // public final super
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);   // interfaces
+      out.writeShort(0);   // fields
+      out.writeShort(2);   // methods
+      writeMethod(out, 0x0001, initName, initType, codeName, constructor, 1);
+      writeMethod(out, 0x0011, runName, runType, codeName, run, 32);
+      out.writeShort(0);   // attributes
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   private void writeMethod(DataOutputStream out, int access, int name, int type, int codeName,
+                             byte[] code, int maxLocals) throws IOException {
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(type);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + code.length);
+      out.writeShort(8);   // max stack
+      out.writeShort(maxLocals);
+      out.writeInt(code.length);
+      out.write(code);
+      out.writeShort(0);   // exception table
+      out.writeShort(0);   // attributes
+   }
+
+   private byte[] generateConstructor() {
+      Code code = new Code();
+      code.op(ALOAD_0);
+      code.op(INVOKESPECIAL).u2(pool.methodRef(BLOCK_CLASS, "<init>", "()V"));
+      code.op(RETURN);
+      return code.toByteArray();
+   }
+
+   private byte[] generateRun() {
+      Code code = new Code();
+      for (int index = 0; index < statements.length; index++) {
+         if (!translate(code, index)) {
+            delegate(code, index);
+            if (index == statements.length - 1 && endsBlock((BasicInstruction) statements[index].getInstruction())) {
+               // The branch or jump has set the program counter.
+               code.pushInt(index + 1);
+               code.op(IRETURN);
+               return code.toByteArray();
+            }
+            // A store may have overwritten this very block.
+            Code exit = new Code();
+            exit.pushInt(index + 1);
+            exit.op(IRETURN);
+            code.op(ALOAD_0);
+            code.op(GETFIELD).u2(pool.fieldRef(BLOCK_CLASS, "valid", "Z"));
+            code.op(IFNE).u2(3 + exit.size());
+            code.append(exit);
+         }
+      }
+      flush(code);
+      setProgramCounter(code, startAddress + statements.length * Instruction.INSTRUCTION_LENGTH);
+      code.pushInt(statements.length);
+      code.op(IRETURN);
+      return code.toByteArray();
+   }
+
+   // Emit inline bytecode for the instruction at index, if it is one of the integer
+   // ALU instructions.  Returns false if the instruction must be delegated.
+   private boolean translate(Code code, int index) {
+      String name = statements[index].getInstruction().getName();
+      int[] operands = statements[index].getOperands();
+      if (name.equals("addu") || name.equals("subu") || name.equals("and") || name.equals("or")
+             || name.equals("xor") || name.equals("nor")) {
+         read(code, operands[1]);
+         read(code, operands[2]);
+         code.op(name.equals("addu") ? IADD : name.equals("subu") ? ISUB : name.equals("and") ? IAND
+                    : name.equals("xor") ? IXOR : IOR);
+         if (name.equals("nor")) {
+            code.op(ICONST_M1).op(IXOR);
+         }
+         write(code, operands[0]);
+      }
+      else if (name.equals("slt") || name.equals("sltu")) {
+         read(code, operands[1]);
+         read(code, operands[2]);
+         invokeHelper(code, name.equals("slt") ? "lessThan" : "lessThanUnsigned", "(II)I");
+         write(code, operands[0]);
+      }
+      else if (name.equals("sll") || name.equals("srl") || name.equals("sra")) {
+         read(code, operands[1]);
+         code.pushInt(operands[2]);
+         code.op(name.equals("sll") ? ISHL : name.equals("srl") ? IUSHR : ISHR);
+         write(code, operands[0]);
+      }
+      else if (name.equals("sllv") || name.equals("srlv") || name.equals("srav")) {
+         read(code, operands[1]);
+         read(code, operands[2]);
+         code.pushInt(0x0000001F).op(IAND);
+         code.op(name.equals("sllv") ? ISHL : name.equals("srlv") ? IUSHR : ISHR);
+         write(code, operands[0]);
+      }
+      else if (name.equals("addiu")) {
+         read(code, operands[1]);
+         code.pushInt(operands[2] << 16 >> 16).op(IADD);
+         write(code, operands[0]);
+      }
+      else if (name.equals("andi") || name.equals("ori") || name.equals("xori")) {
+         read(code, operands[1]);
+         code.pushInt(operands[2] & 0x0000FFFF);
+         code.op(name.equals("andi") ? IAND : name.equals("ori") ? IOR : IXOR);
+         write(code, operands[0]);
+      }
+      else if (name.equals("slti") || name.equals("sltiu")) {
+         read(code, operands[1]);
+         code.pushInt(operands[2] << 16 >> 16);
+         invokeHelper(code, name.equals("slti") ? "lessThan" : "lessThanUnsigned", "(II)I");
+         write(code, operands[0]);
+      }
+      else if (name.equals("lui")) {
+         code.pushInt(operands[1] << 16);
+         write(code, operands[0]);
+      }
+      else if (name.equals("add") || name.equals("sub") || name.equals("addi")) {
+         boolean immediate = name.equals("addi");
+         read(code, operands[1]);
+         readOperand(code, operands[2], immediate);
+         invokeHelper(code, name.equals("sub") ? "subtractOverflows" : "addOverflows", "(II)Z");
+         Code overflow = new Code();
+         flushCopy(overflow);
+         overflow.op(ALOAD_0);
+         overflow.pushInt(index);
+         overflow.op(INVOKEVIRTUAL).u2(pool.methodRef(BLOCK_CLASS, "overflow", "(I)V"));
+         overflow.op(ICONST_0).op(IRETURN);   // not reached
+         code.op(IFEQ).u2(3 + overflow.size());
+         code.append(overflow);
+         read(code, operands[1]);
+         readOperand(code, operands[2], immediate);
+         code.op(name.equals("sub") ? ISUB : IADD);
+         write(code, operands[0]);
+      }
+      else {
+         return false;
+      }
+      return true;
+   }
+
+   // Hand the instruction at index to its SimulationCode, with RegisterFile and the
+   // program counter brought up to date first.
+   private void delegate(Code code, int index) {
+      flush(code);
+      code.op(ALOAD_0);
+      code.pushInt(index);
+      code.op(PUTFIELD).u2(pool.fieldRef(BLOCK_CLASS, "current", "I"));
+      setProgramCounter(code, startAddress + (index + 1) * Instruction.INSTRUCTION_LENGTH);
+      code.op(ALOAD_0);
+      code.op(GETFIELD).u2(pool.fieldRef(BLOCK_CLASS, "codes", "[L" + SIMULATION_CODE_CLASS + ";"));
+      code.pushInt(index);
+      code.op(AALOAD);
+      code.op(ALOAD_0);
+      code.op(GETFIELD).u2(pool.fieldRef(BLOCK_CLASS, "statements", "[Lmars/ProgramStatement;"));
+      code.pushInt(index);
+      code.op(AALOAD);
+      code.op(INVOKEINTERFACE).u2(pool.interfaceMethodRef(SIMULATION_CODE_CLASS, "simulate",
+             "(Lmars/ProgramStatement;)V"));
+      code.u1(2).u1(0);
+      // The instruction may have changed any register.
+      Arrays.fill(loaded, false);
+   }
+
+   private void readOperand(Code code, int operand, boolean immediate) {
+      if (immediate) {
+         code.pushInt(operand << 16 >> 16);
+      }
+      else {
+         read(code, operand);
+      }
+   }
+
+   // Push the value of a MIPS register, loading it into its local on first use.
+   private void read(Code code, int register) {
+      if (register == 0) {
+         code.op(ICONST_0);
+         return;
+      }
+      if (!loaded[register]) {
+         code.pushInt(register);
+         code.op(INVOKESTATIC).u2(pool.methodRef(REGISTER_FILE_CLASS, "getValue", "(I)I"));
+         code.op(ISTORE).u1(register);
+         loaded[register] = true;
+      }
+      code.op(ILOAD).u1(register);
+   }
+
+   // Pop a value into the local for a MIPS register.  Writes to $zero are discarded.
+   private void write(Code code, int register) {
+      if (register == 0) {
+         code.op(POP);
+         return;
+      }
+      code.op(ISTORE).u1(register);
+      loaded[register] = true;
+      dirty[register] = true;
+   }
+
+   // Write every modified local back to RegisterFile.
+   private void flush(Code code) {
+      flushCopy(code);
+      Arrays.fill(dirty, false);
+   }
+
+   // As flush(), for an exit path that does not rejoin the main line of code.
+   private void flushCopy(Code code) {
+      for (int register = 1; register < dirty.length; register++) {
+         if (dirty[register]) {
+            code.pushInt(register);
+            code.op(ILOAD).u1(register);
+            code.op(INVOKESTATIC).u2(pool.methodRef(REGISTER_FILE_CLASS, "updateRegister", "(II)I"));
+            code.op(POP);
+         }
+      }
+   }
+
+   private void setProgramCounter(Code code, int address) {
+      code.pushInt(address);
+      code.op(INVOKESTATIC).u2(pool.methodRef(REGISTER_FILE_CLASS, "initializeProgramCounter", "(I)V"));
+   }
+
+   private void invokeHelper(Code code, String name, String type) {
+      code.op(INVOKESTATIC).u2(pool.methodRef(BLOCK_CLASS, name, type));
+   }
+
+   ////////////////////////////////////////////////////////////////////////////
+   // Bytecode buffer for one method body.
+
+   private class Code {
+      private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+      Code op(int opcode) {
+         bytes.write(opcode);
+         return this;
+      }
+
+      Code u1(int value) {
+         bytes.write(value);
+         return this;
+      }
+
+      Code u2(int value) {
+         bytes.write(value >> 8);
+         bytes.write(value);
+         return this;
+      }
+
+      Code pushInt(int value) {
+         if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value);
+         }
+         else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH).u1(value);
+         }
+         else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(SIPUSH).u2(value);
+         }
+         else {
+            op(LDC_W).u2(pool.integer(value));
+         }
+         return this;
+      }
+
+      void append(Code other) {
+         byte[] otherBytes = other.toByteArray();
+         bytes.write(otherBytes, 0, otherBytes.length);
+      }
+
+      int size() {
+         return bytes.size();
+      }
+
+      byte[] toByteArray() {
+         return bytes.toByteArray();
+      }
+   }
+
+   ////////////////////////////////////////////////////////////////////////////
+   // Constant pool, with entries shared by key.
+
+   private static class ConstantPool {
+      private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      private DataOutputStream out = new DataOutputStream(bytes);
+      private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+      private int count = 1;
+
+      int utf8(String value) {
+         Integer index = entries.get("U" + value);
+         if (index != null) {
+            return index.intValue();
+         }
+         try {
+            out.writeByte(1);
+            out.writeUTF(value);
+         }
+             catch (IOException e) { } // cannot happen with a ByteArrayOutputStream
+         return add("U" + value);
+      }
+
+      int integer(int value) {
+         Integer index = entries.get("I" + value);
+         if (index != null) {
+            return index.intValue();
+         }
+         try {
+            out.writeByte(3);
+            out.writeInt(value);
+         }
+             catch (IOException e) { }
+         return add("I" + value);
+      }
+
+      int classRef(String name) {
+         return reference("C" + name, 7, utf8(name), -1);
+      }
+
+      int fieldRef(String owner, String name, String type) {
+         return reference("F" + owner + "." + name + ":" + type, 9, classRef(owner), nameAndType(name, type));
+      }
+
+      int methodRef(String owner, String name, String type) {
+         return reference("M" + owner + "." + name + type, 10, classRef(owner), nameAndType(name, type));
+      }
+
+      int interfaceMethodRef(String owner, String name, String type) {
+         return reference("N" + owner + "." + name + type, 11, classRef(owner), nameAndType(name, type));
+      }
+
+      private int nameAndType(String name, String type) {
+         return reference("T" + name + ":" + type, 12, utf8(name), utf8(type));
+      }
+
+      // Entry made of a tag and one or two constant pool indexes (second is -1 if absent).
+      private int reference(String key, int tag, int first, int second) {
+         Integer index = entries.get(key);
+         if (index != null) {
+            return index.intValue();
+         }
+         try {
+            out.writeByte(tag);
+            out.writeShort(first);
+            if (second >= 0) {
+               out.writeShort(second);
+            }
+         }
+             catch (IOException e) { }
+         return add(key);
+      }
+
+      private int add(String key) {
+         entries.put(key, Integer.valueOf(count));
+         return count++;
+      }
+
+      void write(DataOutputStream classOut) throws IOException {
+         out.flush();
+         classOut.writeShort(count);
+         bytes.writeTo(classOut);
+      }
+   }
+}
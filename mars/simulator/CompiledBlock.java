@@ -0,0 +1,122 @@
+package mars.simulator;
+import mars.*;
+import mars.mips.hardware.*;
+import mars.mips.instructions.*;
+
+/**
+ * Superclass of the hidden classes generated by BlockCompiler.  Each subclass
+ * implements one basic block of the user text segment: a straight run of MIPS
+ * instructions ending at a branch or jump, or just before an instruction the
+ * compiler does not handle.
+ *
+ * The generated run() method keeps MIPS registers in JVM locals and writes them
+ * back to RegisterFile before any instruction it delegates to the original
+ * SimulationCode, and at every exit from the block.  It leaves the program counter
+ * at the next instruction to execute and returns the number of instructions it
+ * executed.  If a ProcessingException escapes, the instruction that raised it is
+ * the one at index getCurrentIndex().
+ **/
+
+abstract class CompiledBlock {
+
+   /** Statements of the block, in address order.  Read by the generated code. */
+   protected ProgramStatement[] statements;
+   /** SimulationCode of each statement.  Read by the generated code. */
+   protected SimulationCode[] codes;
+   /** Index of the instruction now being delegated to its SimulationCode. */
+   protected int current;
+   /** Cleared when any instruction in the block is overwritten. */
+   protected volatile boolean valid = true;
+   private int startAddress;
+
+   /**
+    * Give the block the statements it was compiled from.  Called once, by
+    * BlockCompiler, before the block is first run.
+    */
+   void bind(int startAddress, ProgramStatement[] statements, SimulationCode[] codes) {
+      this.startAddress = startAddress;
+      this.statements = statements;
+      this.codes = codes;
+   }
+
+   /**
+    * Execute the block.
+    *
+    * @return number of MIPS instructions executed.
+    * @throws ProcessingException raised by the instruction at getCurrentIndex().
+    */
+   abstract int run() throws ProcessingException;
+
+   /**
+    * @return number of MIPS instructions in the block.
+    */
+   int length() {
+      return statements.length;
+   }
+
+   /**
+    * @return address of the first instruction in the block.
+    */
+   int getStartAddress() {
+      return startAddress;
+   }
+
+   /**
+    * @return index within the block of the instruction that raised the last exception.
+    */
+   int getCurrentIndex() {
+      return current;
+   }
+
+   /**
+    * Mark the block as no longer matching the text segment.  A running block
+    * checks this after each instruction it delegates, so a store into its own
+    * code ends it at once.
+    */
+   void invalidate() {
+      valid = false;
+   }
+
+   /**
+    * @return true unless invalidate() has been called.
+    */
+   boolean isValid() {
+      return valid;
+   }
+
+   /*
+    * Helpers called from the generated code.  They mirror the corresponding
+    * SimulationCode in MipsAssembly.
+    */
+
+   protected static int lessThan(int first, int second) {
+      return (first < second) ? 1 : 0;
+   }
+
+   protected static int lessThanUnsigned(int first, int second) {
+      return (Integer.compareUnsigned(first, second) < 0) ? 1 : 0;
+   }
+
+   // overflow on A+B detected when A and B have same sign and A+B has other sign.
+   protected static boolean addOverflows(int add1, int add2) {
+      int sum = add1 + add2;
+      return (add1 >= 0 && add2 >= 0 && sum < 0) || (add1 < 0 && add2 < 0 && sum >= 0);
+   }
+
+   // overflow on A-B detected when A and B have opposite signs and A-B has B's sign
+   protected static boolean subtractOverflows(int sub1, int sub2) {
+      int dif = sub1 - sub2;
+      return (sub1 >= 0 && sub2 < 0 && dif < 0) || (sub1 < 0 && sub2 >= 0 && dif >= 0);
+   }
+
+   /**
+    * Raise the arithmetic overflow exception for the instruction at the given
+    * index.  The generated code has already written back its registers.
+    */
+   protected void overflow(int index) throws ProcessingException {
+      current = index;
+      RegisterFile.initializeProgramCounter(startAddress + (index + 1) * Instruction.INSTRUCTION_LENGTH);
+      throw new ProcessingException(statements[index],
+          "arithmetic overflow", Exceptions.ARITHMETIC_OVERFLOW_EXCEPTION);
+   }
+}
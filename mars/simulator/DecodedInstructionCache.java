@@ -0,0 +1,177 @@
+package mars.simulator;
+import mars.*;
+import mars.mips.hardware.*;
+import mars.mips.instructions.*;
+import java.util.*;
+
+/**
+ * Predecoded copy of the user text segment, consulted by the simulator's fetch step
+ * so that an instruction fetch does not have to go through Memory.getStatement()
+ * (segment range checks, block/offset division) and the BasicInstruction cast on
+ * every execution.  Slot i holds the statement at address textBaseAddress + 4*i
+ * together with its resolved SimulationCode.
+ *
+ * The cache is built once after a successful assemble.  Memory.setStatement() clears
+ * the affected slot, so self-modifying code and edits made through the GUI are picked
+ * up on the next fetch, which then takes the slow path through Memory.  A slot that
+ * is empty means "not cached", never "no instruction here"; the caller must fall
+ * back to Memory.getStatement() to find out.
+ *
+ * The cache also holds the turbo engine's compiled basic blocks, indexed by their
+ * starting slot, and the entry counts that decide when a block gets compiled.
+ * Invalidating a slot discards every compiled block that covers it.
+ **/
+
+public class DecodedInstructionCache {
+
+   private int baseAddress;
+   private ProgramStatement[] statements;
+   private SimulationCode[] simulationCodes;
+   private CompiledBlock[] compiledBlocks;
+   private int[] blockEntryCounts;
+
+   /**
+    * Create an empty cache.  Every lookup will miss until build() is called.
+    */
+   public DecodedInstructionCache() {
+      clear();
+   }
+
+   /**
+    * Discard all cached slots.
+    */
+   public synchronized void clear() {
+      baseAddress = Memory.textBaseAddress;
+      statements = new ProgramStatement[0];
+      simulationCodes = new SimulationCode[0];
+      compiledBlocks = new CompiledBlock[0];
+      blockEntryCounts = new int[0];
+   }
+
+   /**
+    * Populate the cache from the list of assembled machine statements.  Only
+    * statements in the user text segment whose instruction is a BasicInstruction
+    * are cached; anything else will be fetched from Memory as before.
+    *
+    * @param machineList ArrayList of ProgramStatement produced by the assembler.
+    */
+   public synchronized void build(ArrayList<?> machineList) {
+      int base = Memory.textBaseAddress;
+      int highestSlot = -1;
+      for (int i = 0; i < machineList.size(); i++) {
+         int address = ((ProgramStatement) machineList.get(i)).getAddress();
+         if (Memory.inTextSegment(address)) {
+            highestSlot = Math.max(highestSlot, (address - base) >>> 2);
+         }
+      }
+      ProgramStatement[] newStatements = new ProgramStatement[highestSlot + 1];
+      SimulationCode[] newCodes = new SimulationCode[highestSlot + 1];
+      for (int i = 0; i < machineList.size(); i++) {
+         ProgramStatement statement = (ProgramStatement) machineList.get(i);
+         int address = statement.getAddress();
+         if (Memory.inTextSegment(address) && Memory.wordAligned(address)
+                && statement.getInstruction() instanceof BasicInstruction) {
+            int slot = (address - base) >>> 2;
+            newStatements[slot] = statement;
+            newCodes[slot] = ((BasicInstruction) statement.getInstruction()).getSimulationCode();
+         }
+      }
+      baseAddress = base;
+      statements = newStatements;
+      simulationCodes = newCodes;
+      compiledBlocks = new CompiledBlock[newStatements.length];
+      blockEntryCounts = new int[newStatements.length];
+   }
+
+   /**
+    * Clear the slot for the given address, if it is cached.  Called by Memory
+    * whenever a statement is stored into the text segment.
+    *
+    * @param address text segment address that has been (re)written
+    */
+   public synchronized void invalidate(int address) {
+      int slot = (address - baseAddress) >>> 2;
+      if (slot < statements.length) {
+         statements[slot] = null;
+         simulationCodes[slot] = null;
+         for (int start = Math.max(0, slot - BlockCompiler.MAX_BLOCK_LENGTH + 1); start <= slot; start++) {
+            CompiledBlock block = compiledBlocks[start];
+            if (block != null && start + block.length() > slot) {
+               block.invalidate();
+               compiledBlocks[start] = null;
+            }
+         }
+      }
+   }
+
+   /**
+    * Return the cached statement at the given address.
+    *
+    * @param address instruction address (program counter value)
+    * @return the cached ProgramStatement, or null if that address is not cached.
+    */
+   public ProgramStatement getStatement(int address) {
+      ProgramStatement[] current = statements;
+      int slot = (address - baseAddress) >>> 2;
+      return ((address & 3) == 0 && slot < current.length) ? current[slot] : null;
+   }
+
+   /**
+    * Return the resolved SimulationCode of the statement at the given address.
+    *
+    * @param address instruction address (program counter value)
+    * @return the cached SimulationCode, or null if that address is not cached.
+    */
+   public SimulationCode getSimulationCode(int address) {
+      SimulationCode[] current = simulationCodes;
+      int slot = (address - baseAddress) >>> 2;
+      return ((address & 3) == 0 && slot < current.length) ? current[slot] : null;
+   }
+
+   /**
+    * Return the compiled basic block starting at the given address.
+    *
+    * @param address instruction address (program counter value)
+    * @return the CompiledBlock, or null if none has been compiled there.
+    */
+   CompiledBlock getCompiledBlock(int address) {
+      CompiledBlock[] current = compiledBlocks;
+      int slot = (address - baseAddress) >>> 2;
+      return ((address & 3) == 0 && slot < current.length) ? current[slot] : null;
+   }
+
+   /**
+    * Count one more entry into the basic block starting at the given address.
+    *
+    * @param address instruction address (program counter value)
+    * @return the number of entries so far, or 0 if the address is not cached.
+    */
+   int countBlockEntry(int address) {
+      int[] current = blockEntryCounts;
+      int slot = (address - baseAddress) >>> 2;
+      if ((address & 3) != 0 || slot >= current.length || statements[slot] == null) {
+         return 0;
+      }
+      return ++current[slot];
+   }
+
+   /**
+    * Record the compiled basic block for the given address.  It is dropped if any
+    * of its instructions has been replaced since it was compiled.
+    *
+    * @param address address of the first instruction of the block
+    * @param block the compiled block
+    */
+   synchronized void setCompiledBlock(int address, CompiledBlock block) {
+      int slot = (address - baseAddress) >>> 2;
+      if (slot + block.length() > statements.length) {
+         return;
+      }
+      for (int i = 0; i < block.length(); i++) {
+         if (statements[slot + i] != block.statements[i]) {
+            return;
+         }
+      }
+      compiledBlocks[slot] = block;
+   }
+}
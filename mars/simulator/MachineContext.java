@@ -0,0 +1,295 @@
+package mars.simulator;
+import mars.*;
+import mars.assembler.SymbolTable;
+import mars.mips.hardware.*;
+import mars.util.SystemIO;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * One simulated MIPS machine: its memory, registers, coprocessors and pending delayed
+ * branch, the program and symbol table assembled into it, the lock that guards its
+ * memory and registers, the Simulator that runs it, and what its syscalls use -- the
+ * open files and standard streams, the random number streams and the exit code.  Independent contexts can
+ * assemble and run programs at the same time on different threads.
+ *
+ * The long-standing static APIs -- Memory.getInstance(), RegisterFile, Coprocessor0,
+ * Coprocessor1, DelayedBranch and Simulator.getInstance() -- work on the context bound
+ * to the calling thread.  Every thread is bound to the default context unless it is
+ * running a task passed to run() or call(); the simulator thread is bound to the
+ * context of its Simulator.  Bindings are not inherited, so work handed to another
+ * thread or to a pool must be wrapped in run() or call() of its context.  The default context is
+ * the machine the GUI and the command line have always used: its program, symbol table
+ * lock and exit code are the ones in Globals, so code that reads or assigns those fields
+ * directly keeps working with it, but sees only the default context.
+ *
+ * Until a second context is created, current() answers without consulting the
+ * thread's binding.
+ **/
+
+public final class MachineContext {
+
+   private static final MachineContext DEFAULT = new MachineContext(true);
+   // True until the first context other than the default is created or bound.
+   private static volatile boolean onlyDefault = true;
+   private static final ThreadLocal<MachineContext> bound =
+      new ThreadLocal<MachineContext>() {
+         protected MachineContext initialValue() {
+            return DEFAULT;
+         }
+      };
+
+   private final boolean isDefault;
+   private final Memory memory;
+   private final RegisterFile registerFile;
+   private final Coprocessor0 coprocessor0;
+   private final Coprocessor1 coprocessor1;
+   final DelayedBranch delayedBranch = new DelayedBranch();
+   // Only used by contexts other than the default; see the class comment.
+   private final Object memoryAndRegistersLock;
+   private MIPSprogram program;
+   private SymbolTable symbolTable;
+   private int exitCode;
+   private final SystemIO systemIO = new SystemIO();
+   private final HashMap<Integer, Random> randomStreams = new HashMap<Integer, Random>();
+   private final Simulator simulator;
+
+   /**
+    * Create a new machine with empty memory, registers at their reset values and the
+    * current memory configuration, independent of every other context.
+    */
+   public MachineContext() {
+      this(false);
+      onlyDefault = false;
+   }
+
+   private MachineContext(boolean isDefault) {
+      this.isDefault = isDefault;
+      memory = new Memory();
+      registerFile = new RegisterFile();
+      coprocessor0 = new Coprocessor0();
+      coprocessor1 = new Coprocessor1();
+      memoryAndRegistersLock = isDefault ? null : new Object();
+      symbolTable = isDefault ? null : new SymbolTable("global");
+      simulator = new Simulator(this);
+   }
+
+   /**
+    * Returns the context used by the GUI, the command line and any thread that has
+    * not been bound to another one.
+    *
+    * @return the default context
+    */
+   public static MachineContext getDefault() {
+      return DEFAULT;
+   }
+
+   /**
+    * Returns the context bound to the calling thread.
+    *
+    * @return the calling thread's context
+    */
+   public static MachineContext current() {
+      return onlyDefault ? DEFAULT : bound.get();
+   }
+
+   /**
+    * Run a task with the calling thread bound to this context, then restore the
+    * thread's previous binding.
+    *
+    * @param task the task to run
+    */
+   public void run(Runnable task) {
+      MachineContext previous = bind();
+      try {
+         task.run();
+      }
+      finally {
+         previous.bind();
+      }
+   }
+
+   /**
+    * Run a task with the calling thread bound to this context, then restore the
+    * thread's previous binding.
+    *
+    * @param task the task to run
+    * @return the task's result
+    * @throws Exception whatever the task throws
+    */
+   public <V> V call(Callable<V> task) throws Exception {
+      MachineContext previous = bind();
+      try {
+         return task.call();
+      }
+      finally {
+         previous.bind();
+      }
+   }
+
+   /**
+    * Bind the calling thread to this context.  Used by the simulator thread, and by
+    * run() and call().
+    *
+    * @return the context the thread was bound to before
+    */
+   MachineContext bind() {
+      MachineContext previous = bound.get();
+      if (previous != this) {
+         bound.set(this);
+         if (this != DEFAULT) {
+            onlyDefault = false;
+         }
+      }
+      return previous;
+   }
+
+   /**
+    * Determine whether this is the default context.
+    *
+    * @return true if this context is the one returned by getDefault()
+    */
+   public boolean isDefault() {
+      return isDefault;
+   }
+
+   /**
+    * Returns this machine's memory.
+    *
+    * @return the Memory of this context
+    */
+   public Memory getMemory() {
+      return memory;
+   }
+
+   /**
+    * Returns the object to synchronize on while accessing this machine's memory and
+    * registers from outside the simulator thread.  For the default context this is
+    * Globals.memoryAndRegistersLock.
+    *
+    * @return the lock for this context
+    */
+   public Object getMemoryAndRegistersLock() {
+      return isDefault ? Globals.memoryAndRegistersLock : memoryAndRegistersLock;
+   }
+
+   /**
+    * Returns the program being worked with in this context, which is the one whose
+    * BackStepper records changes to the machine.  For the default context this is
+    * Globals.program, which the command line leaves null.
+    *
+    * @return the program, or null if none has been set
+    */
+   public MIPSprogram getProgram() {
+      return isDefault ? Globals.program : program;
+   }
+
+   /**
+    * Set the program being worked with in this context.  Setting one turns on
+    * back-stepping for simulations in this context if the program's BackStepper is
+    * enabled.
+    *
+    * @param program the program, or null for none
+    */
+   public void setProgram(MIPSprogram program) {
+      if (isDefault) {
+         Globals.program = program;
+      }
+      else {
+         this.program = program;
+      }
+   }
+
+   /**
+    * Returns the global symbol table used when assembling into this context.  For the
+    * default context this is Globals.symbolTable.
+    *
+    * @return the global symbol table
+    */
+   public SymbolTable getSymbolTable() {
+      return isDefault ? Globals.symbolTable : symbolTable;
+   }
+
+   /**
+    * Returns the exit code set by the last program run in this context that used the
+    * exit2 syscall.  For the default context this is Globals.exitCode.
+    *
+    * @return the exit code
+    */
+   public int getExitCode() {
+      return isDefault ? Globals.exitCode : exitCode;
+   }
+
+   /**
+    * Set the exit code of this context.
+    *
+    * @param exitCode the exit code
+    */
+   public void setExitCode(int exitCode) {
+      if (isDefault) {
+         Globals.exitCode = exitCode;
+      }
+      else {
+         this.exitCode = exitCode;
+      }
+   }
+
+   /**
+    * Returns the open files and standard streams used by syscalls run in this context.
+    *
+    * @return this context's SystemIO
+    */
+   public SystemIO getSystemIO() {
+      return systemIO;
+   }
+
+   /**
+    * Returns the pseudorandom number streams used by the random number syscalls run in
+    * this context, keyed by stream number.
+    *
+    * @return this context's random number streams
+    */
+   public HashMap<Integer, Random> getRandomStreams() {
+      return randomStreams;
+   }
+
+   /**
+    * Returns the Simulator that runs programs in this context.
+    *
+    * @return this context's Simulator
+    */
+   public Simulator getSimulator() {
+      return simulator;
+   }
+
+   // Used by the static methods of the register classes, which cannot see these
+   // fields since they are in another package.
+
+   /**
+    * Returns the state behind the static methods of RegisterFile for this context.
+    *
+    * @return this context's general purpose registers, pc, hi and lo
+    */
+   public RegisterFile getRegisterFile() {
+      return registerFile;
+   }
+
+   /**
+    * Returns the state behind the static methods of Coprocessor0 for this context.
+    *
+    * @return this context's Coprocessor 0 registers
+    */
+   public Coprocessor0 getCoprocessor0() {
+      return coprocessor0;
+   }
+
+   /**
+    * Returns the state behind the static methods of Coprocessor1 for this context.
+    *
+    * @return this context's floating point registers and condition flags
+    */
+   public Coprocessor1 getCoprocessor1() {
+      return coprocessor1;
+   }
+}
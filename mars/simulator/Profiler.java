@@ -0,0 +1,480 @@
+package mars.simulator;
+import mars.*;
+import mars.assembler.*;
+import mars.mips.hardware.*;
+import mars.mips.instructions.*;
+import mars.util.Binary;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Counts the instructions a Simulator executes, by address, and charges them to
+ * the functions on a call stack it keeps alongside the program's.  Install one
+ * with Simulator.setProfiler(); the simulator then reports every instruction it
+ * completes, from the normal loop, the turbo engine and compiled blocks alike.
+ *
+ * Counts are kept in primitive arrays, one per 64KB region of the address space
+ * that holds executed code, so counting an instruction is an array increment.  A
+ * compiled block that runs to its end is counted as a whole and spread over its
+ * instructions only when a report is written.
+ *
+ * A taken jal, jalr, bgezal or bltzal is a call: the function is named by the
+ * address it enters.  A jr $ra returns from the innermost call whose return
+ * address it jumps to, and is otherwise treated as an ordinary jump.  Code that
+ * calls or returns any other way is charged to the function it was entered from.
+ * Labels for the report come from the symbol tables of the program assembled into
+ * the simulator's context.
+ **/
+
+public class Profiler {
+
+   private static final int REGION_SHIFT = 16;
+   private static final int REGION_WORDS = 1 << (REGION_SHIFT - 2);
+   private static final int REGION_OFFSET_MASK = (1 << REGION_SHIFT) - 1;
+   // Calls nested more deeply than this are charged to the deepest frame.
+   private static final int MAX_DEPTH = 1024;
+
+   private static final byte PLAIN = 0, CALL = 1, RETURN = 2;
+
+   private final HashMap<Integer, Region> regions = new HashMap<Integer, Region>();
+   private Region lastRegion;
+   private int lastRegionNumber;
+   private long executed;
+   // Value of executed when the current frame was last charged.
+   private long charged;
+   private Frame root;
+   private final Frame[] stack = new Frame[MAX_DEPTH + 1];
+   private final int[] returnAddresses = new int[MAX_DEPTH + 1];
+   private int depth;
+   private int returnOffset = Instruction.INSTRUCTION_LENGTH;
+   private MachineContext context;
+
+   /**
+    * Create a profiler with no counts.
+    */
+   public Profiler() {
+   }
+
+   /**
+    * Returns the number of instructions counted so far.
+    *
+    * @return instructions executed while this profiler was installed
+    */
+   public long getInstructionCount() {
+      return executed;
+   }
+
+   /**
+    * Returns the number of times the instruction at the given address was executed.
+    *
+    * @param address address of an instruction
+    * @return its execution count
+    */
+   public long getCount(int address) {
+      settleBlocks();
+      Region region = regions.get(address >>> REGION_SHIFT);
+      return (region == null) ? 0 : region.counts[(address & REGION_OFFSET_MASK) >>> 2];
+   }
+
+   /**
+    * Called by the simulator thread when execution starts or resumes at the given
+    * address.  The first call makes the function entered there the root of the call
+    * tree.
+    */
+   void executionStarting(int address) {
+      context = MachineContext.current();
+      returnOffset = Instruction.INSTRUCTION_LENGTH +
+         (Globals.getSettings().getBooleanSetting(Settings.DELAYED_BRANCHING_ENABLED) ? Instruction.INSTRUCTION_LENGTH : 0);
+      if (root == null) {
+         root = new Frame(address);
+         stack[0] = root;
+      }
+   }
+
+   /**
+    * Count one completed instruction.  Called by the simulator thread after the
+    * program counter, and any delayed branch, have been updated for it.
+    *
+    * @param address address of the instruction
+    * @param statement the instruction
+    */
+   void count(int address, ProgramStatement statement) {
+      Region region = lastRegion;
+      if (region == null || (address >>> REGION_SHIFT) != lastRegionNumber) {
+         region = region(address);
+      }
+      int index = (address & REGION_OFFSET_MASK) >>> 2;
+      region.counts[index]++;
+      executed++;
+      if (region.statements[index] != statement) {
+         region.statements[index] = statement;
+         region.kinds[index] = kindOf(statement);
+      }
+      if (region.kinds[index] != PLAIN) {
+         transfer(region.kinds[index], address);
+      }
+   }
+
+   /**
+    * Count the instructions executed by one run of a compiled block.
+    *
+    * @param block the block
+    * @param count number of its instructions that were executed, from the first
+    */
+   void countBlock(CompiledBlock block, int count) {
+      ProgramStatement[] statements = block.statements;
+      int start = block.getStartAddress();
+      if (count != statements.length || count == 1) {
+         for (int i = 0; i < count; i++) {
+            count(start + i * Instruction.INSTRUCTION_LENGTH, statements[i]);
+         }
+         return;
+      }
+      // Every instruction but the last, which may be a call or return, is counted
+      // by block.
+      Region region = lastRegion;
+      if (region == null || (start >>> REGION_SHIFT) != lastRegionNumber) {
+         region = region(start);
+      }
+      int index = (start & REGION_OFFSET_MASK) >>> 2;
+      if (region.blockRuns == null) {
+         region.blockRuns = new long[REGION_WORDS];
+         region.blockLengths = new int[REGION_WORDS];
+      }
+      if (region.blockLengths[index] != count - 1) {
+         settleBlock(region, index);
+         region.blockLengths[index] = count - 1;
+      }
+      region.blockRuns[index]++;
+      executed += count - 1;
+      count(start + (count - 1) * Instruction.INSTRUCTION_LENGTH, statements[count - 1]);
+   }
+
+   /**
+    * Write a report of the functions and source lines that executed the most
+    * instructions, hottest first.  Inclusive counts include the instructions of the
+    * functions called, each instruction once however deep the recursion.
+    *
+    * @param out where to write the report
+    */
+   public void writeReport(PrintStream out) {
+      settleBlocks();
+      settleFrame();
+      out.println("MARS execution profile: " + executed + " instructions");
+      out.println();
+      out.println("   Inclusive          Self      Calls  Function");
+      if (root != null) {
+         HashMap<Integer, long[]> functions = new HashMap<Integer, long[]>();
+         sumFunctions(root, functions, new HashMap<Integer, Integer>());
+         ArrayList<Map.Entry<Integer, long[]>> entries = new ArrayList<Map.Entry<Integer, long[]>>(functions.entrySet());
+         Collections.sort(entries,
+            new Comparator<Map.Entry<Integer, long[]>>() {
+               public int compare(Map.Entry<Integer, long[]> a, Map.Entry<Integer, long[]> b) {
+                  int order = Long.compare(b.getValue()[0], a.getValue()[0]);
+                  return (order != 0) ? order : Integer.compareUnsigned(a.getKey(), b.getKey());
+               }
+            });
+         for (Map.Entry<Integer, long[]> entry : entries) {
+            long[] sums = entry.getValue();
+            out.println(String.format("%12d  %12d  %9d  %s", sums[0], sums[1], sums[2], functionName(entry.getKey())));
+         }
+      }
+      out.println();
+      out.println("       Count  Percent  Location  Source");
+      for (SourceLine line : sourceLines()) {
+         out.println(String.format("%12d  %6.2f%%  %s  %s", line.count,
+            (executed == 0) ? 0.0 : 100.0 * line.count / executed, line.location, line.source));
+      }
+   }
+
+   /**
+    * Write the call stacks in folded form, one line per distinct stack giving the
+    * functions from the outermost in, separated by semicolons, then the number of
+    * instructions executed with exactly that stack.  Flame graph tools read this
+    * format.
+    *
+    * @param out where to write the stacks
+    */
+   public void writeFoldedStacks(PrintStream out) {
+      settleFrame();
+      if (root != null) {
+         writeFolded(root, new StringBuilder(), out);
+      }
+   }
+
+   ////////////////////////////////////////////////////////////////////////////
+   // Counting
+
+   private Region region(int address) {
+      int number = address >>> REGION_SHIFT;
+      Region region = regions.get(number);
+      if (region == null) {
+         region = new Region(number << REGION_SHIFT);
+         regions.put(number, region);
+      }
+      lastRegion = region;
+      lastRegionNumber = number;
+      return region;
+   }
+
+   private static byte kindOf(ProgramStatement statement) {
+      Instruction instruction = statement.getInstruction();
+      if (instruction == null) {
+         return PLAIN;
+      }
+      String name = instruction.getName();
+      if (name.equals("jal") || name.equals("jalr") || name.equals("bgezal") || name.equals("bltzal")) {
+         return CALL;
+      }
+      if (name.equals("jr") && statement.getOperand(0) == 31) {
+         return RETURN;
+      }
+      return PLAIN;
+   }
+
+   // The instruction at address, a call or return, has just completed.
+   private void transfer(byte kind, int address) {
+      int target = DelayedBranch.isTriggered() ? DelayedBranch.getBranchTargetAddress()
+                                               : RegisterFile.getProgramCounter();
+      if (root == null || target == address + Instruction.INSTRUCTION_LENGTH) {
+         return;   // not taken
+      }
+      if (kind == CALL) {
+         settleFrame();
+         if (depth < MAX_DEPTH) {
+            Frame callee = stack[depth].child(target);
+            callee.calls++;
+            depth++;
+            stack[depth] = callee;
+            returnAddresses[depth] = address + returnOffset;
+         }
+      }
+      else {
+         for (int frame = depth; frame > 0; frame--) {
+            if (returnAddresses[frame] == target) {
+               settleFrame();
+               while (depth >= frame) {
+                  stack[depth--] = null;
+               }
+               return;
+            }
+         }
+      }
+   }
+
+   // Charge the instructions counted since the last change of frame to the current one.
+   private void settleFrame() {
+      if (root != null) {
+         stack[depth].self += executed - charged;
+         charged = executed;
+      }
+   }
+
+   private void settleBlocks() {
+      for (Region region : new ArrayList<Region>(regions.values())) {
+         if (region.blockRuns != null) {
+            for (int index = 0; index < REGION_WORDS; index++) {
+               if (region.blockRuns[index] != 0) {
+                  settleBlock(region, index);
+               }
+            }
+         }
+      }
+   }
+
+   // Add the runs of the block starting at index to the counts of its instructions,
+   // which may continue into the next region.
+   private void settleBlock(Region region, int index) {
+      long runs = region.blockRuns[index];
+      if (runs == 0) {
+         return;
+      }
+      region.blockRuns[index] = 0;
+      int start = region.base + (index << 2);
+      for (int i = 0; i < region.blockLengths[index]; i++) {
+         int address = start + i * Instruction.INSTRUCTION_LENGTH;
+         Region target = ((address >>> REGION_SHIFT) == (region.base >>> REGION_SHIFT)) ? region : region(address);
+         target.counts[(address & REGION_OFFSET_MASK) >>> 2] += runs;
+      }
+   }
+
+   ////////////////////////////////////////////////////////////////////////////
+   // Reporting
+
+   // Returns the subtree total of frame, adding its counts to functions: inclusive,
+   // self and calls, by entry address.  Inclusive counts are added only at the
+   // outermost frame of each function on the stack.
+   private long sumFunctions(Frame frame, HashMap<Integer, long[]> functions, HashMap<Integer, Integer> active) {
+      Integer address = Integer.valueOf(frame.address);
+      Integer outer = active.get(address);
+      active.put(address, Integer.valueOf((outer == null) ? 1 : outer.intValue() + 1));
+      long total = frame.self;
+      if (frame.children != null) {
+         for (Frame child : frame.children.values()) {
+            total += sumFunctions(child, functions, active);
+         }
+      }
+      if (outer == null) {
+         active.remove(address);
+      }
+      else {
+         active.put(address, outer);
+      }
+      long[] sums = functions.get(address);
+      if (sums == null) {
+         sums = new long[3];
+         functions.put(address, sums);
+      }
+      if (outer == null) {
+         sums[0] += total;
+      }
+      sums[1] += frame.self;
+      sums[2] += frame.calls;
+      return total;
+   }
+
+   private void writeFolded(Frame frame, StringBuilder path, PrintStream out) {
+      int length = path.length();
+      if (length > 0) {
+         path.append(';');
+      }
+      path.append(functionName(frame.address));
+      if (frame.self > 0) {
+         out.println(path + " " + frame.self);
+      }
+      if (frame.children != null) {
+         for (Frame child : frame.children.values()) {
+            writeFolded(child, path, out);
+         }
+      }
+      path.setLength(length);
+   }
+
+   // Counts by source line, hottest first.  Instructions expanded from one source
+   // line are counted together; those with no source line are listed by address.
+   private ArrayList<SourceLine> sourceLines() {
+      LinkedHashMap<String, SourceLine> lines = new LinkedHashMap<String, SourceLine>();
+      ArrayList<Integer> numbers = new ArrayList<Integer>(regions.keySet());
+      Collections.sort(numbers,
+         new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+               return Integer.compareUnsigned(a.intValue(), b.intValue());
+            }
+         });
+      for (Integer number : numbers) {
+         Region region = regions.get(number);
+         for (int index = 0; index < REGION_WORDS; index++) {
+            if (region.counts[index] == 0) {
+               continue;
+            }
+            int address = region.base + (index << 2);
+            ProgramStatement statement = statementAt(address);
+            String location;
+            String source;
+            if (statement != null && statement.getSourceMIPSprogram() != null) {
+               location = new File(statement.getSourceFile()).getName() + ":" + statement.getSourceLine();
+               source = statement.getSource().trim();
+            }
+            else {
+               location = Binary.intToHexString(address);
+               source = (statement == null) ? "" : statement.getPrintableBasicAssemblyStatement();
+            }
+            SourceLine line = lines.get(location);
+            if (line == null) {
+               line = new SourceLine(location, source);
+               lines.put(location, line);
+            }
+            line.count += region.counts[index];
+         }
+      }
+      ArrayList<SourceLine> sorted = new ArrayList<SourceLine>(lines.values());
+      Collections.sort(sorted,
+         new Comparator<SourceLine>() {
+            public int compare(SourceLine a, SourceLine b) {
+               return Long.compare(b.count, a.count);
+            }
+         });
+      return sorted;
+   }
+
+   // A label at the function's entry address, from the local symbol table of the
+   // source file that holds it or the global one, or else the address.
+   private String functionName(int address) {
+      ProgramStatement statement = statementAt(address);
+      Symbol symbol = null;
+      if (statement != null && statement.getSourceMIPSprogram() != null) {
+         symbol = statement.getSourceMIPSprogram().getLocalSymbolTable().getSymbolGivenAddress(address);
+      }
+      if (symbol == null && context != null && context.getSymbolTable() != null) {
+         symbol = context.getSymbolTable().getSymbolGivenAddress(address);
+      }
+      return (symbol == null) ? Binary.intToHexString(address) : symbol.getName();
+   }
+
+   private ProgramStatement statementAt(int address) {
+      Region region = regions.get(address >>> REGION_SHIFT);
+      ProgramStatement statement = (region == null) ? null : region.statements[(address & REGION_OFFSET_MASK) >>> 2];
+      if (statement == null && context != null) {
+         try {
+            statement = context.getMemory().getStatementNoNotify(address);
+         }
+            catch (AddressErrorException e) {
+            }
+      }
+      return statement;
+   }
+
+   ////////////////////////////////////////////////////////////////////////////
+
+   // Counts for one 64KB region of the address space, indexed by word.
+   private static final class Region {
+      final int base;
+      final long[] counts = new long[REGION_WORDS];
+      // The statement last counted at each word, and whether it calls or returns.
+      final ProgramStatement[] statements = new ProgramStatement[REGION_WORDS];
+      final byte[] kinds = new byte[REGION_WORDS];
+      // Complete runs of the compiled block starting at each word not yet added to
+      // counts, and the number of instructions each run counts there.
+      long[] blockRuns;
+      int[] blockLengths;
+
+      Region(int base) {
+         this.base = base;
+      }
+   }
+
+   // A node of the call tree: one function, reached through the calls of its parents.
+   private static final class Frame {
+      final int address;
+      LinkedHashMap<Integer, Frame> children;
+      long self;
+      long calls;
+
+      Frame(int address) {
+         this.address = address;
+      }
+
+      Frame child(int address) {
+         if (children == null) {
+            children = new LinkedHashMap<Integer, Frame>();
+         }
+         Frame child = children.get(address);
+         if (child == null) {
+            child = new Frame(address);
+            children.put(address, child);
+         }
+         return child;
+      }
+   }
+
+   private static final class SourceLine {
+      final String location;
+      final String source;
+      long count;
+
+      SourceLine(String location, String source) {
+         this.location = location;
+         this.source = source;
+      }
+   }
+}
@@ -156,16 +156,26 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          String programArgument;
          int[] argStartAddress = new int[programArgumentList.size()];
          try { // needed for all memory writes
+            // Lay out the arguments in a byte array first, then store them all at once.
+            int argumentBytes = 0;
+            for (int i=0; i<programArgumentList.size(); i++) {
+               argumentBytes += ((String) programArgumentList.get(i)).length() + 1;
+            }
+            byte[] arguments = new byte[argumentBytes];
+            int index = argumentBytes - 1;
             for (int i=0; i<programArgumentList.size(); i++) {
                programArgument = (String) programArgumentList.get(i);
-               Globals.memory.set(highAddress, 0, 1);  // trailing null byte for each argument
+               arguments[index] = 0;  // trailing null byte for each argument
+               index--;
                highAddress--;
                for (int j = programArgument.length()-1; j >= 0; j--) {
-                  Globals.memory.set(highAddress, programArgument.charAt(j), 1);
+                  arguments[index] = (byte) programArgument.charAt(j);
+                  index--;
                   highAddress--;				  
                }
                argStartAddress[i] = highAddress+1;
             }
+            Memory.getInstance().storeBytes(highAddress+1, arguments, 0, argumentBytes);
             // now place a null word, the arg starting addresses, and arg count onto stack.
             int stackAddress = Memory.stackPointer;  // base address for runtime stack.
             if (highAddress < Memory.stackPointer) {
@@ -176,13 +186,19 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                // byte from highAddress+1 is filled).
                stackAddress = highAddress - (highAddress % Memory.WORD_LENGTH_BYTES) - Memory.WORD_LENGTH_BYTES; 
             }
-            Globals.memory.set(stackAddress, 0, Memory.WORD_LENGTH_BYTES);  // null word for end of argv array
-            stackAddress -= Memory.WORD_LENGTH_BYTES;
-            for (int i=argStartAddress.length-1; i >= 0; i--) {
-               Globals.memory.set(stackAddress, argStartAddress[i], Memory.WORD_LENGTH_BYTES);
-               stackAddress -= Memory.WORD_LENGTH_BYTES;
+            // From lowest address up: arg count (argc), the arg starting addresses, null word 
+            // for end of argv array.  Each word has its low order byte first.
+            int words = argStartAddress.length + 2;
+            byte[] pointers = new byte[words * Memory.WORD_LENGTH_BYTES];
+            for (int i=0; i < words; i++) {
+               int value = (i == 0) ? argStartAddress.length 
+                  : (i <= argStartAddress.length) ? argStartAddress[i-1] : 0;
+               for (int b=0; b < Memory.WORD_LENGTH_BYTES; b++) {
+                  pointers[i * Memory.WORD_LENGTH_BYTES + b] = (byte) (value >>> (b << 3));
+               }
             }
-            Globals.memory.set(stackAddress, argStartAddress.length, Memory.WORD_LENGTH_BYTES); // argc
+            stackAddress -= (words - 1) * Memory.WORD_LENGTH_BYTES;
+            Memory.getInstance().storeBytes(stackAddress, pointers, 0, pointers.length);
             stackAddress -= Memory.WORD_LENGTH_BYTES;
             
             // Need to set $sp register to stack address, $a0 to argc, $a1 to argv
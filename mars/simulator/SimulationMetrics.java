@@ -0,0 +1,309 @@
+package mars.simulator;
+import mars.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Counters that show what the simulations in this JVM are doing while they run:
+ * whether a program is making progress, spinning in a loop or waiting on I/O.
+ * There is one instance, shared by every MachineContext.  It can be watched
+ * through JMX once registerMBean() has been called, under the name OBJECT_NAME,
+ * or read as one line of text by getStatusLine(), which the command line can
+ * print periodically (see MarsLaunch).
+ *
+ * Counters are LongAdders, so simulations running in different contexts update
+ * them without contending, and the simulator adds the instructions it has executed
+ * once per execution quantum rather than once per instruction.  Memory pages and
+ * the back-step log are not counted as they change; they are sampled when read,
+ * from the default context and every context with a simulation running.  The
+ * counters are therefore cheap enough to be always on.
+ **/
+
+public final class SimulationMetrics implements SimulationMetricsMXBean {
+
+   /** Name of the MBean registered by registerMBean(). */
+   public static final String OBJECT_NAME = "mars:type=SimulationMetrics";
+
+   // Rates are measured over at least this interval.
+   private static final long RATE_INTERVAL_NANOS = 1000000000L;
+   // Observer notifications are counted in batches of this many, and the last of
+   // each batch is timed and its time scaled up.
+   private static final int OBSERVER_BATCH = 64;
+   private static final SimulationMetrics instance = new SimulationMetrics();
+
+   private final LongAdder instructions = new LongAdder();
+   private final ConcurrentHashMap<Integer, LongAdder> syscalls = new ConcurrentHashMap<Integer, LongAdder>();
+   private final LongAdder syscallNanos = new LongAdder();
+   private final LongAdder observerNotifications = new LongAdder();
+   private final LongAdder observerNanos = new LongAdder();
+   private final LongAdder guiUpdates = new LongAdder();
+   // Notifications left in the current batch.  Updated without synchronization:
+   // observers are notified so often that even a LongAdder per notification would
+   // slow down a run noticeably, and a lost update only miscounts by one.
+   private int observerBatchRemaining = OBSERVER_BATCH;
+   private final Set<MachineContext> running =
+      Collections.newSetFromMap(new ConcurrentHashMap<MachineContext, Boolean>());
+
+   // Guarded by this.
+   private long rateTime = System.nanoTime();
+   private long rateInstructions;
+   private long rateGuiUpdates;
+   private double instructionRate;
+   private double guiUpdateRate;
+
+   private SimulationMetrics() {
+   }
+
+   /**
+    * Returns the metrics of this JVM.
+    *
+    * @return the one SimulationMetrics
+    */
+   public static SimulationMetrics getInstance() {
+      return instance;
+   }
+
+   /**
+    * Register the metrics with the platform MBean server, so JMX clients such as
+    * JConsole can read them.  Does nothing if they are already registered.
+    *
+    * @throws JMException if registration fails
+    */
+   public static synchronized void registerMBean() throws JMException {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+         server.registerMBean(instance, name);
+      }
+   }
+
+   /**
+    * Print getStatusLine() every so often, from a daemon thread, until the returned
+    * timer is cancelled.
+    *
+    * @param out where to print
+    * @param periodMillis time between lines, in milliseconds
+    * @return the timer printing the lines
+    */
+   public Timer startReporter(final PrintStream out, long periodMillis) {
+      Timer timer = new Timer("MARS metrics", true);
+      timer.scheduleAtFixedRate(
+         new TimerTask() {
+            public void run() {
+               out.println(getStatusLine());
+            }
+         }, periodMillis, periodMillis);
+      return timer;
+   }
+
+   ////////////////////////////////////////////////////////////////////////////
+   // Updates
+
+   // Called by the simulator thread as a simulation starts and stops.
+   void simulationStarted(MachineContext context) {
+      running.add(context);
+   }
+
+   void simulationStopped(MachineContext context) {
+      running.remove(context);
+   }
+
+   // Called by the simulator thread after each execution quantum.
+   void countInstructions(long count) {
+      instructions.add(count);
+   }
+
+   /**
+    * Count a syscall that has been carried out.
+    *
+    * @param number its service number
+    * @param nanos time it took, in nanoseconds
+    */
+   public void countSyscall(int number, long nanos) {
+      Integer key = Integer.valueOf(number);
+      LongAdder count = syscalls.get(key);
+      if (count == null) {
+         LongAdder added = new LongAdder();
+         count = syscalls.putIfAbsent(key, added);
+         if (count == null) {
+            count = added;
+         }
+      }
+      count.increment();
+      syscallNanos.add(nanos);
+   }
+
+   /**
+    * Count a notice about to be sent to a memory or register observer.  Timing every
+    * notice would cost more than many observers do, so notices are counted in batches
+    * and one per batch is timed: if this returns true, the caller times the notice and
+    * reports it to timeObserverNotification().  The count read from outside is that of
+    * the completed batches.
+    *
+    * @return true if this notice is to be timed
+    */
+   public boolean countObserverNotification() {
+      if (--observerBatchRemaining > 0) {
+         return false;
+      }
+      observerBatchRemaining = OBSERVER_BATCH;
+      observerNotifications.add(OBSERVER_BATCH);
+      return true;
+   }
+
+   /**
+    * Report the time taken by a notice chosen by countObserverNotification(), which
+    * stands for its whole batch.
+    *
+    * @param nanos time the observer took, in nanoseconds
+    */
+   public void timeObserverNotification(long nanos) {
+      observerNanos.add(nanos * OBSERVER_BATCH);
+   }
+
+   /**
+    * Count an update of the GUI made on behalf of a running program.
+    */
+   public void countGuiUpdate() {
+      guiUpdates.increment();
+   }
+
+   ////////////////////////////////////////////////////////////////////////////
+   // Readings
+
+   public int getRunningSimulations() {
+      return running.size();
+   }
+
+   public long getInstructionsExecuted() {
+      return instructions.sum();
+   }
+
+   public synchronized double getInstructionsPerSecond() {
+      measureRates();
+      return instructionRate;
+   }
+
+   public long getSyscalls() {
+      long total = 0;
+      for (LongAdder count : syscalls.values()) {
+         total += count.sum();
+      }
+      return total;
+   }
+
+   public Map<Integer, Long> getSyscallsByService() {
+      TreeMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+      for (Map.Entry<Integer, LongAdder> entry : syscalls.entrySet()) {
+         counts.put(entry.getKey(), Long.valueOf(entry.getValue().sum()));
+      }
+      return counts;
+   }
+
+   public double getSyscallMillis() {
+      return syscallNanos.sum() / 1e6;
+   }
+
+   public Map<String, Integer> getAllocatedPages() {
+      LinkedHashMap<String, Integer> total = new LinkedHashMap<String, Integer>();
+      for (MachineContext context : sampledContexts()) {
+         for (Map.Entry<String, Integer> entry : context.getMemory().getAllocatedPageCounts().entrySet()) {
+            Integer sum = total.get(entry.getKey());
+            total.put(entry.getKey(), Integer.valueOf(entry.getValue().intValue() + (sum == null ? 0 : sum.intValue())));
+         }
+      }
+      return total;
+   }
+
+   public long getObserverNotifications() {
+      return observerNotifications.sum();
+   }
+
+   public double getObserverMillis() {
+      return observerNanos.sum() / 1e6;
+   }
+
+   public int getBackstepLogSize() {
+      int size = 0;
+      for (MachineContext context : sampledContexts()) {
+         MIPSprogram program = context.getProgram();
+         if (program != null && program.getBackStepper() != null) {
+            size += program.getBackStepper().getLogSize();
+         }
+      }
+      return size;
+   }
+
+   public long getGuiUpdates() {
+      return guiUpdates.sum();
+   }
+
+   public synchronized double getGuiUpdatesPerSecond() {
+      measureRates();
+      return guiUpdateRate;
+   }
+
+   /**
+    * Returns every reading on one line, for a log.
+    *
+    * @return the readings, as name=value pairs separated by spaces
+    */
+   public String getStatusLine() {
+      StringBuilder line = new StringBuilder("[MARS]");
+      line.append(" running=").append(getRunningSimulations());
+      line.append(" instructions=").append(getInstructionsExecuted());
+      line.append(String.format(" instructions/s=%.0f", getInstructionsPerSecond()));
+      line.append(" syscalls=").append(getSyscalls());
+      line.append(" by-service=").append(pairs(getSyscallsByService()));
+      line.append(String.format(" syscall-ms=%.1f", getSyscallMillis()));
+      line.append(" pages=").append(pairs(getAllocatedPages()));
+      line.append(" observer-notices=").append(getObserverNotifications());
+      line.append(String.format(" observer-ms=%.1f", getObserverMillis()));
+      line.append(" backstep-log=").append(getBackstepLogSize());
+      line.append(String.format(" gui-updates/s=%.1f", getGuiUpdatesPerSecond()));
+      return line.toString();
+   }
+
+   // Writes key:value,key:value, without the spaces that separate readings.
+   private static String pairs(Map<?, ?> map) {
+      if (map.isEmpty()) {
+         return "-";
+      }
+      StringBuilder pairs = new StringBuilder();
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+         if (pairs.length() > 0) {
+            pairs.append(',');
+         }
+         pairs.append(entry.getKey().toString().replace(' ', '-')).append(':').append(entry.getValue());
+      }
+      return pairs.toString();
+   }
+
+   private ArrayList<MachineContext> sampledContexts() {
+      ArrayList<MachineContext> contexts = new ArrayList<MachineContext>(running);
+      if (!contexts.contains(MachineContext.getDefault())) {
+         contexts.add(MachineContext.getDefault());
+      }
+      return contexts;
+   }
+
+   // Recompute the rates if the last measurement is at least RATE_INTERVAL_NANOS old.
+   private void measureRates() {
+      long now = System.nanoTime();
+      long elapsed = now - rateTime;
+      if (elapsed < RATE_INTERVAL_NANOS) {
+         return;
+      }
+      long executed = instructions.sum();
+      long updates = guiUpdates.sum();
+      instructionRate = (executed - rateInstructions) * 1e9 / elapsed;
+      guiUpdateRate = (updates - rateGuiUpdates) * 1e9 / elapsed;
+      rateTime = now;
+      rateInstructions = executed;
+      rateGuiUpdates = updates;
+   }
+}
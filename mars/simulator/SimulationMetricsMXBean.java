@@ -0,0 +1,73 @@
+package mars.simulator;
+import java.util.Map;
+
+/**
+ * The JMX view of SimulationMetrics.  Counts are totals since MARS started, over
+ * every simulation in this JVM; rates are per second, over the interval since they
+ * were last measured, which is at least a second.
+ **/
+
+public interface SimulationMetricsMXBean {
+
+   /**
+    * @return number of simulations now running
+    */
+   int getRunningSimulations();
+
+   /**
+    * @return number of MIPS instructions executed
+    */
+   long getInstructionsExecuted();
+
+   /**
+    * @return instructions executed per second
+    */
+   double getInstructionsPerSecond();
+
+   /**
+    * @return number of syscalls carried out
+    */
+   long getSyscalls();
+
+   /**
+    * @return number of syscalls carried out, by service number
+    */
+   Map<Integer, Long> getSyscallsByService();
+
+   /**
+    * @return time spent carrying out syscalls, including waiting for input, in milliseconds
+    */
+   double getSyscallMillis();
+
+   /**
+    * @return number of memory pages allocated, by segment, in the default context and
+    * every context with a simulation running
+    */
+   Map<String, Integer> getAllocatedPages();
+
+   /**
+    * @return number of notices sent to memory and register observers
+    */
+   long getObserverNotifications();
+
+   /**
+    * @return time spent in memory and register observers, in milliseconds
+    */
+   double getObserverMillis();
+
+   /**
+    * @return number of undo steps held for back-stepping, in the default context and
+    * every context with a simulation running
+    */
+   int getBackstepLogSize();
+
+   /**
+    * @return number of updates of the GUI by running programs
+    */
+   long getGuiUpdates();
+
+   /**
+    * @return GUI updates per second
+    */
+   double getGuiUpdatesPerSecond();
+}
@@ -37,19 +37,21 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 	
 /**
- * Used to simulate the execution of an assembled MIPS program.
+ * Used to simulate the execution of an assembled MIPS program.  There is one
+ * Simulator per MachineContext, and it runs programs on that context's machine.
  * @author Pete Sanderson
  * @version August 2005
  **/
 
     public class Simulator extends Observable {
       private SimThread simulatorThread;
-      private static Simulator simulator = null;  // Singleton object
-      private static Runnable interactiveGUIUpdater = null;
+      private final MachineContext context;
+      private Runnable interactiveGUIUpdater = null;
       // Others can set this true to indicate external interrupt.  Initially used
    	// to simulate keyboard and display interrupts.  The device is identified
    	// by the address of its MMIO control register.  keyboard 0xFFFF0000 and
-   	// display 0xFFFF0008.  DPS 23 July 2008.
+   	// display 0xFFFF0008.  DPS 23 July 2008.  The devices belong to the GUI, so
+   	// only the default context's simulator takes the interrupt.
       public static final int NO_DEVICE = 0;
       public static volatile int externalInterruptingDevice = NO_DEVICE;
    	/** various reasons for simulate to end... */
@@ -59,28 +61,27 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       public static final int NORMAL_TERMINATION = 4;
       public static final int CLIFF_TERMINATION = 5; // run off bottom of program
       public static final int PAUSE_OR_STOP = 6;
+      // The simulator thread runs instructions in quanta, holding its context's
+   	// memoryAndRegistersLock for the whole quantum.  While it does, Memory and Register
+   	// skip their own monitors when called from that thread.  See SimThread.construct().
+      private volatile Thread quantumThread = null;
+      private boolean quantumEndRequested = false;
+      private boolean turboEnabled = false;
+      private Profiler profiler = null;
+      private int instructionCount = 0;
    
       /**
-   	 * Returns the Simulator object
+   	 * Returns the Simulator object of the MachineContext bound to the calling thread.
    	 *
    	 * @return the Simulator object in use
    	 */
        public static Simulator getInstance() {
-         // Do NOT change this to create the Simulator at load time (in declaration above)!
-      	// Its constructor looks for the GUI, which at load time is not created yet,
-      	// and incorrectly leaves interactiveGUIUpdater null!  This causes runtime
-      	// exceptions while running in timed mode.
-         if (simulator==null) {
-            simulator = new Simulator();
-         }
-         return simulator;
+         return MachineContext.current().getSimulator();
       }
    
-       private Simulator() {
+       Simulator(MachineContext context) {
+         this.context = context;
          simulatorThread = null;
-         if (Globals.getGui() != null) {
-            interactiveGUIUpdater = new UpdateGUI();
-         } 
       }
    
    
@@ -98,6 +99,46 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public static boolean inDelaySlot() {
          return DelayedBranch.isTriggered();
       }	
+
+   
+   /**
+    *  Determine whether the calling thread is the simulator thread in the middle of an
+    *  execution quantum, and therefore already holds the memoryAndRegistersLock of its
+    *  context.  Memory and Register use this to select their unsynchronized accessors.
+    *
+    *  @return true if called by the simulator thread during an execution quantum.
+    */
+   
+       public static boolean inExecutionQuantum() {
+         return getInstance().quantumThread == Thread.currentThread();
+      }
+   
+   /**
+    *  Ask the simulator to release memoryAndRegistersLock once the instruction now
+    *  being simulated completes, rather than continuing the current quantum.  Used
+    *  by syscalls so that the GUI and tools get a look at MIPS state around I/O.
+    *  Has no effect when called from any thread other than the simulator's.
+    */
+   
+       public static void endExecutionQuantum() {
+         Simulator simulator = getInstance();
+         if (simulator.quantumThread == Thread.currentThread()) {
+            simulator.quantumEndRequested = true;
+         }
+      }
+   
+   
+   /**
+    *  Returns the number of MIPS instructions completed by the most recent simulation
+    *  that was started without a GUI component (actor) and has returned.  An
+    *  instruction that ends the program, such as the exit syscall, is not counted.
+    *
+    *  @return number of instructions executed
+    */
+   
+       public int getInstructionCount() {
+         return instructionCount;
+      }
    
    
    /**
@@ -112,6 +153,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     **/
     
        public boolean simulate(MIPSprogram p, int pc, int maxSteps, int[] breakPoints, AbstractAction actor) throws ProcessingException {
+         // The Simulator is created along with its MachineContext, which may be before
+      	// the GUI is, so look for the GUI here.
+         if (interactiveGUIUpdater == null && Globals.getGui() != null && context.isDefault()) {
+            interactiveGUIUpdater = new UpdateGUI();
+         } 
          simulatorThread = new SimThread(p,pc,maxSteps,breakPoints,actor);
          simulatorThread.start();
       	
@@ -119,6 +165,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       	// If so, just stick around until execution thread is finished.
          if (actor == null) {
             Object dun = simulatorThread.get(); // this should emulate join()
+            instructionCount = simulatorThread.steps;
             ProcessingException pe = simulatorThread.pe;
             boolean done = simulatorThread.done;
             if (done) SystemIO.resetFiles(); // close any files opened in MIPS progra
@@ -167,6 +214,28 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          stopListeners.remove(l);
       }
    
+   /**
+    *  Allow or disallow the turbo engine for subsequent simulations.  The turbo engine
+    *  is used only when there is no GUI, no breakpoints and no back-stepping, and hands
+    *  control back to the normal step loop whenever it meets anything it does not handle.
+    *  Intended for command-line runs; see MarsLaunch.
+    *
+    *  @param enabled true to allow the turbo engine, false to always use the normal loop.
+    */
+       public void setTurboEnabled(boolean enabled) {
+         turboEnabled = enabled;
+      }
+   
+   /**
+    *  Install a profiler to count the instructions of subsequent simulations, or
+    *  remove it.  See Profiler.
+    *
+    *  @param profiler the profiler, or null for none.
+    */
+       public void setProfiler(Profiler profiler) {
+         this.profiler = profiler;
+      }
+   
    	 // The Simthread object will call this method when it enters and returns from
    	 // its construct() method.  These signal start and stop, respectively, of
    	 // simulation execution.  The observer can then adjust its own state depending
@@ -175,12 +244,15 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	 // by Stop button, by Pause button, by Step button, by runtime exception, by
    	 // instruction count limit, by breakpoint, or by end of simulation (truly done).
        private void notifyObserversOfExecutionStart(int maxSteps, int programCounter) {
+         SimulationMetrics.getInstance().simulationStarted(context);
          this.setChanged();
          this.notifyObservers(new SimulatorNotice(SimulatorNotice.SIMULATOR_START,
             maxSteps, RunSpeedPanel.getInstance().getRunSpeed(), programCounter) );
       }
    
        private void notifyObserversOfExecutionStop(int maxSteps, int programCounter) {
+         SystemIO.flushFiles();
+         SimulationMetrics.getInstance().simulationStopped(context);
          this.setChanged();
          this.notifyObservers(new SimulatorNotice(SimulatorNotice.SIMULATOR_STOP,
             maxSteps, RunSpeedPanel.getInstance().getRunSpeed(), programCounter) );
@@ -207,6 +279,10 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          private volatile AbstractAction stopper;
          private AbstractAction starter;
          private int constructReturnReason;
+         private int steps;
+         private int stepsCounted; // steps already added to SimulationMetrics
+         private boolean turbo;
+         private Profiler profiler;
       
       
          /**
@@ -228,6 +304,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             this.pe = null;
             this.starter = starter;
             this.stopper = null;
+            this.turbo = turboEnabled;
+            this.profiler = Simulator.this.profiler;
          }
       	
       	/**
@@ -252,6 +330,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       	 */
       	
           public Object construct() {
+            context.bind();
             // The next two statements are necessary for GUI to be consistently updated
          	// before the simulation gets underway.  Without them, this happens only intermittently,
          	// with a consequence that some simulations are interruptable using PAUSE/STOP and others
@@ -269,26 +348,22 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             Simulator.getInstance().notifyObserversOfExecutionStart(maxSteps, pc);
          	
             RegisterFile.initializeProgramCounter(pc);
+            if (Globals.getSettings().getBackSteppingEnabled()) {
+               context.getProgram().getBackStepper().executionStarting();
+            }
+            if (profiler != null) {
+               profiler.executionStarting(pc);
+            }
+            DecodedInstructionCache decodedInstructions = context.getMemory().getDecodedInstructionCache();
             ProgramStatement statement = null;
             try {
-               statement = Globals.memory.getStatement(RegisterFile.getProgramCounter());
+               statement = fetchStatement(decodedInstructions, RegisterFile.getProgramCounter());
             } 
                 catch (AddressErrorException e) {
-                  ErrorList el = new ErrorList();
-                  el.add(new ErrorMessage((MIPSprogram)null,0,0,"invalid program counter value: "+Binary.intToHexString(RegisterFile.getProgramCounter())));
-                  this.pe = new ProcessingException(el, e);
-						// Next statement is a hack.  Previous statement sets EPC register to ProgramCounter-4
-						// because it assumes the bad address comes from an operand so the ProgramCounter has already been
-						// incremented.  In this case, bad address is the instruction fetch itself so Program Counter has
-						// not yet been incremented.  We'll set the EPC directly here.  DPS 8-July-2013
-                  Coprocessor0.updateRegister(Coprocessor0.EPC, RegisterFile.getProgramCounter());
-                  this.constructReturnReason = EXCEPTION;
-                  this.done = true;
-                  SystemIO.resetFiles(); // close any files opened in MIPS program
-                  Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
-                  return new Boolean(done);
+                  return invalidProgramCounter(e, pc);
                }
-            int steps = 0;
+            steps = 0;
+            stepsCounted = 0;
          	
          	// *******************  PS addition 26 July 2006  **********************
          	// A couple statements below were added for the purpose of assuring that when
@@ -323,102 +398,133 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             int pc = 0;  // added: 7/26/06 (explanation above)
          
             while (statement != null) {
-               pc = RegisterFile.getProgramCounter(); // added: 7/26/06 (explanation above)
-               RegisterFile.incrementPC();           	
-            	// Perform the MIPS instruction in synchronized block.  If external threads agree
-            	// to access MIPS memory and registers only through synchronized blocks on same 
-            	// lock variable, then full (albeit heavy-handed) protection of MIPS memory and 
-            	// registers is assured.  Not as critical for reading from those resources.
-               synchronized (Globals.memoryAndRegistersLock) {
-                  try {                      
-                     if (Simulator.externalInterruptingDevice != NO_DEVICE) {
-                        int deviceInterruptCode = externalInterruptingDevice;
-                        Simulator.externalInterruptingDevice = NO_DEVICE;
-                        throw new ProcessingException(statement, "External Interrupt", deviceInterruptCode);
-                     }
-                     BasicInstruction instruction = (BasicInstruction)statement.getInstruction();
-                     if (instruction == null) {
-                        throw new ProcessingException(statement,
-                            "undefined instruction ("+Binary.intToHexString(statement.getBinaryStatement())+")",
-                            Exceptions.RESERVED_INSTRUCTION_EXCEPTION);
-                     }
-                     // THIS IS WHERE THE INSTRUCTION EXECUTION IS ACTUALLY SIMULATED!
-                     instruction.getSimulationCode().simulate(statement);
-                  	
-                  	// IF statement added 7/26/06 (explanation above)
-                     if (Globals.getSettings().getBackSteppingEnabled()) {
-                        Globals.program.getBackStepper().addDoNothing(pc);
-                     }
+               // Headless runs with nothing watching go through the turbo engine.  When it
+               // hands back control, the statement at the program counter has not been
+               // fetched yet, and at least one quantum of the normal loop follows.
+               if (turbo && turboApplies()) {
+                  Object result = runTurbo(decodedInstructions);
+                  if (result != null) {
+                     return result;
+                  }
+                  try {
+                     statement = fetchStatement(decodedInstructions, RegisterFile.getProgramCounter());
                   } 
-                      catch (ProcessingException pe) {
-                        if (pe.errors() == null) {
-                           this.constructReturnReason = NORMAL_TERMINATION;
-                           this.done = true;
-                           SystemIO.resetFiles(); // close any files opened in MIPS program
-                           Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
-                           return new Boolean(done); // execution completed without error.
+                      catch (AddressErrorException e) {
+                        return invalidProgramCounter(e, pc);
+                     }
+                  if (statement == null) {
+                     continue;
+                  }
+               }
+               // Perform MIPS instructions in a synchronized block.  If external threads agree
+               // to access MIPS memory and registers only through synchronized blocks on same 
+               // lock variable, then full (albeit heavy-handed) protection of MIPS memory and 
+               // registers is assured.  Not as critical for reading from those resources.
+               // The lock is held for a quantum of up to Globals.executionQuantum instructions,
+               // ending early at a taken branch or jump, syscall, breakpoint or stop request.
+               // Stepping and timed runs use a quantum of one instruction.
+               int quantum = getExecutionQuantum();
+               synchronized (context.getMemoryAndRegistersLock()) {
+                  quantumThread = Thread.currentThread();
+                  quantumEndRequested = false;
+                  try {
+                     for (int executed = 1; ; executed++) {
+                        pc = RegisterFile.getProgramCounter(); // added: 7/26/06 (explanation above)
+                        RegisterFile.incrementPC();           	
+                        try {                      
+                           if (interruptPending()) {
+                              int deviceInterruptCode = externalInterruptingDevice;
+                              Simulator.externalInterruptingDevice = NO_DEVICE;
+                              throw new ProcessingException(statement, "External Interrupt", deviceInterruptCode);
+                           }
+                           SimulationCode simulationCode = decodedInstructions.getSimulationCode(pc);
+                           if (simulationCode == null) {
+                              BasicInstruction instruction = (BasicInstruction)statement.getInstruction();
+                              if (instruction == null) {
+                                 throw new ProcessingException(statement,
+                                     "undefined instruction ("+Binary.intToHexString(statement.getBinaryStatement())+")",
+                                     Exceptions.RESERVED_INSTRUCTION_EXCEPTION);
+                              }
+                              simulationCode = instruction.getSimulationCode();
+                           }
+                           if (Globals.getSettings().getBackSteppingEnabled()) {
+                              context.getProgram().getBackStepper().instructionStarting(statement);
+                           }
+                           // THIS IS WHERE THE INSTRUCTION EXECUTION IS ACTUALLY SIMULATED!
+                           simulationCode.simulate(statement);
+                        	
+                        	// IF statement added 7/26/06 (explanation above)
+                           if (Globals.getSettings().getBackSteppingEnabled()) {
+                              context.getProgram().getBackStepper().addDoNothing(pc);
+                           }
+                        } 
+                            catch (ProcessingException pe) {
+                              Object result = handleProcessingException(pe, pc);
+                              if (result != null) {
+                                 return result;
+                              }
+                              if (Globals.getSettings().getBackSteppingEnabled()) {
+                                 context.getProgram().getBackStepper().addExceptionHandled(pc);
+                              }
+                           }
+                     	
+                     	///////// DPS 15 June 2007.  Handle delayed branching if it occurs./////
+                        if (DelayedBranch.isTriggered()) {
+                           RegisterFile.setProgramCounter(DelayedBranch.getBranchTargetAddress());
+                           DelayedBranch.clear();
                         } 
-                        else {
-                           // See if an exception handler is present.  Assume this is the case
-                        	// if and only if memory location Memory.exceptionHandlerAddress
-                        	// (e.g. 0x80000180) contains an instruction.  If so, then set the
-                        	// program counter there and continue.  Otherwise terminate the
-                        	// MIPS program with appropriate error message.
-                           ProgramStatement exceptionHandler = null;
-                           try {
-                              exceptionHandler = Globals.memory.getStatement(Memory.exceptionHandlerAddress);
-                           } 
-                               catch (AddressErrorException aee) { } // will not occur with this well-known addres
-                           if (exceptionHandler != null) {
-                              RegisterFile.setProgramCounter(Memory.exceptionHandlerAddress);
-                           } 
-                           else {
-                              this.constructReturnReason = EXCEPTION;
-                              this.pe = pe;
-                              this.done = true;
-                              SystemIO.resetFiles(); // close any files opened in MIPS program
+                        else if (DelayedBranch.isRegistered()) {
+                           DelayedBranch.trigger();
+                        }//////////////////////////////////////////////////////////////////////
+                        if (profiler != null) {
+                           profiler.count(pc, statement);
+                        }
+                     	
+                     	// Volatile variable initialized false but can be set true by the main thread.
+                     	// Used to stop or pause a running MIPS program.  See stopSimulation() above.
+                        if (stop == true) { 
+                           this.constructReturnReason = PAUSE_OR_STOP;
+                           this.done = false;
+                           Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
+                           return new Boolean(done);
+                        }
+                     	//	Return if we've reached a breakpoint.					
+                        if((breakPoints != null) && 
+                        (Arrays.binarySearch(breakPoints,RegisterFile.getProgramCounter()) >= 0)) {
+                           this.constructReturnReason = BREAKPOINT;
+                           this.done = false;
+                           Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
+                           return new Boolean(done); // false;
+                        }
+                     	// Check number of MIPS instructions executed.  Return if at limit (-1 is no limit).
+                        steps++;
+                        if (maxSteps > 0) {
+                           if (steps >= maxSteps) {
+                              this.constructReturnReason = MAX_STEPS;
+                              this.done = false;
                               Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
-                              return new Boolean(done);
+                              return new Boolean(done);// false;
+                           }
+                        }
+                        
+                        // Get next instruction in preparation for next iteration.
+                        boolean sequential = RegisterFile.getProgramCounter() == pc + Instruction.INSTRUCTION_LENGTH;
+                        try {
+                           statement = fetchStatement(decodedInstructions, RegisterFile.getProgramCounter());
+                        } 
+                            catch (AddressErrorException e) {
+                              return invalidProgramCounter(e, pc);
                            }
+                        if (statement == null || executed >= quantum || !sequential || quantumEndRequested) {
+                           break;
                         }
                      }
-               }// end synchronized block
-            	
-            	///////// DPS 15 June 2007.  Handle delayed branching if it occurs./////
-               if (DelayedBranch.isTriggered()) {
-                  RegisterFile.setProgramCounter(DelayedBranch.getBranchTargetAddress());
-                  DelayedBranch.clear();
-               } 
-               else if (DelayedBranch.isRegistered()) {
-                  DelayedBranch.trigger();
-               }//////////////////////////////////////////////////////////////////////
-            	
-            	// Volatile variable initialized false but can be set true by the main thread.
-            	// Used to stop or pause a running MIPS program.  See stopSimulation() above.
-               if (stop == true) { 
-                  this.constructReturnReason = PAUSE_OR_STOP;
-                  this.done = false;
-                  Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
-                  return new Boolean(done);
-               }
-            	//	Return if we've reached a breakpoint.					
-               if((breakPoints != null) && 
-               (Arrays.binarySearch(breakPoints,RegisterFile.getProgramCounter()) >= 0)) {
-                  this.constructReturnReason = BREAKPOINT;
-                  this.done = false;
-                  Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
-                  return new Boolean(done); // false;
-               }
-            	// Check number of MIPS instructions executed.  Return if at limit (-1 is no limit).
-               if (maxSteps > 0) {
-                  steps++;
-                  if (steps >= maxSteps) {
-                     this.constructReturnReason = MAX_STEPS;
-                     this.done = false;
-                     Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
-                     return new Boolean(done);// false;
+                  } 
+                  finally {
+                     quantumThread = null;
+                     countSteps();
                   }
-               }
+               }// end synchronized block
             	
             	// schedule GUI update only if: there is in fact a GUI! AND
             	//                              using Run,  not Step (maxSteps > 1) AND
@@ -436,28 +542,6 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
                          catch (InterruptedException e) {}
                   }
                }
-               
-            
-               // Get next instruction in preparation for next iteration.
-            
-               try {
-                  statement = Globals.memory.getStatement(RegisterFile.getProgramCounter());
-               } 
-                   catch (AddressErrorException e) {
-                     ErrorList el = new ErrorList();
-                     el.add(new ErrorMessage((MIPSprogram)null,0,0,"invalid program counter value: "+Binary.intToHexString(RegisterFile.getProgramCounter())));
-                     this.pe = new ProcessingException(el,e);
-						   // Next statement is a hack.  Previous statement sets EPC register to ProgramCounter-4
-						   // because it assumes the bad address comes from an operand so the ProgramCounter has already been
-						   // incremented.  In this case, bad address is the instruction fetch itself so Program Counter has
-						   // not yet been incremented.  We'll set the EPC directly here.  DPS 8-July-2013
-                     Coprocessor0.updateRegister(Coprocessor0.EPC, RegisterFile.getProgramCounter());
-                     this.constructReturnReason = EXCEPTION;
-                     this.done = true;
-                     SystemIO.resetFiles(); // close any files opened in MIPS program
-                     Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
-                     return  new Boolean(done);
-                  }
             }
             // DPS July 2007.  This "if" statement is needed for correct program
          	// termination if delayed branching on and last statement in
@@ -477,6 +561,238 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          }
          
       	
+      	/**
+      	 *  Whether the turbo engine may run the next quantum.  Everything that would need
+      	 *  a per-instruction check in the normal loop -- GUI updates, run speed, breakpoints,
+      	 *  single stepping and back-stepping -- must be absent.  Memory and register observers
+      	 *  are still notified, so an observer registered mid-run sees every access.
+      	 */
+          private boolean turboApplies() {
+            return maxSteps != 1 && breakPoints == null && Globals.getGui() == null 
+                   && RunSpeedPanel.getInstance().getRunSpeed() == RunSpeedPanel.UNLIMITED_SPEED
+                   && !Globals.getSettings().getBackSteppingEnabled();
+         }
+      
+      	/**
+      	 *  The turbo engine.  Executes straight from the predecoded instruction cache for one
+      	 *  quantum under memoryAndRegistersLock.  It returns null to hand control back to the
+      	 *  normal loop, with the program counter at the first instruction not yet executed,
+      	 *  when the quantum is used up, a syscall has run, the next instruction is not in the
+      	 *  cache, a stop or external interrupt is pending, or the step limit is one step away.
+      	 *  Otherwise the program has ended and the value for construct() to return is returned.
+      	 *
+      	 *  Basic blocks entered often enough are compiled by BlockCompiler and from then on
+      	 *  run as a whole, provided nothing observes registers or memory (compiled code does
+      	 *  not report instruction fetches and reads registers only once) and delayed
+      	 *  branching is off.
+      	 */
+          private Object runTurbo(DecodedInstructionCache decodedInstructions) {
+            boolean compiledCode = !Globals.getSettings().getBooleanSetting(Settings.DELAYED_BRANCHING_ENABLED);
+            synchronized (context.getMemoryAndRegistersLock()) {
+               quantumThread = Thread.currentThread();
+               quantumEndRequested = false;
+               try {
+                  boolean blockEntry = true;
+                  for (int executed = 0; executed < Globals.executionQuantum && !quantumEndRequested; executed++) {
+                     int pc = RegisterFile.getProgramCounter();
+                     if (blockEntry && compiledCode && !context.getMemory().hasObservers() && !Register.anyObserved()) {
+                        int count = runCompiledBlock(decodedInstructions, pc);
+                        if (count < 0) {
+                           return new Boolean(done);
+                        }
+                        if (count > 0) {
+                           executed += count - 1;
+                           continue;
+                        }
+                     }
+                     SimulationCode simulationCode = decodedInstructions.getSimulationCode(pc);
+                     if (simulationCode == null || stop || interruptPending() ||
+                            (maxSteps > 0 && steps + 1 >= maxSteps)) {
+                        return null;
+                     }
+                     ProgramStatement statement = decodedInstructions.getStatement(pc);
+                     // On entry the normal loop has already fetched this statement.
+                     if (executed > 0) {
+                        context.getMemory().notifyStatementFetch(pc, statement);
+                     }
+                     RegisterFile.incrementPC();
+                     try {
+                        simulationCode.simulate(statement);
+                     } 
+                         catch (ProcessingException pe) {
+                           Object result = handleProcessingException(pe, pc);
+                           if (result != null) {
+                              return result;
+                           }
+                        }
+                     if (DelayedBranch.isTriggered()) {
+                        RegisterFile.setProgramCounter(DelayedBranch.getBranchTargetAddress());
+                        DelayedBranch.clear();
+                     } 
+                     else if (DelayedBranch.isRegistered()) {
+                        DelayedBranch.trigger();
+                     }
+                     if (profiler != null) {
+                        profiler.count(pc, statement);
+                     }
+                     steps++;
+                     blockEntry = RegisterFile.getProgramCounter() != pc + Instruction.INSTRUCTION_LENGTH;
+                  }
+               } 
+               finally {
+                  quantumThread = null;
+                  countSteps();
+               }
+            }
+            return null;
+         }
+      
+      	/**
+      	 *  Add the steps taken since the last call to SimulationMetrics.  Called at the
+      	 *  end of every quantum, so the count seen from outside lags by at most one.
+      	 */
+          private void countSteps() {
+            SimulationMetrics.getInstance().countInstructions(steps - stepsCounted);
+            stepsCounted = steps;
+         }
+      
+      	/**
+      	 *  Count an entry into the basic block at pc, compiling it when it becomes hot, and
+      	 *  run its compiled code if there is any.  The block is not run if that could take
+      	 *  the step count to the limit, or if a stop or external interrupt is pending.
+      	 *
+      	 *  @return number of instructions executed, 0 if the block was not run, or -1 if
+      	 *  the program has ended (construct() must then return done).
+      	 */
+          private int runCompiledBlock(DecodedInstructionCache decodedInstructions, int pc) {
+            CompiledBlock block = decodedInstructions.getCompiledBlock(pc);
+            if (block == null) {
+               if (decodedInstructions.countBlockEntry(pc) != BlockCompiler.COMPILE_THRESHOLD) {
+                  return 0;
+               }
+               block = BlockCompiler.compile(decodedInstructions, pc);
+               if (block == null) {
+                  return 0;
+               }
+               decodedInstructions.setCompiledBlock(pc, block);
+            }
+            if (!block.isValid() || stop || interruptPending() ||
+                   (maxSteps > 0 && steps + block.length() >= maxSteps)) {
+               return 0;
+            }
+            int count;
+            try {
+               count = block.run();
+            } 
+                catch (ProcessingException pe) {
+                  count = block.getCurrentIndex() + 1;
+                  if (handleProcessingException(pe, pc + block.getCurrentIndex() * Instruction.INSTRUCTION_LENGTH) != null) {
+                     return -1;
+                  }
+               }
+            if (profiler != null) {
+               profiler.countBlock(block, count);
+            }
+            steps += count;
+            return count;
+         }
+      
+      	/**
+      	 *  Deal with a ProcessingException thrown while simulating the instruction at pc.
+      	 *  A null error list means the program terminated normally.  Otherwise, if an
+      	 *  exception handler is present, the program counter is set to it.
+      	 *
+      	 *  @return null if execution is to continue, else the value for construct() to return.
+      	 */
+          private Object handleProcessingException(ProcessingException pe, int pc) {
+            if (pe.errors() == null) {
+               this.constructReturnReason = NORMAL_TERMINATION;
+               this.done = true;
+               SystemIO.resetFiles(); // close any files opened in MIPS program
+               Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
+               return new Boolean(done); // execution completed without error.
+            } 
+            // See if an exception handler is present.  Assume this is the case
+            // if and only if memory location Memory.exceptionHandlerAddress
+            // (e.g. 0x80000180) contains an instruction.  If so, then set the
+            // program counter there and continue.  Otherwise terminate the
+            // MIPS program with appropriate error message.
+            ProgramStatement exceptionHandler = null;
+            try {
+               exceptionHandler = context.getMemory().getStatement(Memory.exceptionHandlerAddress);
+            } 
+                catch (AddressErrorException aee) { } // will not occur with this well-known addres
+            if (exceptionHandler != null) {
+               RegisterFile.setProgramCounter(Memory.exceptionHandlerAddress);
+               return null;
+            } 
+            this.constructReturnReason = EXCEPTION;
+            this.pe = pe;
+            this.done = true;
+            SystemIO.resetFiles(); // close any files opened in MIPS program
+            Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
+            return new Boolean(done);
+         }
+      
+      	/**
+      	 *  Terminate the simulation because the instruction at the program counter could
+      	 *  not be fetched.
+      	 *
+      	 *  @return the value for construct() to return.
+      	 */
+          private Object invalidProgramCounter(AddressErrorException e, int pc) {
+            ErrorList el = new ErrorList();
+            el.add(new ErrorMessage((MIPSprogram)null,0,0,"invalid program counter value: "+Binary.intToHexString(RegisterFile.getProgramCounter())));
+            this.pe = new ProcessingException(el, e);
+            // Next statement is a hack.  Previous statement sets EPC register to ProgramCounter-4
+            // because it assumes the bad address comes from an operand so the ProgramCounter has already been
+            // incremented.  In this case, bad address is the instruction fetch itself so Program Counter has
+            // not yet been incremented.  We'll set the EPC directly here.  DPS 8-July-2013
+            Coprocessor0.updateRegister(Coprocessor0.EPC, RegisterFile.getProgramCounter());
+            this.constructReturnReason = EXCEPTION;
+            this.done = true;
+            SystemIO.resetFiles(); // close any files opened in MIPS program
+            Simulator.getInstance().notifyObserversOfExecutionStop(maxSteps, pc);
+            return new Boolean(done);
+         }
+      
+      	/**
+      	 *  Whether an external interrupt is waiting to be taken by this simulator.
+      	 */
+          private boolean interruptPending() {
+            return externalInterruptingDevice != NO_DEVICE && context.isDefault();
+         }
+      
+      	/**
+      	 *  Number of instructions to execute in the next quantum.  Stepping and timed
+      	 *  (slowed down) runs need the GUI to be updated after every instruction.
+      	 */
+          private int getExecutionQuantum() {
+            if (maxSteps == 1) {
+               return 1;
+            }
+            if ((Globals.getGui() != null || Globals.runSpeedPanelExists) && 
+                    RunSpeedPanel.getInstance().getRunSpeed() < RunSpeedPanel.UNLIMITED_SPEED) {
+               return 1;
+            }
+            return Globals.executionQuantum;
+         }
+         
+      	/**
+      	 *  Fetch the statement at the given address.  The predecoded instruction cache is
+      	 *  tried first; on a miss the statement comes from Memory.getStatement() as before.
+      	 *  Either way, memory observers see the same fetch notice.
+      	 */
+          private ProgramStatement fetchStatement(DecodedInstructionCache decodedInstructions, int address)
+                 throws AddressErrorException {
+            ProgramStatement statement = decodedInstructions.getStatement(address);
+            if (statement == null) {
+               return context.getMemory().getStatement(address);
+            }
+            context.getMemory().notifyStatementFetch(address, statement);
+            return statement;
+         }
+         
       	/**
       	 *   This method is invoked by the SwingWorker when the "construct" method returns.  
       	 *   It will update the GUI appropriately.  According to Sun's documentation, it 
@@ -520,6 +836,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	
        private class UpdateGUI implements Runnable {
           public void run() {
+            SimulationMetrics.getInstance().countGuiUpdate();
             if (Globals.getGui().getRegistersPane().getSelectedComponent() == 
                                                      Globals.getGui().getMainPane().getExecutePane().getRegistersWindow()) {
                Globals.getGui().getMainPane().getExecutePane().getRegistersWindow().updateRegisters();
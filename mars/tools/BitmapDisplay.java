@@ -42,7 +42,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 	 * maximum use of methods inherited from its abstract superclass AbstractMarsToolAndApplication.
 	 * Pete Sanderson, verison 1.0, 23 December 2010.
 	 */
-    public class BitmapDisplay extends AbstractMarsToolAndApplication {
+    public class BitmapDisplay extends AbstractMarsToolAndApplication implements TransientNoticeObserver {
    
       private static String version = "Version 1.0";
       private static String heading =  "Bitmap Display";
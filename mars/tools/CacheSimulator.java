@@ -45,7 +45,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 	 * animating the block of initial access (first block of set).  Now it animates the block 
 	 * of final access (where address found or stored).  Also added log display to GUI (previously System.out).</p>
 	 */
-    public class CacheSimulator extends AbstractMarsToolAndApplication {
+    public class CacheSimulator extends AbstractMarsToolAndApplication implements TransientNoticeObserver {
       private static boolean debug = false; // controls display of debugging info
       private static String version = "Version 1.2";
       private static String heading =  "Simulate and illustrate data cache performance";
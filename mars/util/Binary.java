@@ -351,62 +351,113 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
      * @param s candidate string
      * @return returns int value represented by given string
      * @throws NumberFormatException if string cannot be translated into an int
+     * @see #decodeInteger(String, int)
      */
      
        public static int stringToInt(String s) throws NumberFormatException {
-         String work = new String(s);
-         int result = 0;
-       // First, use Integer.decode().  This will validate most, but it flags
-       // valid hex two's complement values as exceptions.  We'll catch those and
-       // do our own validation.
-         try {
-            result = Integer.decode(s).intValue();
-         } 
-             catch (NumberFormatException nfe) {
-            // Multistep process toward validation of hex two's complement. 3-step test:
-            //   (1) exactly 10 characters long,
-            //   (2) starts with Ox or 0X,
-            //   (3) last 8 characters are valid hex digits.
-               work = work.toLowerCase();
-               if (work.length() == 10 && work.startsWith("0x")) {
-                  String bitString = "";
-                  int index;
-                  // while testing characters, build bit string to set up for binaryStringToInt
-                  for (int i=2; i<10; i++) {
-                     index = Arrays.binarySearch(chars, work.charAt(i));
-                     if (index < 0) {
-                        throw new NumberFormatException();
-                     }
-                     bitString = bitString + intToBinaryString(index,4);
-                  }
-                  result = binaryStringToInt(bitString);
-               }
-               /*  The following "else" composed by Jose Baiocchi Paredes, Oct 2009.  This new code 
-                   will correctly translate a string representing an unsigned decimal (not hex) 
-               	 value whose signed value is negative.  This is the decimal equivalent of the
-               	 "then" case just above.  The method was not used in this context until Release 3.6 
-               	 when background highlighting of the Data Segment was added.  Caused exceptions 
-               	 under certain conditions.
-                */
-               else if (!work.startsWith("0x")) {
-                  result = 0;
-                  for (int i=0; i<work.length(); i++) {
-                     char c = work.charAt(i);
-                     if ('0' <= c && c <='9') {
-                        result *= 10;
-                        result += c - '0';
-                     } 
-                     else {
-                        throw new NumberFormatException();
-                     }
-                  }
-               } 
-               /*  End of the Jose Paredes code */ 
-               else {
-                  throw new NumberFormatException();
+         long result = decodeInteger(s, 0);
+         if (result == NOT_AN_INTEGER) {
+            throw new NumberFormatException("For input string: \"" + s + "\"");
+         }
+         return (int) result;
+      }
+   
+    /**
+     * Value returned by decodeInteger() for a string that is not an integer.
+     */
+      public static final long NOT_AN_INTEGER = Long.MIN_VALUE;
+   
+    /**
+     * Translate the characters of a string, starting at the given index, into a 32 bit
+     * integer, accepting exactly the strings stringToInt() does but without
+     * throwing an exception for the others.  The assembler classifies every token this
+     * way, and most tokens are not numbers.
+     *
+     * As with stringToInt(), the string is first taken as Integer.decode() would take
+     * it: optional sign, then 0x, 0X or # for hex, a leading 0 for octal, or decimal.
+     * Failing that, 0x followed by exactly 8 hex digits is a two's complement value,
+     * and a string of decimal digits is taken modulo 2 to the 32nd.
+     *
+     * @param s candidate string
+     * @param beginIndex index of its first character
+     * @return the int value, or NOT_AN_INTEGER if the characters do not represent one
+     */
+       public static long decodeInteger(String s, int beginIndex) {
+         long result = decodeJavaInteger(s, beginIndex);
+         if (result != NOT_AN_INTEGER) {
+            return result;
+         }
+         int length = s.length() - beginIndex;
+         if (length >= 2 && s.charAt(beginIndex) == '0' && 
+             (s.charAt(beginIndex + 1) == 'x' || s.charAt(beginIndex + 1) == 'X')) {
+            if (length != 10) {
+               return NOT_AN_INTEGER;
+            }
+            int value = 0;
+            for (int i = beginIndex + 2; i < s.length(); i++) {
+               int digit = Arrays.binarySearch(chars, Character.toLowerCase(s.charAt(i)));
+               if (digit < 0) {
+                  return NOT_AN_INTEGER;
                }
+               value = (value << 4) | digit;
             }
-         return result;
+            return value;
+         }
+         int value = 0;
+         for (int i = beginIndex; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+               return NOT_AN_INTEGER;
+            }
+            value = value * 10 + (c - '0');
+         }
+         return value;
+      }
+   
+    // The Integer.decode() part of decodeInteger(): the value if in int range, else
+    // NOT_AN_INTEGER.  Digits are those of Character.digit(), as for Integer.decode().
+       private static long decodeJavaInteger(String s, int beginIndex) {
+         int index = beginIndex;
+         if (index == s.length()) {
+            return NOT_AN_INTEGER;
+         }
+         boolean negative = false;
+         if (s.charAt(index) == '-') {
+            negative = true;
+            index++;
+         } 
+         else if (s.charAt(index) == '+') {
+            index++;
+         }
+         int radix = 10;
+         if (s.startsWith("0x", index) || s.startsWith("0X", index)) {
+            index += 2;
+            radix = 16;
+         } 
+         else if (s.startsWith("#", index)) {
+            index++;
+            radix = 16;
+         } 
+         else if (s.startsWith("0", index) && s.length() > index + 1) {
+            index++;
+            radix = 8;
+         }
+         if (index == s.length() || s.charAt(index) == '-' || s.charAt(index) == '+') {
+            return NOT_AN_INTEGER;
+         }
+         long limit = negative ? 0x80000000L : 0x7FFFFFFFL;
+         long magnitude = 0;
+         for (; index < s.length(); index++) {
+            int digit = Character.digit(s.charAt(index), radix);
+            if (digit < 0) {
+               return NOT_AN_INTEGER;
+            }
+            magnitude = magnitude * radix + digit;
+            if (magnitude > limit) {
+               return NOT_AN_INTEGER;
+            }
+         }
+         return negative ? -magnitude : magnitude;
       }
    
    
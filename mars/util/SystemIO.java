@@ -1,6 +1,10 @@
    package mars.util;
    import mars.*;
+   import mars.simulator.MachineContext;
    import java.io.*;
+   import java.nio.ByteBuffer;
+   import java.nio.MappedByteBuffer;
+   import java.nio.channels.FileChannel;
    import javax.swing.*;
    import java.util.*;
 	
@@ -38,6 +42,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  * run from the command line or through the GUI, then do I/O to
  * System.in and System.out in the former situation, and interact with
  * the GUI in the latter.
+ * <p>
+ * The table of open files and the standard streams belong to the
+ * MachineContext of the calling thread.  Only the default context
+ * interacts with the GUI; other contexts always use their standard
+ * streams, which can be replaced with setStandardStreams().
  *
  * @author Pete Sanderson and Ken Vollmar
  * @version August 2003-2005
@@ -48,8 +57,6 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       public static final int SYSCALL_BUFSIZE = 128;
     /** Maximum number of files that can be open */
       public static final int SYSCALL_MAXFILES = 32;
-    /** String used for description of file error */
-      public static String fileErrorString = new String("File operation OK");
    
       private static final int O_RDONLY = 0x00000000;
       private static final int O_WRONLY = 0x00000001;
@@ -66,7 +73,40 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    
       // Will use one buffered reader for all keyboard/redirected/piped input.
    	// Added by DPS 28 Feb 2008.  See getInputReader() below.
-      private static BufferedReader inputReader = null;
+      private BufferedReader inputReader = null;
+      // Standard streams of this context; null means System.in, System.out or System.err
+      // as they are at the time of use.
+      private InputStream standardInput = null;
+      private PrintStream standardOutput = null;
+      private PrintStream standardError = null;
+      // String used for description of file error
+      private String fileErrorString = new String("File operation OK");
+      private final FileIOData files = new FileIOData();
+      // Array reused by file read syscalls; see getFileBuffer().
+      private byte[] fileBuffer = null;
+   
+    /**
+     * Create the file table and standard streams for a new MachineContext.  Use
+     * MachineContext.getSystemIO() to reach those of an existing context.
+     */
+       public SystemIO() {
+      }
+   
+    /**
+     * Replace the standard streams used by syscalls run in this context when they do
+     * not interact with the GUI.  Takes effect for the file table at the next
+     * resetFiles().
+     *
+     * @param in stream read by the read syscalls and file descriptor 0, or null for System.in
+     * @param out stream written by the print syscalls and file descriptor 1, or null for System.out
+     * @param err stream written through file descriptor 2, or null for System.err
+     */
+       public void setStandardStreams(InputStream in, PrintStream out, PrintStream err) {
+         standardInput = in;
+         standardOutput = out;
+         standardError = err;
+         inputReader = null;
+      }
    
     /**
      * Implements syscall to read an integer value.  
@@ -78,7 +118,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public static int readInteger(int serviceNumber)
       {
          String input = "0";
-         if (Globals.getGui() == null)
+         if (!usesGui())
          {
             try
             {  
@@ -113,7 +153,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public static float readFloat(int serviceNumber)
       {
          String input = "0";
-         if (Globals.getGui() == null)
+         if (!usesGui())
          {
             try
             {
@@ -147,7 +187,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public static double readDouble(int serviceNumber)
       {
          String input = "0";
-         if (Globals.getGui() == null)
+         if (!usesGui())
          {
             try
             {
@@ -176,9 +216,9 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
      */
        public static void printString(String string)
       {
-         if (Globals.getGui() == null)
+         if (!usesGui())
          {
-            System.out.print(string);
+            state().getStandardOutput().print(string);
          } 
          else
          {
@@ -197,7 +237,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
        public static String readString(int serviceNumber, int maxLength)
       {
          String input = "";
-         if (Globals.getGui() == null)
+         if (!usesGui())
          {
             try
             {
@@ -240,7 +280,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       {
          String input = "0";
          int returnValue = 0;
-         if (Globals.getGui() == null)
+         if (!usesGui())
          {
             try
             {
@@ -288,51 +328,35 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       {
        /////////////// DPS 8-Jan-2013  ////////////////////////////////////////////////////
        /// Write to STDOUT or STDERR file descriptor while using IDE - write to Messages pane. 
-         if ((fd==STDOUT || fd==STDERR) && Globals.getGui() != null) {
+         if ((fd==STDOUT || fd==STDERR) && usesGui()) {
             String data = new String(myBuffer);
             Globals.getGui().getMessagesPane().postRunMessage(data);
             return data.length();
          }
        ///////////////////////////////////////////////////////////////////////////////////
        //// When running in command mode, code below works for either regular file or STDOUT/STDERR
-      
-         if (!FileIOData.fdInUse(fd, 1)) // Check the existence of the "write" fd
+         SystemIO io = state();
+         if (!io.files.fdInUse(fd, 1)) // Check the existence of the "write" fd
          {
-            fileErrorString = new String(
+            io.fileErrorString = new String(
                     "File descriptor " + fd + " is not open for writing");
             return -1;
          }
-         // retrieve FileOutputStream from storage
-         OutputStream outputStream = (OutputStream) FileIOData.getStreamInUse(fd);
          try
          {
-            // Oct. 9 2005 Ken Vollmar
-            // Observation: made a call to outputStream.write(myBuffer, 0, lengthRequested)
-            //     with myBuffer containing 6(ten) 32-bit-words <---> 24(ten) bytes, where the
-            //     words are MIPS integers with values such that many of the bytes are ZEROES.
-            //     The effect is apparently that the write stops after encountering a zero-valued
-            //     byte. (The method write does not return a value and so this can't be verified
-            //     by the return value.)
-            // Writes up to lengthRequested bytes of data to this output stream from an array of bytes.
-            // outputStream.write(myBuffer, 0, lengthRequested); // write is a void method -- no verification value returned
-            
-            // Oct. 9 2005 Ken Vollmar  Force the write statement to write exactly
-            // the number of bytes requested, even though those bytes include many ZERO values.
-            for (int ii = 0; ii < lengthRequested; ii++)
-            {
-               outputStream.write(myBuffer[ii]); 
-            }
-            outputStream.flush();// DPS 7-Jan-2013
+            // Writes exactly lengthRequested bytes, zero-valued ones included.  Output to
+            // files is buffered; see FileIOData.write.
+            io.files.write(fd, myBuffer, lengthRequested);
          } 
              catch (IOException e)
             {
-               fileErrorString = new String(
+               io.fileErrorString = new String(
                     "IO Exception on write of file with fd " + fd);
                return -1;
             } 
              catch (IndexOutOfBoundsException e)
             {
-               fileErrorString = new String(
+               io.fileErrorString = new String(
                     "IndexOutOfBoundsException on write of file with fd" + fd);
                return -1;
             }
@@ -354,29 +378,28 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          int retValue = -1;  
        /////////////// DPS 8-Jan-2013  //////////////////////////////////////////////////
        /// Read from STDIN file descriptor while using IDE - get input from Messages pane. 
-         if (fd==STDIN && Globals.getGui() != null) {
+         if (fd==STDIN && usesGui()) {
             String input = Globals.getGui().getMessagesPane().getInputString(lengthRequested);
             byte[] bytesRead = input.getBytes();;
-            for (int i=0; i < myBuffer.length; i++) {
+            int length = Math.min(lengthRequested, myBuffer.length);
+            for (int i=0; i < length; i++) {
                myBuffer[i] = (i < bytesRead.length) ? bytesRead[i] : 0 ;
             }
-            return Math.min(myBuffer.length, bytesRead.length);
+            return Math.min(length, bytesRead.length);
          }
        ////////////////////////////////////////////////////////////////////////////////////
        //// When running in command mode, code below works for either regular file or STDIN
-       
-         if (!FileIOData.fdInUse(fd, 0)) // Check the existence of the "read" fd
+         SystemIO io = state();
+         if (!io.files.fdInUse(fd, 0)) // Check the existence of the "read" fd
          {
-            fileErrorString = new String(
+            io.fileErrorString = new String(
                     "File descriptor " + fd + " is not open for reading");
             return -1;
          }
-        // retrieve FileInputStream from storage
-         InputStream InputStream = (InputStream) FileIOData.getStreamInUse(fd);
          try
          {
-            // Reads up to lengthRequested bytes of data from this Input stream into an array of bytes.
-            retValue = InputStream.read(myBuffer, 0, lengthRequested);
+            // Reads up to lengthRequested bytes of data from the file into an array of bytes.
+            retValue = io.files.read(fd, myBuffer, lengthRequested);
          	// This method will return -1 upon EOF, but our spec says that negative
          	// value represents an error, so we return 0 for EOF.  DPS 10-July-2008.
             if (retValue == -1) {
@@ -385,13 +408,13 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          } 
              catch (IOException e)
             {
-               fileErrorString = new String(
+               io.fileErrorString = new String(
                     "IO Exception on read of file with fd " + fd);
                return -1;
             } 
              catch (IndexOutOfBoundsException e)
             {
-               fileErrorString = new String(
+               io.fileErrorString = new String(
                     "IndexOutOfBoundsException on read of file with fd" + fd);
                return -1;
             }
@@ -416,13 +439,11 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
         // that file descriptor.
       
          int retValue = -1;
-         char ch[] = { ' '}; // Need an array to convert to String
-         FileInputStream inputStream;
-         FileOutputStream outputStream;
          int fdToUse;
       
         // Check internal plausibility of opening this file
-         fdToUse = FileIOData.nowOpening(filename, flags);
+         SystemIO io = state();
+         fdToUse = io.files.nowOpening(filename, flags);
          retValue = fdToUse; // return value is the fd
          if (fdToUse < 0)
          { 
@@ -434,28 +455,26 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          {
             try
             {
-                // Set up input stream from disk file
-               inputStream = new FileInputStream(filename);
-               FileIOData.setStreamInUse(fdToUse, inputStream); // Save stream for later use
+                // Set up channel from disk file
+               io.files.open(fdToUse, new FileInputStream(filename).getChannel()); // Save channel for later use
             } 
                 catch (FileNotFoundException e)
                {
-                  fileErrorString = new String(
+                  io.fileErrorString = new String(
                         "File " + filename + " not found, open for input.");
                   retValue = -1;
                }
          } 
          else if ( (flags & O_WRONLY) != 0 ) // Open for writing only
          {
-            // Set up output stream to disk file
+            // Set up channel to disk file
             try
             { 
-               outputStream = new FileOutputStream(filename, ((flags & O_APPEND) != 0) );
-               FileIOData.setStreamInUse(fdToUse, outputStream); // Save stream for later use
+               io.files.open(fdToUse, new FileOutputStream(filename, ((flags & O_APPEND) != 0) ).getChannel()); // Save channel for later use
             } 
                 catch (FileNotFoundException e)
                {
-                  fileErrorString = new String(
+                  io.fileErrorString = new String(
                         "File " + filename + " not found, open for output.");
                   retValue = -1;
                }
@@ -464,21 +483,59 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
       
       }
    
-    /** Close the file with specified file descriptor 
+    /** Close the file with specified file descriptor.  The file is closed even if
+     * bytes written to it could not be written out.
      *
      * @param fd the file descriptor of an open file
+     * @return 0, or -1 if bytes written to the file could not be written out or the
+     * file could not be closed
      */
-       public static void closeFile(int fd)
+       public static int closeFile(int fd)
       {
-         FileIOData.close(fd);
+         SystemIO io = state();
+         if (!io.files.close(fd))
+         {
+            io.fileErrorString = new String(
+                    "IO Exception on close of file with fd " + fd);
+            return -1;
+         }
+         return 0;
       }
    
     /** 
-     * Reset all files -- clears out the file descriptor table.
+     * Reset all files -- clears out the file descriptor table of the calling
+     * thread's MachineContext.
      */
        public static void resetFiles()
       {
-         FileIOData.resetFiles();
+         state().files.resetFiles();
+      }
+   
+    /**
+     * Write out whatever the program running in the calling thread's MachineContext
+     * has written to its open files but is still held in their write buffers.  Called
+     * whenever execution stops; closing or resetting the files does it as well.
+     */
+       public static void flushFiles()
+      {
+         state().files.flush();
+      }
+   
+    /**
+     * Returns an array of at least the given length for a file syscall to read into,
+     * reused by later calls in the calling thread's MachineContext.
+     *
+     * @param length the number of bytes needed
+     * @return an array of at least length bytes
+     */
+       public static byte[] getFileBuffer(int length)
+      {
+         SystemIO io = state();
+         if (io.fileBuffer == null || io.fileBuffer.length < length)
+         {
+            io.fileBuffer = new byte[Math.max(length, 1024)];
+         }
+         return io.fileBuffer;
       }
    
      /**
@@ -488,7 +545,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	*/
        public static String getFileErrorMessage()
       {
-         return fileErrorString;
+         return state().fileErrorString;
       }
    
       ///////////////////////////////////////////////////////////////////////
@@ -498,10 +555,33 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	// transparent to it.  Lazy instantiation.  DPS.  28 Feb 2008
    	
        private static BufferedReader getInputReader() {
-         if (inputReader == null) {
-            inputReader = new BufferedReader(new InputStreamReader(System.in));  
+         SystemIO io = state();
+         if (io.inputReader == null) {
+            io.inputReader = new BufferedReader(new InputStreamReader(io.getStandardInput()));  
          }
-         return inputReader;
+         return io.inputReader;
+      }
+   
+      // The SystemIO of the calling thread's MachineContext.
+       private static SystemIO state() {
+         return MachineContext.current().getSystemIO();
+      }
+   
+      // Whether syscalls interact with the GUI rather than the standard streams.
+       private static boolean usesGui() {
+         return Globals.getGui() != null && MachineContext.current().isDefault();
+      }
+   
+       private InputStream getStandardInput() {
+         return (standardInput == null) ? System.in : standardInput;
+      }
+   
+       private PrintStream getStandardOutput() {
+         return (standardOutput == null) ? System.out : standardOutput;
+      }
+   
+       private PrintStream getStandardError() {
+         return (standardError == null) ? System.err : standardError;
       }
    	
    	
@@ -509,14 +589,19 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     // Maintain information on files in use. The index to the arrays is the "file descriptor."
     // Ken Vollmar, August 2005
     
-       private static class FileIOData
+       private class FileIOData
       {
-         private static String[] fileNames = new String[ SYSCALL_MAXFILES ]; // The filenames in use. Null if file descriptor i is not in use.
-         private static int[] fileFlags = new int[ SYSCALL_MAXFILES ]; // The flags of this file, 0=READ, 1=WRITE. Invalid if this file descriptor is not in use.
-         private static Object[] streams = new Object[SYSCALL_MAXFILES]; // The streams in use, associated with the filenames
+         private String[] fileNames = new String[ SYSCALL_MAXFILES ]; // The filenames in use. Null if file descriptor i is not in use.
+         private int[] fileFlags = new int[ SYSCALL_MAXFILES ]; // The flags of this file, 0=READ, 1=WRITE. Invalid if this file descriptor is not in use.
+         private Object[] streams = new Object[SYSCALL_MAXFILES]; // The standard streams, or the FileChannels of files the program opened
+         private ByteBuffer[] writeBuffers = new ByteBuffer[SYSCALL_MAXFILES]; // Bytes not yet written to files open for writing. Kept for the next file given the descriptor.
+         private IOException[] writeErrors = new IOException[SYSCALL_MAXFILES]; // Failures to write out a write buffer when execution stopped, reported by the next write or close
+         private MappedByteBuffer[] mappedFiles = new MappedByteBuffer[SYSCALL_MAXFILES]; // Contents of large files open for reading, or null to read through the channel
+         private ByteBuffer transferBuffer; // Carries bytes between MIPS buffers and channels, allocated on first use
+         private static final int TRANSFER_BUFFER_SIZE = 65536;
       
         // Reset all file information. Closes any open files and resets the arrays
-          private static void resetFiles()
+          private void resetFiles()
          {
             for (int i = 0; i < SYSCALL_MAXFILES; i++)
             {
@@ -525,36 +610,190 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             setupStdio();
          }
       	// DPS 8-Jan-2013
-          private static void setupStdio() {
+          private void setupStdio() {
             fileNames[STDIN]  = "STDIN";
             fileNames[STDOUT] = "STDOUT";
             fileNames[STDERR] = "STDERR";
             fileFlags[STDIN]  = SystemIO.O_RDONLY;
             fileFlags[STDOUT] = SystemIO.O_WRONLY;
             fileFlags[STDERR] = SystemIO.O_WRONLY;
-            streams[STDIN]  = System.in;
-            streams[STDOUT] = System.out;
-            streams[STDERR] = System.err;
-            System.out.flush();
-            System.err.flush();
+            streams[STDIN]  = getStandardInput();
+            streams[STDOUT] = getStandardOutput();
+            streams[STDERR] = getStandardError();
+            getStandardOutput().flush();
+            getStandardError().flush();
          }
       
-        // Preserve a stream that is in use
-          private static void setStreamInUse(int fd, Object s)
+        // Preserve the channel of a file just opened by nowOpening.  A file to be read
+        // is memory-mapped if it is large enough; one to be written gets a write buffer.
+          private void open(int fd, FileChannel channel)
          {
-            streams[fd] = s;
-         
+            streams[fd] = channel;
+            mappedFiles[fd] = null;
+            writeErrors[fd] = null;
+            if (fileFlags[fd] == O_RDONLY)
+            {
+               try
+               {
+                  long size = channel.size();
+                  if (Globals.fileMapThreshold > 0 && size >= Globals.fileMapThreshold && size <= Integer.MAX_VALUE)
+                  {
+                     mappedFiles[fd] = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                  }
+               } 
+                   catch (IOException e) {
+                  // not mapped -- the file is read through the channel instead
+                  }
+            } 
+            else if (Globals.fileWriteBufferSize > 0 
+                     && (writeBuffers[fd] == null || writeBuffers[fd].capacity() != Globals.fileWriteBufferSize))
+            {
+               writeBuffers[fd] = ByteBuffer.allocateDirect(Globals.fileWriteBufferSize);
+            }
          }
       
-        // Retrieve a stream for use
-          private static Object getStreamInUse(int fd)
+        // Read up to length bytes from fd into the start of buffer.  Return the number
+        // of bytes read, or -1 at end of file, as InputStream.read does.
+          private int read(int fd, byte[] buffer, int length) throws IOException
          {
-            return streams[fd];
-         
+            if (streams[fd] instanceof InputStream)
+            {
+               return ((InputStream) streams[fd]).read(buffer, 0, length);
+            }
+            if (length < 0 || length > buffer.length)
+            {
+               throw new IndexOutOfBoundsException();
+            }
+            MappedByteBuffer mapped = mappedFiles[fd];
+            if (mapped != null)
+            {
+               if (length > 0 && !mapped.hasRemaining())
+               {
+                  return -1;
+               }
+               int count = Math.min(length, mapped.remaining());
+               mapped.get(buffer, 0, count);
+               return count;
+            }
+            FileChannel channel = (FileChannel) streams[fd];
+            ByteBuffer transfer = getTransferBuffer();
+            int total = 0;
+            while (total < length)
+            {
+               transfer.clear();
+               transfer.limit(Math.min(length - total, transfer.capacity()));
+               int count = channel.read(transfer);
+               if (count <= 0)
+               {
+                  break;
+               }
+               transfer.flip();
+               transfer.get(buffer, total, count);
+               total += count;
+            }
+            return (total == 0 && length > 0) ? -1 : total;
+         }
+      
+        // Write length bytes from the start of buffer to fd.  Standard output and error
+        // are flushed at once; other files keep the bytes in their write buffer until it
+        // fills or the file is flushed or closed, and write through if there is no buffer
+        // or the bytes would not fit in it.  Fails without writing if bytes buffered by an
+        // earlier write could not be written out, so the program learns of it.
+          private void write(int fd, byte[] buffer, int length) throws IOException
+         {
+            IOException earlier = writeErrors[fd];
+            if (earlier != null)
+            {
+               writeErrors[fd] = null;
+               throw earlier;
+            }
+            if (streams[fd] instanceof OutputStream)
+            {
+               OutputStream outputStream = (OutputStream) streams[fd];
+               outputStream.write(buffer, 0, length);
+               outputStream.flush();// DPS 7-Jan-2013
+               return;
+            }
+            if (length < 0 || length > buffer.length)
+            {
+               throw new IndexOutOfBoundsException();
+            }
+            ByteBuffer pending = writeBuffers[fd];
+            if (pending != null && length > pending.remaining())
+            {
+               flush(fd);
+            }
+            if (pending != null && length <= pending.remaining())
+            {
+               pending.put(buffer, 0, length);
+               return;
+            }
+            FileChannel channel = (FileChannel) streams[fd];
+            ByteBuffer transfer = getTransferBuffer();
+            for (int offset = 0; offset < length; )
+            {
+               transfer.clear();
+               int count = Math.min(length - offset, transfer.capacity());
+               transfer.put(buffer, offset, count);
+               transfer.flip();
+               while (transfer.hasRemaining())
+               {
+                  channel.write(transfer);
+               }
+               offset += count;
+            }
+         }
+      
+        // Write out the contents of the write buffer of fd, if it is a file open for writing.
+          private void flush(int fd) throws IOException
+         {
+            ByteBuffer pending = writeBuffers[fd];
+            if (fd <= STDERR || pending == null || pending.position() == 0 
+                || !(streams[fd] instanceof FileChannel) || fileFlags[fd] == O_RDONLY)
+            {
+               return;
+            }
+            FileChannel channel = (FileChannel) streams[fd];
+            pending.flip();
+            try
+            {
+               while (pending.hasRemaining())
+               {
+                  channel.write(pending);
+               }
+            }
+            finally
+            {
+               pending.clear();
+            }
+         }
+      
+        // Write out the write buffers of all open files.  A failure is kept for the next
+        // write to or close of the file to report.
+          private void flush()
+         {
+            for (int i = STDERR + 1; i < SYSCALL_MAXFILES; i++)
+            {
+               try {
+                  flush(i);
+               } 
+                   catch (IOException ioe) {
+                     writeErrors[i] = ioe;
+                  }
+            }
+         }
+      
+          private ByteBuffer getTransferBuffer()
+         {
+            if (transferBuffer == null)
+            {
+               transferBuffer = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+            }
+            return transferBuffer;
          }
       
         // Determine whether a given filename is already in use.
-          private static boolean filenameInUse(String requestedFilename)
+          private boolean filenameInUse(String requestedFilename)
          {
             for (int i = 0; i < SYSCALL_MAXFILES; i++)
             {
@@ -572,7 +811,7 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          }
       
         // Determine whether a given fd is already in use with the given flag.
-          private static boolean fdInUse(int fd, int flag)
+          private boolean fdInUse(int fd, int flag)
          {
             if (fd < 0 || fd >= SYSCALL_MAXFILES)
             {
@@ -591,40 +830,52 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
          }
       
         // Close the file with file descriptor fd. No errors are recoverable -- if the user's
-        // made an error in the call, it will come back to him.
-          private static void close(int fd)
+        // made an error in the call, it will come back to him.  Return false if bytes
+        // written to the file could not be written out or the file could not be closed;
+        // it is closed all the same.
+          private boolean close(int fd)
          {
             // Can't close STDIN, STDOUT, STDERR, or invalid fd
             if (fd <= STDERR || fd >= SYSCALL_MAXFILES) 
-               return;
+               return true;
                
-            fileNames[fd] = null;
          	// All this code will be executed only if the descriptor is open.
+            boolean closed = true;
             if (streams[fd] != null)
             {
-               int keepFlag = fileFlags[fd];
-               Object keepStream = streams[fd];
+               FileChannel keepChannel = (FileChannel) streams[fd];
+               try {
+                  flush(fd);
+               } 
+                   catch (IOException ioe) {
+                     closed = false;
+                  }
+               if (writeErrors[fd] != null) {
+                  writeErrors[fd] = null;
+                  closed = false;
+               }
+               fileNames[fd] = null;
                fileFlags[fd] = -1;
                streams[fd] = null;
+               mappedFiles[fd] = null;
                try {
-                  if (keepFlag == O_RDONLY)
-                     ((FileInputStream)keepStream).close();
-                  else
-                     ((FileOutputStream)keepStream).close();
+                  keepChannel.close();
                } 
                    catch (IOException ioe) {
-                  // not concerned with this exception
+                     closed = false;
                   }
             } 
             else {
+               fileNames[fd] = null;
                fileFlags[fd] = -1; // just to be sure... streams[fd] known to be null
             }
+            return closed;
          }
       
         // Attempt to open a new file with the given flag, using the lowest available file descriptor.
         // Check that filename is not in use, flag is reasonable, and there is an available file descriptor.
         // Return: file descriptor in 0...(SYSCALL_MAXFILES-1), or -1 if error
-          private static int nowOpening(String filename, int flag)
+          private int nowOpening(String filename, int flag)
          {
             int i = 0;
             if (filenameInUse(filename))
@@ -8,6 +8,7 @@
    import javax.swing.event.DocumentListener;
    import javax.swing.undo.UndoableEdit;
    import mars.simulator.Simulator;
+   import mars.simulator.SimulationMetrics;
    import javax.swing.event.DocumentEvent;
    import javax.swing.text.Position.Bias;
 
@@ -298,27 +299,54 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
    	// "print" syscalls. "invokeLater" schedules the code to be
    	// run under the event-processing thread no matter what.
    	// DPS, 23 Aug 2005.
+   	// A program printing in a loop posts far faster than the event thread can
+   	// append, so messages are gathered in pendingRunOutput and at most one append
+   	// is waiting on the event queue at a time.  It takes everything posted
+   	// until it runs.
        public void postRunMessage(String message) {
-         final String mess = message;
-         SwingUtilities.invokeLater(
-                new Runnable() { 
-                   public void run() { 
-                     setSelectedComponent(runTab);
-                     run.append(mess);
-                  // can do some crude cutting here.  If the document gets "very large", 
-                  // let's cut off the oldest text. This will limit scrolling but the limit 
-                  // can be set reasonably high.
-                     if (run.getDocument().getLength() > MAXIMUM_SCROLLED_CHARACTERS) {
-                        try {
-                           run.getDocument().remove(0, NUMBER_OF_CHARACTERS_TO_CUT);
-                        } 
-                            catch (BadLocationException ble) { 
-                           // only if NUMBER_OF_CHARACTERS_TO_CUT > MAXIMUM_SCROLLED_CHARACTERS
-                           }
-                     }
-                  } 
-               });
+         synchronized (pendingRunOutput) {
+            pendingRunOutput.append(message);
+            // Anything beyond what the display keeps would be cut as soon as it is appended.
+            if (pendingRunOutput.length() > MAXIMUM_SCROLLED_CHARACTERS) {
+               pendingRunOutput.delete(0, pendingRunOutput.length() - MAXIMUM_SCROLLED_CHARACTERS);
+            }
+            if (runOutputAppendScheduled) {
+               return;
+            }
+            runOutputAppendScheduled = true;
+         }
+         SwingUtilities.invokeLater(appendPendingRunOutput);
       }
+   
+      private final StringBuilder pendingRunOutput = new StringBuilder();
+      private boolean runOutputAppendScheduled = false; // guarded by pendingRunOutput
+      private final Runnable appendPendingRunOutput = 
+             new Runnable() { 
+                public void run() { 
+                  String mess;
+                  synchronized (pendingRunOutput) {
+                     mess = pendingRunOutput.toString();
+                     pendingRunOutput.setLength(0);
+                     runOutputAppendScheduled = false;
+                  }
+                  SimulationMetrics.getInstance().countGuiUpdate();
+                  setSelectedComponent(runTab);
+                  run.append(mess);
+               // can do some crude cutting here.  If the document gets "very large", 
+               // let's cut off the oldest text. This will limit scrolling but the limit 
+               // can be set reasonably high.
+                  int excess = run.getDocument().getLength() - MAXIMUM_SCROLLED_CHARACTERS;
+                  if (excess > 0) {
+                     try {
+                        run.getDocument().remove(0, Math.min(run.getDocument().getLength(), 
+                                                             excess + NUMBER_OF_CHARACTERS_TO_CUT));
+                     } 
+                         catch (BadLocationException ble) { 
+                        // not expected, since no more than the whole document is removed
+                        }
+                  }
+               } 
+            };
    	
    	/**
    	 * Make the assembler message tab current (up front)
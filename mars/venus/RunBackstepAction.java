@@ -66,7 +66,12 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 				RegisterFile.addRegistersObserver(executePane.getRegistersWindow());
 				Coprocessor0.addRegistersObserver(executePane.getCoprocessor0Window());
 				Coprocessor1.addRegistersObserver(executePane.getCoprocessor1Window());
-            Globals.program.getBackStepper().backStep();
+            try {
+               Globals.program.getBackStepper().backStep();
+            } 
+                catch (ProcessingException pe) {
+                  mainUI.getMessagesPane().postMarsMessage(pe.errors().generateErrorReport());
+               }
 				Memory.getInstance().deleteObserver(executePane.getDataSegmentWindow());
 				RegisterFile.deleteRegistersObserver(executePane.getRegistersWindow());
             executePane.getRegistersWindow().updateRegisters();